@@ -0,0 +1,207 @@
+package com.gemalto.wsq;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class TestWSQCodec {
+    // Context of the app under test.
+    private Context ctx;
+    private Util util;
+
+    @Before
+    public void init() {
+        ctx = InstrumentationRegistry.getTargetContext();
+        util = new Util(ctx);
+    }
+
+    /*
+      Decode and encode with all priorities, the results must be the same as those of the blocking calls.
+     */
+    @Test
+    public void testAsync() throws Exception {
+        String[] wsqFiles = new String[] {"lena1.wsq", "lena2.wsq", "256x256.wsq", "1024x1024.wsq"};
+        int[] scales = new int[] {1, 2, 4, 16};
+
+        final CountDownLatch callbacks = new CountDownLatch(wsqFiles.length * scales.length);
+        WSQCodec.Callback<WSQDecoder.WSQDecodedImage> counter = new WSQCodec.Callback<WSQDecoder.WSQDecodedImage>() {
+            @Override
+            public void onResult(WSQDecoder.WSQDecodedImage result) {
+                callbacks.countDown();
+            }
+        };
+        List<WSQCodec.Task<WSQDecoder.WSQDecodedImage>> tasks = new ArrayList<>();
+        for (String wsqFile : wsqFiles) {
+            byte[] data = util.loadAssetFile(wsqFile);
+            for (int i = 0; i < scales.length; i++) {
+                WSQCodec.Priority priority = WSQCodec.Priority.values()[i % WSQCodec.Priority.values().length];
+                tasks.add(WSQCodec.decodeAsync(data, scales[i], priority, counter));
+            }
+        }
+        int t = 0;
+        for (String wsqFile : wsqFiles) {
+            byte[] data = util.loadAssetFile(wsqFile);
+            for (int scale : scales) {
+                util.assertBitmapsEqual(wsqFile + " at 1/" + scale + " is different", WSQDecoder.decode(data, scale).getBitmap(),
+                        tasks.get(t++).get().getBitmap());
+            }
+        }
+
+        File file = new File(ctx.getFilesDir(), "tmp.wsq");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(util.loadAssetFile("lena1.wsq"));
+        out.close();
+        util.assertBitmapsEqual("decoded file is different", WSQDecoder.decode(file).getBitmap(),
+                WSQCodec.decodeAsync(file, 1, WSQCodec.Priority.FOREGROUND, null).get().getBitmap());
+        file.delete();
+
+        WSQEncoder encoder = new WSQEncoder(util.loadAssetBitmap("lena1.png")).setPpi(500);
+        assertArrayEquals(encoder.encode(), WSQCodec.encodeAsync(encoder, WSQCodec.Priority.BACKGROUND, null).get());
+
+        assertNull(WSQCodec.decodeAsync(util.loadAssetFile("lena1.png"), WSQCodec.Priority.THUMBNAIL, null).get());
+        //the callbacks run after the results are set
+        assertTrue("all callbacks must be called", callbacks.await(10, TimeUnit.SECONDS));
+        try {
+            WSQCodec.decodeAsync(util.loadAssetFile("lena1.wsq"), 3, WSQCodec.Priority.THUMBNAIL, null);
+            fail("invalid scale must be refused");
+        } catch (IllegalArgumentException ignored) {}
+        try {
+            WSQCodec.decodeAsync(util.loadAssetFile("lena1.wsq"), null, null);
+            fail("null priority must be refused");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    /*
+      Cancel queued tasks and drop the oldest thumbnails from a full queue, while all codec threads are held busy.
+     */
+    @Test
+    public void testCancel() throws Exception {
+        byte[] data = util.loadAssetFile("lena1.wsq");
+        final CountDownLatch release = new CountDownLatch(1);
+        WSQCodec.Callback<WSQDecoder.WSQDecodedImage> blocker = new WSQCodec.Callback<WSQDecoder.WSQDecodedImage>() {
+            @Override
+            public void onResult(WSQDecoder.WSQDecodedImage result) {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {}
+            }
+        };
+        final AtomicInteger callbacks = new AtomicInteger();
+        final CountDownLatch called = new CountDownLatch(1);
+        WSQCodec.Callback<WSQDecoder.WSQDecodedImage> counter = new WSQCodec.Callback<WSQDecoder.WSQDecodedImage>() {
+            @Override
+            public void onResult(WSQDecoder.WSQDecodedImage result) {
+                callbacks.incrementAndGet();
+                called.countDown();
+            }
+        };
+
+        //there are at least 2 codec threads, one per core
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        List<WSQCodec.Task<WSQDecoder.WSQDecodedImage>> blocking = new ArrayList<>();
+        for (int i = 0; i < threads; i++) blocking.add(WSQCodec.decodeAsync(data, WSQCodec.Priority.FOREGROUND, blocker));
+        for (WSQCodec.Task<WSQDecoder.WSQDecodedImage> task : blocking) task.get(10, TimeUnit.SECONDS);
+
+        WSQCodec.setMaxQueued(WSQCodec.Priority.THUMBNAIL, 2);
+        try {
+            List<WSQCodec.Task<WSQDecoder.WSQDecodedImage>> thumbnails = new ArrayList<>();
+            for (int i = 0; i < 5; i++) thumbnails.add(WSQCodec.decodeAsync(data, 4, WSQCodec.Priority.THUMBNAIL, counter));
+            for (int i = 0; i < 3; i++) assertTrue("thumbnail " + i + " should be dropped", thumbnails.get(i).isCancelled());
+            assertTrue(thumbnails.get(3).cancel(false));
+            assertFalse(thumbnails.get(3).cancel(false));
+            release.countDown();
+
+            assertNotNull(thumbnails.get(4).get());
+            for (int i = 0; i < 4; i++) {
+                try {
+                    thumbnails.get(i).get();
+                    fail("cancelled task must not have a result");
+                } catch (CancellationException ignored) {}
+            }
+            assertFalse(thumbnails.get(4).cancel(true));
+            assertTrue("callback must be called", called.await(10, TimeUnit.SECONDS));
+            assertEquals(1, callbacks.get());
+        } finally {
+            release.countDown();
+            WSQCodec.setMaxQueued(WSQCodec.Priority.THUMBNAIL, 32);
+        }
+    }
+
+    /*
+      Cancel a decode while it runs on a codec thread, its result must be dropped and its callback not called.
+     */
+    @Test
+    public void testCancelRunning() throws Exception {
+        byte[] data = util.loadAssetFile("1024x1024.wsq");
+        byte[] small = util.loadAssetFile("lena1.wsq");
+        final CountDownLatch release = new CountDownLatch(1);
+        WSQCodec.Callback<WSQDecoder.WSQDecodedImage> blocker = new WSQCodec.Callback<WSQDecoder.WSQDecodedImage>() {
+            @Override
+            public void onResult(WSQDecoder.WSQDecodedImage result) {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {}
+            }
+        };
+        final AtomicInteger callbacks = new AtomicInteger();
+        WSQCodec.Callback<WSQDecoder.WSQDecodedImage> counter = new WSQCodec.Callback<WSQDecoder.WSQDecodedImage>() {
+            @Override
+            public void onResult(WSQDecoder.WSQDecodedImage result) {
+                callbacks.incrementAndGet();
+            }
+        };
+        final CountDownLatch next = new CountDownLatch(1);
+        WSQCodec.Callback<WSQDecoder.WSQDecodedImage> marker = new WSQCodec.Callback<WSQDecoder.WSQDecodedImage>() {
+            @Override
+            public void onResult(WSQDecoder.WSQDecodedImage result) {
+                next.countDown();
+            }
+        };
+
+        //hold all codec threads but one, the following decodes run on it one after another
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        List<WSQCodec.Task<WSQDecoder.WSQDecodedImage>> blocking = new ArrayList<>();
+        for (int i = 0; i < threads - 1; i++) blocking.add(WSQCodec.decodeAsync(small, WSQCodec.Priority.FOREGROUND, blocker));
+        for (WSQCodec.Task<WSQDecoder.WSQDecodedImage> task : blocking) task.get(10, TimeUnit.SECONDS);
+
+        try {
+            WSQCodec.Task<WSQDecoder.WSQDecodedImage> running = WSQCodec.decodeAsync(data, WSQCodec.Priority.FOREGROUND, counter);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!running.isRunning()) {
+                assertFalse("decode finished before it could be cancelled", running.isDone());
+                assertTrue("decode must start", System.nanoTime() < deadline);
+                Thread.yield();
+            }
+            assertTrue(running.cancel(true));
+            assertTrue(running.isCancelled());
+            assertFalse(running.cancel(true));
+            try {
+                running.get();
+                fail("cancelled task must not have a result");
+            } catch (CancellationException ignored) {}
+
+            //the free thread takes the next task once the cancelled decode has returned
+            assertNotNull(WSQCodec.decodeAsync(small, 4, WSQCodec.Priority.FOREGROUND, marker).get(10, TimeUnit.SECONDS));
+            assertTrue("next callback must be called", next.await(10, TimeUnit.SECONDS));
+            assertEquals("cancelled callback must not be called", 0, callbacks.get());
+        } finally {
+            release.countDown();
+        }
+    }
+}
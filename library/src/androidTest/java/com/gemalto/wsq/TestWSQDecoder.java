@@ -2,6 +2,7 @@ package com.gemalto.wsq;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
 
@@ -9,11 +10,27 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 
 /**
  * Instrumented test, which will execute on an Android device.
@@ -53,6 +70,15 @@ public class TestWSQDecoder {
             WSQDecoder.WSQDecodedImage decoded = WSQDecoder.decode(outFile.getPath());
 
             util.assertBitmapsEqual("decoded " + wsqFiles[i] + " is different from " + expectedFiles[i], decoded.getBitmap(), expected);
+            decoded = WSQDecoder.decode(outFile);
+            util.assertBitmapsEqual("decoded " + wsqFiles[i] + " is different from " + expectedFiles[i], decoded.getBitmap(), expected);
+
+            //test decode from file descriptor, which is left open
+            try (FileInputStream in = new FileInputStream(outFile)) {
+                decoded = WSQDecoder.decode(in.getFD());
+                util.assertBitmapsEqual("decoded " + wsqFiles[i] + " is different from " + expectedFiles[i], decoded.getBitmap(), expected);
+                assertTrue(in.getFD().valid());
+            }
             outFile.delete();
 
             //test decode from stream
@@ -68,6 +94,518 @@ public class TestWSQDecoder {
         }
     }
 
+    /*
+      Decode from a direct buffer into a direct buffer, compare the gray pixels with the expected results.
+     */
+    @Test
+    public void testDecodeByteBuffer() throws Exception {
+        String[] wsqFiles = new String[] {"lena1.wsq", "lena2.wsq", "256x256.wsq", "1024x1024.wsq"};
+        String[] expectedFiles = new String[] {"lena1.png", "lena2.png", "256x256.png", "1024x1024.png"};
+
+        for (int i = 0; i < wsqFiles.length; i++) {
+            Bitmap expected = util.loadAssetBitmap(expectedFiles[i]);
+            byte[] data = util.loadAssetFile(wsqFiles[i]);
+
+            //place the data at non-zero positions to check offset handling
+            ByteBuffer in = ByteBuffer.allocateDirect(data.length + 10);
+            in.position(10);
+            in.put(data);
+            in.position(10);
+            ByteBuffer out = ByteBuffer.allocateDirect(expected.getWidth() * expected.getHeight() + 7);
+            out.position(7);
+
+            WSQDecoder.WSQGrayImage decoded = WSQDecoder.decode(in, out);
+            assertNotNull(decoded);
+            assertEquals(expected.getWidth(), decoded.getWidth());
+            assertEquals(expected.getHeight(), decoded.getHeight());
+            assertEquals(10, in.position());
+            assertEquals(7, out.position());
+            assertGrayEquals("decoded " + wsqFiles[i] + " is different from " + expectedFiles[i], expected, decoded.getPixels());
+        }
+
+        //output buffer too small
+        byte[] data = util.loadAssetFile("lena1.wsq");
+        ByteBuffer in = ByteBuffer.allocateDirect(data.length);
+        in.put(data);
+        in.flip();
+        assertNull(WSQDecoder.decode(in, ByteBuffer.allocateDirect(100)));
+        //a frame of 65535 x 65535 pixels, more than an int can count, is refused
+        byte[] huge = data.clone();
+        int sof = 2;
+        while ((((huge[sof] & 0xFF) << 8) | (huge[sof + 1] & 0xFF)) != 0xFFA2) {
+            sof += 2 + (((huge[sof + 2] & 0xFF) << 8) | (huge[sof + 3] & 0xFF));
+        }
+        for (int i = sof + 6; i < sof + 10; i++) huge[i] = (byte) 0xFF;
+        ByteBuffer hugeIn = ByteBuffer.allocateDirect(huge.length);
+        hugeIn.put(huge);
+        hugeIn.flip();
+        assertNull(WSQDecoder.decode(hugeIn, ByteBuffer.allocateDirect(100)));
+        assertNull(WSQDecoder.decodeGray(huge));
+        assertNull(WSQDecoder.decode(huge));
+        //not a WSQ
+        assertNull(WSQDecoder.decode(ByteBuffer.allocateDirect(100), ByteBuffer.allocateDirect(100)));
+        try {
+            WSQDecoder.decode(ByteBuffer.wrap(data), ByteBuffer.allocateDirect(100));
+            fail("heap buffers must be refused");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    /*
+      Decode into 8-bit grayscale pixels from all the supported sources, compare them with the expected results.
+     */
+    @Test
+    public void testDecodeGray() throws Exception {
+        String[] wsqFiles = new String[] {"lena1.wsq", "lena2.wsq", "256x256.wsq", "1024x1024.wsq"};
+        String[] expectedFiles = new String[] {"lena1.png", "lena2.png", "256x256.png", "1024x1024.png"};
+
+        for (int i = 0; i < wsqFiles.length; i++) {
+            String message = "decoded " + wsqFiles[i] + " is different from " + expectedFiles[i];
+            Bitmap expected = util.loadAssetBitmap(expectedFiles[i]);
+            byte[] data = util.loadAssetFile(wsqFiles[i]);
+
+            //test decode from byte array
+            WSQDecoder.WSQGrayImage decoded = WSQDecoder.decodeGray(data);
+            assertNotNull(decoded);
+            assertEquals(expected.getWidth(), decoded.getWidth());
+            assertEquals(expected.getHeight(), decoded.getHeight());
+            assertEquals(decoded.getWidth() * decoded.getHeight(), decoded.getPixels().array().length);
+            assertGrayEquals(message, expected, decoded.getPixels());
+
+            //test decode from file
+            File outFile = new File(ctx.getFilesDir(), "tmp.tmp");
+            FileOutputStream out = new FileOutputStream(outFile);
+            out.write(data);
+            out.close();
+            assertGrayEquals(message, expected, WSQDecoder.decodeGray(outFile.getPath()).getPixels());
+            outFile.delete();
+
+            //test decode from stream
+            try (InputStream in = ctx.getAssets().open(wsqFiles[i])) {
+                assertGrayEquals(message, expected, WSQDecoder.decodeGray(in).getPixels());
+            }
+
+            //test decode from heap and direct buffers
+            assertGrayEquals(message, expected, WSQDecoder.decodeGray(ByteBuffer.wrap(data)).getPixels());
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data);
+            direct.flip();
+            assertGrayEquals(message, expected, WSQDecoder.decodeGray(direct).getPixels());
+            assertEquals(0, direct.position());
+
+            //test the ALPHA_8 bitmap
+            Bitmap bmp = decoded.toBitmap();
+            assertEquals(Bitmap.Config.ALPHA_8, bmp.getConfig());
+            assertEquals(decoded.getWidth(), bmp.getWidth());
+            assertEquals(decoded.getHeight(), bmp.getHeight());
+            ByteBuffer alpha = ByteBuffer.allocate(bmp.getByteCount());
+            bmp.copyPixelsToBuffer(alpha);
+            alpha.flip();
+            assertEquals(decoded.getPixels(), alpha);
+        }
+
+        //errors
+        assertNull(WSQDecoder.decodeGray(util.loadAssetFile("lena1.png")));
+        assertNull(WSQDecoder.decodeGray(new byte[0]));
+        assertNull(WSQDecoder.decodeGray((byte[]) null));
+        assertNull(WSQDecoder.decodeGray((ByteBuffer) null));
+        assertNull(WSQDecoder.decodeGray(ByteBuffer.allocateDirect(100)));
+        assertNull(WSQDecoder.decodeGray(new File(ctx.getFilesDir(), "doesnotexist.wsq").getPath()));
+    }
+
+    /*
+      Decode into reused bitmaps of all the supported configs, compare them with the expected results.
+     */
+    @Test
+    public void testDecodeInto() throws Exception {
+        String[] wsqFiles = new String[] {"lena1.wsq", "lena2.wsq", "256x256.wsq", "1024x1024.wsq"};
+        String[] expectedFiles = new String[] {"lena1.png", "lena2.png", "256x256.png", "1024x1024.png"};
+
+        for (int i = 0; i < wsqFiles.length; i++) {
+            String message = "decoded " + wsqFiles[i] + " is different from " + expectedFiles[i];
+            Bitmap expected = util.loadAssetBitmap(expectedFiles[i]);
+            byte[] data = util.loadAssetFile(wsqFiles[i]);
+            int width = expected.getWidth();
+            int height = expected.getHeight();
+
+            //decode twice into the same bitmap, once from a byte array and once from a direct buffer
+            Bitmap argb = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            WSQDecoder.WSQDecodedImage decoded = WSQDecoder.decodeInto(data, argb);
+            assertNotNull(decoded);
+            assertSame(argb, decoded.getBitmap());
+            assertEquals(WSQDecoder.decode(data).getPpi(), decoded.getPpi());
+            util.assertBitmapsEqual(message, expected, argb);
+            argb.eraseColor(0);
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data);
+            direct.flip();
+            assertSame(argb, WSQDecoder.decodeInto(direct, argb).getBitmap());
+            assertEquals(0, direct.position());
+            util.assertBitmapsEqual(message, expected, argb);
+
+            Bitmap alpha = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+            assertNotNull(WSQDecoder.decodeInto(ByteBuffer.wrap(data), alpha));
+            ByteBuffer gray = ByteBuffer.allocate(alpha.getByteCount());
+            alpha.copyPixelsToBuffer(gray);
+            gray.flip();
+            assertGrayEquals(message, expected, gray);
+
+            Bitmap rgb565 = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+            assertNotNull(WSQDecoder.decodeInto(data, rgb565));
+            int[] pixels = new int[width * height];
+            int[] actual = new int[width * height];
+            expected.getPixels(pixels, 0, width, 0, 0, width, height);
+            rgb565.getPixels(actual, 0, width, 0, 0, width, height);
+            for (int p = 0; p < pixels.length; p++) {
+                //Android expands 5 and 6 bit channels by repeating their top bits
+                int r = (pixels[p] & 0xFF) >> 3, g = (pixels[p] & 0xFF) >> 2;
+                int r8 = (r << 3) | (r >> 2), g8 = (g << 2) | (g >> 4);
+                assertEquals(message + "; pixel " + p, 0xFF000000 | (r8 << 16) | (g8 << 8) | r8, actual[p]);
+            }
+        }
+
+        //size mismatch
+        byte[] data = util.loadAssetFile("lena1.wsq");
+        assertNull(WSQDecoder.decodeInto(data, Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888)));
+        //not a WSQ
+        assertNull(WSQDecoder.decodeInto(util.loadAssetFile("lena1.png"), Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888)));
+        assertNull(WSQDecoder.decodeInto((byte[]) null, Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888)));
+        try {
+            WSQDecoder.decodeInto(data, Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_4444));
+            fail("unsupported config must be refused");
+        } catch (IllegalArgumentException ignored) {}
+        try {
+            WSQDecoder.decodeInto(data, WSQDecoder.decode(data).getBitmap());
+            fail("immutable bitmaps must be refused");
+        } catch (IllegalArgumentException ignored) {}
+        try {
+            WSQDecoder.decodeInto(data, null);
+            fail("null bitmap must be refused");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    /*
+      Read the image information without decoding, compare it with the decoded images and the encoder settings.
+     */
+    @Test
+    public void testProbe() throws Exception {
+        String[] wsqFiles = new String[] {"lena1.wsq", "lena2.wsq", "256x256.wsq", "1024x1024.wsq"};
+
+        for (String wsqFile : wsqFiles) {
+            byte[] data = util.loadAssetFile(wsqFile);
+            WSQDecoder.WSQDecodedImage decoded = WSQDecoder.decode(data);
+
+            WSQInfo info = WSQDecoder.probe(data);
+            assertNotNull(info);
+            assertEquals(decoded.getBitmap().getWidth(), info.getWidth());
+            assertEquals(decoded.getBitmap().getHeight(), info.getHeight());
+            assertEquals(decoded.getPpi(), info.getPpi());
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data);
+            direct.flip();
+            assertEquals(info.getWidth(), WSQDecoder.probe(direct).getWidth());
+            assertEquals(0, direct.position());
+            assertEquals(info.getHeight(), WSQDecoder.probe(ByteBuffer.wrap(data)).getHeight());
+
+            File outFile = new File(ctx.getFilesDir(), "tmp.tmp");
+            FileOutputStream out = new FileOutputStream(outFile);
+            out.write(data);
+            out.close();
+            info = WSQDecoder.probe(outFile);
+            outFile.delete();
+            assertNotNull(info);
+            assertEquals(decoded.getBitmap().getWidth(), info.getWidth());
+            assertEquals(decoded.getBitmap().getHeight(), info.getHeight());
+        }
+
+        //metadata written by the encoder
+        Bitmap bmp = util.loadAssetBitmap("lena1.png");
+        byte[] data = new WSQEncoder(bmp).setPpi(500).setBitrate(WSQEncoder.BITRATE_15_TO_1).setComment("probe test").encode();
+        WSQInfo info = WSQDecoder.probe(data);
+        assertNotNull(info);
+        assertEquals(bmp.getWidth(), info.getWidth());
+        assertEquals(bmp.getHeight(), info.getHeight());
+        assertEquals(500, info.getPpi());
+        assertEquals(WSQEncoder.BITRATE_15_TO_1, info.getBitrate(), 0.0001);
+        assertEquals(String.valueOf(bmp.getWidth()), info.getNistcom().get("PIX_WIDTH"));
+        assertEquals("WSQ", info.getNistcom().get("COMPRESSION"));
+        assertEquals(1, info.getComments().size());
+        assertEquals("probe test", info.getComments().get(0));
+
+        //a truncated image still has a readable header
+        assertNotNull(WSQDecoder.probe(Arrays.copyOf(data, data.length / 2)));
+
+        //errors
+        assertNull(WSQDecoder.probe(util.loadAssetFile("lena1.png")));
+        assertNull(WSQDecoder.probe(Arrays.copyOf(data, 20)));
+        assertNull(WSQDecoder.probe((byte[]) null));
+        assertNull(WSQDecoder.probe((ByteBuffer) null));
+        assertNull(WSQDecoder.probe((File) null));
+        assertNull(WSQDecoder.probe(new File(ctx.getFilesDir(), "doesnotexist.wsq")));
+    }
+
+    /*
+      Decode at reduced resolutions, check the sizes and compare the thumbnails with the full size images.
+     */
+    @Test
+    public void testDecodeScaled() throws Exception {
+        String[] wsqFiles = new String[] {"lena1.wsq", "lena2.wsq", "256x256.wsq", "1024x1024.wsq"};
+        int[] scales = new int[] {2, 4, 8, 16};
+
+        for (String wsqFile : wsqFiles) {
+            byte[] data = util.loadAssetFile(wsqFile);
+            WSQDecoder.WSQDecodedImage full = WSQDecoder.decode(data);
+            int width = full.getBitmap().getWidth();
+            int height = full.getBitmap().getHeight();
+            util.assertBitmapsEqual(wsqFile, full.getBitmap(), WSQDecoder.decode(data, 1).getBitmap());
+
+            File outFile = new File(ctx.getFilesDir(), "tmp.tmp");
+            FileOutputStream out = new FileOutputStream(outFile);
+            out.write(data);
+            out.close();
+
+            for (int scale : scales) {
+                String message = wsqFile + " at 1/" + scale;
+                WSQDecoder.WSQDecodedImage scaled = WSQDecoder.decode(data, scale);
+                assertNotNull(message, scaled);
+                assertEquals(message, (width + scale - 1) / scale, scaled.getBitmap().getWidth());
+                assertEquals(message, (height + scale - 1) / scale, scaled.getBitmap().getHeight());
+                assertEquals(message, full.getPpi(), scaled.getPpi());
+                //the thumbnail keeps the overall brightness of the image
+                assertEquals(message, meanGray(full.getBitmap()), meanGray(scaled.getBitmap()), 5.0);
+
+                util.assertBitmapsEqual(message, scaled.getBitmap(), WSQDecoder.decode(outFile.getPath(), scale).getBitmap());
+            }
+            outFile.delete();
+        }
+
+        assertNull(WSQDecoder.decode(util.loadAssetFile("lena1.png"), 4));
+        assertNull(WSQDecoder.decode((byte[]) null, 4));
+        try {
+            WSQDecoder.decode(util.loadAssetFile("lena1.wsq"), 3);
+            fail("unsupported scale must be refused");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    /*
+      Decode with the wavelet reconstruction split over several threads, the pixels must not change.
+     */
+    @Test
+    public void testDecodeParallel() throws Exception {
+        String[] wsqFiles = new String[] {"lena1.wsq", "lena2.wsq", "256x256.wsq", "1024x1024.wsq"};
+
+        try {
+            for (String wsqFile : wsqFiles) {
+                byte[] data = util.loadAssetFile(wsqFile);
+                WSQDecoder.setParallelism(1);
+                Bitmap expected = WSQDecoder.decode(data).getBitmap();
+                Bitmap expectedScaled = WSQDecoder.decode(data, 2).getBitmap();
+                for (int parallelism : new int[] {2, 4, 64}) {
+                    String message = wsqFile + " with " + parallelism + " threads";
+                    WSQDecoder.setParallelism(parallelism);
+                    util.assertBitmapsEqual(message, expected, WSQDecoder.decode(data).getBitmap());
+                    util.assertBitmapsEqual(message, expectedScaled, WSQDecoder.decode(data, 2).getBitmap());
+                    assertGrayEquals(message, expected, WSQDecoder.decodeGray(data).getPixels());
+                }
+            }
+        } finally {
+            WSQDecoder.setParallelism(1);
+        }
+
+        try {
+            WSQDecoder.setParallelism(0);
+            fail("parallelism below 1 must be refused");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    private static double meanGray(Bitmap bmp) {
+        int[] pixels = new int[bmp.getWidth() * bmp.getHeight()];
+        bmp.getPixels(pixels, 0, bmp.getWidth(), 0, 0, bmp.getWidth(), bmp.getHeight());
+        long sum = 0;
+        for (int p : pixels) sum += p & 0xFF;
+        return (double) sum / pixels.length;
+    }
+
+    private void assertGrayEquals(String message, Bitmap expected, ByteBuffer gray) {
+        int[] pixels = new int[expected.getWidth() * expected.getHeight()];
+        expected.getPixels(pixels, 0, expected.getWidth(), 0, 0, expected.getWidth(), expected.getHeight());
+        assertEquals(message, pixels.length, gray.remaining());
+        for (int i = 0; i < pixels.length; i++) {
+            if ((pixels[i] & 0xFF) != (gray.get(gray.position() + i) & 0xFF)) {
+                fail(message + String.format("; pixel %d different - expected %02X, got %02X", i, pixels[i] & 0xFF, gray.get(gray.position() + i) & 0xFF));
+            }
+        }
+    }
+
+    /*
+      Decode regions of several images, compare them with the same region of the full image.
+     */
+    @Test
+    public void testDecodeRegion() throws Exception {
+        String[] wsqFiles = new String[] {"lena1.wsq", "lena2.wsq", "256x256.wsq", "1024x1024.wsq"};
+
+        for (String wsqFile : wsqFiles) {
+            byte[] data = util.loadAssetFile(wsqFile);
+            Bitmap full = WSQDecoder.decode(data).getBitmap();
+            int width = full.getWidth();
+            int height = full.getHeight();
+            Rect[] regions = new Rect[] {
+                    new Rect(width / 4 + 5, height / 3 + 3, width / 4 + 105, height / 3 + 83),
+                    new Rect(0, 0, width, height),
+                    new Rect(width / 2 + 7, height / 2 + 13, width + 50, height + 50), //clipped to the image
+            };
+            for (Rect region : regions) {
+                String message = wsqFile + " " + region;
+                WSQDecoder.WSQDecodedImage decoded = WSQDecoder.decodeRegion(data, region);
+                assertNotNull(message, decoded);
+                int right = Math.min(region.right, width);
+                int bottom = Math.min(region.bottom, height);
+                Bitmap expected = Bitmap.createBitmap(full, region.left, region.top, right - region.left, bottom - region.top);
+                util.assertBitmapsEqual(message, expected, decoded.getBitmap());
+                assertEquals(message, WSQDecoder.decode(data).getPpi(), decoded.getPpi());
+            }
+            assertNull(WSQDecoder.decodeRegion(data, new Rect(width, 0, width + 10, 10)));
+        }
+
+        assertNull(WSQDecoder.decodeRegion(util.loadAssetFile("lena1.png"), new Rect(0, 0, 10, 10)));
+        assertNull(WSQDecoder.decodeRegion(null, new Rect(0, 0, 10, 10)));
+        try {
+            WSQDecoder.decodeRegion(util.loadAssetFile("lena1.wsq"), new Rect(10, 10, 10, 20));
+            fail("empty region must be refused");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    /*
+      Read several records from one stream, make sure each read stops at the end of its record.
+     */
+    @Test
+    public void testDecodeStream() throws Exception {
+        String[] wsqFiles = new String[] {"lena1.wsq", "256x256.wsq", "lena2.wsq", "1024x1024.wsq"};
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        for (String wsqFile : wsqFiles) {
+            all.write(util.loadAssetFile(wsqFile));
+        }
+        byte[] trailer = new byte[] {1, 2, 3};
+        all.write(trailer);
+
+        InputStream in = new BufferedInputStream(new ByteArrayInputStream(all.toByteArray()));
+        WSQStreamDecoder decoder = new WSQStreamDecoder(in);
+        for (int i = 0; i < wsqFiles.length; i++) {
+            byte[] data = util.loadAssetFile(wsqFiles[i]);
+            if (i % 2 == 0) {
+                WSQDecoder.WSQDecodedImage decoded = decoder.next();
+                assertNotNull(wsqFiles[i], decoded);
+                util.assertBitmapsEqual(wsqFiles[i], WSQDecoder.decode(data).getBitmap(), decoded.getBitmap());
+            } else {
+                assertTrue(wsqFiles[i], Arrays.equals(data, decoder.readRecord()));
+            }
+        }
+        //the stream is left right after the last record
+        for (byte b : trailer) {
+            assertEquals(b, in.read());
+        }
+        assertNull(decoder.next());
+
+        //without mark support the stream is never read past a record, the trailer is left in it
+        InputStream unmarkable = new FilterInputStream(new ByteArrayInputStream(all.toByteArray())) {
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+        decoder = new WSQStreamDecoder(unmarkable);
+        for (String wsqFile : wsqFiles) {
+            assertTrue(wsqFile, Arrays.equals(util.loadAssetFile(wsqFile), decoder.readRecord()));
+        }
+        assertEquals(trailer.length, unmarkable.available());
+
+        //the static decoders too, two records in a row from a stream without mark support
+        unmarkable = new FilterInputStream(new ByteArrayInputStream(all.toByteArray())) {
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+        for (int i = 0; i < 2; i++) {
+            byte[] data = util.loadAssetFile(wsqFiles[i]);
+            util.assertBitmapsEqual(wsqFiles[i], WSQDecoder.decode(data).getBitmap(), WSQDecoder.decode(unmarkable).getBitmap());
+        }
+        byte[] rest = new byte[all.size()];
+        int restLength = 0;
+        for (int read; (read = unmarkable.read(rest, restLength, rest.length - restLength)) > 0; ) restLength += read;
+        ByteArrayOutputStream expectedRest = new ByteArrayOutputStream();
+        for (int i = 2; i < wsqFiles.length; i++) expectedRest.write(util.loadAssetFile(wsqFiles[i]));
+        expectedRest.write(trailer);
+        assertTrue("the following records and the trailer must be left in the stream",
+                Arrays.equals(expectedRest.toByteArray(), Arrays.copyOf(rest, restLength)));
+
+        //the static decoders leave a stream supporting mark right after the record
+        in = new ByteArrayInputStream(all.toByteArray());
+        for (String wsqFile : wsqFiles) {
+            byte[] data = util.loadAssetFile(wsqFile);
+            assertEquals(wsqFile, WSQDecoder.decodeGray(data).getPixels(), WSQDecoder.decodeGray(in).getPixels());
+        }
+        assertEquals(trailer.length, in.available());
+
+        //a shorter record after a longer one is decoded from its own bytes only
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        records.write(util.loadAssetFile("1024x1024.wsq"));
+        records.write(util.loadAssetFile("lena1.wsq"));
+        decoder = new WSQStreamDecoder(new ByteArrayInputStream(records.toByteArray()));
+        assertNotNull(decoder.nextGray());
+        assertEquals(WSQDecoder.decodeGray(util.loadAssetFile("lena1.wsq")).getPixels(), decoder.nextGray().getPixels());
+
+        //a truncated record
+        byte[] data = util.loadAssetFile("lena1.wsq");
+        try {
+            new WSQStreamDecoder(new ByteArrayInputStream(Arrays.copyOf(data, data.length / 2))).next();
+            fail("truncated record must be refused");
+        } catch (IOException ignored) {}
+        assertNull(WSQDecoder.decode(new ByteArrayInputStream(Arrays.copyOf(data, data.length / 2))));
+    }
+
+    /*
+      Decode several images of different sizes through one session, compare them with the static decoder.
+     */
+    @Test
+    public void testDecodeSession() throws Exception {
+        String[] wsqFiles = new String[] {"lena1.wsq", "1024x1024.wsq", "256x256.wsq", "lena2.wsq", "lena1.wsq"};
+
+        WSQDecoder.Session session = new WSQDecoder.Session(256, 256);
+        for (String wsqFile : wsqFiles) {
+            byte[] data = util.loadAssetFile(wsqFile);
+            Bitmap expected = WSQDecoder.decode(data).getBitmap();
+            WSQDecoder.WSQDecodedImage decoded = session.decode(data);
+            assertNotNull(wsqFile, decoded);
+            util.assertBitmapsEqual(wsqFile, expected, decoded.getBitmap());
+
+            assertGrayEquals(wsqFile, expected, session.decodeGray(data).getPixels());
+
+            ByteBuffer in = ByteBuffer.allocateDirect(data.length);
+            in.put(data);
+            in.rewind();
+            ByteBuffer out = ByteBuffer.allocateDirect(expected.getWidth() * expected.getHeight());
+            assertGrayEquals(wsqFile, expected, session.decode(in, out).getPixels());
+
+            Bitmap reusable = Bitmap.createBitmap(expected.getWidth(), expected.getHeight(), Bitmap.Config.ARGB_8888);
+            assertSame(reusable, session.decodeInto(data, reusable).getBitmap());
+            util.assertBitmapsEqual(wsqFile, expected, reusable);
+        }
+        assertNull(session.decode(util.loadAssetFile("lena1.png")));
+        assertNull(session.decodeGray(new byte[0]));
+        session.close();
+        session.close();
+
+        try {
+            session.decode(util.loadAssetFile("lena1.wsq"));
+            fail("closed session must be refused");
+        } catch (IllegalStateException ignored) {}
+        try {
+            new WSQDecoder.Session(0, 256);
+            fail("empty session must be refused");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
     /*
       Test decoder wrong input.
      */
@@ -81,6 +619,9 @@ public class TestWSQDecoder {
         assertNull(WSQDecoder.decode(new byte[16000000]));
         assertNull(WSQDecoder.decode((InputStream)null));
         assertNull(WSQDecoder.decode((String)null));
+        assertNull(WSQDecoder.decode((File)null));
+        assertNull(WSQDecoder.decode((FileDescriptor)null));
+        assertNull(WSQDecoder.decode(new File(ctx.getFilesDir(), "missing.wsq")));
 
         //decode from wrong file
         File outFile = new File(ctx.getFilesDir(), "tmp.tmp");
@@ -93,6 +634,51 @@ public class TestWSQDecoder {
         assertNull(WSQDecoder.decode(outFile.getPath()));
     }
 
+    /*
+      Decode a batch of direct and heap buffers, the results must match single decodes and be delivered in order.
+     */
+    @Test
+    public void testDecodeBatch() throws Exception {
+        String[] wsqFiles = new String[] {"lena1.wsq", "lena2.wsq", "256x256.wsq", "1024x1024.wsq"};
+
+        List<ByteBuffer> inputs = new ArrayList<>();
+        List<ByteBuffer> expected = new ArrayList<>();
+        for (String wsqFile : wsqFiles) {
+            byte[] data = util.loadAssetFile(wsqFile);
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data).flip();
+            inputs.add(direct);
+            inputs.add(ByteBuffer.wrap(data));
+            expected.add(WSQDecoder.decodeGray(data).getPixels());
+            expected.add(expected.get(expected.size() - 1));
+        }
+        inputs.add(ByteBuffer.wrap(util.loadAssetFile("lena1.png")));
+        inputs.add(null);
+
+        WSQDecoder.WSQGrayImage[] decoded = WSQDecoder.decodeBatch(inputs);
+        assertEquals(inputs.size(), decoded.length);
+        for (int i = 0; i < expected.size(); i++) {
+            assertNotNull("input " + i, decoded[i]);
+            assertEquals("input " + i, expected.get(i), decoded[i].getPixels());
+        }
+        assertNull(decoded[expected.size()]);
+        assertNull(decoded[expected.size() + 1]);
+
+        //an exception thrown by the callback stops the batch
+        final int[] calls = new int[1];
+        try {
+            WSQDecoder.decodeBatch(inputs, new WSQDecoder.BatchCallback() {
+                @Override
+                public void onDecoded(int index, WSQDecoder.WSQGrayImage image) {
+                    assertEquals(calls[0]++, index);
+                    if (index == 2) throw new IllegalStateException("stop");
+                }
+            });
+            fail("callback exception expected");
+        } catch (IllegalStateException ignored) {}
+        assertEquals(3, calls[0]);
+    }
+
     @Test
     public void testDecodeMultithreaded() throws Throwable {
         //test decoding in multiple (4) threads.
@@ -11,7 +11,14 @@ import org.junit.runner.RunWith;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -254,6 +261,467 @@ public class TestWSQEncoder {
         t4.checkError();
     }
 
+    /*
+      Encode raw gray pixels from a direct buffer, both into a byte array and into a direct buffer.
+      The result must be identical to encoding the same grayscale image from a Bitmap.
+     */
+    @Test
+    public void testEncodeByteBuffer() throws Exception {
+        String[] images = new String[] {"lena1.png", "lena2.png", "256x256.png", "1024x1024.png"};
+
+        for (String image : images) {
+            Bitmap bmp = util.loadAssetBitmap(image);
+            int[] pixels = new int[bmp.getWidth() * bmp.getHeight()];
+            bmp.getPixels(pixels, 0, bmp.getWidth(), 0, 0, bmp.getWidth(), bmp.getHeight());
+            ByteBuffer gray = ByteBuffer.allocateDirect(pixels.length + 3);
+            gray.position(3);
+            for (int p : pixels) {
+                gray.put((byte) p);
+            }
+            gray.position(3);
+
+            byte[] expected = new WSQEncoder(bmp).setPpi(500).encode();
+            byte[] encoded = new WSQEncoder(gray, bmp.getWidth(), bmp.getHeight()).setPpi(500).encode();
+            assertArrayEquals(image, expected, encoded);
+
+            ByteBuffer out = ByteBuffer.allocateDirect(expected.length + 5);
+            out.position(5);
+            int len = new WSQEncoder(gray, bmp.getWidth(), bmp.getHeight()).setPpi(500).encode(out);
+            assertEquals(expected.length, len);
+            assertEquals(5, out.position());
+            byte[] written = new byte[len];
+            out.get(written);
+            assertArrayEquals(image, expected, written);
+            assertEquals(3, gray.position());
+
+            //output buffer too small
+            assertEquals(0, new WSQEncoder(gray, bmp.getWidth(), bmp.getHeight()).encode(ByteBuffer.allocateDirect(100)));
+        }
+
+        try {
+            new WSQEncoder(ByteBuffer.allocate(100), 10, 10);
+            fail("heap buffers must be refused");
+        } catch (IllegalArgumentException ignored) {}
+        try {
+            new WSQEncoder(ByteBuffer.allocateDirect(99), 10, 10);
+            fail("buffer smaller than the image must be refused");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    /*
+      Encode bitmaps of all the configs read directly by the native code, compare the results with
+      encoding the equivalent gray pixels.
+     */
+    @Test
+    public void testEncodeBitmapConfigs() throws Exception {
+        String[] images = new String[] {"lena1.png", "lena2.png", "256x256.png", "1024x1024.png"};
+
+        for (String image : images) {
+            Bitmap argb = util.loadAssetBitmap(image);
+            int width = argb.getWidth();
+            int height = argb.getHeight();
+            byte[] expected = new WSQEncoder(toGray(argb), width, height).setPpi(500).encode();
+            assertNotNull(expected);
+
+            assertEquals(Bitmap.Config.ARGB_8888, argb.getConfig());
+            assertArrayEquals(image, expected, new WSQEncoder(argb).setPpi(500).encode());
+
+            Bitmap alpha = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+            alpha.copyPixelsFromBuffer(toGray(argb));
+            assertArrayEquals(image, expected, new WSQEncoder(alpha).setPpi(500).encode());
+
+            Bitmap rgb565 = argb.copy(Bitmap.Config.RGB_565, false);
+            assertArrayEquals(image, new WSQEncoder(toGray(rgb565), width, height).setPpi(500).encode(),
+                    new WSQEncoder(rgb565).setPpi(500).encode());
+
+            //direct output buffer
+            ByteBuffer out = ByteBuffer.allocateDirect(expected.length + 5);
+            out.position(5);
+            assertEquals(expected.length, new WSQEncoder(argb).setPpi(500).encode(out));
+            assertEquals(5, out.position());
+            byte[] written = new byte[expected.length];
+            out.get(written);
+            assertArrayEquals(image, expected, written);
+            assertEquals(0, new WSQEncoder(argb).encode(ByteBuffer.allocateDirect(100)));
+
+            //other configs go through getPixels
+            Bitmap argb4444 = argb.copy(Bitmap.Config.ARGB_4444, false);
+            byte[] encoded = new WSQEncoder(argb4444).encode();
+            assertNotNull(encoded);
+            assertNotNull(WSQDecoder.decode(encoded));
+        }
+    }
+
+    /*
+      Encode a half-transparent ARGB_8888 bitmap, the alpha channel must be ignored like for the opaque bitmap
+      with the same colors.
+     */
+    @Test
+    public void testEncodeTransparentBitmap() throws Exception {
+        Bitmap bmp = util.loadAssetBitmap("lena1.png");
+        int width = bmp.getWidth();
+        int height = bmp.getHeight();
+        int[] pixels = new int[width * height];
+        bmp.getPixels(pixels, 0, width, 0, 0, width, height);
+        for (int i = 0; i < pixels.length; i++) pixels[i] = (pixels[i] & 0x00FFFFFF) | 0x80000000;
+        Bitmap transparent = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+        assertTrue(transparent.hasAlpha());
+
+        //the colors as stored, after the premultiplication round trip
+        transparent.getPixels(pixels, 0, width, 0, 0, width, height);
+        for (int i = 0; i < pixels.length; i++) pixels[i] |= 0xFF000000;
+        Bitmap opaque = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+        opaque.setHasAlpha(false);
+
+        byte[] expected = new WSQEncoder(opaque).setPpi(500).encode();
+        assertArrayEquals(expected, new WSQEncoder(transparent).setPpi(500).encode());
+        assertArrayEquals(expected, WSQEncoder.encodeBatch(Arrays.asList(new WSQEncoder(transparent).setPpi(500)))[0]);
+    }
+
+    /*
+      Average R, G, B of the bitmap into a direct buffer of gray pixels, as the encoder does.
+     */
+    private static ByteBuffer toGray(Bitmap bmp) {
+        int[] pixels = new int[bmp.getWidth() * bmp.getHeight()];
+        bmp.getPixels(pixels, 0, bmp.getWidth(), 0, 0, bmp.getWidth(), bmp.getHeight());
+        ByteBuffer gray = ByteBuffer.allocateDirect(pixels.length);
+        for (int p : pixels) {
+            gray.put((byte) ((((p >> 16) & 0xFF) + ((p >> 8) & 0xFF) + (p & 0xFF)) / 3));
+        }
+        gray.flip();
+        return gray;
+    }
+
+    /*
+      Count the temporary files left by WSQEncoder.encode(String) in the files directory.
+     */
+    private int countTempFiles() {
+        int count = 0;
+        for (String name : ctx.getFilesDir().list()) {
+            if (name.startsWith("wsq") && name.endsWith(".tmp")) count++;
+        }
+        return count;
+    }
+
+    /*
+      Encode with the wavelet decomposition split over several threads, the result must not change.
+     */
+    @Test
+    public void testEncodeParallel() throws Exception {
+        String[] images = new String[] {"lena1.png", "lena2.png", "256x256.png", "1024x1024.png"};
+
+        for (String image : images) {
+            Bitmap bmp = util.loadAssetBitmap(image);
+            byte[] expected = new WSQEncoder(bmp).setPpi(500).encode();
+            for (int parallelism : new int[] {2, 4, 64}) {
+                String message = image + " with " + parallelism + " threads";
+                assertArrayEquals(message, expected, new WSQEncoder(bmp).setPpi(500).setParallelism(parallelism).encode());
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                new WSQEncoder(toGray(bmp), bmp.getWidth(), bmp.getHeight()).setPpi(500).setParallelism(parallelism).encode(out);
+                assertArrayEquals(message, expected, out.toByteArray());
+            }
+        }
+
+        try {
+            new WSQEncoder(util.loadAssetBitmap("lena1.png")).setParallelism(0);
+            fail("parallelism below 1 must be refused");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    /*
+      Encode into streams and channels, compare the results with the in-memory encoder.
+     */
+    @Test
+    public void testEncodeStream() throws Exception {
+        String[] images = new String[] {"lena1.png", "lena2.png", "256x256.png", "1024x1024.png"};
+
+        for (String image : images) {
+            Bitmap bmp = util.loadAssetBitmap(image);
+            byte[] expected = new WSQEncoder(bmp).setPpi(500).encode();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(image, expected.length, new WSQEncoder(bmp).setPpi(500).encode(out));
+            assertArrayEquals(image, expected, out.toByteArray());
+
+            out.reset();
+            assertEquals(image, expected.length, new WSQEncoder(toGray(bmp), bmp.getWidth(), bmp.getHeight()).setPpi(500).encode(out));
+            assertArrayEquals(image, expected, out.toByteArray());
+
+            out.reset();
+            assertEquals(image, expected.length, new WSQEncoder(bmp).setPpi(500).encode(Channels.newChannel(out)));
+            assertArrayEquals(image, expected, out.toByteArray());
+
+            //bitmaps converted through getPixels
+            Bitmap argb4444 = bmp.copy(Bitmap.Config.ARGB_4444, false);
+            out.reset();
+            assertEquals(image, new WSQEncoder(argb4444).encode().length, new WSQEncoder(argb4444).encode(out));
+        }
+
+        //the stream encoder has no size limit, e.g. for a comment larger than the raw image
+        Bitmap small = Bitmap.createBitmap(util.loadAssetBitmap("256x256.png"), 0, 0, 64, 64);
+        StringBuilder comment = new StringBuilder();
+        while (comment.length() < 8000) comment.append(asciiChars);
+        assertNull(new WSQEncoder(small).setComment(comment.toString()).encode());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(new WSQEncoder(small).setComment(comment.toString()).encode(out) > 64 * 64);
+        assertNotNull(WSQDecoder.decode(out.toByteArray()));
+
+        //write errors stop the encoder and are passed on
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        try {
+            new WSQEncoder(util.loadAssetBitmap("lena1.png")).encode(failing);
+            fail("write error must be passed on");
+        } catch (IOException ignored) {}
+    }
+
+    /*
+      Encode into an existing file, the file must only be replaced by a successful encoding.
+     */
+    @Test
+    public void testEncodeFileReplace() throws Exception {
+        File file = new File(ctx.getFilesDir(), "tmp.wsq");
+        byte[] previous = util.loadAssetFile("lena2.wsq");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(previous);
+        out.close();
+
+        Bitmap bmp = util.loadAssetBitmap("lena1.png");
+        WSQEncoder.Session session = new WSQEncoder.Session(bmp.getWidth(), bmp.getHeight());
+        session.close();
+        try {
+            new WSQEncoder(bmp).setSession(session).encode(file.getPath());
+            fail("closed session must be refused");
+        } catch (IllegalStateException ignored) {}
+        assertArrayEquals("failed encoding must not touch the file", previous, util.loadFile(file.getPath()));
+        assertEquals("temporary file must be removed", 0, countTempFiles());
+
+        assertTrue(new WSQEncoder(bmp).setPpi(500).encode(file.getPath()));
+        assertArrayEquals(new WSQEncoder(bmp).setPpi(500).encode(), util.loadFile(file.getPath()));
+        assertEquals("temporary file must be removed", 0, countTempFiles());
+        file.delete();
+    }
+
+    /*
+      Encode several images of different sizes through one session, compare the results with the plain encoder.
+     */
+    @Test
+    public void testEncodeSession() throws Exception {
+        String[] images = new String[] {"lena1.png", "1024x1024.png", "256x256.png", "lena2.png", "lena1.png"};
+
+        WSQEncoder.Session session = new WSQEncoder.Session(256, 256);
+        for (String image : images) {
+            Bitmap bmp = util.loadAssetBitmap(image);
+            byte[] expected = new WSQEncoder(bmp).setPpi(500).encode();
+
+            assertArrayEquals(image, expected, new WSQEncoder(bmp).setPpi(500).setSession(session).encode());
+            assertArrayEquals(image, expected, new WSQEncoder(toGray(bmp), bmp.getWidth(), bmp.getHeight())
+                    .setPpi(500).setParallelism(4).setSession(session).encode());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(image, expected.length, new WSQEncoder(bmp).setPpi(500).setSession(session).encode(out));
+            assertArrayEquals(image, expected, out.toByteArray());
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(expected.length);
+            assertEquals(image, expected.length, new WSQEncoder(bmp).setPpi(500).setSession(session).encode(direct));
+            byte[] written = new byte[expected.length];
+            direct.get(written);
+            assertArrayEquals(image, expected, written);
+        }
+        session.close();
+        session.close();
+
+        try {
+            new WSQEncoder(util.loadAssetBitmap("lena1.png")).setSession(session).encode();
+            fail("closed session must be refused");
+        } catch (IllegalStateException ignored) {}
+        try {
+            new WSQEncoder.Session(256, -1);
+            fail("empty session must be refused");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    /*
+      Encode at several bitrates at once, the results must be the same as encoding at each bitrate separately.
+     */
+    @Test
+    public void testEncodeMultiBitrate() throws Exception {
+        float[] bitrates = new float[] {WSQEncoder.BITRATE_5_TO_1, WSQEncoder.BITRATE_15_TO_1, 1f};
+        String[] images = new String[] {"lena1.png", "256x256.png", "1024x1024.png"};
+
+        WSQEncoder.Session session = new WSQEncoder.Session(256, 256);
+        for (String image : images) {
+            Bitmap bmp = util.loadAssetBitmap(image);
+            byte[][] encoded = new WSQEncoder(bmp).setPpi(500).setComment("multi").encode(bitrates);
+            assertEquals(image, bitrates.length, encoded.length);
+            for (int i = 0; i < bitrates.length; i++) {
+                byte[] expected = new WSQEncoder(bmp).setPpi(500).setComment("multi").setBitrate(bitrates[i]).encode();
+                assertArrayEquals(image + " at " + bitrates[i], expected, encoded[i]);
+            }
+
+            byte[][] fromGray = new WSQEncoder(toGray(bmp), bmp.getWidth(), bmp.getHeight()).setPpi(500).setComment("multi")
+                    .setParallelism(4).setSession(session).encode(bitrates);
+            for (int i = 0; i < bitrates.length; i++) {
+                assertArrayEquals(image + " at " + bitrates[i], encoded[i], fromGray[i]);
+            }
+        }
+        session.close();
+
+        Bitmap bmp = util.loadAssetBitmap("lena1.png");
+        try {
+            new WSQEncoder(bmp).encode(new float[0]);
+            fail("no bitrate must be refused");
+        } catch (IllegalArgumentException ignored) {}
+        try {
+            new WSQEncoder(bmp).encode(WSQEncoder.BITRATE_5_TO_1, 0f);
+            fail("invalid bitrate must be refused");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    /*
+      Encode to a size budget and to a PSNR, check the results meet the targets and are close to them.
+     */
+    @Test
+    public void testEncodeToTarget() throws Exception {
+        for (String image : new String[] {"lena1.png", "256x256.png"}) {
+            Bitmap bmp = util.loadAssetBitmap(image);
+            int fullSize = new WSQEncoder(bmp).setBitrate(WSQEncoder.BITRATE_15_TO_1).encode().length;
+            for (int budget : new int[] {fullSize, fullSize / 2, fullSize / 5}) {
+                byte[] encoded = new WSQEncoder(bmp).setBitrate(WSQEncoder.BITRATE_15_TO_1).encodeToSize(budget);
+                assertNotNull(image + " should fit into " + budget + " bytes", encoded);
+                assertTrue(String.format("%s: %d bytes over the budget %d", image, encoded.length, budget), encoded.length <= budget);
+                assertTrue(String.format("%s: %d bytes too far under the budget %d", image, encoded.length, budget), encoded.length > budget * 0.9);
+                assertNotNull(WSQDecoder.decode(encoded));
+                float bitrate = WSQDecoder.probe(encoded).getBitrate();
+                assertTrue(image + ": chosen bitrate " + bitrate, bitrate > 0 && bitrate <= WSQEncoder.BITRATE_15_TO_1);
+            }
+            assertNull(new WSQEncoder(bmp).encodeToSize(100));
+        }
+
+        Bitmap bmp = util.loadAssetBitmap("lena1.png");
+        int lastSize = 0;
+        for (double target : new double[] {30, 36, 42}) {
+            WSQEncoder.Session session = new WSQEncoder.Session(bmp.getWidth(), bmp.getHeight());
+            byte[] encoded = new WSQEncoder(bmp).setSession(session).encodeToPsnr(target);
+            session.close();
+            assertNotNull("PSNR " + target + " should be reached", encoded);
+            assertArrayEquals(encoded, new WSQEncoder(toGray(bmp), bmp.getWidth(), bmp.getHeight()).encodeToPsnr(target));
+            double psnr = util.psnr(bmp, WSQDecoder.decode(encoded).getBitmap());
+            assertTrue(String.format("PSNR %f is under the target %f", psnr, target), psnr >= target);
+            assertTrue("a higher PSNR should produce a larger size", encoded.length > lastSize);
+            lastSize = encoded.length;
+        }
+        assertNull(new WSQEncoder(bmp).encodeToPsnr(100));
+
+        try {
+            new WSQEncoder(bmp).encodeToSize(0);
+            fail("empty size must be refused");
+        } catch (IllegalArgumentException ignored) {}
+        try {
+            new WSQEncoder(bmp).encodeToPsnr(Double.NaN);
+            fail("invalid PSNR must be refused");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    /*
+      Encode a batch of bitmaps and gray buffers with different parameters, the results must match single encodes.
+     */
+    @Test
+    public void testEncodeBatch() throws Exception {
+        String[] images = new String[] {"lena1.png", "lena2.png", "256x256.png", "1024x1024.png"};
+        float[] bitrates = new float[] {WSQEncoder.BITRATE_5_TO_1, WSQEncoder.BITRATE_15_TO_1, 1f};
+
+        List<WSQEncoder> encoders = new ArrayList<>();
+        for (int i = 0; i < images.length; i++) {
+            Bitmap bmp = util.loadAssetBitmap(images[i]);
+            float bitrate = bitrates[i % bitrates.length];
+            encoders.add(new WSQEncoder(bmp).setBitrate(bitrate).setPpi(500).setComment("batch " + i));
+            encoders.add(new WSQEncoder(toGray(bmp), bmp.getWidth(), bmp.getHeight()).setBitrate(bitrate));
+        }
+
+        byte[][] encoded = WSQEncoder.encodeBatch(encoders);
+        assertEquals(encoders.size(), encoded.length);
+        for (int i = 0; i < encoders.size(); i++) {
+            assertArrayEquals("encoder " + i, encoders.get(i).encode(), encoded[i]);
+        }
+
+        try {
+            WSQEncoder.encodeBatch(Arrays.asList(encoders.get(0), null));
+            fail("null encoder must be refused");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    @Test
+    public void testConcurrentStress() throws Throwable {
+        //Native calls are no longer serialized, so run many encoders and decoders side by side
+        //and check that every result is byte-identical to a single-threaded reference.
+        String[] images = new String[] {"lena1.png", "lena2.png", "256x256.png", "1024x1024.png"};
+        Bitmap[] originals = new Bitmap[images.length];
+        byte[][] expectedEncoded = new byte[images.length][];
+        Bitmap[] expectedDecoded = new Bitmap[images.length];
+        for (int i = 0; i < images.length; i++) {
+            originals[i] = util.loadAssetBitmap(images[i]);
+            expectedEncoded[i] = new WSQEncoder(originals[i]).encode();
+            expectedDecoded[i] = WSQDecoder.decode(expectedEncoded[i]).getBitmap();
+        }
+
+        StressThread[] threads = new StressThread[16];
+        for (int i = 0; i < threads.length; i++) {
+            int img = i % images.length;
+            threads[i] = new StressThread(images[img], originals[img], expectedEncoded[img], expectedDecoded[img]);
+        }
+        for (StressThread t : threads) {
+            t.start();
+        }
+        for (StressThread t : threads) {
+            t.join();
+            t.checkError();
+        }
+    }
+
+    class StressThread extends Thread {
+        private static final int REPEATS = 10;
+        String pngFile;
+        Throwable error = null;
+        Bitmap original;
+        byte[] expectedEncoded;
+        Bitmap expectedDecoded;
+
+        StressThread(String pngFile, Bitmap original, byte[] expectedEncoded, Bitmap expectedDecoded) {
+            this.pngFile = pngFile;
+            this.original = original;
+            this.expectedEncoded = expectedEncoded;
+            this.expectedDecoded = expectedDecoded;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < REPEATS; i++) {
+                    byte[] encoded = new WSQEncoder(original).encode();
+                    assertArrayEquals(String.format("concurrent encode of %s differs from the reference", pngFile), expectedEncoded, encoded);
+                    Bitmap decoded = WSQDecoder.decode(expectedEncoded).getBitmap();
+                    util.assertBitmapsEqual(String.format("concurrent decode of %s differs from the reference", pngFile), expectedDecoded, decoded);
+                }
+            } catch (Throwable e) {
+                error = e;
+            }
+        }
+
+        void checkError() throws Throwable {
+            if (error != null) throw error;
+        }
+    }
+
     class EncoderThread extends Thread {
         private static final int REPEATS = 5;
         String pngFile;
@@ -0,0 +1,126 @@
+package com.gemalto.wsq;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class TestWSQMetadataEditor {
+    // Context of the app under test.
+    private Context ctx;
+    private Util util;
+
+    @Before
+    public void init() {
+        ctx = InstrumentationRegistry.getTargetContext();
+        util = new Util(ctx);
+    }
+
+    /*
+      Add, replace and remove comments of byte arrays, the image data must not change.
+     */
+    @Test
+    public void testEditComments() throws Exception {
+        Bitmap bmp = util.loadAssetBitmap("lena1.png");
+        byte[] data = new WSQEncoder(bmp).setPpi(500).setComment("first").encode();
+        byte[] original = data.clone();
+        Bitmap expected = WSQDecoder.decode(data).getBitmap();
+
+        WSQMetadataEditor editor = WSQMetadataEditor.open(data);
+        assertNotNull(editor);
+        assertEquals(2, editor.getComments().size());
+        assertTrue(editor.getComments().get(0).startsWith("NIST_COM"));
+        assertEquals("first", editor.getComments().get(1));
+
+        byte[] edited = editor.replaceComment(1, "replaced").addComment("case 42").toByteArray();
+        WSQInfo info = WSQDecoder.probe(edited);
+        assertEquals(Arrays.asList("replaced", "case 42"), info.getComments());
+        assertEquals(500, info.getPpi());
+        assertEquals(data.length + "replaced".length() - "first".length() + "case 42".length() + 4, edited.length);
+        util.assertBitmapsEqual("edited image is different", expected, WSQDecoder.decode(edited).getBitmap());
+
+        edited = editor.removeComment(0).toByteArray();
+        info = WSQDecoder.probe(edited);
+        assertEquals(WSQEncoder.UNKNOWN_PPI, info.getPpi());
+        assertEquals(Arrays.asList("replaced", "case 42"), info.getComments());
+
+        edited = editor.removeComments().toByteArray();
+        assertEquals(Collections.<String>emptyList(), WSQDecoder.probe(edited).getComments());
+        util.assertBitmapsEqual("image without comments is different", expected, WSQDecoder.decode(edited).getBitmap());
+
+        //the source is not modified
+        assertArrayEquals(original, data);
+
+        assertNull(WSQMetadataEditor.open(util.loadAssetFile("lena1.png")));
+        assertNull(WSQMetadataEditor.open((byte[]) null));
+        try {
+            editor.addComment("");
+            fail("empty comment must be refused");
+        } catch (IllegalArgumentException ignored) {}
+        try {
+            editor.removeComment(0);
+            fail("missing comment must be refused");
+        } catch (IndexOutOfBoundsException ignored) {}
+    }
+
+    /*
+      Edit a file and a direct buffer in place.
+     */
+    @Test
+    public void testEditInPlace() throws Exception {
+        byte[] data = util.loadAssetFile("lena1.wsq");
+        Bitmap expected = WSQDecoder.decode(data).getBitmap();
+        int comments = WSQMetadataEditor.open(data).getComments().size();
+
+        File file = new File(ctx.getFilesDir(), "tmp.wsq");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+
+        WSQMetadataEditor editor = WSQMetadataEditor.open(file);
+        editor.addComment("case 42").save();
+        assertEquals(data.length + "case 42".length() + 4, file.length());
+        assertTrue(WSQDecoder.probe(file).getComments().contains("case 42"));
+        util.assertBitmapsEqual("edited file is different", expected, WSQDecoder.decode(file.getPath()).getBitmap());
+
+        editor.removeComment(comments).save();
+        assertEquals(data.length, file.length());
+        util.assertBitmapsEqual("restored file is different", expected, WSQDecoder.decode(file.getPath()).getBitmap());
+        file.delete();
+
+        //place the data at a non-zero position to check offset handling
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length + 100);
+        buffer.position(10);
+        buffer.put(data);
+        buffer.flip().position(10);
+        WSQMetadataEditor.open(buffer).addComment("case 42").save();
+        assertEquals(10, buffer.position());
+        assertEquals(data.length + "case 42".length() + 4, buffer.remaining());
+        assertTrue(WSQDecoder.probe(buffer).getComments().contains("case 42"));
+        assertEquals(WSQDecoder.decodeGray(data).getPixels(), WSQDecoder.decodeGray(buffer).getPixels());
+
+        //the edited image does not fit in the buffer
+        buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+        try {
+            WSQMetadataEditor.open(buffer).addComment("case 42").save();
+            fail("buffer overflow expected");
+        } catch (BufferOverflowException ignored) {}
+        assertEquals(data.length, buffer.remaining());
+        assertEquals(comments, WSQMetadataEditor.open(buffer).getComments().size());
+    }
+}
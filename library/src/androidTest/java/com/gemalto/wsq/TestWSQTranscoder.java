@@ -0,0 +1,123 @@
+package com.gemalto.wsq;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class TestWSQTranscoder {
+    // Context of the app under test.
+    private Context ctx;
+    private Util util;
+
+    @Before
+    public void init() {
+        ctx = InstrumentationRegistry.getTargetContext();
+        util = new Util(ctx);
+    }
+
+    /*
+      Crop several images, compare the cropped images with the same region of the original.
+     */
+    @Test
+    public void testCrop() throws Exception {
+        String[] wsqFiles = new String[] {"lena1.wsq", "lena2.wsq", "256x256.wsq", "1024x1024.wsq"};
+
+        for (String wsqFile : wsqFiles) {
+            byte[] data = util.loadAssetFile(wsqFile);
+            WSQDecoder.WSQDecodedImage full = WSQDecoder.decode(data);
+            int width = full.getBitmap().getWidth();
+            int height = full.getBitmap().getHeight();
+            Rect region = new Rect(width / 4 + 5, height / 3 + 3, width * 3 / 4, height * 3 / 4);
+
+            byte[] cropped = WSQTranscoder.crop(data, region);
+            assertNotNull(wsqFile, cropped);
+            assertTrue(wsqFile, cropped.length < data.length);
+
+            //the left and top edges move out to a multiple of 32
+            int left = region.left / 32 * 32;
+            int top = region.top / 32 * 32;
+            WSQInfo info = WSQDecoder.probe(cropped);
+            assertEquals(wsqFile, region.right - left, info.getWidth());
+            assertEquals(wsqFile, region.bottom - top, info.getHeight());
+            assertEquals(wsqFile, WSQDecoder.probe(data).getNistcom(), info.getNistcom());
+
+            WSQDecoder.WSQDecodedImage decoded = WSQDecoder.decode(cropped);
+            assertNotNull(wsqFile, decoded);
+            assertEquals(wsqFile, full.getPpi(), decoded.getPpi());
+            //the coefficients are kept, but the edges change the pixels deep into the crop; only compare the mean
+            Bitmap expected = Bitmap.createBitmap(full.getBitmap(), left, top, info.getWidth(), info.getHeight());
+            assertEquals(wsqFile, meanGray(expected), meanGray(decoded.getBitmap()), 2.0);
+        }
+
+        byte[] data = util.loadAssetFile("lena1.wsq");
+        assertNull(WSQTranscoder.crop(data, new Rect(-20, -20, -10, -10)));
+        //too small to be decoded safely, also once clipped to the image
+        assertNull(WSQTranscoder.crop(data, new Rect(0, 0, 2, 2)));
+        assertNull(WSQTranscoder.crop(data, new Rect(0, 0, 200, 32)));
+        WSQInfo info = WSQDecoder.probe(data);
+        assertNull(WSQTranscoder.crop(data, new Rect(info.getWidth() - 16, 0, info.getWidth() + 100, 200)));
+        byte[] smallest = WSQTranscoder.crop(data, new Rect(0, 0, 33, 33));
+        assertNotNull(smallest);
+        assertEquals(33, WSQDecoder.probe(smallest).getWidth());
+        assertNotNull(WSQDecoder.decode(smallest));
+        assertNull(WSQTranscoder.crop(util.loadAssetFile("lena1.png"), new Rect(0, 0, 10, 10)));
+        assertNull(WSQTranscoder.crop(null, new Rect(0, 0, 10, 10)));
+        try {
+            WSQTranscoder.crop(data, null);
+            fail("null region must be refused");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    /*
+      Transcode 5:1 images to 15:1, compare the results with encoding the original images at 15:1.
+     */
+    @Test
+    public void testTranscode() throws Exception {
+        String[] images = new String[] {"lena1.png", "lena2.png", "256x256.png", "1024x1024.png"};
+
+        for (String image : images) {
+            Bitmap bmp = util.loadAssetBitmap(image);
+            byte[] archive = new WSQEncoder(bmp).setBitrate(WSQEncoder.BITRATE_5_TO_1).setPpi(500).setComment("archive").encode();
+            byte[] reencoded = new WSQEncoder(bmp).setBitrate(WSQEncoder.BITRATE_15_TO_1).setPpi(500).setComment("archive").encode();
+
+            byte[] transcoded = WSQTranscoder.transcode(archive, WSQEncoder.BITRATE_15_TO_1);
+            assertNotNull(image, transcoded);
+            assertEquals(image, reencoded.length, transcoded.length, reencoded.length * 0.1);
+
+            WSQInfo info = WSQDecoder.probe(transcoded);
+            assertEquals(image, bmp.getWidth(), info.getWidth());
+            assertEquals(image, bmp.getHeight(), info.getHeight());
+            assertEquals(image, 500, info.getPpi());
+            assertEquals(image, WSQEncoder.BITRATE_15_TO_1, info.getBitrate(), 0.0001);
+            assertEquals(image, WSQDecoder.probe(archive).getComments(), info.getComments());
+
+            double expected = util.psnr(bmp, WSQDecoder.decode(reencoded).getBitmap());
+            double actual = util.psnr(bmp, WSQDecoder.decode(transcoded).getBitmap());
+            assertTrue(String.format("%s: PSNR %f, %f when encoded at 15:1", image, actual, expected), actual > expected - 0.5);
+        }
+
+        assertNull(WSQTranscoder.transcode(util.loadAssetFile("lena1.png"), WSQEncoder.BITRATE_15_TO_1));
+        assertNull(WSQTranscoder.transcode(null, WSQEncoder.BITRATE_15_TO_1));
+        try {
+            WSQTranscoder.transcode(util.loadAssetFile("lena1.wsq"), 0);
+            fail("invalid bitrate must be refused");
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    private static double meanGray(Bitmap bmp) {
+        int[] pixels = new int[bmp.getWidth() * bmp.getHeight()];
+        bmp.getPixels(pixels, 0, bmp.getWidth(), 0, 0, bmp.getWidth(), bmp.getHeight());
+        long sum = 0;
+        for (int p : pixels) sum += p & 0xFF;
+        return (double) sum / pixels.length;
+    }
+}
@@ -184,10 +184,14 @@ int combine_nistcom(NISTCOM **onistcom, const int w, const int h,
    if(ret &&
      (strcmp(lossyval,"0") != 0) &&
      (lossyflag == 0)){
+      free(lossyval);
       fprintf(stderr, "WARNING : combine_nistcom : ");
       fprintf(stderr, "request to unset lossy flag ignored\n");
    }
    else{
+      /* The looked up value is a copy. */
+      if(ret)
+         free(lossyval);
       sprintf(cbuff, "%d", lossyflag);
       if((ret = updatefet_ret(NCM_LOSSY, cbuff, nistcom))){
          if(allocflag){
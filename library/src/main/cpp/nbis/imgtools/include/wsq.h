@@ -96,6 +96,15 @@ of the software.
 
 #define MIN_IMG_DIM         256
 
+/* Reduced resolution decoding stops 1 to 4 levels before full size. */
+#define MAX_SCALE_LEVELS    4
+
+/* Returned by the decoder when ctx->cancel was set between its stages. */
+#define WSQ_CANCELLED       -23
+
+/* Returned for frames of more pixels than an int can count. */
+#define WSQ_TOO_LARGE       -24
+
 #define WHITE               255
 #define BLACK               0
 
@@ -105,6 +114,12 @@ of the software.
 #define RAW_IMAGE           1
 #define IHEAD_IMAGE         0
 
+/* Pixel layouts for conv_img_2_pixfmt and conv_img_2_flt_pixfmt, rows */
+/* are 'stride' bytes apart.                                           */
+#define PIXFMT_GRAY8        0  /* 1 byte per pixel                    */
+#define PIXFMT_RGBA8888     1  /* 4 bytes per pixel, R,G,B,A in memory */
+#define PIXFMT_RGB565       2  /* native-endian 16-bit 5:6:5 pixels    */
+
 #define VARIANCE_THRESH     1.01
 
 typedef struct quantization {
@@ -173,6 +188,18 @@ typedef struct table_dht {
    unsigned char huffvalues[MAX_HUFFCOUNTS_WSQ+1];
 } DHT_TABLE;
 
+/* Huffman codes of up to this many bits are decoded with one lookup. */
+#define HUFF_LOOKAHEAD 10
+
+/* Decoding tables of the huffman table of one block. */
+typedef struct huff_tables {
+   int maxcode[MAX_HUFFBITS+1]; /* used in decoding data */
+   int mincode[MAX_HUFFBITS+1]; /* used in decoding data */
+   int valptr[MAX_HUFFBITS+1];  /* used in decoding data */
+   unsigned short lookahead[1 << HUFF_LOOKAHEAD]; /* short code table */
+   unsigned char *huffvalues;
+} HUFF_TABLES;
+
 typedef struct header_frm {
    unsigned char black;
    unsigned char white;
@@ -184,6 +211,54 @@ typedef struct header_frm {
    unsigned short software;
 } FRM_HEADER_WSQ;
 
+/* Slots of the scratch buffers a session keeps between calls. */
+#define WSQ_ARENA_FDATA      0   /* floating point image           */
+#define WSQ_ARENA_FDATA1     1   /* copy used by the wavelet passes */
+#define WSQ_ARENA_QDATA      2   /* quantized coefficients         */
+#define WSQ_ARENA_BUF        3   /* encoder segment/chunk buffer   */
+#define WSQ_ARENA_OUT        4   /* encoded data                   */
+#define WSQ_ARENA_PIXELS     5   /* pixels converted by the caller */
+#define WSQ_ARENA_REF        6   /* original pixels of a PSNR search */
+#define WSQ_ARENA_RECON      7   /* image reconstructed by a search */
+#define WSQ_ARENA_SLOTS      8
+
+typedef struct wsq_arena {
+   void *data[WSQ_ARENA_SLOTS];
+   size_t size[WSQ_ARENA_SLOTS];
+} WSQ_ARENA;
+
+/* Per-call codec state.  Holds the tables and trees that the       */
+/* memory-based encoder and decoder used to keep in the globals     */
+/* below, so that independent encodes and decodes can run on        */
+/* separate threads, each with its own context.                     */
+typedef struct wsq_context {
+   QUANT_VALS quant_vals;
+   W_TREE w_tree[W_TREELEN];
+   Q_TREE q_tree[Q_TREELEN];
+   Q_TREE q_tree2[Q_TREELEN];    /* cropped subband sizes   */
+   Q_TREE q_tree3[Q_TREELEN];    /* cropped subband origins */
+   DTT_TABLE dtt_table;
+   DQT_TABLE dqt_table;
+   DHT_TABLE dht_table[MAX_DHT_TABLES];
+   FRM_HEADER_WSQ frm_header_wsq;
+   unsigned char code;           /* getc_nextbits_wsq current byte */
+   unsigned char code2;          /* getc_nextbits_wsq stuffed byte */
+   int parallelism;              /* threads for the wavelet passes, */
+                                 /* set by the caller               */
+   WSQ_ARENA *arena;             /* scratch buffers of a session,   */
+                                 /* NULL to allocate them per call  */
+   const volatile int *cancel;   /* set non-zero by another thread  */
+                                 /* to stop a decode between its    */
+                                 /* stages, NULL if it can't be     */
+} WSQ_CONTEXT;
+
+/* Receives the compressed bytes from the sink encoders, in order. */
+/* A non-zero return stops the encoder.                            */
+typedef struct wsq_sink {
+   int (*write)(void *opaque, unsigned char *data, const int len);
+   void *opaque;
+} WSQ_SINK;
+
 /* External global variables. */
 extern int debug;
 extern QUANT_VALS quant_vals;
@@ -198,52 +273,120 @@ extern float lofilt[];
 
 
 /* External function definitions. */
+/* arena.c */
+extern void *wsq_arena_alloc(WSQ_ARENA *, const int, const size_t);
+extern void *wsq_arena_calloc(WSQ_ARENA *, const int, const size_t);
+extern void wsq_arena_release(WSQ_ARENA *, void *);
+extern void free_wsq_arena(WSQ_ARENA *);
+
+/* cache.c */
+extern int get_cached_wsq_trees(W_TREE w_tree[], Q_TREE q_tree[],
+                 const int, const int);
+extern void put_cached_wsq_trees(W_TREE w_tree[], Q_TREE q_tree[],
+                 const int, const int);
+extern int get_cached_huff_tables(HUFF_TABLES *, DHT_TABLE *);
+extern void put_cached_huff_tables(HUFF_TABLES *, DHT_TABLE *);
+
 /* cropcoeff.c */
 extern void quant_block_sizes2(int *, int *, int *, const DQT_TABLE *,
                  W_TREE *, const int, Q_TREE *, const int);
-extern int wsq_crop_qdata(const DQT_TABLE *, Q_TREE *, Q_TREE *, Q_TREE *,
-                 short *, int, int, int, int, short *);
-extern int wsq_cropcoeff_mem(unsigned char **, int *, int *, int *, int, int,
-                 int, int, int *, int *, unsigned char *, const int, short **,
-                 int *, int *);
-extern int wsq_huffcode_mem(unsigned char *, int *, short *, int, int,
-                 unsigned char *, const int, const int, const int);
-extern int wsq_dehuff_mem(short **, int *, int *, double *, double *, 
-                 int *, int *, unsigned char *, const int ilen);
+extern int wsq_crop_qdata(const DQT_TABLE *, W_TREE *, Q_TREE *, Q_TREE *,
+                 Q_TREE *, short *, int, int, int, int, short *);
+extern int wsq_cropcoeff_mem(WSQ_CONTEXT *, unsigned char **, int *, int *,
+                 int *, int, int, int, int, int *, int *, unsigned char *,
+                 const int, short **, int *, int *);
+extern int wsq_decode_region_flt_mem(WSQ_CONTEXT *, float **, int *, int *,
+                 int *, int *, int *, unsigned char *, const int, int, int,
+                 int, int);
+extern int wsq_huffcode_mem(WSQ_CONTEXT *, unsigned char *, int *, short *,
+                 int, int, unsigned char *, const int, const int, const int);
+extern int wsq_dehuff_mem(WSQ_CONTEXT *, short **, int *, int *, double *,
+                 double *, int *, int *, unsigned char *, const int ilen);
 extern int read_wsq_frame_header(unsigned char *, const int, int *, int *,
 				 double *, double *);
 
 /* decoder.c */
-extern int wsq_decode_mem(unsigned char **, int *, int *, int *, int *, int *,
+extern int wsq_decode_mem(WSQ_CONTEXT *, unsigned char **, int *, int *,
+                 int *, int *, int *, unsigned char *, const int);
+extern int wsq_decode_flt_mem(WSQ_CONTEXT *, float **, int *, int *, int *,
                  unsigned char *, const int);
+extern int wsq_decode_scaled_flt_mem(WSQ_CONTEXT *, float **, int *, int *,
+                 int *, unsigned char *, const int, const int);
 extern int wsq_decode_file(unsigned char **, int *, int *, int *, int *,
                  int *, FILE *);
-extern int huffman_decode_data_mem(short *, DTT_TABLE *, DQT_TABLE *,
-                 DHT_TABLE *, unsigned char **, unsigned char *);
+extern int huffman_decode_data_mem(WSQ_CONTEXT *, short *, unsigned char **,
+                 unsigned char *);
+extern int huffman_decode_blocks_mem(WSQ_CONTEXT *, short *, unsigned char **,
+                 unsigned char *, const int);
 extern int huffman_decode_data_file(short *, DTT_TABLE *, DQT_TABLE *,
                  DHT_TABLE *, FILE *);
-extern int decode_data_mem(int *, int *, int *, int *, unsigned char *,
-                 unsigned char **, unsigned char *, int *, unsigned short *);
+extern int decode_data_mem(WSQ_CONTEXT *, int *, int *, int *, int *,
+                 unsigned char *, unsigned char **, unsigned char *, int *,
+                 unsigned short *);
 extern int decode_data_file(int *, int *, int *, int *, unsigned char *, FILE *,
                  int *, unsigned short *);
 extern int nextbits_wsq(unsigned short *, unsigned short *, FILE *, int *,
                  const int);
-extern int getc_nextbits_wsq(unsigned short *, unsigned short *,
-                 unsigned char **, unsigned char *, int *, const int);
+extern int getc_nextbits_wsq(WSQ_CONTEXT *, unsigned short *,
+                 unsigned short *, unsigned char **, unsigned char *, int *,
+                 const int);
 
 /* encoder.c */
-extern int wsq_encode_mem(unsigned char **, int *, const float, unsigned char *,
+extern int wsq_encode_mem(WSQ_CONTEXT *, unsigned char **, int *, const float,
+                 unsigned char *, const int, const int, const int, const int,
+                 char *);
+extern int wsq_encode_into_mem(WSQ_CONTEXT *, unsigned char *, const int,
+                 int *, const float, unsigned char *, const int, const int,
+                 const int, const int, char *);
+extern int wsq_encode_flt_into_mem(WSQ_CONTEXT *, unsigned char *, const int,
+                 int *, const float, float *, const float, const float,
+                 const int, const int, const int, const int, char *);
+extern int wsq_encode_to_sink(WSQ_CONTEXT *, WSQ_SINK *, int *, const float,
+                 unsigned char *, const int, const int, const int, const int,
+                 char *);
+extern int wsq_encode_flt_to_sink(WSQ_CONTEXT *, WSQ_SINK *, int *,
+                 const float, float *, const float, const float, const int,
+                 const int, const int, const int, char *);
+extern int wsq_encode_target_mem(WSQ_CONTEXT *, unsigned char **, int *,
+                 float *, const float, const int, const double,
+                 unsigned char *, const int, const int, const int, const int,
+                 char *);
+extern int wsq_encode_flt_target_mem(WSQ_CONTEXT *, unsigned char **, int *,
+                 float *, const float, const int, const double, float *,
+                 const float, const float, const int, const int, const int,
+                 const int, char *);
+extern int wsq_encode_multi_mem(WSQ_CONTEXT *, unsigned char **, int *,
+                 const float *, const int, unsigned char *, const int,
+                 const int, const int, const int, char *);
+extern int wsq_encode_flt_multi_mem(WSQ_CONTEXT *, unsigned char **, int *,
+                 const float *, const int, float *, const float, const float,
                  const int, const int, const int, const int, char *);
+extern int wsq_transcode_mem(WSQ_CONTEXT *, unsigned char **, int *,
+                 const float, unsigned char *, const int);
 extern int gen_hufftable_wsq(HUFFCODE **, unsigned char **, unsigned char **,
                  short *, const int *, const int);
 extern int compress_block(unsigned char *, int *, short *,
                  const int, const int, const int, HUFFCODE *);
+extern int compress_block_sink(WSQ_SINK *, unsigned char *, const int, int *,
+                 short *, const int, const int, const int, HUFFCODE *);
 extern int count_block(int **, const int, short *,
                  const int, const int, const int);
 
 /* huff.c */
 extern int check_huffcodes_wsq(HUFFCODE *, int);
 
+/* parallel.c */
+typedef void (*WSQ_TASK)(void *, const int);
+extern int wsq_max_parallelism(void);
+extern void wsq_parallel_run(const int, WSQ_TASK, void *);
+extern void wsq_parallel_for(const int, const int, WSQ_TASK, void *);
+extern void par_get_lets(float *, float *, const int, const int, const int,
+                 const int, float *, const int, float *, const int, const int,
+                 const int);
+extern void par_join_lets(float *, float *, const int, const int, const int,
+                 const int, float *, const int, float *, const int, const int,
+                 const int);
+
 /* ppi.c */
 extern int read_ppi_wsq(int *, FILE *);
 extern int getc_ppi_wsq(int *, unsigned char *, const int);
@@ -292,6 +435,12 @@ extern int read_nistcom_wsq(NISTCOM **, FILE *);
 extern int getc_nistcom_wsq(NISTCOM **, unsigned char *, const int);
 extern int print_comments_wsq(FILE *, unsigned char *, const int);
 
+/* simdlets.c */
+extern int simd_get_lets(float *, float *, const int, const int, const int,
+                 const int, float *, const int, float *, const int, const int);
+extern int simd_join_lets(float *, float *, const int, const int, const int,
+                 const int, float *, const int, float *, const int, const int);
+
 /* tree.c */
 extern void build_wsq_trees(W_TREE w_tree[], const int,
                  Q_TREE q_tree[], const int, const int, const int);
@@ -307,33 +456,52 @@ extern void q_tree4(Q_TREE q_tree[], const int, const int, const int,
 /* util.c */
 extern int conv_img_2_flt_ret(float *, float *, float *, unsigned char *,
                  const int);
+extern int conv_img_2_flt_pixfmt(float *, float *, float *, unsigned char *,
+                 const int, const int, const int, const int);
 extern void conv_img_2_flt(float *, float *, float *, unsigned char *,
                  const int);
 extern void conv_img_2_uchar(unsigned char *, float *, const int, const int,
                  const float, const float);
+extern void conv_img_2_pixfmt(unsigned char *, const int, const int, float *,
+                 const int, const int, const float, const float);
 extern void variance( QUANT_VALS *quant_vals, Q_TREE q_tree[], const int,
                  float *, const int, const int);
 extern int quantize(short **, int *, QUANT_VALS *, Q_TREE qtree[], const int,
                  float *, const int, const int);
+extern void variance_par(QUANT_VALS *quant_vals, Q_TREE q_tree[], const int,
+                 float *, const int, const int, const int);
+extern int quantize_par(short **, int *, QUANT_VALS *, Q_TREE qtree[],
+                 const int, float *, const int, const int, const int,
+                 WSQ_ARENA *);
 extern void quant_block_sizes(int *, int *, int *,
                  QUANT_VALS *, W_TREE w_tree[], const int,
                  Q_TREE q_tree[], const int);
 extern int unquantize(float **, const DQT_TABLE *,
                  Q_TREE q_tree[], const int, short *, const int, const int);
+extern int unquantize_arena(float **, const DQT_TABLE *,
+                 Q_TREE q_tree[], const int, short *, const int, const int,
+                 WSQ_ARENA *, const int);
 extern int wsq_decompose(float *, const int, const int,
                  W_TREE w_tree[], const int, float *, const int,
                  float *, const int);
+extern int wsq_decompose_par(float *, const int, const int,
+                 W_TREE w_tree[], const int, float *, const int,
+                 float *, const int, const int, WSQ_ARENA *);
 extern void get_lets(float *, float *, const int, const int, const int,
                  const int, float *, const int, float *, const int, const int);
 extern int wsq_reconstruct(float *, const int, const int,
                  W_TREE w_tree[], const int, const DTT_TABLE *);
+extern int wsq_reconstruct_par(float *, const int, const int,
+                 W_TREE w_tree[], const int, const DTT_TABLE *, const int,
+                 WSQ_ARENA *);
 extern void  join_lets(float *, float *, const int, const int,
                  const int, const int, float *, const int,
                  float *, const int, const int);
 extern int int_sign(const int);
 extern int image_size(const int, short *, short *);
-extern void init_wsq_decoder_resources(void);
-extern void free_wsq_decoder_resources(void);
+extern void init_wsq_context(WSQ_CONTEXT *);
+extern void init_wsq_decoder_resources(DTT_TABLE *);
+extern void free_wsq_decoder_resources(DTT_TABLE *);
 
 extern int delete_comments_wsq(unsigned char **, int *, unsigned char *, int);
 
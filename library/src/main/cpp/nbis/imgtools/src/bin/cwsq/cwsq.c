@@ -102,6 +102,7 @@ int main(int argc, char *argv[])
    unsigned char *odata;    /* Output data */
    int olen;                /* Number of bytes in output data. */
    char *comment_text;
+   WSQ_CONTEXT ctx;         /* WSQ encoder state */
 
 
    /* Process the command-line argument list. */
@@ -133,7 +134,7 @@ int main(int argc, char *argv[])
    }
 
    /* Encode/compress the image pixmap. */
-   if((ret = wsq_encode_mem(&odata, &olen, r_bitrate,
+   if((ret = wsq_encode_mem(&ctx, &odata, &olen, r_bitrate,
                            idata, width, height, depth, ppi, comment_text))){
       free(idata);
       if(comment_text != (char *)NULL)
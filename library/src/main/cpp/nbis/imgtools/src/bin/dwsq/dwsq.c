@@ -93,6 +93,7 @@ int main(int argc, char **argv)
    int lossyflag;                 /* data loss flag */
    NISTCOM *nistcom;              /* NIST Comment */
    char *ppi_str;
+   WSQ_CONTEXT ctx;               /* WSQ decoder state */
 
 
    procargs(argc, argv, &outext, &ifile, &rawflag);
@@ -100,7 +101,7 @@ int main(int argc, char **argv)
    if((ret = read_raw_from_filesize(ifile, &idata, &ilen)))
       exit(ret);
 
-   if((ret = wsq_decode_mem(&odata, &width, &height, &depth, &ppi,
+   if((ret = wsq_decode_mem(&ctx, &odata, &width, &height, &depth, &ppi,
                            &lossyflag, idata, ilen))){
       free(idata);
       exit(ret);
@@ -278,6 +278,7 @@ int read_and_decode_image(char *ifile, int *oimg_type,
    int img_type, ilen, nlen;
    int w, h, d, ppi, lossyflag, intrlvflag = 0, n_cmpnts;
    IMG_DAT *img_dat;
+   WSQ_CONTEXT wsq_ctx;
 
    if((ret = read_raw_from_filesize(ifile, &idata, &ilen)))
       return(ret);
@@ -301,8 +302,8 @@ int read_and_decode_image(char *ifile, int *oimg_type,
            *on_cmpnts = -1;
            return(0);
       case WSQ_IMG:
-           if((ret = wsq_decode_mem(&ndata, &w, &h, &d, &ppi, &lossyflag,
-                                   idata, ilen))){
+           if((ret = wsq_decode_mem(&wsq_ctx, &ndata, &w, &h, &d, &ppi,
+                                   &lossyflag, idata, ilen))){
               free(idata);
               return(ret);
            }
@@ -0,0 +1,146 @@
+/*******************************************************************************
+
+License: 
+This software and/or related materials was developed at the National Institute
+of Standards and Technology (NIST) by employees of the Federal Government
+in the course of their official duties. Pursuant to title 17 Section 105
+of the United States Code, this software is not subject to copyright
+protection and is in the public domain. 
+
+This software and/or related materials have been determined to be not subject
+to the EAR (see Part 734.3 of the EAR for exact details) because it is
+a publicly available technology and software, and is freely distributed
+to any interested party with no licensing requirements.  Therefore, it is 
+permissible to distribute this software as a free download from the internet.
+
+Disclaimer: 
+This software and/or related materials was developed to promote biometric
+standards and biometric technology testing for the Federal Government
+in accordance with the USA PATRIOT Act and the Enhanced Border Security
+and Visa Entry Reform Act. Specific hardware and software products identified
+in this software were used in order to perform the software development.
+In no case does such identification imply recommendation or endorsement
+by the National Institute of Standards and Technology, nor does it imply that
+the products and equipment identified are necessarily the best available
+for the purpose.
+
+This software and/or related materials are provided "AS-IS" without warranty
+of any kind including NO WARRANTY OF PERFORMANCE, MERCHANTABILITY,
+NO WARRANTY OF NON-INFRINGEMENT OF ANY 3RD PARTY INTELLECTUAL PROPERTY
+or FITNESS FOR A PARTICULAR PURPOSE or for any purpose whatsoever, for the
+licensed product, however used. In no event shall NIST be liable for any
+damages and/or costs, including but not limited to incidental or consequential
+damages of any kind, including economic damage or injury to property and lost
+profits, regardless of whether NIST shall be advised, have reason to know,
+or in fact shall know of the possibility.
+
+By using this software, you agree to bear all risk relating to quality,
+use and performance of the software and/or related materials.  You agree
+to hold the Government harmless from any claim arising from your use
+of the software.
+
+*******************************************************************************/
+
+
+/***********************************************************************
+      LIBRARY: WSQ - Grayscale Image Compression
+
+      FILE:    ARENA.C
+
+      Contains the scratch buffers a session keeps between its calls.
+      The encoder and decoder take each of their large working buffers
+      (floating point image, wavelet pass copy, quantized coefficients,
+      output) from a slot of the arena instead of allocating it.  A
+      slot grows to the largest size asked for and is kept, so a
+      stream of images of the same size is coded without allocating
+      or faulting in new memory.  Without an arena the routines fall
+      back to malloc and free.
+
+      ROUTINES:
+#cat: wsq_arena_alloc - Returns the buffer of a slot, grown to at least
+#cat:                 a given size, or a malloc'd buffer without arena.
+#cat: wsq_arena_calloc - wsq_arena_alloc with the buffer zeroed.
+#cat:
+#cat: wsq_arena_release - Gives a buffer back: buffers of the arena are
+#cat:                 kept, any other buffer is freed.
+#cat: free_wsq_arena - Deallocates the buffers of an arena.
+#cat:
+
+***********************************************************************/
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <wsq.h>
+
+/************************************************************************/
+/* Returns the buffer of the given slot, reallocated if it is smaller   */
+/* than size.  Its content is undefined.  With a NULL arena the buffer  */
+/* is malloc'd.  Returns NULL if the memory cannot be allocated.        */
+/************************************************************************/
+void *wsq_arena_alloc(WSQ_ARENA *arena, const int slot, const size_t size)
+{
+   void *data;
+
+   if(arena == (WSQ_ARENA *)NULL)
+      return(malloc(size));
+
+   if(arena->size[slot] < size) {
+      /* the old content is not needed, so no realloc */
+      free(arena->data[slot]);
+      arena->size[slot] = 0;
+      if((data = malloc(size)) == NULL) {
+         arena->data[slot] = NULL;
+         return(NULL);
+      }
+      arena->data[slot] = data;
+      arena->size[slot] = size;
+   }
+   return(arena->data[slot]);
+}
+
+/************************************************************************/
+/* wsq_arena_alloc with the first size bytes of the buffer zeroed.      */
+/************************************************************************/
+void *wsq_arena_calloc(WSQ_ARENA *arena, const int slot, const size_t size)
+{
+   void *data;
+
+   if(arena == (WSQ_ARENA *)NULL)
+      return(calloc(size, 1));
+
+   if((data = wsq_arena_alloc(arena, slot, size)) != NULL)
+      memset(data, 0, size);
+   return(data);
+}
+
+/************************************************************************/
+/* Gives back a buffer returned by wsq_arena_alloc or wsq_arena_calloc. */
+/* The buffers of the arena stay allocated for the next call; any other */
+/* buffer, including all of them with a NULL arena, is freed.           */
+/************************************************************************/
+void wsq_arena_release(WSQ_ARENA *arena, void *data)
+{
+   int slot;
+
+   if(arena != (WSQ_ARENA *)NULL && data != NULL)
+      for(slot = 0; slot < WSQ_ARENA_SLOTS; slot++)
+         if(arena->data[slot] == data)
+            return;
+   free(data);
+}
+
+/************************************************************************/
+/* Deallocates the buffers of an arena, leaving it empty.  The arena    */
+/* itself is owned by the caller.                                       */
+/************************************************************************/
+void free_wsq_arena(WSQ_ARENA *arena)
+{
+   int slot;
+
+   for(slot = 0; slot < WSQ_ARENA_SLOTS; slot++) {
+      free(arena->data[slot]);
+      arena->data[slot] = NULL;
+      arena->size[slot] = 0;
+   }
+}
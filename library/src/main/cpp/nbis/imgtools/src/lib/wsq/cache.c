@@ -0,0 +1,272 @@
+/*******************************************************************************
+
+License: 
+This software and/or related materials was developed at the National Institute
+of Standards and Technology (NIST) by employees of the Federal Government
+in the course of their official duties. Pursuant to title 17 Section 105
+of the United States Code, this software is not subject to copyright
+protection and is in the public domain. 
+
+This software and/or related materials have been determined to be not subject
+to the EAR (see Part 734.3 of the EAR for exact details) because it is
+a publicly available technology and software, and is freely distributed
+to any interested party with no licensing requirements.  Therefore, it is 
+permissible to distribute this software as a free download from the internet.
+
+Disclaimer: 
+This software and/or related materials was developed to promote biometric
+standards and biometric technology testing for the Federal Government
+in accordance with the USA PATRIOT Act and the Enhanced Border Security
+and Visa Entry Reform Act. Specific hardware and software products identified
+in this software were used in order to perform the software development.
+In no case does such identification imply recommendation or endorsement
+by the National Institute of Standards and Technology, nor does it imply that
+the products and equipment identified are necessarily the best available
+for the purpose.
+
+This software and/or related materials are provided "AS-IS" without warranty
+of any kind including NO WARRANTY OF PERFORMANCE, MERCHANTABILITY,
+NO WARRANTY OF NON-INFRINGEMENT OF ANY 3RD PARTY INTELLECTUAL PROPERTY
+or FITNESS FOR A PARTICULAR PURPOSE or for any purpose whatsoever, for the
+licensed product, however used. In no event shall NIST be liable for any
+damages and/or costs, including but not limited to incidental or consequential
+damages of any kind, including economic damage or injury to property and lost
+profits, regardless of whether NIST shall be advised, have reason to know,
+or in fact shall know of the possibility.
+
+By using this software, you agree to bear all risk relating to quality,
+use and performance of the software and/or related materials.  You agree
+to hold the Government harmless from any claim arising from your use
+of the software.
+
+*******************************************************************************/
+
+
+
+/***********************************************************************
+      LIBRARY: WSQ - Grayscale Image Compression
+
+      FILE:    CACHE.C
+
+      Contains process-wide caches of the tables the encoder and
+      decoder derive again for every image.  The wavelet and
+      quantization trees only depend on the image size, and the
+      decoding tables of a block only on its huffman table, which is
+      the same in nearly all files written by the same encoder.  Both
+      caches keep a few of the most recently used entries, shared by
+      all threads under a lock, so decoding a batch of prints from the
+      same sensor builds them once.
+
+      ROUTINES:
+#cat: get_cached_wsq_trees - Copies the trees of an image size from the
+#cat:                 cache, if they are in it.
+#cat: put_cached_wsq_trees - Adds the trees of an image size to the
+#cat:                 cache, replacing the least recently used entry.
+#cat: get_cached_huff_tables - Copies the decoding tables of a huffman
+#cat:                 table from the cache, if they are in it.
+#cat: put_cached_huff_tables - Adds the decoding tables of a huffman
+#cat:                 table to the cache, replacing the least recently
+#cat:                 used entry.
+
+***********************************************************************/
+
+#include <string.h>
+#include <pthread.h>
+#include <wsq.h>
+
+/* Number of image sizes and of huffman tables kept. */
+#define TREE_CACHE_SIZE  8
+#define HUFF_CACHE_SIZE  8
+
+typedef struct tree_cache_entry {
+   int width;               /* 0 for an unused entry */
+   int height;
+   unsigned int used;       /* last use, for the replacement */
+   W_TREE w_tree[W_TREELEN];
+   Q_TREE q_tree[Q_TREELEN];
+} TREE_CACHE_ENTRY;
+
+typedef struct huff_cache_entry {
+   unsigned int hash;
+   int num_values;          /* -1 for an unused entry */
+   unsigned int used;       /* last use, for the replacement */
+   unsigned char huffbits[MAX_HUFFBITS];
+   unsigned char huffvalues[MAX_HUFFCOUNTS_WSQ];
+   HUFF_TABLES tables;      /* without the huffvalues pointer */
+} HUFF_CACHE_ENTRY;
+
+static pthread_mutex_t tree_lock = PTHREAD_MUTEX_INITIALIZER;
+static TREE_CACHE_ENTRY tree_cache[TREE_CACHE_SIZE];
+static unsigned int tree_clock = 0;
+
+static pthread_mutex_t huff_lock = PTHREAD_MUTEX_INITIALIZER;
+static HUFF_CACHE_ENTRY huff_cache[HUFF_CACHE_SIZE] = {
+   {0, -1}, {0, -1}, {0, -1}, {0, -1}, {0, -1}, {0, -1}, {0, -1}, {0, -1}
+};
+static unsigned int huff_clock = 0;
+
+/************************************************************************/
+/* Copies the trees built for an image of the given size into w_tree    */
+/* and q_tree.  Returns 1 if they were in the cache, 0 otherwise.       */
+/************************************************************************/
+int get_cached_wsq_trees(W_TREE w_tree[], Q_TREE q_tree[],
+                         const int width, const int height)
+{
+   int i;
+
+   if(width <= 0 || height <= 0)
+      return(0);
+
+   pthread_mutex_lock(&tree_lock);
+   for(i = 0; i < TREE_CACHE_SIZE; i++) {
+      if(tree_cache[i].width == width && tree_cache[i].height == height) {
+         memcpy(w_tree, tree_cache[i].w_tree, sizeof(tree_cache[i].w_tree));
+         memcpy(q_tree, tree_cache[i].q_tree, sizeof(tree_cache[i].q_tree));
+         tree_cache[i].used = ++tree_clock;
+         pthread_mutex_unlock(&tree_lock);
+         return(1);
+      }
+   }
+   pthread_mutex_unlock(&tree_lock);
+   return(0);
+}
+
+/************************************************************************/
+/* Keeps the trees built for an image of the given size, in place of    */
+/* the least recently used ones.  Another thread may have added them    */
+/* meanwhile, in which case they are not added twice.                   */
+/************************************************************************/
+void put_cached_wsq_trees(W_TREE w_tree[], Q_TREE q_tree[],
+                          const int width, const int height)
+{
+   int i, oldest = 0;
+
+   if(width <= 0 || height <= 0)
+      return;
+
+   pthread_mutex_lock(&tree_lock);
+   for(i = 0; i < TREE_CACHE_SIZE; i++) {
+      if(tree_cache[i].width == width && tree_cache[i].height == height) {
+         pthread_mutex_unlock(&tree_lock);
+         return;
+      }
+      if(tree_cache[i].used < tree_cache[oldest].used)
+         oldest = i;
+   }
+   tree_cache[oldest].width = width;
+   tree_cache[oldest].height = height;
+   memcpy(tree_cache[oldest].w_tree, w_tree, sizeof(tree_cache[oldest].w_tree));
+   memcpy(tree_cache[oldest].q_tree, q_tree, sizeof(tree_cache[oldest].q_tree));
+   tree_cache[oldest].used = ++tree_clock;
+   pthread_mutex_unlock(&tree_lock);
+}
+
+/************************************************************************/
+/* Returns the number of values of a huffman table, the sum of its code */
+/* counts, or -1 if it has more values than a table can hold.  Only     */
+/* these values are part of the table, the rest of huffvalues is left   */
+/* over from earlier tables.                                            */
+/************************************************************************/
+static int huff_num_values(DHT_TABLE *dht)
+{
+   int i, num_values = 0;
+
+   for(i = 0; i < MAX_HUFFBITS; i++)
+      num_values += dht->huffbits[i];
+   if(num_values > MAX_HUFFCOUNTS_WSQ)
+      return(-1);
+   return(num_values);
+}
+
+/************************************************************************/
+/* FNV-1a hash of the code counts and values of a huffman table, to     */
+/* skip most entries without comparing their content.                   */
+/************************************************************************/
+static unsigned int huff_hash(DHT_TABLE *dht, const int num_values)
+{
+   unsigned int hash = 2166136261u;
+   int i;
+
+   for(i = 0; i < MAX_HUFFBITS; i++)
+      hash = (hash ^ dht->huffbits[i]) * 16777619u;
+   for(i = 0; i < num_values; i++)
+      hash = (hash ^ dht->huffvalues[i]) * 16777619u;
+   return(hash);
+}
+
+/************************************************************************/
+/* Finds the entry of a huffman table, -1 if it is not in the cache.    */
+/* Called with huff_lock held.                                          */
+/************************************************************************/
+static int find_huff_entry(DHT_TABLE *dht, const unsigned int hash,
+                           const int num_values)
+{
+   int i;
+
+   for(i = 0; i < HUFF_CACHE_SIZE; i++)
+      if(huff_cache[i].hash == hash &&
+         huff_cache[i].num_values == num_values &&
+         !memcmp(huff_cache[i].huffbits, dht->huffbits, MAX_HUFFBITS) &&
+         !memcmp(huff_cache[i].huffvalues, dht->huffvalues, num_values))
+         return(i);
+   return(-1);
+}
+
+/************************************************************************/
+/* Copies the decoding tables built from the given huffman table into   */
+/* tables, pointing its huffvalues to those of dht.  Returns 1 if they  */
+/* were in the cache, 0 otherwise.                                      */
+/************************************************************************/
+int get_cached_huff_tables(HUFF_TABLES *tables, DHT_TABLE *dht)
+{
+   unsigned int hash;
+   int i, num_values;
+
+   if((num_values = huff_num_values(dht)) < 0)
+      return(0);
+   hash = huff_hash(dht, num_values);
+
+   pthread_mutex_lock(&huff_lock);
+   if((i = find_huff_entry(dht, hash, num_values)) < 0) {
+      pthread_mutex_unlock(&huff_lock);
+      return(0);
+   }
+   *tables = huff_cache[i].tables;
+   huff_cache[i].used = ++huff_clock;
+   pthread_mutex_unlock(&huff_lock);
+
+   tables->huffvalues = dht->huffvalues;
+   return(1);
+}
+
+/************************************************************************/
+/* Keeps the decoding tables built from the given huffman table, in     */
+/* place of the least recently used ones.  Tables with too many values  */
+/* are not kept, building them fails.                                   */
+/************************************************************************/
+void put_cached_huff_tables(HUFF_TABLES *tables, DHT_TABLE *dht)
+{
+   unsigned int hash;
+   int i, num_values, oldest = 0;
+
+   if((num_values = huff_num_values(dht)) < 0)
+      return;
+   hash = huff_hash(dht, num_values);
+
+   pthread_mutex_lock(&huff_lock);
+   if(find_huff_entry(dht, hash, num_values) >= 0) {
+      pthread_mutex_unlock(&huff_lock);
+      return;
+   }
+   for(i = 1; i < HUFF_CACHE_SIZE; i++)
+      if(huff_cache[i].used < huff_cache[oldest].used)
+         oldest = i;
+   huff_cache[oldest].hash = hash;
+   huff_cache[oldest].num_values = num_values;
+   memcpy(huff_cache[oldest].huffbits, dht->huffbits, MAX_HUFFBITS);
+   memcpy(huff_cache[oldest].huffvalues, dht->huffvalues, num_values);
+   huff_cache[oldest].tables = *tables;
+   huff_cache[oldest].tables.huffvalues = (unsigned char *)NULL;
+   huff_cache[oldest].used = ++huff_clock;
+   pthread_mutex_unlock(&huff_lock);
+}
@@ -49,6 +49,9 @@ http://www.mitre.org/work/tech_papers/tech_papers_08/08_0060/index.html
 #cat:                and NULL qdata) will decode original data. 
 #cat:                Subsequent calls reuse data, and do not repeat 
 #cat:                the decode.
+#cat: wsq_decode_region_flt_mem - Decodes a rectangular region of a
+#cat:                WSQ compressed memory buffer, reconstructing only
+#cat:                the wavelet coefficients covering the region.
 #cat: wsq_huffcode_mem - WSQ Huffman codes quantized coefficient array,
 #cat:                returning a changed memory buffer. Can be called
 #cat:                repeatedly with the same codestream header buffer.  
@@ -70,9 +73,6 @@ http://www.mitre.org/work/tech_papers/tech_papers_08/08_0060/index.html
 #include <wsq.h>
 #include <dataio.h>
 
-Q_TREE q_tree2[Q_TREELEN];
-Q_TREE q_tree3[Q_TREELEN];
-
 /************************************************************************/
 /* Compute quantized WSQ subband block sizes, using DQT_TABLE input     */
 /* Near duplicate of quant_block_sizes (util.c), but passing a          */
@@ -124,6 +124,7 @@ void quant_block_sizes2(int *oqsize1, int *oqsize2, int *oqsize3,
 /*****************************************************************/
 int wsq_crop_qdata(
    const DQT_TABLE *dqt_table, /* quantization table structure   */
+   W_TREE w_tree[],
    Q_TREE q_tree[], 
    Q_TREE q_tree2[],
    Q_TREE q_tree3[],
@@ -194,6 +195,7 @@ which intersects actual image area), then *ow / *oh will be returned
 as -1 and odata won't contain wsq compressed data.
 **************************************************************/
 int wsq_cropcoeff_mem(
+   WSQ_CONTEXT *ctx,      /* Codec context, kept between calls */
    unsigned char **odata, /* Cropped WSQ mem */
    int *olen,             /* Cropped WSQ coded length */
    int *ow, int *oh,      /* Actual crop width/height */
@@ -223,12 +225,12 @@ int wsq_cropcoeff_mem(
    else first = 1;
 
    if (first) {
-     if ((ret = wsq_dehuff_mem(&qdata, &width, &height, &scale, &shift, hgt_pos, 
-		     huff_pos, idata, ilen))) {
+     if ((ret = wsq_dehuff_mem(ctx, &qdata, &width, &height, &scale, &shift,
+		     hgt_pos, huff_pos, idata, ilen))) {
        return(ret);
      }
 
-     free_wsq_decoder_resources();
+     free_wsq_decoder_resources(&ctx->dtt_table);
      *pqdata = qdata;
      *iw = width;
      *ih = height;
@@ -243,6 +245,9 @@ int wsq_cropcoeff_mem(
        fprintf(stderr, "ERROR : wsq_cropcoeff_1 : malloc : wsq_data\n");
        return(-12);
      }
+     /* Hand the buffer to the caller right away, so it is freed */
+     /* with *pqdata on every return, not only on success.        */
+     *odata = wsq_data;
    }
    else {
      width = *iw;
@@ -290,7 +295,9 @@ int wsq_cropcoeff_mem(
    }
 
    /* Crop the wavelet coefficients back */
-   if((ret = wsq_crop_qdata(&dqt_table, q_tree, q_tree2, q_tree3, qdata, ulx, uly, *ow, *oh, qdata2))) {
+   if((ret = wsq_crop_qdata(&ctx->dqt_table, ctx->w_tree, ctx->q_tree,
+                            ctx->q_tree2, ctx->q_tree3, qdata, ulx, uly,
+                            *ow, *oh, qdata2))) {
        free(qdata2);
        return(ret);
    }
@@ -298,7 +305,7 @@ int wsq_cropcoeff_mem(
    if(debug > 0)
      fprintf(stderr, "Cropped coefficients: UL (%d,%d)  %d x %d\n", ulx,uly,  *ow, *oh);
 
-   if((ret = wsq_huffcode_mem(wsq_data, olen, 
+   if((ret = wsq_huffcode_mem(ctx, wsq_data, olen, 
 		    qdata2, *ow, *oh, 
 		    idata, ilen, *hgt_pos, *huff_pos))){
        free(qdata2);
@@ -313,6 +320,127 @@ int wsq_cropcoeff_mem(
    /* Return normally. */
    return(0);
 }
+/*************************************************************
+   This function decodes the region UL(ulx,uly) - LR(lrx,lry)
+   of a WSQ codestream (LR corner not included), returning the
+   floating point pixmap of the region like wsq_decode_flt_mem.
+   The quantized coefficients are cropped the same way as in
+   wsq_cropcoeff_mem, so only the subband areas covering the
+   region are unquantized and reconstructed.  The crop is
+   widened by REGION_MARGIN pixels on each side and trimmed
+   afterwards; this keeps the boundary effects of the cropped
+   transform (5 levels of 7/9 tap filters) out of the region,
+   whose pixels then match a full image decode.  The box is clipped to the
+   image; its actual origin and size are returned in ox, oy,
+   ow and oh.  A box not intersecting the image returns -94.
+***************************************************************/
+#define REGION_MARGIN 128
+
+int wsq_decode_region_flt_mem(
+   WSQ_CONTEXT *ctx,      /* Codec context */
+   float **ofdata,        /* Reconstructed region pixmap */
+   int *ox, int *oy,      /* Actual region origin */
+   int *ow, int *oh,      /* Actual region width/height */
+   int *oppi,             /* Image density */
+   unsigned char *idata,  /* Input WSQ data */
+   const int ilen,        /* Input WSQ length */
+   int ulx, int uly,      /* UL corner request */
+   int lrx, int lry       /* LR corner request */
+)
+{
+   int ret, row;
+   int width, height, ppi;        /* image parameters */
+   int cx, cy, cw, ch;            /* cropped coefficient area */
+   int hgt_pos, huff_pos;
+   double scale, shift;
+   short *qdata, *qdata2;         /* full and cropped coefficients */
+   float *fdata;                  /* reconstructed crop */
+
+   if((ret = getc_ppi_wsq(&ppi, idata, ilen)))
+      return(ret);
+
+   if((ret = wsq_dehuff_mem(ctx, &qdata, &width, &height, &scale, &shift,
+                            &hgt_pos, &huff_pos, idata, ilen)))
+      return(ret);
+
+   /* Clip the box to the image. */
+   if (ulx < 0) ulx = 0;
+   if (uly < 0) uly = 0;
+   if (lrx > width) lrx = width;
+   if (lry > height) lry = height;
+   if (ulx >= lrx || uly >= lry) {
+      fprintf(stderr, "ERROR : wsq_decode_region_flt_mem : box outside image\n");
+      free(qdata);
+      free_wsq_decoder_resources(&ctx->dtt_table);
+      return(-94);
+   }
+
+   /* Coefficient crop: margin added, UL corner a multiple of 32. */
+   cx = ulx - REGION_MARGIN;
+   cy = uly - REGION_MARGIN;
+   if (cx < 0) cx = 0;
+   if (cy < 0) cy = 0;
+   cx = (cx / 32) * 32;
+   cy = (cy / 32) * 32;
+   cw = lrx + REGION_MARGIN;
+   ch = lry + REGION_MARGIN;
+   if (cw > width) cw = width;
+   if (ch > height) ch = height;
+   cw -= cx;
+   ch -= cy;
+
+   qdata2 = (short *) malloc(cw * ch * sizeof(short));
+   if(qdata2 == (short *)NULL) {
+      fprintf(stderr,"ERROR: wsq_decode_region_flt_mem : malloc : qdata2\n");
+      free(qdata);
+      free_wsq_decoder_resources(&ctx->dtt_table);
+      return(-20);
+   }
+
+   /* Leaves w_tree and q_tree2 describing the cw x ch crop. */
+   ret = wsq_crop_qdata(&ctx->dqt_table, ctx->w_tree, ctx->q_tree,
+                        ctx->q_tree2, ctx->q_tree3, qdata, cx, cy,
+                        cw, ch, qdata2);
+   free(qdata);
+   if(ret) {
+      free(qdata2);
+      free_wsq_decoder_resources(&ctx->dtt_table);
+      return(ret);
+   }
+
+   if((ret = unquantize(&fdata, &ctx->dqt_table, ctx->q_tree2, Q_TREELEN,
+                        qdata2, cw, ch))){
+      free(qdata2);
+      free_wsq_decoder_resources(&ctx->dtt_table);
+      return(ret);
+   }
+   free(qdata2);
+
+   if((ret = wsq_reconstruct_par(fdata, cw, ch, ctx->w_tree, W_TREELEN,
+                             &ctx->dtt_table, ctx->parallelism,
+                             (WSQ_ARENA *)NULL))){
+      free(fdata);
+      free_wsq_decoder_resources(&ctx->dtt_table);
+      return(ret);
+   }
+   free_wsq_decoder_resources(&ctx->dtt_table);
+
+   /* Trim the margin, moving the region rows to the buffer start. */
+   for(row = 0; row < lry - uly; row++)
+      memmove(fdata + row * (lrx - ulx),
+              fdata + (row + uly - cy) * cw + (ulx - cx),
+              (lrx - ulx) * sizeof(float));
+
+   *ofdata = fdata;
+   *ox = ulx;
+   *oy = uly;
+   *ow = lrx - ulx;
+   *oh = lry - uly;
+   *oppi = ppi;
+
+   return(0);
+}
+
 /*************************************************************
    This function Huffman encodes a quantized coefficient 
    subband array (qdata2) for a widthxheight image. It can 
@@ -333,6 +461,7 @@ int wsq_cropcoeff_mem(
 The bulk of this code is a near copy of parts of wsq_encode_mem.
 ***************************************************************/
 int wsq_huffcode_mem(
+     WSQ_CONTEXT *ctx,        /* Context set up by wsq_crop_qdata */
      unsigned char *wsq_data, /* Output WSQ memory */
      int *olen,               /* Output WSQ length */
      short *qdata2,           /* Cropped coefficients to encode */
@@ -365,8 +494,8 @@ int wsq_huffcode_mem(
       fprintf(stderr, "SOI, tables, and frame header written\n\n");
 
    /* Compute quantized WSQ subband block sizes */
-   quant_block_sizes2(&qsize1, &qsize2, &qsize3, &dqt_table,
-                           w_tree, W_TREELEN, q_tree2, Q_TREELEN);
+   quant_block_sizes2(&qsize1, &qsize2, &qsize3, &ctx->dqt_table,
+                           ctx->w_tree, W_TREELEN, ctx->q_tree2, Q_TREELEN);
 
    wsq_len = huff_pos;
 
@@ -379,7 +508,6 @@ int wsq_huffcode_mem(
    /* this buffer size.                                                 */
    huff_buf = (unsigned char *)malloc(num_pix);
    if(huff_buf == (unsigned char *)NULL) {
-      free(qdata2);
       fprintf(stderr, "ERROR : wsq_huffcode_1 : malloc : huff_buf\n");
       return(-13);
    }
@@ -390,7 +518,6 @@ int wsq_huffcode_mem(
    /* Compute Huffman table for Block 1. */
    if((ret = gen_hufftable_wsq(&hufftable, &huffbits, &huffvalues,
                               qdata2, &qsize1, 1))){
-      free(qdata2);
       free(huff_buf);
       return(ret);
    }
@@ -398,7 +525,6 @@ int wsq_huffcode_mem(
    /* Store Huffman table for Block 1 to WSQ buffer. */
    if((ret = putc_huffman_table(DHT_WSQ, 0, huffbits, huffvalues,
                                wsq_data, wsq_alloc, &wsq_len))){
-      free(qdata2);
       free(huff_buf);
       free(huffbits);
       free(huffvalues);
@@ -414,7 +540,6 @@ int wsq_huffcode_mem(
    /* Compress Block 1 data. */
    if((ret = compress_block(huff_buf, &hsize1, qdata2, qsize1,
                            MAX_HUFFCOEFF, MAX_HUFFZRUN, hufftable))){
-      free(qdata2);
       free(huff_buf);
       free(hufftable);
       return(ret);
@@ -427,14 +552,12 @@ int wsq_huffcode_mem(
 
    /* Store Block 1's header to WSQ buffer. */
    if((ret = putc_block_header(0, wsq_data, wsq_alloc, &wsq_len))){
-      free(qdata2);
       free(huff_buf);
       return(ret);
    }
 
    /* Store Block 1's compressed data to WSQ buffer. */
    if((ret = putc_bytes(huff_buf, hsize1, wsq_data, wsq_alloc, &wsq_len))){
-      free(qdata2);
       free(huff_buf);
       return(ret);
    }
@@ -450,7 +573,6 @@ int wsq_huffcode_mem(
    block_sizes[1] = qsize3;
    if((ret = gen_hufftable_wsq(&hufftable, &huffbits, &huffvalues,
                           qdata2+qsize1, block_sizes, 2))){
-      free(qdata2);
       free(huff_buf);
       return(ret);
    }
@@ -458,7 +580,6 @@ int wsq_huffcode_mem(
    /* Store Huffman table for Blocks 2 & 3 to WSQ buffer. */
    if((ret = putc_huffman_table(DHT_WSQ, 1, huffbits, huffvalues,
                                wsq_data, wsq_alloc, &wsq_len))){
-      free(qdata2);
       free(huff_buf);
       free(huffbits);
       free(huffvalues);
@@ -474,7 +595,6 @@ int wsq_huffcode_mem(
    /* Compress Block 2 data. */
    if((ret = compress_block(huff_buf, &hsize2, qdata2+qsize1, qsize2,
                            MAX_HUFFCOEFF, MAX_HUFFZRUN, hufftable))){
-      free(qdata2);
       free(huff_buf);
       free(hufftable);
       return(ret);
@@ -485,7 +605,6 @@ int wsq_huffcode_mem(
 
    /* Store Block 2's header to WSQ buffer. */
    if((ret = putc_block_header(1, wsq_data, wsq_alloc, &wsq_len))){
-      free(qdata2);
       free(huff_buf);
       free(hufftable);
       return(ret);
@@ -493,7 +612,6 @@ int wsq_huffcode_mem(
 
    /* Store Block 2's compressed data to WSQ buffer. */
    if((ret = putc_bytes(huff_buf, hsize2, wsq_data, wsq_alloc, &wsq_len))){
-      free(qdata2);
       free(huff_buf);
       free(hufftable);
       return(ret);
@@ -508,7 +626,6 @@ int wsq_huffcode_mem(
    /* Compress Block 3 data. */
    if((ret = compress_block(huff_buf, &hsize3, qdata2+qsize1+qsize2, qsize3,
                            MAX_HUFFCOEFF, MAX_HUFFZRUN, hufftable))){
-      free(qdata2);
       free(huff_buf);
       free(hufftable);
       return(ret);
@@ -572,6 +689,7 @@ int wsq_huffcode_mem(
 The bulk of this code is a near copy of parts of wsq_decode_mem.
 ***************************************************************/
 int wsq_dehuff_mem(
+   WSQ_CONTEXT *ctx,  /* Codec context, tables are retained on return */
    short **pqdata,    /* Returned pointer to quantized coeff data */
    int *iw, int *ih,  /* Dimensions of qdata / image */
    double *scale,     /* r_scale from Frame header */
@@ -591,8 +709,9 @@ int wsq_dehuff_mem(
    int ihsize;
    int found_dqt, found_dtt;
 
-   /* Added by MDG on 02-24-05 */
-   init_wsq_decoder_resources();
+   /* Start from a clean context; this also replaces the */
+   /* init_wsq_decoder_resources() call added by MDG.    */
+   init_wsq_context(ctx);
 
    /* Set memory buffer pointers. */
    cbufptr = idata;
@@ -600,11 +719,11 @@ int wsq_dehuff_mem(
 
    /* Init DHT Tables to 0. */
    for(i = 0; i < MAX_DHT_TABLES; i++)
-      (dht_table + i)->tabdef = 0;
+      (ctx->dht_table + i)->tabdef = 0;
 
    /* Read the SOI marker. */
    if((ret = getc_marker_wsq(&marker, SOI_WSQ, &cbufptr, ebufptr))){
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&ctx->dtt_table);
       return(ret);
    }
 
@@ -613,27 +732,27 @@ int wsq_dehuff_mem(
    
    /* Read in supporting tables up to the SOF marker. */
    if((ret = getc_marker_wsq(&marker, TBLS_N_SOF, &cbufptr, ebufptr))){
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&ctx->dtt_table);
       return(ret);
    }
    while(marker != SOF_WSQ) {
-      if((ret = getc_table_wsq(marker, &dtt_table, &dqt_table, dht_table,
-			      &cbufptr, ebufptr))){
-         free_wsq_decoder_resources();
+      if((ret = getc_table_wsq(marker, &ctx->dtt_table, &ctx->dqt_table,
+			      ctx->dht_table, &cbufptr, ebufptr))){
+         free_wsq_decoder_resources(&ctx->dtt_table);
          return(ret);
       }
       if (marker == DQT_WSQ) found_dqt = 1;
       else if (marker == DTT_WSQ) found_dtt = 1;
 
       if((ret = getc_marker_wsq(&marker, TBLS_N_SOF, &cbufptr, ebufptr))){
-         free_wsq_decoder_resources();
+         free_wsq_decoder_resources(&ctx->dtt_table);
          return(ret);
       }
    }
 
    /* Read in the Frame Header. */
-   if((ret = getc_frame_header_wsq(&frm_header_wsq, &cbufptr, ebufptr))){
-      free_wsq_decoder_resources();
+   if((ret = getc_frame_header_wsq(&ctx->frm_header_wsq, &cbufptr, ebufptr))){
+      free_wsq_decoder_resources(&ctx->dtt_table);
       return(ret);
    }
 
@@ -641,10 +760,10 @@ int wsq_dehuff_mem(
       since later functions may want to change the contents */
    *hgt_pos = cbufptr-idata - 13;
 
-   width = frm_header_wsq.width;
-   height = frm_header_wsq.height;
-   *scale = frm_header_wsq.r_scale;
-   *shift = frm_header_wsq.m_shift;
+   width = ctx->frm_header_wsq.width;
+   height = ctx->frm_header_wsq.height;
+   *scale = ctx->frm_header_wsq.r_scale;
+   *shift = ctx->frm_header_wsq.m_shift;
    *iw = width;
    *ih = height;
 
@@ -652,7 +771,8 @@ int wsq_dehuff_mem(
       fprintf(stderr, "SOI, tables, and frame header read\n\n");
 
    /* Build WSQ decomposition trees. */
-   build_wsq_trees(w_tree, W_TREELEN, q_tree, Q_TREELEN, width, height);
+   build_wsq_trees(ctx->w_tree, W_TREELEN, ctx->q_tree, Q_TREELEN,
+                   width, height);
 
    if(debug > 0)
       fprintf(stderr, "Tables for wavelet decomposition finished\n\n");
@@ -674,13 +794,13 @@ int wsq_dehuff_mem(
    }
    else { /* Continue looking for transform or q-tables */
      if((ret = getc_marker_wsq(&marker, TBLS_N_SOB, &cbufptr, ebufptr))){
-       free_wsq_decoder_resources();
+       free_wsq_decoder_resources(&ctx->dtt_table);
        return(ret);
      }
      while(marker != SOB_WSQ && marker != DHT_WSQ) {
-       if((ret = getc_table_wsq(marker, &dtt_table, &dqt_table,
-				dht_table, &cbufptr, ebufptr))){
-	 free_wsq_decoder_resources();
+       if((ret = getc_table_wsq(marker, &ctx->dtt_table, &ctx->dqt_table,
+				ctx->dht_table, &cbufptr, ebufptr))){
+	 free_wsq_decoder_resources(&ctx->dtt_table);
 	 return(ret);
        }       
        if (marker == DQT_WSQ) found_dqt = 1;
@@ -688,7 +808,7 @@ int wsq_dehuff_mem(
        if (found_dqt && found_dtt) break;
        
        if((ret = getc_marker_wsq(&marker, TBLS_N_SOB, &cbufptr, ebufptr))){
-	 free_wsq_decoder_resources();
+	 free_wsq_decoder_resources(&ctx->dtt_table);
 	 return(ret);
        }
      }
@@ -701,6 +821,8 @@ int wsq_dehuff_mem(
      }
      else {
        fprintf(stderr,"ERROR: Didn't find DTT and DQT before DHT\n");
+       free_wsq_decoder_resources(&ctx->dtt_table);
+       return(-93);
      }
    }
 
@@ -709,16 +831,15 @@ int wsq_dehuff_mem(
    /* Allocate working memory. */
    qdata = (short *) malloc(num_pix * sizeof(short));
    if(qdata == (short *)NULL) {
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&ctx->dtt_table);
       fprintf(stderr,"ERROR: wsq_dehuff_mem : malloc : qdata1\n");
       return(-20);
    }
 
    /* Decode the Huffman encoded data blocks. */
-   if((ret = huffman_decode_data_mem(qdata, &dtt_table, &dqt_table, dht_table,
-				     &cbufptr, ebufptr))){
+   if((ret = huffman_decode_data_mem(ctx, qdata, &cbufptr, ebufptr))){
       free(qdata);
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&ctx->dtt_table);
       return(ret);
    }
    /* Compute original huffman coded length */
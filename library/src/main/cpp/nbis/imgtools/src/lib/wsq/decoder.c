@@ -58,11 +58,31 @@ of the software.
 #cat: wsq_decode_mem - Decodes a datastream of WSQ compressed bytes
 #cat:                  from a memory buffer, returning a lossy
 #cat:                  reconstructed pixmap.
+#cat: wsq_decode_flt_mem - Decodes a datastream of WSQ compressed bytes
+#cat:                  from a memory buffer, returning the floating
+#cat:                  point pixmap before conversion to pixels.
+#cat: wsq_decode_scaled_flt_mem - Decodes a datastream of WSQ compressed
+#cat:                  bytes from a memory buffer at 1/2 to 1/16 of the
+#cat:                  original resolution.
 #cat: wsq_decode_file - Decodes a datastream of WSQ compressed bytes
 #cat:                  from an open file, returning a lossy
 #cat:                  reconstructed pixmap.
 #cat: huffman_decode_data_mem - Decodes a block of huffman encoded
 #cat:                  data from a memory buffer.
+#cat: huffman_decode_blocks_mem - Decodes up to a given number of blocks
+#cat:                  of huffman encoded data from a memory buffer.
+#cat: build_huff_tables - Builds the decoding tables of a block.
+#cat: decode_huff_block - Decodes the huffman encoded data of one block.
+#cat: find_block_end - Finds the marker ending the data of a block.
+#cat: huffman_decode_blocks_par - Decodes the blocks of huffman encoded
+#cat:                  data of a memory buffer on several threads.
+#cat: build_huff_lookahead - Builds the table that decodes the short
+#cat:                  huffman codes from their first bits at once.
+#cat: fill_huff_reader - Refills the bit reservoir of a memory buffer.
+#cat: decode_huff_reader - Decodes the next huffman code from the bit
+#cat:                  reservoir of a memory buffer.
+#cat: getbits_huff_reader - Gets the next bits from the bit reservoir
+#cat:                  of a memory buffer.
 #cat: huffman_decode_data_file - Decodes a block of huffman encoded
 #cat:                  data from an open file.
 #cat: decode_data_mem - Decodes huffman encoded data from a memory buffer.
@@ -77,6 +97,7 @@ of the software.
 ***********************************************************************/
 
 #include <stdio.h>
+#include <string.h>
 #include <wsq.h>
 #include <dataio.h>
 
@@ -87,6 +108,41 @@ of the software.
 #define LOGW(...) __android_log_print(ANDROID_LOG_WARN   , "decoder.c",__VA_ARGS__)
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR  , "decoder.c",__VA_ARGS__)
 
+/* Bit reservoir over the compressed data of a block in memory.  The next */
+/* bit of the stream is the most significant bit of bits.                 */
+typedef struct huff_reader {
+   unsigned long long bits;   /* unread bits, left aligned */
+   int nbits;                 /* number of valid bits in bits */
+   unsigned char *cptr;       /* next byte to move into bits */
+   unsigned char *eptr;       /* end of the input buffer */
+   int stop;                  /* cptr is at a marker or at eptr */
+} HUFF_READER;
+
+/* A block found by the marker scan, decoded by a task. */
+typedef struct decode_block {
+   DHT_TABLE dht;             /* copy of its huffman table */
+   int hufftable_id;
+   unsigned char *start;      /* first byte of its data */
+   unsigned char *end;        /* the marker ending its data */
+   short *ip;                 /* where its coefficients go */
+   int size;                  /* number of coefficients */
+   int ret;
+} DECODE_BLOCK;
+
+static int build_huff_tables(HUFF_TABLES *, DHT_TABLE *, const int);
+static int decode_huff_block(HUFF_READER *, HUFF_TABLES *, short **, int *,
+                 const int, const int, unsigned short *);
+static unsigned char *find_block_end(unsigned char *, unsigned char *);
+static void decode_block_task(void *, const int);
+static int huffman_decode_blocks_par(WSQ_CONTEXT *, short *, unsigned char **,
+                 unsigned char *, const int);
+static void build_huff_lookahead(unsigned short *, int *, int *, int *,
+                 unsigned char *);
+static void fill_huff_reader(HUFF_READER *);
+static int decode_huff_reader(HUFF_READER *, int *, unsigned short *, int *,
+                 int *, int *, unsigned char *, unsigned short *);
+static int getbits_huff_reader(HUFF_READER *, unsigned short *, const int);
+
 /************************************************************************/
 /*              This is an implementation based on the Crinimal         */
 /*              Justice Information Services (CJIS) document            */
@@ -96,21 +152,102 @@ of the software.
 /* WSQ Decoder routine.  Takes an WSQ compressed memory buffer and decodes */
 /* it, returning the reconstructed pixmap.                                 */
 /***************************************************************************/
-int wsq_decode_mem(unsigned char **odata, int *ow, int *oh, int *od, int *oppi,
-                   int *lossyflag, unsigned char *idata, const int ilen)
+int wsq_decode_mem(WSQ_CONTEXT *ctx, unsigned char **odata, int *ow, int *oh,
+                   int *od, int *oppi, int *lossyflag, unsigned char *idata,
+                   const int ilen)
+{
+   int ret;
+   int num_pix;                   /* image size and counter */
+   int width, height, ppi;        /* image parameters */
+   unsigned char *cdata;          /* image pointer */
+   float *fdata;                  /* image pointers */
+
+   if((ret = wsq_decode_flt_mem(ctx, &fdata, &width, &height, &ppi,
+                                idata, ilen)))
+      return(ret);
+
+   num_pix = width * height;
+   cdata = (unsigned char *)malloc(num_pix * sizeof(unsigned char));
+   if(cdata == (unsigned char *)NULL) {
+      wsq_arena_release(ctx->arena, fdata);
+      LOGE("error allocating memory for cdata (%d bytes)", num_pix * sizeof(unsigned char));
+      return(-21);
+   }
+
+   /* Convert floating point pixels to unsigned char pixels. */
+   conv_img_2_uchar(cdata, fdata, width, height,
+                      ctx->frm_header_wsq.m_shift, ctx->frm_header_wsq.r_scale);
+
+   /* Done with floating point pixels. */
+   wsq_arena_release(ctx->arena, fdata);
+
+   if(debug > 0)
+      fprintf(stderr, "Doubleing point pixels converted to unsigned char\n\n");
+
+   /* Assign reconstructed pixmap and attributes to output pointers. */
+   *odata = cdata;
+   *ow = width;
+   *oh = height;
+   *od = 8;
+   *oppi = ppi;
+   *lossyflag = 1;
+
+   /* Return normally. */
+   return(0);
+}
+
+/***************************************************************************/
+/* Decodes a WSQ compressed memory buffer up to and including the wavelet  */
+/* reconstruction, returning the floating point pixmap.  The shift/scale   */
+/* parameters needed to convert it to pixels are left in                   */
+/* ctx->frm_header_wsq, so callers can write the pixels straight into the  */
+/* format and buffer they need.  With ctx->arena set, the pixmap is the    */
+/* FDATA slot of the arena and is given back with wsq_arena_release.      */
+/***************************************************************************/
+int wsq_decode_flt_mem(WSQ_CONTEXT *ctx, float **ofdata, int *ow, int *oh,
+                   int *oppi, unsigned char *idata, const int ilen)
+{
+   return(wsq_decode_scaled_flt_mem(ctx, ofdata, ow, oh, oppi, idata, ilen, 0));
+}
+
+/* w_tree lowpass nodes holding the image at 1/1, 1/2, 1/4, 1/8 and 1/16 */
+/* of the original resolution.                                           */
+static const int scaled_root_node[MAX_SCALE_LEVELS + 1] = {0, 1, 14, 15, 19};
+
+/***************************************************************************/
+/* Decodes a WSQ compressed memory buffer at a reduced resolution.  The    */
+/* wavelet reconstruction stops 'levels' levels before the full size,      */
+/* leaving the lowpass approximation of the image, 1/2^levels of the       */
+/* original width and height (rounded up).  Only the Huffman blocks and    */
+/* subbands contributing to it are decoded and unquantized.  The lowpass   */
+/* filter gain of each level is folded into ctx->frm_header_wsq.r_scale,   */
+/* so the pixmap converts to pixels like a full size one.  Levels 0        */
+/* decodes the full image.                                                 */
+/***************************************************************************/
+int wsq_decode_scaled_flt_mem(WSQ_CONTEXT *ctx, float **ofdata, int *ow,
+                   int *oh, int *oppi, unsigned char *idata, const int ilen,
+                   const int levels)
 {
    int ret, i;
+   int root, owidth, oheight;     /* reduced image node and size */
+   int nblks;                     /* Huffman blocks to decode */
    unsigned short marker;         /* WSQ marker */
    int num_pix;                   /* image size and counter */
    int width, height, ppi;        /* image parameters */
-   unsigned char *cdata;          /* image pointer */
    float *fdata;                  /* image pointers */
    short *qdata;                  /* image pointers */
    unsigned char *cbufptr;        /* points to current byte in buffer */
    unsigned char *ebufptr;        /* points to end of buffer */
 
-   /* Added by MDG on 02-24-05 */
-   init_wsq_decoder_resources();
+   if(levels < 0 || levels > MAX_SCALE_LEVELS) {
+      fprintf(stderr, "ERROR : wsq_decode_scaled_flt_mem : ");
+      fprintf(stderr, "invalid number of levels %d\n", levels);
+      return(-22);
+   }
+
+   /* Start from a clean context; this also replaces the */
+   /* init_wsq_decoder_resources() call added by MDG.    */
+   init_wsq_context(ctx);
 
    /* Set memory buffer pointers. */
    cbufptr = idata;
@@ -118,47 +255,47 @@ int wsq_decode_mem(unsigned char **odata, int *ow, int *oh, int *od, int *oppi,
 
    /* Init DHT Tables to 0. */
    for(i = 0; i < MAX_DHT_TABLES; i++)
-      (dht_table + i)->tabdef = 0;
+      (ctx->dht_table + i)->tabdef = 0;
 
    /* Read the SOI marker. */
    if((ret = getc_marker_wsq(&marker, SOI_WSQ, &cbufptr, ebufptr))){
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&ctx->dtt_table);
       LOGE("error reading SOI marker (%d)", ret);
       return(ret);
    }
 
    /* Read in supporting tables up to the SOF marker. */
    if((ret = getc_marker_wsq(&marker, TBLS_N_SOF, &cbufptr, ebufptr))){
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&ctx->dtt_table);
       LOGE("error reading supporting tables (%d)", ret);
       return(ret);
    }
    while(marker != SOF_WSQ) {
-      if((ret = getc_table_wsq(marker, &dtt_table, &dqt_table, dht_table,
-                          &cbufptr, ebufptr))){
-         free_wsq_decoder_resources();
+      if((ret = getc_table_wsq(marker, &ctx->dtt_table, &ctx->dqt_table,
+                          ctx->dht_table, &cbufptr, ebufptr))){
+         free_wsq_decoder_resources(&ctx->dtt_table);
          LOGE("error in getc_table_wsq (%d)", ret);
          return(ret);
       }
       if((ret = getc_marker_wsq(&marker, TBLS_N_SOF, &cbufptr, ebufptr))){
-         free_wsq_decoder_resources();
+         free_wsq_decoder_resources(&ctx->dtt_table);
          LOGE("error in getc_marker_wsq (%d)", ret);
          return(ret);
       }
    }
 
    /* Read in the Frame Header. */
-   if((ret = getc_frame_header_wsq(&frm_header_wsq, &cbufptr, ebufptr))){
-      free_wsq_decoder_resources();
+   if((ret = getc_frame_header_wsq(&ctx->frm_header_wsq, &cbufptr, ebufptr))){
+      free_wsq_decoder_resources(&ctx->dtt_table);
          LOGE("error reading frame header (%d)", ret);
       return(ret);
    }
-   width = frm_header_wsq.width;
-   height = frm_header_wsq.height;
+   width = ctx->frm_header_wsq.width;
+   height = ctx->frm_header_wsq.height;
    num_pix = width * height;
 
    if((ret = getc_ppi_wsq(&ppi, idata, ilen))){
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&ctx->dtt_table);
       LOGE("error in getc_ppi_wsq (%d)", ret);
       return(ret);
    }
@@ -167,24 +304,37 @@ int wsq_decode_mem(unsigned char **odata, int *ow, int *oh, int *od, int *oppi,
       fprintf(stderr, "SOI, tables, and frame header read\n\n");
 
    /* Build WSQ decomposition trees. */
-   build_wsq_trees(w_tree, W_TREELEN, q_tree, Q_TREELEN, width, height);
+   build_wsq_trees(ctx->w_tree, W_TREELEN, ctx->q_tree, Q_TREELEN,
+                   width, height);
 
    if(debug > 0)
       fprintf(stderr, "Tables for wavelet decomposition finished\n\n");
 
+   /* Size of the reduced image and the last block holding its subbands. */
+   root = scaled_root_node[levels];
+   owidth = ctx->w_tree[root].lenx;
+   oheight = ctx->w_tree[root].leny;
+   nblks = 1;
+   for(i = 0; i < NUM_SUBBANDS; i++) {
+      if(ctx->q_tree[i].x + ctx->q_tree[i].lenx <= owidth &&
+         ctx->q_tree[i].y + ctx->q_tree[i].leny <= oheight)
+         nblks = (i >= STRT_SUBBAND_3) ? 3 : ((i >= STRT_SUBBAND_2) ? 2 : 1);
+   }
+
    /* Allocate working memory. */
-   qdata = (short *) malloc(num_pix * sizeof(short));
+   qdata = (short *) wsq_arena_alloc(ctx->arena, WSQ_ARENA_QDATA,
+                                     num_pix * sizeof(short));
    if(qdata == (short *)NULL) {
-      fprintf(stderr,"ERROR: wsq_decode_mem : malloc : qdata1\n");
-      free_wsq_decoder_resources();
+      fprintf(stderr,"ERROR: wsq_decode_flt_mem : malloc : qdata1\n");
+      free_wsq_decoder_resources(&ctx->dtt_table);
       LOGE("error allocating memory for qdata (%d bytes)", num_pix * sizeof(short));
       return(-20);
    }
    /* Decode the Huffman encoded data blocks. */
-   if((ret = huffman_decode_data_mem(qdata, &dtt_table, &dqt_table, dht_table,
-                                    &cbufptr, ebufptr))){
-      free(qdata);
-      free_wsq_decoder_resources();
+   if((ret = huffman_decode_blocks_mem(ctx, qdata, &cbufptr, ebufptr,
+                                       nblks))){
+      wsq_arena_release(ctx->arena, qdata);
+      free_wsq_decoder_resources(&ctx->dtt_table);
       LOGE("error in huffman_decode_data_mem (%d)", ret);
       return(ret);
    }
@@ -193,11 +343,19 @@ int wsq_decode_mem(unsigned char **odata, int *ow, int *oh, int *od, int *oppi,
       fprintf(stderr,
          "Quantized WSQ subband data blocks read and Huffman decoded\n\n");
 
+   /* Stop before the costly stages if the caller gave up on the image. */
+   if(ctx->cancel != (const volatile int *)NULL && *ctx->cancel){
+      wsq_arena_release(ctx->arena, qdata);
+      free_wsq_decoder_resources(&ctx->dtt_table);
+      return(WSQ_CANCELLED);
+   }
+
    /* Decode the quantize wavelet subband data. */
-   if((ret = unquantize(&fdata, &dqt_table, q_tree, Q_TREELEN,
-                         qdata, width, height))){
-      free(qdata);
-      free_wsq_decoder_resources();
+   if((ret = unquantize_arena(&fdata, &ctx->dqt_table, ctx->q_tree,
+                         Q_TREELEN, qdata, owidth, oheight, ctx->arena,
+                         WSQ_ARENA_FDATA))){
+      wsq_arena_release(ctx->arena, qdata);
+      free_wsq_decoder_resources(&ctx->dtt_table);
       LOGE("error in unquantize (%d)", ret);
       return(ret);
    }
@@ -206,47 +364,37 @@ int wsq_decode_mem(unsigned char **odata, int *ow, int *oh, int *od, int *oppi,
       fprintf(stderr, "WSQ subband data blocks unquantized\n\n");
 
    /* Done with quantized wavelet subband data. */
-   free(qdata);
+   wsq_arena_release(ctx->arena, qdata);
 
-   if((ret = wsq_reconstruct(fdata, width, height, w_tree, W_TREELEN,
-                              &dtt_table))){
-      free(fdata);
-      free_wsq_decoder_resources();
+   if((ret = wsq_reconstruct_par(fdata, owidth, oheight, ctx->w_tree,
+                              W_TREELEN, &ctx->dtt_table, ctx->parallelism,
+                              ctx->arena))){
+      wsq_arena_release(ctx->arena, fdata);
+      free_wsq_decoder_resources(&ctx->dtt_table);
       LOGE("error in wsq_reconstruct (%d)", ret);
       return(ret);
    }
 
-   if(debug > 0)
-      fprintf(stderr, "WSQ reconstruction of image finished\n\n");
-
-   cdata = (unsigned char *)malloc(num_pix * sizeof(unsigned char));
-   if(cdata == (unsigned char *)NULL) {
-      free(fdata);
-      free_wsq_decoder_resources();
-      LOGE("error allocating memory for cdata (%d bytes)", num_pix * sizeof(unsigned char));
-      return(-21);
+   /* Nor convert the pixels of a cancelled image. */
+   if(ctx->cancel != (const volatile int *)NULL && *ctx->cancel){
+      wsq_arena_release(ctx->arena, fdata);
+      free_wsq_decoder_resources(&ctx->dtt_table);
+      return(WSQ_CANCELLED);
    }
 
-   /* Convert floating point pixels to unsigned char pixels. */
-   conv_img_2_uchar(cdata, fdata, width, height,
-                      frm_header_wsq.m_shift, frm_header_wsq.r_scale);
-
-   /* Done with floating point pixels. */
-   free(fdata);
-
-   /* Added by MDG on 02-24-05 */
-   free_wsq_decoder_resources();
+   /* Each skipped level leaves a lowpass gain of 2 (sqrt(2) per axis). */
+   ctx->frm_header_wsq.r_scale /= (float)(1 << levels);
 
    if(debug > 0)
-      fprintf(stderr, "Doubleing point pixels converted to unsigned char\n\n");
+      fprintf(stderr, "WSQ reconstruction of image finished\n\n");
 
-   /* Assign reconstructed pixmap and attributes to output pointers. */
-   *odata = cdata;
-   *ow = width;
-   *oh = height;
-   *od = 8;
+   /* Done with the transform table. */
+   free_wsq_decoder_resources(&ctx->dtt_table);
+
+   *ofdata = fdata;
+   *ow = owidth;
+   *oh = oheight;
    *oppi = ppi;
-   *lossyflag = 1;
 
    /* Return normally. */
    return(0);
@@ -268,33 +416,33 @@ int wsq_decode_file(unsigned char **odata, int *ow, int *oh, int *od, int *oppi,
    short *qdata;                  /* image pointers */
 
    /* Added by MDG on 02-24-05 */
-   init_wsq_decoder_resources();
+   init_wsq_decoder_resources(&dtt_table);
 
    /* Read the SOI marker. */
    if((ret = read_marker_wsq(&marker, SOI_WSQ, infp))){
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&dtt_table);
       return(ret);
    }
 
    /* Read in supporting tables up to the SOF marker. */
    if((ret = read_marker_wsq(&marker, TBLS_N_SOF, infp))){
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&dtt_table);
       return(ret);
    }
    while(marker != SOF_WSQ) {
       if((ret = read_table_wsq(marker, &dtt_table, &dqt_table, dht_table, infp))){
-         free_wsq_decoder_resources();
+         free_wsq_decoder_resources(&dtt_table);
          return(ret);
       }
       if((ret = read_marker_wsq(&marker, TBLS_N_SOF, infp))){
-         free_wsq_decoder_resources();
+         free_wsq_decoder_resources(&dtt_table);
          return(ret);
       }
    }
 
    /* Read in the Frame Header. */
    if((ret = read_frame_header_wsq(&frm_header_wsq, infp))){
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&dtt_table);
       return(ret);
    }
    width = frm_header_wsq.width;
@@ -302,7 +450,7 @@ int wsq_decode_file(unsigned char **odata, int *ow, int *oh, int *od, int *oppi,
    num_pix = width * height;
 
    if((ret = read_ppi_wsq(&ppi, infp))){
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&dtt_table);
       return(ret);
    }
 
@@ -318,7 +466,7 @@ int wsq_decode_file(unsigned char **odata, int *ow, int *oh, int *od, int *oppi,
    /* Allocate working memory. */
    qdata = (short *) malloc(num_pix * sizeof(short));
    if(qdata == (short *)NULL) {
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&dtt_table);
       fprintf(stderr,"ERROR: wsq_decode_file : malloc : qdata1\n");
       return(-20);
    }
@@ -327,7 +475,7 @@ int wsq_decode_file(unsigned char **odata, int *ow, int *oh, int *od, int *oppi,
    if((ret = huffman_decode_data_file(qdata, &dtt_table, &dqt_table, dht_table,
                                      infp))){
       free(qdata);
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&dtt_table);
       return(ret);
    }
 
@@ -339,7 +487,7 @@ int wsq_decode_file(unsigned char **odata, int *ow, int *oh, int *od, int *oppi,
    if((ret = unquantize(&fdata, &dqt_table, q_tree, Q_TREELEN,
                          qdata, width, height))){
       free(qdata);
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&dtt_table);
       return(ret);
    }
 
@@ -352,7 +500,7 @@ int wsq_decode_file(unsigned char **odata, int *ow, int *oh, int *od, int *oppi,
    if((ret = wsq_reconstruct(fdata, width, height, w_tree, W_TREELEN,
                               &dtt_table))){
       free(fdata);
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&dtt_table);
       return(ret);
    }
 
@@ -362,7 +510,7 @@ int wsq_decode_file(unsigned char **odata, int *ow, int *oh, int *od, int *oppi,
    cdata = (unsigned char *)malloc(num_pix * sizeof(unsigned char));
    if(cdata == (unsigned char *)NULL) {
       free(fdata);
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&dtt_table);
       fprintf(stderr,"ERROR: wsq_decode_file : malloc : cdata\n");
       return(-21);
    }
@@ -375,7 +523,7 @@ int wsq_decode_file(unsigned char **odata, int *ow, int *oh, int *od, int *oppi,
    free(fdata);
 
    /* Added by MDG on 02-24-05 */
-   free_wsq_decoder_resources();
+   free_wsq_decoder_resources(&dtt_table);
 
    if(debug > 0)
       fprintf(stderr, "Doubleing point pixels converted to unsigned char\n\n");
@@ -397,101 +545,183 @@ int wsq_decode_file(unsigned char **odata, int *ow, int *oh, int *od, int *oppi,
 /* Routine to decode an entire "block" of encoded data from memory buffer. */
 /***************************************************************************/
 int huffman_decode_data_mem(
+   WSQ_CONTEXT *ctx,        /* codec context holding the decoder tables */
    short *ip,               /* image pointer */
-   DTT_TABLE *dtt_table,    /*transform table pointer */
-   DQT_TABLE *dqt_table,    /* quantization table */
-   DHT_TABLE *dht_table,    /* huffman table */
    unsigned char **cbufptr, /* points to current byte in input buffer */
    unsigned char *ebufptr)  /* points to end of input buffer */
+{
+   return(huffman_decode_blocks_mem(ctx, ip, cbufptr, ebufptr, 0));
+}
+
+/***************************************************************************/
+/* Routine to decode the first max_blks "blocks" of encoded data from a    */
+/* memory buffer, or all of them if max_blks is 0.  Decoding stops at the  */
+/* start of the next block, the rest of the buffer is not read.            */
+/***************************************************************************/
+int huffman_decode_blocks_mem(
+   WSQ_CONTEXT *ctx,        /* codec context holding the decoder tables */
+   short *ip,               /* image pointer */
+   unsigned char **cbufptr, /* points to current byte in input buffer */
+   unsigned char *ebufptr,  /* points to end of input buffer */
+   const int max_blks)      /* number of blocks to decode, 0 for all */
 {
    int ret;
+   DTT_TABLE *dtt_table = &ctx->dtt_table;  /* transform table pointer */
+   DQT_TABLE *dqt_table = &ctx->dqt_table;  /* quantization table */
+   DHT_TABLE *dht_table = ctx->dht_table;   /* huffman table */
    int blk = 0;           /* block number */
    unsigned short marker; /* WSQ markers */
-   int bit_count;         /* bit count for getc_nextbits_wsq routine */
-   int n;                 /* zero run count */
-   int nodeptr;           /* pointers for decoding */
-   int last_size;         /* last huffvalue */
+   HUFF_READER reader;    /* bit reservoir over the input buffer */
+   HUFF_TABLES tables;    /* decoding tables of the current block */
+   int n;                 /* subband counter */
    unsigned char hufftable_id;    /* huffman table number */
-   HUFFCODE *hufftable;   /* huffman code structure */
-   int maxcode[MAX_HUFFBITS+1]; /* used in decoding data */
-   int mincode[MAX_HUFFBITS+1]; /* used in decoding data */
-   int valptr[MAX_HUFFBITS+1];  /* used in decoding data */
-   unsigned short tbits;
    int ipc, ipc_mx, ipc_q;   /* image byte count adjustment parameters */
 
 
+   /* Blocks found by a marker scan can be decoded concurrently; */
+   /* anything unusual is left to the sequential decoder below.  */
+   if(ctx->parallelism > 1 && wsq_max_parallelism() > 1 &&
+      !huffman_decode_blocks_par(ctx, ip, cbufptr, ebufptr, max_blks))
+      return(0);
+
    if((ret = getc_marker_wsq(&marker, TBLS_N_SOB, cbufptr, ebufptr)))
       return(ret);
 
-   bit_count = 0;
    ipc = 0;
    ipc_q = 0;
-   ipc_mx = frm_header_wsq.width * frm_header_wsq.height;
+   ipc_mx = ctx->frm_header_wsq.width * ctx->frm_header_wsq.height;
 
    while(marker != EOI_WSQ) {
+      blk++;
+      if(max_blks > 0 && blk > max_blks)
+         return(0);
+      while(marker != SOB_WSQ) {
+         if((ret = getc_table_wsq(marker, dtt_table, dqt_table,
+                             dht_table, cbufptr, ebufptr)))
+            return(ret);
+         if((ret = getc_marker_wsq(&marker, TBLS_N_SOB, cbufptr, ebufptr)))
+            return(ret);
+      }
+      if(dqt_table->dqt_def && !ipc_q) {
+         for(n = 0; n < 64; n++)
+            if(dqt_table->q_bin[n] == 0.0)
+               ipc_mx -= ctx->q_tree[n].lenx*ctx->q_tree[n].leny;
 
-      if(marker != 0) {
-         blk++;
-         while(marker != SOB_WSQ) {
-            if((ret = getc_table_wsq(marker, dtt_table, dqt_table,
-                                dht_table, cbufptr, ebufptr)))
-               return(ret);
-            if((ret = getc_marker_wsq(&marker, TBLS_N_SOB, cbufptr, ebufptr)))
-               return(ret);
-         }
-         if(dqt_table->dqt_def && !ipc_q) {
-            for(n = 0; n < 64; n++)
-               if(dqt_table->q_bin[n] == 0.0)
-                  ipc_mx -= q_tree[n].lenx*q_tree[n].leny;
+         ipc_q = 1;
+      }
+      if((ret = getc_block_header(&hufftable_id, cbufptr, ebufptr)))
+         return(ret);
 
-            ipc_q = 1;
-         }
-         if((ret = getc_block_header(&hufftable_id, cbufptr, ebufptr)))
-            return(ret);
+      if(hufftable_id >= MAX_DHT_TABLES ||
+         (dht_table+hufftable_id)->tabdef != 1) {
+         fprintf(stderr, "ERROR : huffman_decode_data_mem : ");
+         fprintf(stderr, "huffman table {%d} undefined.\n", hufftable_id);
+         return(-51);
+      }
 
-         if((dht_table+hufftable_id)->tabdef != 1) {
-            fprintf(stderr, "ERROR : huffman_decode_data_mem : ");
-            fprintf(stderr, "huffman table {%d} undefined.\n", hufftable_id);
-            return(-51);
-         }
+      if((ret = build_huff_tables(&tables, dht_table+hufftable_id,
+                                  hufftable_id)))
+         return(ret);
 
-         /* the next two routines reconstruct the huffman tables */
-         if((ret = build_huffsizes(&hufftable, &last_size,
-                                  (dht_table+hufftable_id)->huffbits,
-                                  MAX_HUFFCOUNTS_WSQ)))
-            return(ret);
+      /* the block data starts on a byte boundary */
+      reader.bits = 0;
+      reader.nbits = 0;
+      reader.cptr = *cbufptr;
+      reader.eptr = ebufptr;
+      reader.stop = 0;
 
-         build_huffcodes(hufftable);
-         if((ret = check_huffcodes_wsq(hufftable, last_size)))
-            fprintf(stderr, "         hufftable_id = %d\n", hufftable_id);
+      if((ret = decode_huff_block(&reader, &tables, &ip, &ipc, ipc_mx, ipc_mx,
+                                  &marker)))
+         return(ret);
 
-         /* this routine builds a set of three tables used in decoding */
-         /* the compressed data*/
-         gen_decode_table(hufftable, maxcode, mincode, valptr,
-                          (dht_table+hufftable_id)->huffbits);
-         free(hufftable);
-         bit_count = 0;
-         marker = 0;
+      /* the reader stopped right after the marker */
+      *cbufptr = reader.cptr;
+      while(marker == COM_WSQ && blk == 3) {
+         if((ret = getc_table_wsq(marker, dtt_table, dqt_table,
+                             dht_table, cbufptr, ebufptr)))
+            return(ret);
+         if((ret = getc_marker_wsq(&marker, ANY_WSQ, cbufptr, ebufptr)))
+            return(ret);
       }
+   }
+
+   return(0);
+}
+
+/***************************************************************************/
+/* Routine to build the decoding tables of a block from its DHT table.     */
+/* Tables built from the same DHT content before are copied from the       */
+/* cache; the warning about non-compliant codes is only printed when a     */
+/* table is built.                                                         */
+/***************************************************************************/
+static int build_huff_tables(
+   HUFF_TABLES *tables,         /* returned decoding tables */
+   DHT_TABLE *dht,              /* huffman table of the block */
+   const int hufftable_id)      /* its number, for the messages */
+{
+   int ret;
+   int last_size;         /* last huffvalue */
+   HUFFCODE *hufftable;   /* huffman code structure */
+
+   if(get_cached_huff_tables(tables, dht))
+      return(0);
+
+   /* the next two routines reconstruct the huffman tables */
+   if((ret = build_huffsizes(&hufftable, &last_size, dht->huffbits,
+                            MAX_HUFFCOUNTS_WSQ)))
+      return(ret);
+
+   build_huffcodes(hufftable);
+   if((ret = check_huffcodes_wsq(hufftable, last_size)))
+      fprintf(stderr, "         hufftable_id = %d\n", hufftable_id);
+
+   /* this routine builds a set of three tables used in decoding */
+   /* the compressed data*/
+   gen_decode_table(hufftable, tables->maxcode, tables->mincode,
+                    tables->valptr, dht->huffbits);
+   free(hufftable);
+   tables->huffvalues = dht->huffvalues;
+   build_huff_lookahead(tables->lookahead, tables->maxcode, tables->mincode,
+                        tables->valptr, tables->huffvalues);
+   put_cached_huff_tables(tables, dht);
+   return(0);
+}
+
+/***************************************************************************/
+/* Routine to decode the data of one block up to the marker that ends it.  */
+/* ip and ipc are advanced over the decoded coefficients.  A code is only  */
+/* decoded while ipc <= code_mx, and ipc may not pass ipc_mx.              */
+/***************************************************************************/
+static int decode_huff_block(
+   HUFF_READER *reader,         /* bit reservoir at the start of the data */
+   HUFF_TABLES *tables,         /* decoding tables of the block */
+   short **oip,                 /* image pointer */
+   int *oipc,                   /* image coefficient count */
+   const int code_mx,           /* last count at which a code is decoded */
+   const int ipc_mx,            /* maximum count */
+   unsigned short *marker)      /* returned marker ending the block */
+{
+   int ret;
+   int nodeptr;           /* pointers for decoding */
+   unsigned short tbits;
+   short *ip = *oip;
+   int ipc = *oipc;
 
+   while(1) {
       /* get next huffman category code from compressed input data stream */
-      if((ret = decode_data_mem(&nodeptr, mincode, maxcode, valptr,
-                            (dht_table+hufftable_id)->huffvalues,
-                            cbufptr, ebufptr, &bit_count, &marker)))
+      if((ret = decode_huff_reader(reader, &nodeptr, tables->lookahead,
+                                   tables->maxcode, tables->mincode,
+                                   tables->valptr, tables->huffvalues,
+                                   marker)))
          return(ret);
 
       if(nodeptr == -1) {
-         while(marker == COM_WSQ && blk == 3) {
-            if((ret = getc_table_wsq(marker, dtt_table, dqt_table,
-                                dht_table, cbufptr, ebufptr)))
-               return(ret);
-            if((ret = getc_marker_wsq(&marker, ANY_WSQ, cbufptr, ebufptr)))
-               return(ret);
-         }
-         continue;
+         *oip = ip;
+         *oipc = ipc;
+         return(0);
       }
 
-      if(ipc > ipc_mx) {
+      if(ipc > code_mx) {
          fprintf(stderr, "ERROR : huffman_decode_data_mem [1]: ");
          fprintf(stderr, "Decoded data extends past image buffer. ");
          fprintf(stderr, "Encoded data appears corrupt or non-standard.\n");
@@ -499,7 +729,11 @@ int huffman_decode_data_mem(
          return(-51);
       }
 
-      if(nodeptr > 0 && nodeptr <= 100) {
+      if(nodeptr > 106 && nodeptr < 0xff) {
+         *ip++ = nodeptr - 180;
+         ipc++;
+      }
+      else if(nodeptr > 0 && nodeptr <= 100) {
          ipc += nodeptr;
          if(ipc > ipc_mx) {
             fprintf(stderr, "ERROR : huffman_decode_data_mem [2]: ");
@@ -508,44 +742,35 @@ int huffman_decode_data_mem(
             fflush(stderr);
             return(-51);
          }
-         for(n = 0; n < nodeptr; n++)
-            *ip++ = 0; /* z run */
-      }
-      else if(nodeptr > 106 && nodeptr < 0xff) {
-         *ip++ = nodeptr - 180;
-         ipc++;
+         memset(ip, 0, nodeptr * sizeof(short)); /* z run */
+         ip += nodeptr;
       }
       else if(nodeptr == 101){
-         if((ret = getc_nextbits_wsq(&tbits, &marker, cbufptr, ebufptr,
-                                &bit_count, 8)))
+         if((ret = getbits_huff_reader(reader, &tbits, 8)))
             return(ret);
          *ip++ = tbits;
          ipc++;
       }
       else if(nodeptr == 102){
-         if((ret = getc_nextbits_wsq(&tbits, &marker, cbufptr, ebufptr,
-                                &bit_count, 8)))
+         if((ret = getbits_huff_reader(reader, &tbits, 8)))
             return(ret);
          *ip++ = -tbits;
          ipc++;
       }
       else if(nodeptr == 103){
-         if((ret = getc_nextbits_wsq(&tbits, &marker, cbufptr, ebufptr,
-                                &bit_count, 16)))
+         if((ret = getbits_huff_reader(reader, &tbits, 16)))
             return(ret);
          *ip++ = tbits;
          ipc++;
       }
       else if(nodeptr == 104){
-         if((ret = getc_nextbits_wsq(&tbits, &marker, cbufptr, ebufptr,
-                                &bit_count, 16)))
+         if((ret = getbits_huff_reader(reader, &tbits, 16)))
             return(ret);
          *ip++ = -tbits;
          ipc++;
       }
       else if(nodeptr == 105) {
-         if((ret = getc_nextbits_wsq(&tbits, &marker, cbufptr, ebufptr,
-                                &bit_count, 8)))
+         if((ret = getbits_huff_reader(reader, &tbits, 8)))
             return(ret);
          ipc += tbits;
          if(ipc > ipc_mx) {
@@ -555,13 +780,11 @@ int huffman_decode_data_mem(
             fflush(stderr);
             return(-51);
          }
-         n = tbits;
-         while(n--)
-            *ip++ = 0;
+         memset(ip, 0, tbits * sizeof(short));
+         ip += tbits;
       }
       else if(nodeptr == 106) {
-         if((ret = getc_nextbits_wsq(&tbits, &marker, cbufptr, ebufptr,
-                                &bit_count, 16)))
+         if((ret = getbits_huff_reader(reader, &tbits, 16)))
             return(ret);
          ipc += tbits;
          if(ipc > ipc_mx) {
@@ -571,9 +794,8 @@ int huffman_decode_data_mem(
             fflush(stderr);
             return(-51);
          }
-         n = tbits;
-         while(n--)
-            *ip++ = 0;
+         memset(ip, 0, tbits * sizeof(short));
+         ip += tbits;
       }
       else {
          fprintf(stderr, 
@@ -582,7 +804,303 @@ int huffman_decode_data_mem(
          return(-52);
       }
    }
+}
 
+/***************************************************************************/
+/* Routine to find the end of the data of a block: the first 0xFF byte     */
+/* that is not followed by a stuffed zero.  Returns NULL if the buffer     */
+/* ends first.                                                             */
+/***************************************************************************/
+static unsigned char *find_block_end(unsigned char *cptr,
+                   unsigned char *eptr)
+{
+   while(cptr + 1 < eptr) {
+      if((cptr = (unsigned char *)memchr(cptr, 0xFF, eptr - cptr - 1))
+          == NULL)
+         return(NULL);
+      if(cptr[1] != 0x00)
+         return(cptr);
+      cptr += 2;
+   }
+   return(NULL);
+}
+
+static void decode_block_task(void *arg, const int index)
+{
+   DECODE_BLOCK *block = (DECODE_BLOCK *)arg + index;
+   HUFF_TABLES tables;
+   HUFF_READER reader;
+   unsigned short marker;
+   short *ip = block->ip;
+   int ipc = 0;
+
+   if((block->ret = build_huff_tables(&tables, &block->dht,
+                                      block->hufftable_id)))
+      return;
+   reader.bits = 0;
+   reader.nbits = 0;
+   reader.cptr = block->start;
+   reader.eptr = block->end + 2;
+   reader.stop = 0;
+   /* The block may neither write into the next one nor end short. */
+   if((block->ret = decode_huff_block(&reader, &tables, &ip, &ipc,
+                                      block->size - 1, block->size, &marker)))
+      return;
+   if(ipc != block->size)
+      block->ret = -51;
+}
+
+/***************************************************************************/
+/* Routine to decode the blocks like huffman_decode_blocks_mem, but on     */
+/* several threads.  The tables and block headers are read first, and the  */
+/* end of each block's data is found by a scan for the next marker.  The   */
+/* coefficients of each block go to the place the sequential decoder gives */
+/* them, from the subband sizes of the DQT table.  The context is only     */
+/* updated on success.  A non-zero return means the data could not be     */
+/* decoded this way and must be decoded by the sequential routine, e.g.    */
+/* a block not decoding to exactly its subbands or a table in a place the  */
+/* scan does not handle.                                                   */
+/***************************************************************************/
+static int huffman_decode_blocks_par(
+   WSQ_CONTEXT *ctx,        /* codec context holding the decoder tables */
+   short *ip,               /* image pointer */
+   unsigned char **cbufptr, /* points to current byte in input buffer */
+   unsigned char *ebufptr,  /* points to end of input buffer */
+   const int max_blks)      /* number of blocks to decode, 0 for all */
+{
+   static const int first_subband[4] = {0, STRT_SUBBAND_2, STRT_SUBBAND_3,
+                                        NUM_SUBBANDS};
+   DECODE_BLOCK blocks[3];
+   DQT_TABLE dqt_table;     /* tables as they are after the blocks */
+   DHT_TABLE dht_table[MAX_DHT_TABLES];
+   unsigned char *cptr = *cbufptr;
+   unsigned short marker;
+   unsigned char hufftable_id;
+   int blk, n, i, offset, ipc_mx = 0;
+
+   dqt_table = ctx->dqt_table;
+   memcpy(dht_table, ctx->dht_table, sizeof(dht_table));
+
+   if(getc_marker_wsq(&marker, TBLS_N_SOB, &cptr, ebufptr))
+      return(-1);
+
+   blk = 0;
+   offset = 0;
+   while(marker != EOI_WSQ) {
+      if(max_blks > 0 && blk >= max_blks)
+         break;
+      if(blk == 3)
+         return(-1);
+      while(marker != SOB_WSQ) {
+         /* a new transform table would have to be read into ctx */
+         if(marker == DTT_WSQ)
+            return(-1);
+         if(getc_table_wsq(marker, &ctx->dtt_table, &dqt_table, dht_table,
+                           &cptr, ebufptr) ||
+            getc_marker_wsq(&marker, TBLS_N_SOB, &cptr, ebufptr))
+            return(-1);
+      }
+      if(!dqt_table.dqt_def)
+         return(-1);
+      /* the image size less the unused subbands of the first DQT table */
+      if(blk == 0) {
+         ipc_mx = ctx->frm_header_wsq.width * ctx->frm_header_wsq.height;
+         for(n = 0; n < 64; n++)
+            if(dqt_table.q_bin[n] == 0.0)
+               ipc_mx -= ctx->q_tree[n].lenx*ctx->q_tree[n].leny;
+      }
+      if(getc_block_header(&hufftable_id, &cptr, ebufptr) ||
+         hufftable_id >= MAX_DHT_TABLES ||
+         dht_table[hufftable_id].tabdef != 1)
+         return(-1);
+
+      blocks[blk].dht = dht_table[hufftable_id];
+      blocks[blk].hufftable_id = hufftable_id;
+      blocks[blk].start = cptr;
+      blocks[blk].ip = ip + offset;
+      blocks[blk].size = 0;
+      for(n = first_subband[blk]; n < first_subband[blk+1]; n++)
+         if(dqt_table.q_bin[n] != 0.0)
+            blocks[blk].size += ctx->q_tree[n].lenx * ctx->q_tree[n].leny;
+      offset += blocks[blk].size;
+
+      if((blocks[blk].end = find_block_end(cptr, ebufptr)) == NULL)
+         return(-1);
+      cptr = blocks[blk].end + 2;
+      marker = (blocks[blk].end[0] << 8) | blocks[blk].end[1];
+      blk++;
+
+      while(marker == COM_WSQ && blk == 3) {
+         if(getc_table_wsq(marker, &ctx->dtt_table, &dqt_table, dht_table,
+                           &cptr, ebufptr) ||
+            getc_marker_wsq(&marker, ANY_WSQ, &cptr, ebufptr))
+            return(-1);
+      }
+   }
+
+   if(offset > ipc_mx)
+      return(-1);
+
+   wsq_parallel_for(blk, ctx->parallelism, decode_block_task, blocks);
+   for(i = 0; i < blk; i++)
+      if(blocks[i].ret) {
+         /* no partly decoded block is left for the sequential decoder */
+         memset(ip, 0, offset * sizeof(short));
+         return(-1);
+      }
+
+   ctx->dqt_table = dqt_table;
+   memcpy(ctx->dht_table, dht_table, sizeof(dht_table));
+   *cbufptr = cptr;
+   return(0);
+}
+
+/***************************************************************************/
+/* Routine to build the table that decodes the huffman codes of up to      */
+/* HUFF_LOOKAHEAD bits from the next HUFF_LOOKAHEAD bits of the stream.    */
+/* Each entry is the code length in the high byte and the huffman value in */
+/* the low byte, or 0 if the code is longer.  The entries are found with   */
+/* the same maxcode walk as decode_data_mem, so both decode alike.         */
+/***************************************************************************/
+static void build_huff_lookahead(
+   unsigned short *lookahead,   /* returned table, 1 << HUFF_LOOKAHEAD long */
+   int *maxcode,        /* maximum code value for a given code length */
+   int *mincode,        /* minimum code value for a given code length */
+   int *valptr,         /* first code for a given code length */
+   unsigned char *huffvalues)   /* huffman values in code order */
+{
+   int bits, inx, code;
+
+   for(bits = 0; bits < (1 << HUFF_LOOKAHEAD); bits++) {
+      lookahead[bits] = 0;
+      for(inx = 1; inx <= HUFF_LOOKAHEAD; inx++) {
+         code = bits >> (HUFF_LOOKAHEAD - inx);
+         if(code <= maxcode[inx]) {
+            lookahead[bits] = (inx << 8) |
+                              huffvalues[valptr[inx] + code - mincode[inx]];
+            break;
+         }
+      }
+   }
+}
+
+/***************************************************************************/
+/* Routine to refill the bit reservoir from the memory buffer, removing    */
+/* the zero bytes stuffed after 0xFF.  Stops in front of the next marker   */
+/* or at the end of the buffer, the marker itself is left unread.          */
+/***************************************************************************/
+static void fill_huff_reader(HUFF_READER *reader)
+{
+   unsigned char *cptr = reader->cptr;
+
+   while(reader->nbits <= 56) {
+      if(cptr >= reader->eptr) {
+         reader->stop = 1;
+         break;
+      }
+      if(*cptr == 0xFF) {
+         if(cptr + 1 >= reader->eptr || cptr[1] != 0x00) {
+            reader->stop = 1;
+            break;
+         }
+         cptr++;
+         reader->bits |= (unsigned long long)0xFF << (56 - reader->nbits);
+      }
+      else
+         reader->bits |= (unsigned long long)*cptr << (56 - reader->nbits);
+      cptr++;
+      reader->nbits += 8;
+   }
+   reader->cptr = cptr;
+}
+
+/***************************************************************************/
+/* Routine to decode the next huffman code from the bit reservoir.  Codes  */
+/* of up to HUFF_LOOKAHEAD bits are decoded with one table lookup, longer  */
+/* ones with the maxcode walk.  If the data ends before a complete code,   */
+/* the marker that follows it is read and nodeptr is set to -1.            */
+/***************************************************************************/
+static int decode_huff_reader(
+   HUFF_READER *reader, /* bit reservoir over the input buffer */
+   int *onodeptr,       /* returned huffman code category */
+   unsigned short *lookahead,   /* table of the short codes */
+   int *maxcode,        /* maximum code value for a given code length */
+   int *mincode,        /* minimum code value for a given code length */
+   int *valptr,         /* first code for a given code length */
+   unsigned char *huffvalues,   /* huffman values in code order */
+   unsigned short *marker)      /* returned marker */
+{
+   int inx, code, entry;
+
+   if(reader->nbits < MAX_HUFFBITS && !reader->stop)
+      fill_huff_reader(reader);
+
+   entry = lookahead[reader->bits >> (64 - HUFF_LOOKAHEAD)];
+   if(entry != 0) {
+      inx = entry >> 8;
+      if(inx <= reader->nbits) {
+         reader->bits <<= inx;
+         reader->nbits -= inx;
+         *onodeptr = entry & 0xFF;
+         return(0);
+      }
+   }
+   else {
+      for(inx = HUFF_LOOKAHEAD + 1; inx <= MAX_HUFFBITS; inx++) {
+         code = (int)(reader->bits >> (64 - inx));
+         if(code <= maxcode[inx])
+            break;
+      }
+      if(inx <= reader->nbits) {
+         if(inx > MAX_HUFFBITS) {
+            fprintf(stderr,
+                    "ERROR: huffman_decode_data_mem : Invalid code.\n");
+            return(-52);
+         }
+         reader->bits <<= inx;
+         reader->nbits -= inx;
+         *onodeptr = huffvalues[valptr[inx] + code - mincode[inx]];
+         return(0);
+      }
+   }
+
+   /* No complete code before the marker, the rest is padding. */
+   if(reader->cptr + 1 >= reader->eptr) {
+      fprintf(stderr, "ERROR : getc_byte : premature End Of Buffer\n");
+      return(-39);
+   }
+   *marker = (reader->cptr[0] << 8) | reader->cptr[1];
+   reader->cptr += 2;
+   reader->bits = 0;
+   reader->nbits = 0;
+   *onodeptr = -1;
+   return(0);
+}
+
+/***************************************************************************/
+/* Routine to get the next bits_req bits from the bit reservoir.           */
+/***************************************************************************/
+static int getbits_huff_reader(
+   HUFF_READER *reader,         /* bit reservoir over the input buffer */
+   unsigned short *obits,       /* returned bits */
+   const int bits_req)          /* number of bits requested, up to 16 */
+{
+   if(reader->nbits < bits_req) {
+      if(!reader->stop)
+         fill_huff_reader(reader);
+      if(reader->nbits < bits_req) {
+         if(reader->cptr + 1 >= reader->eptr) {
+            fprintf(stderr, "ERROR : getc_byte : premature End Of Buffer\n");
+            return(-39);
+         }
+         fprintf(stderr, "ERROR: getc_nextbits_wsq : No stuffed zeros\n");
+         return(-41);
+      }
+   }
+
+   *obits = (unsigned short)(reader->bits >> (64 - bits_req));
+   reader->bits <<= bits_req;
+   reader->nbits -= bits_req;
    return(0);
 }
 
@@ -725,6 +1243,7 @@ int huffman_decode_data_file(
 /* Routine to decode the encoded data from memory buffer. */
 /**********************************************************/
 int decode_data_mem(
+   WSQ_CONTEXT *ctx,    /* codec context holding the bit reader state */
    int *onodeptr,       /* returned huffman code category        */
    int *mincode,        /* points to minimum code value for      */
                         /*    a given code length                */
@@ -744,7 +1263,7 @@ int decode_data_mem(
    unsigned short code, tbits;  /* becomes a huffman code word
                                    (one bit at a time)*/
 
-   if((ret = getc_nextbits_wsq(&code, marker, cbufptr, ebufptr, bit_count, 1)))
+   if((ret = getc_nextbits_wsq(ctx, &code, marker, cbufptr, ebufptr, bit_count, 1)))
       return(ret);
 
    if(*marker != 0){
@@ -753,7 +1272,7 @@ int decode_data_mem(
    }
 
    for(inx = 1; (int)code > maxcode[inx]; inx++) {
-      if((ret = getc_nextbits_wsq(&tbits, marker, cbufptr, ebufptr, bit_count, 1)))
+      if((ret = getc_nextbits_wsq(ctx, &tbits, marker, cbufptr, ebufptr, bit_count, 1)))
          return(ret);
 
       code = (code << 1) + tbits;
@@ -875,6 +1394,7 @@ int nextbits_wsq(
 /* Routine to get nextbit(s) of data stream from memory buffer. */
 /****************************************************************/
 int getc_nextbits_wsq(
+   WSQ_CONTEXT *ctx,            /* holds the current and stuffed bytes */
    unsigned short *obits,       /* returned bits */
    unsigned short *marker,      /* returned marker */
    unsigned char **cbufptr,     /* points to current byte in input buffer */
@@ -883,8 +1403,6 @@ int getc_nextbits_wsq(
    const int bits_req)  /* number of bits requested */
 {
    int ret;
-   static unsigned char code;   /*next byte of data*/
-   static unsigned char code2;  /*stuffed byte of data*/
    unsigned short bits, tbits;  /*bits of current data byte requested*/
    int bits_needed;     /*additional bits required to finish request*/
 
@@ -893,35 +1411,35 @@ int getc_nextbits_wsq(
    static unsigned char bit_mask[9] = {0x00,0x01,0x03,0x07,0x0f,
                                        0x1f,0x3f,0x7f,0xff};
    if(*bit_count == 0) {
-      if((ret = getc_byte(&code, cbufptr, ebufptr))){
+      if((ret = getc_byte(&ctx->code, cbufptr, ebufptr))){
          return(ret);
       }
       *bit_count = 8;
-      if(code == 0xFF) {
-         if((ret = getc_byte(&code2, cbufptr, ebufptr))){
+      if(ctx->code == 0xFF) {
+         if((ret = getc_byte(&ctx->code2, cbufptr, ebufptr))){
             return(ret);
          }
-         if(code2 != 0x00 && bits_req == 1) {
-            *marker = (code << 8) | code2;
+         if(ctx->code2 != 0x00 && bits_req == 1) {
+            *marker = (ctx->code << 8) | ctx->code2;
             *obits = 1;
             return(0);
          }
-         if(code2 != 0x00) {
+         if(ctx->code2 != 0x00) {
             fprintf(stderr, "ERROR: getc_nextbits_wsq : No stuffed zeros\n");
             return(-41);
          }
       }
    }
    if(bits_req <= *bit_count) {
-      bits = (code >>(*bit_count - bits_req)) & (bit_mask[bits_req]);
+      bits = (ctx->code >>(*bit_count - bits_req)) & (bit_mask[bits_req]);
       *bit_count -= bits_req;
-      code &= bit_mask[*bit_count];
+      ctx->code &= bit_mask[*bit_count];
    }
    else {
       bits_needed = bits_req - *bit_count;
-      bits = code << bits_needed;
+      bits = ctx->code << bits_needed;
       *bit_count = 0;
-      if((ret = getc_nextbits_wsq(&tbits, (unsigned short *)NULL, cbufptr,
+      if((ret = getc_nextbits_wsq(ctx, &tbits, (unsigned short *)NULL, cbufptr,
                              ebufptr, bit_count, bits_needed)))
          return(ret);
       bits |= tbits;
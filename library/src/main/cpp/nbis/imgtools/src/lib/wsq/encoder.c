@@ -58,72 +58,377 @@ of the software.
       ROUTINES:
 #cat: wsq_encode_mem - WSQ encodes image data storing the compressed
 #cat:                   bytes to a memory buffer.
+#cat: wsq_encode_into_mem - WSQ encodes image data storing the compressed
+#cat:                   bytes to a caller supplied memory buffer.
+#cat: wsq_encode_flt_into_mem - WSQ encodes an already shifted and scaled
+#cat:                   floating point image to a caller supplied buffer.
+#cat: wsq_encode_to_sink - WSQ encodes image data passing the compressed
+#cat:                   bytes to a sink as they are produced.
+#cat: wsq_encode_flt_to_sink - WSQ encodes an already shifted and scaled
+#cat:                   floating point image passing the compressed bytes
+#cat:                   to a sink as they are produced.
+#cat: wsq_encode_target_mem - WSQ encodes image data at the bitrate
+#cat:                   meeting a size or PSNR target.
+#cat: wsq_encode_flt_target_mem - WSQ encodes an already shifted and
+#cat:                   scaled floating point image at the bitrate
+#cat:                   meeting a size or PSNR target.
+#cat: wsq_encode_multi_mem - WSQ encodes image data at several bitrates
+#cat:                   from one wavelet decomposition.
+#cat: wsq_encode_flt_multi_mem - WSQ encodes an already shifted and
+#cat:                   scaled floating point image at several bitrates.
+#cat: wsq_transcode_mem - Requantizes WSQ compressed data at another
+#cat:                   bitrate in the subband domain.
+#cat: quantize_blocks - Quantizes a decomposed image into its blocks.
+#cat:
+#cat: put_wsq_header - Writes the header segments of an image.
+#cat:
+#cat: code_blocks_to_sink - Huffman codes a quantized image to a sink.
+#cat:
+#cat: code_blocks_after_header - Huffman codes the blocks of a quantized
+#cat:                   image after its header segments.
+#cat: put_transcoded_header - Writes the header segments of a
+#cat:                   requantized image.
+#cat: estimate_coded_size - Computes the coded size of a quantized
+#cat:                   image without coding it.
+#cat: reconstruction_error - Computes the squared error of the image
+#cat:                   the decoder reconstructs from a quantized image.
+#cat: encode_blocks_par - Builds the huffman tables and codes the three
+#cat:                   blocks on several threads.
+#cat: grow_sink_write - Sink appending to a growing memory buffer.
+#cat:
 #cat: gen_hufftable_wsq - Generates a huffman table for a quantized
 #cat:                   data block.
 #cat: compress_block - Codes a quantized image using huffman tables.
 #cat:
+#cat: compress_block_sink - Codes a quantized image using huffman tables,
+#cat:                   passing the output to a sink in chunks.
+#cat: put_huff_word - Writes 32 accumulated bits to a memory buffer.
+#cat:
+#cat: put_huff_byte - Writes one byte to a memory buffer with stuffing.
+#cat:
+#cat: put_huff_bits - Appends bits to the huffman bit accumulator.
+#cat:
+#cat: put_huff_code - Appends a packed huffman code to the accumulator.
+#cat:
+#cat: put_huff_escape - Appends an escape code and its value bits.
+#cat:
+#cat: flush_huff_writer - Writes the bits left in the accumulator.
+#cat:
 #cat: count_block - Counts the number of occurrences of each category
 #cat:                   in a huffman table.
+#cat: add_block_counts - Adds the categories of a block to existing
+#cat:                   counts.
 
 ***********************************************************************/
 
 #include <stdio.h>
+#include <string.h>
+#include <limits.h>
+#include <math.h>
 #include <wsq.h>
 #include <dataio.h>
 
+/* Output buffer of the sink encoder: one chunk of compressed block data, */
+/* plus room for the header segments without the comment text.            */
+#define SINK_CHUNK_SIZE   (16 * 1024)
+#define SINK_HEADER_SIZE  2048
+/* Room kept in a chunk for the codes of one coefficient. */
+#define MAX_BLOCK_WRITE   32
+
+/* State of the memory buffer sink. */
+typedef struct mem_sink {
+   unsigned char *data;
+   int alloc;
+   int len;
+} MEM_SINK;
+
+/* The bitrate of a target encode is searched between the maximum  */
+/* bitrate and the maximum divided by TARGET_RANGE, to a relative   */
+/* precision of TARGET_PRECISION.                                   */
+#define TARGET_RANGE        64.0
+#define TARGET_PRECISION    0.01
+#define MAX_TARGET_STEPS    16
+/* Times the bitrate is lowered if the image is larger than estimated. */
+#define MAX_TARGET_RETRIES  8
+
+/* Memory buffer sink of a target encode. */
+typedef struct target_sink {
+   MEM_SINK mem;
+   int full;                  /* a write did not fit */
+} TARGET_SINK;
+
+/* State of the bitrate search of a target encode. */
+typedef struct target_search {
+   WSQ_CONTEXT *ctx;
+   float *fdata;              /* decomposed image */
+   float m_shift, r_scale;
+   int w, h, d, ppi;
+   char *comment_text;
+   int max_bytes;             /* size target, or 0 */
+   unsigned char *buf;        /* header segments of a size estimate */
+   int buf_alloc;
+   double max_sqerr;          /* squared error at the PSNR target */
+   unsigned char *ref;        /* original pixels for a PSNR target */
+   DTT_TABLE dtt_table;       /* transform table as decoded */
+   float dec_m_shift, dec_r_scale;  /* shift and scale as decoded */
+} TARGET_SEARCH;
+
+/* Bit accumulator of the huffman coder.  The last nacc bits of acc */
+/* are not yet in the output buffer.                                */
+typedef struct huff_writer {
+   unsigned long long acc;
+   int nacc;
+   unsigned char *optr;       /* next byte of the output buffer */
+   int bytes;                 /* bytes written, stuffing included */
+} HUFF_WRITER;
+
+/* Huffman table of one or two quantized blocks, built by a task. */
+typedef struct block_table {
+   short *sip;
+   int block_sizes[2];
+   int num_sizes;
+   HUFFCODE *hufftable;
+   unsigned char *huffbits;
+   unsigned char *huffvalues;
+   int ret;
+} BLOCK_TABLE;
+
+/* One quantized block, Huffman coded into memory by a task. */
+typedef struct coded_block {
+   short *sip;
+   int size;
+   HUFFCODE *hufftable;
+   MEM_SINK out;
+   int hsize;
+   int ret;
+} CODED_BLOCK;
+
+static int mem_sink_write(void *, unsigned char *, const int);
+static int flush_to_sink(WSQ_SINK *, unsigned char *, int *, int *);
+static void put_huff_word(HUFF_WRITER *, const unsigned int);
+static void put_huff_byte(HUFF_WRITER *, const unsigned char);
+static void put_huff_bits(HUFF_WRITER *, const unsigned int, const int);
+static void put_huff_code(HUFF_WRITER *, const unsigned int);
+static void put_huff_escape(HUFF_WRITER *, const unsigned int,
+                 const unsigned int, const int);
+static void flush_huff_writer(HUFF_WRITER *);
+static void add_block_counts(int *, short *, const int, const int, const int);
+static int grow_sink_write(void *, unsigned char *, const int);
+static void block_table_task(void *, const int);
+static void coded_block_task(void *, const int);
+static int encode_blocks_par(const int, WSQ_ARENA *, WSQ_SINK *, int *,
+                 unsigned char *, const int, int, int, short *, const int,
+                 const int, const int);
+static int quantize_blocks(WSQ_CONTEXT *, short **, int *, float *,
+                 const int, const int);
+static int put_wsq_header(WSQ_CONTEXT *, unsigned char *, const int, int *,
+                 const float, const float, const float, const int, const int,
+                 const int, const int, char *);
+static int code_blocks_after_header(WSQ_CONTEXT *, WSQ_SINK *, int *,
+                   unsigned char *, const int, int, int, const float, short *,
+                   const int *, const int);
+static int code_blocks_to_sink(WSQ_CONTEXT *, WSQ_SINK *, int *, const float,
+                 short *, const int *, const float, const float, const int,
+                 const int, const int, const int, char *);
+static int put_transcoded_header(WSQ_CONTEXT *, WSQ_SINK *, int *,
+                 unsigned char *, const int, const float, const int, const int,
+                 const int);
+static int init_target_search(TARGET_SEARCH *, const double);
+static void free_target_search(TARGET_SEARCH *);
+static int meets_target(TARGET_SEARCH *, int *, const float);
+static int estimate_coded_size(TARGET_SEARCH *, int *, const float, short *,
+                 const int *);
+static int block_coded_size(short *, const int, HUFFCODE *);
+static int reconstruction_error(TARGET_SEARCH *, double *, short *);
+static int target_sink_write(void *, unsigned char *, const int);
+
 /************************************************************************/
 /*              This is an implementation based on the Crinimal         */
 /*              Justice Information Services (CJIS) document            */
 /*              "WSQ Gray-scale Fingerprint Compression                 */
 /*              Specification", Dec. 1997.                              */
 /************************************************************************/
-/* WSQ encodes/compresses an image pixmap.                              */
+/* WSQ encodes/compresses an image pixmap.  With ctx->arena set, the   */
+/* output is the OUT slot of the arena, given back with                 */
+/* wsq_arena_release.                                                   */
+/************************************************************************/
+int wsq_encode_mem(WSQ_CONTEXT *ctx, unsigned char **odata, int *olen,
+                   const float r_bitrate, unsigned char *idata, const int w,
+                   const int h, const int d, const int ppi, char *comment_text)
+{
+   int ret;
+   unsigned char *wsq_data;      /* compressed data buffer      */
+   int wsq_len;                  /* number of bytes in buffer   */
+
+   /* Allocate a WSQ-encoded output buffer.  Allocate this buffer */
+   /* to be the size of the original pixmap.  If the encoded data */
+   /* exceeds this buffer size, then throw an error because we do */
+   /* not want our compressed data to be larger than the original */
+   /* image data.                                                 */
+   wsq_data = (unsigned char *)wsq_arena_alloc(ctx->arena, WSQ_ARENA_OUT,
+                                               w * h);
+   if(wsq_data == (unsigned char *)NULL){
+      fprintf(stderr, "ERROR : wsq_encode_1 : malloc : wsq_data\n");
+      return(-12);
+   }
+
+   if((ret = wsq_encode_into_mem(ctx, wsq_data, w * h, &wsq_len, r_bitrate,
+                                 idata, w, h, d, ppi, comment_text))){
+      wsq_arena_release(ctx->arena, wsq_data);
+      return(ret);
+   }
+
+   *odata = wsq_data;
+   *olen = wsq_len;
+
+   /* Return normally. */
+   return(0);
+}
+
+/************************************************************************/
+/* WSQ encodes/compresses an image pixmap into a caller supplied        */
+/* buffer of wsq_alloc bytes.  The encoder fails if the compressed      */
+/* data does not fit.                                                   */
 /************************************************************************/
-int wsq_encode_mem(unsigned char **odata, int *olen, const float r_bitrate,
+int wsq_encode_into_mem(WSQ_CONTEXT *ctx, unsigned char *wsq_data,
+                   const int wsq_alloc, int *olen, const float r_bitrate,
                    unsigned char *idata, const int w, const int h,
                    const int d, const int ppi, char *comment_text)
+{
+   MEM_SINK mem;
+   WSQ_SINK sink;
+
+   mem.data = wsq_data;
+   mem.alloc = wsq_alloc;
+   mem.len = 0;
+   sink.write = mem_sink_write;
+   sink.opaque = &mem;
+
+   return(wsq_encode_to_sink(ctx, &sink, olen, r_bitrate, idata, w, h, d,
+                             ppi, comment_text));
+}
+
+/************************************************************************/
+/* WSQ encodes/compresses an image pixmap, passing the compressed bytes */
+/* to a sink as they are produced.                                      */
+/************************************************************************/
+int wsq_encode_to_sink(WSQ_CONTEXT *ctx, WSQ_SINK *sink, int *olen,
+                   const float r_bitrate, unsigned char *idata, const int w,
+                   const int h, const int d, const int ppi,
+                   char *comment_text)
 {
    int ret, num_pix;
    float *fdata;                 /* floating point pixel image  */
    float m_shift, r_scale;       /* shift/scale parameters      */
-   short *qdata;                 /* quantized image pointer     */
-   int qsize, qsize1, qsize2, qsize3;  /* quantized block sizes */
-   unsigned char *huffbits, *huffvalues; /* huffman code parameters     */
-   HUFFCODE *hufftable;          /* huffcode table              */
-   unsigned char *huff_buf;      /* huffman encoded buffer      */
-   int hsize, hsize1, hsize2, hsize3; /* Huffman coded blocks sizes */
-   unsigned char *wsq_data;      /* compressed data buffer      */
-   int wsq_alloc, wsq_len;       /* number of bytes in buffer   */
-   int block_sizes[2];
 
    /* Compute the total number of pixels in image. */
    num_pix = w * h;
 
    /* Allocate floating point pixmap. */
-   if((fdata = (float *) malloc(num_pix*sizeof(float))) == NULL) {
+   if((fdata = (float *) wsq_arena_alloc(ctx->arena, WSQ_ARENA_FDATA,
+                                         num_pix*sizeof(float))) == NULL) {
       fprintf(stderr,"ERROR : wsq_encode_1 : malloc : fdata\n");
       return(-10);
    }
 
    /* Convert image pixels to floating point. */
    if((ret = conv_img_2_flt_ret(fdata, &m_shift, &r_scale, idata, num_pix))) {
-      free(fdata);
+      wsq_arena_release(ctx->arena, fdata);
       return(ret);
    }
 
    if(debug > 0)
       fprintf(stderr, "Input image pixels converted to floating point\n\n");
 
+   return(wsq_encode_flt_to_sink(ctx, sink, olen, r_bitrate,
+                                 fdata, m_shift, r_scale, w, h, d, ppi,
+                                 comment_text));
+}
+
+/************************************************************************/
+/* WSQ encodes a floating point pixmap, as produced by conv_img_2_flt,  */
+/* into a caller supplied buffer of wsq_alloc bytes.  The pixmap is     */
+/* decomposed in place and released by this routine, also on error.    */
+/************************************************************************/
+int wsq_encode_flt_into_mem(WSQ_CONTEXT *ctx, unsigned char *wsq_data,
+                   const int wsq_alloc, int *olen, const float r_bitrate,
+                   float *fdata, const float m_shift, const float r_scale,
+                   const int w, const int h, const int d, const int ppi,
+                   char *comment_text)
+{
+   MEM_SINK mem;
+   WSQ_SINK sink;
+
+   mem.data = wsq_data;
+   mem.alloc = wsq_alloc;
+   mem.len = 0;
+   sink.write = mem_sink_write;
+   sink.opaque = &mem;
+
+   return(wsq_encode_flt_to_sink(ctx, &sink, olen, r_bitrate, fdata,
+                                 m_shift, r_scale, w, h, d, ppi,
+                                 comment_text));
+}
+
+/************************************************************************/
+/* Sink appending to a memory buffer, failing when it is full.          */
+/************************************************************************/
+static int mem_sink_write(void *opaque, unsigned char *data, const int len)
+{
+   MEM_SINK *mem = (MEM_SINK *)opaque;
+
+   return(putc_bytes(data, len, mem->data, mem->alloc, &mem->len));
+}
+
+/************************************************************************/
+/* Passes the filled part of buf to the sink and empties it.            */
+/************************************************************************/
+static int flush_to_sink(WSQ_SINK *sink, unsigned char *buf, int *len,
+                   int *total)
+{
+   int ret;
+
+   if(*len > 0) {
+      if((ret = sink->write(sink->opaque, buf, *len)))
+         return(ret);
+      *total += *len;
+      *len = 0;
+   }
+   return(0);
+}
+
+/************************************************************************/
+/* WSQ encodes a floating point pixmap, as produced by conv_img_2_flt,  */
+/* passing the compressed bytes to a sink as they are produced: the     */
+/* SOI marker, tables and frame header once the image is quantized,     */
+/* then each block's Huffman table and header, and its compressed data  */
+/* in chunks of SINK_CHUNK_SIZE bytes.  Apart from the quantized image, */
+/* only one chunk buffer is allocated for the output, and there is no   */
+/* limit on the compressed size.  The pixmap is decomposed in place and */
+/* released by this routine with wsq_arena_release, also on error.  A   */
+/* non-zero return of the sink stops the encoder, which returns it.     */
+/* The working buffers are taken from ctx->arena if it is set.          */
+/************************************************************************/
+int wsq_encode_flt_to_sink(WSQ_CONTEXT *ctx, WSQ_SINK *sink, int *olen,
+                   const float r_bitrate, float *fdata, const float m_shift,
+                   const float r_scale, const int w, const int h,
+                   const int d, const int ppi, char *comment_text)
+{
+   int ret;
+   short *qdata;                 /* quantized image pointer     */
+   int qsizes[3];                /* quantized block sizes       */
+
    /* Build WSQ decomposition trees */
-   build_wsq_trees(w_tree, W_TREELEN, q_tree, Q_TREELEN, w, h);
+   build_wsq_trees(ctx->w_tree, W_TREELEN, ctx->q_tree, Q_TREELEN, w, h);
 
    if(debug > 0)
       fprintf(stderr, "Tables for wavelet decomposition finished\n\n");
 
    /* WSQ decompose the image */
-   if((ret = wsq_decompose(fdata, w, h, w_tree, W_TREELEN,
-                            hifilt, MAX_HIFILT, lofilt, MAX_LOFILT))){
-      free(fdata);
+   if((ret = wsq_decompose_par(fdata, w, h, ctx->w_tree, W_TREELEN,
+                            hifilt, MAX_HIFILT, lofilt, MAX_LOFILT,
+                            ctx->parallelism, ctx->arena))){
+      wsq_arena_release(ctx->arena, fdata);
       return(ret);
    }
 
@@ -131,106 +436,171 @@ int wsq_encode_mem(unsigned char **odata, int *olen, const float r_bitrate,
       fprintf(stderr, "WSQ decomposition of image finished\n\n");
 
    /* Set compression ratio and 'q' to zero. */
-   quant_vals.cr = 0;
-   quant_vals.q = 0.0;
+   ctx->quant_vals.cr = 0;
+   ctx->quant_vals.q = 0.0;
    /* Assign specified r-bitrate into quantization structure. */
-   quant_vals.r = r_bitrate;
+   ctx->quant_vals.r = r_bitrate;
    /* Compute subband variances. */
-   variance(&quant_vals, q_tree, Q_TREELEN, fdata, w, h);
+   variance_par(&ctx->quant_vals, ctx->q_tree, Q_TREELEN, fdata, w, h,
+                ctx->parallelism);
 
    if(debug > 0)
       fprintf(stderr, "Subband variances computed\n\n");
 
    /* Quantize the floating point pixmap. */
-   if((ret = quantize(&qdata, &qsize, &quant_vals, q_tree, Q_TREELEN,
-                      fdata, w, h))){
-      free(fdata);
-      return(ret);
-   }
+   ret = quantize_blocks(ctx, &qdata, qsizes, fdata, w, h);
 
    /* Done with floating point wsq subband data. */
-   free(fdata);
+   wsq_arena_release(ctx->arena, fdata);
+
+   if(ret)
+      return(ret);
+
+   return(code_blocks_to_sink(ctx, sink, olen, r_bitrate, qdata, qsizes,
+                              m_shift, r_scale, w, h, d, ppi, comment_text));
+}
+
+/************************************************************************/
+/* Quantizes the decomposed image at the bitrate in ctx->quant_vals and */
+/* returns the sizes of its three blocks.  The quantized image is       */
+/* released with wsq_arena_release.                                     */
+/************************************************************************/
+static int quantize_blocks(WSQ_CONTEXT *ctx, short **oqdata, int *qsizes,
+                   float *fdata, const int w, const int h)
+{
+   int ret;
+   short *qdata;                 /* quantized image pointer     */
+   int qsize;                    /* quantized image size        */
+
+   if((ret = quantize_par(&qdata, &qsize, &ctx->quant_vals, ctx->q_tree,
+                      Q_TREELEN, fdata, w, h, ctx->parallelism,
+                      ctx->arena)))
+      return(ret);
 
    if(debug > 0)
       fprintf(stderr, "WSQ subband decomposition data quantized\n\n");
 
    /* Compute quantized WSQ subband block sizes */
-   quant_block_sizes(&qsize1, &qsize2, &qsize3, &quant_vals,
-                           w_tree, W_TREELEN, q_tree, Q_TREELEN);
+   quant_block_sizes(&qsizes[0], &qsizes[1], &qsizes[2], &ctx->quant_vals,
+                           ctx->w_tree, W_TREELEN, ctx->q_tree, Q_TREELEN);
 
-   if(qsize != qsize1+qsize2+qsize3){
+   if(qsize != qsizes[0]+qsizes[1]+qsizes[2]){
       fprintf(stderr,
               "ERROR : wsq_encode_1 : problem w/quantization block sizes\n");
+      wsq_arena_release(ctx->arena, qdata);
       return(-11);
    }
 
-   /* Allocate a WSQ-encoded output buffer.  Allocate this buffer */
-   /* to be the size of the original pixmap.  If the encoded data */
-   /* exceeds this buffer size, then throw an error because we do */
-   /* not want our compressed data to be larger than the original */
-   /* image data.                                                 */
-   wsq_data = (unsigned char *)malloc(num_pix);
-   if(wsq_data == (unsigned char *)NULL){
-      free(qdata);
-      fprintf(stderr, "ERROR : wsq_encode_1 : malloc : wsq_data\n");
-      return(-12);
-   }
-   wsq_alloc = num_pix;
-   wsq_len = 0;
+   *oqdata = qdata;
+   return(0);
+}
+
+/************************************************************************/
+/* Writes the SOI marker, comments, transform and quantization tables   */
+/* and the frame header of an image to buf.                             */
+/************************************************************************/
+static int put_wsq_header(WSQ_CONTEXT *ctx, unsigned char *buf,
+                   const int buf_alloc, int *buf_len, const float r_bitrate,
+                   const float m_shift, const float r_scale, const int w,
+                   const int h, const int d, const int ppi,
+                   char *comment_text)
+{
+   int ret;
 
    /* Add a Start Of Image (SOI) marker to the WSQ buffer. */
-   if((ret = putc_ushort(SOI_WSQ, wsq_data, wsq_alloc, &wsq_len))){
-      free(qdata);
-      free(wsq_data);
+   if((ret = putc_ushort(SOI_WSQ, buf, buf_alloc, buf_len)))
       return(ret);
-   }
 
    if((ret = putc_nistcom_wsq(comment_text, w, h, d, ppi, 1 /* lossy */,
-                             r_bitrate, wsq_data, wsq_alloc, &wsq_len))){
-      free(qdata);
-      free(wsq_data);
+                             r_bitrate, buf, buf_alloc, buf_len)))
       return(ret);
-   }
 
    /* Store the Wavelet filter taps to the WSQ buffer. */
    if((ret = putc_transform_table(lofilt, MAX_LOFILT,
                                  hifilt, MAX_HIFILT,
-                                 wsq_data, wsq_alloc, &wsq_len))){
-      free(qdata);
-      free(wsq_data);
+                                 buf, buf_alloc, buf_len)))
       return(ret);
-   }
 
    /* Store the quantization parameters to the WSQ buffer. */
-   if((ret = putc_quantization_table(&quant_vals,
-                                    wsq_data, wsq_alloc, &wsq_len))){
-      free(qdata);
-      free(wsq_data);
+   if((ret = putc_quantization_table(&ctx->quant_vals,
+                                    buf, buf_alloc, buf_len)))
       return(ret);
-   }
 
    /* Store a frame header to the WSQ buffer. */
-   if((ret = putc_frame_header_wsq(w, h, m_shift, r_scale,
-                              wsq_data, wsq_alloc, &wsq_len))){
-      free(qdata);
-      free(wsq_data);
+   return(putc_frame_header_wsq(w, h, m_shift, r_scale,
+                              buf, buf_alloc, buf_len));
+}
+
+/************************************************************************/
+/* Codes a quantized image, passing the header segments, the huffman    */
+/* tables and the compressed blocks to a sink.  The quantized image is  */
+/* released, also on error.                                             */
+/************************************************************************/
+static int code_blocks_to_sink(WSQ_CONTEXT *ctx, WSQ_SINK *sink, int *olen,
+                   const float r_bitrate, short *qdata, const int *qsizes,
+                   const float m_shift, const float r_scale, const int w,
+                   const int h, const int d, const int ppi,
+                   char *comment_text)
+{
+   int ret;
+   unsigned char *buf;           /* segment and chunk buffer    */
+   int buf_alloc, buf_len;       /* its size and filled length  */
+
+   /* Allocate the output buffer, large enough for the header */
+   /* segments including the comment, and one chunk of data.  */
+   buf_alloc = SINK_CHUNK_SIZE + SINK_HEADER_SIZE;
+   if(comment_text != (char *)NULL)
+      buf_alloc += strlen(comment_text);
+   buf = (unsigned char *)wsq_arena_alloc(ctx->arena, WSQ_ARENA_BUF,
+                                          buf_alloc);
+   if(buf == (unsigned char *)NULL) {
+      wsq_arena_release(ctx->arena, qdata);
+      fprintf(stderr, "ERROR : wsq_encode_1 : malloc : buf\n");
+      return(-13);
+   }
+
+   buf_len = 0;
+
+   if((ret = put_wsq_header(ctx, buf, buf_alloc, &buf_len, r_bitrate,
+                            m_shift, r_scale, w, h, d, ppi, comment_text))){
+      wsq_arena_release(ctx->arena, qdata);
+      wsq_arena_release(ctx->arena, buf);
       return(ret);
    }
 
    if(debug > 0)
       fprintf(stderr, "SOI, tables, and frame header written\n\n");
 
-   /* Allocate a temporary buffer for holding compressed block data.    */
-   /* This buffer is allocated to the size of the original input image, */
-   /* and it is "assumed" that the compressed blocks will not exceed    */
-   /* this buffer size.                                                 */
-   huff_buf = (unsigned char *)malloc(num_pix);
-   if(huff_buf == (unsigned char *)NULL) {
-      free(qdata);
-      free(wsq_data);
-      fprintf(stderr, "ERROR : wsq_encode_1 : malloc : huff_buf\n");
-      return(-13);
-   }
+   return(code_blocks_after_header(ctx, sink, olen, buf, buf_alloc, buf_len,
+                                   0, r_bitrate, qdata, qsizes, w * h));
+}
+
+/************************************************************************/
+/* Codes the blocks of a quantized image after the header segments      */
+/* already in buf (buf_len bytes) or passed to the sink (wsq_len        */
+/* bytes): the huffman tables, the compressed blocks and the EOI marker.*/
+/* The quantized image and buf, taken from the BUF slot of ctx->arena,  */
+/* are released, also on error.                                         */
+/************************************************************************/
+static int code_blocks_after_header(WSQ_CONTEXT *ctx, WSQ_SINK *sink,
+                   int *olen, unsigned char *buf, const int buf_alloc,
+                   int buf_len, int wsq_len, const float r_bitrate,
+                   short *qdata, const int *qsizes, const int num_pix)
+{
+   int ret;
+   const int qsize1 = qsizes[0]; /* quantized block sizes */
+   const int qsize2 = qsizes[1];
+   const int qsize3 = qsizes[2];
+   unsigned char *huffbits, *huffvalues; /* huffman code parameters     */
+   HUFFCODE *hufftable;          /* huffcode table              */
+   int hsize, hsize1, hsize2, hsize3; /* Huffman coded blocks sizes */
+   int block_sizes[2];
+
+   /* The three blocks can be coded concurrently, into memory. */
+   if(ctx->parallelism > 1 && wsq_max_parallelism() > 1)
+      return(encode_blocks_par(ctx->parallelism, ctx->arena, sink, olen,
+                               buf, buf_alloc, buf_len, wsq_len, qdata,
+                               qsize1, qsize2, qsize3));
 
    /******************/
    /* ENCODE Block 1 */
@@ -238,18 +608,16 @@ int wsq_encode_mem(unsigned char **odata, int *olen, const float r_bitrate,
    /* Compute Huffman table for Block 1. */
    if((ret = gen_hufftable_wsq(&hufftable, &huffbits, &huffvalues,
                               qdata, &qsize1, 1))){
-      free(qdata);
-      free(wsq_data);
-      free(huff_buf);
+      wsq_arena_release(ctx->arena, qdata);
+      wsq_arena_release(ctx->arena, buf);
       return(ret);
    }
 
    /* Store Huffman table for Block 1 to WSQ buffer. */
    if((ret = putc_huffman_table(DHT_WSQ, 0, huffbits, huffvalues,
-                               wsq_data, wsq_alloc, &wsq_len))){
-      free(qdata);
-      free(wsq_data);
-      free(huff_buf);
+                               buf, buf_alloc, &buf_len))){
+      wsq_arena_release(ctx->arena, qdata);
+      wsq_arena_release(ctx->arena, buf);
       free(huffbits);
       free(huffvalues);
       free(hufftable);
@@ -261,12 +629,21 @@ int wsq_encode_mem(unsigned char **odata, int *olen, const float r_bitrate,
    if(debug > 0)
       fprintf(stderr, "Huffman code Table 1 generated and written\n\n");
 
+   /* Store Block 1's header to WSQ buffer, pass everything */
+   /* so far on before the compressed data.                 */
+   if((ret = putc_block_header(0, buf, buf_alloc, &buf_len)) ||
+      (ret = flush_to_sink(sink, buf, &buf_len, &wsq_len))){
+      wsq_arena_release(ctx->arena, qdata);
+      wsq_arena_release(ctx->arena, buf);
+      free(hufftable);
+      return(ret);
+   }
+
    /* Compress Block 1 data. */
-   if((ret = compress_block(huff_buf, &hsize1, qdata, qsize1,
+   if((ret = compress_block_sink(sink, buf, buf_alloc, &hsize1, qdata, qsize1,
                            MAX_HUFFCOEFF, MAX_HUFFZRUN, hufftable))){
-      free(qdata);
-      free(wsq_data);
-      free(huff_buf);
+      wsq_arena_release(ctx->arena, qdata);
+      wsq_arena_release(ctx->arena, buf);
       free(hufftable);
       return(ret);
    }
@@ -275,22 +652,7 @@ int wsq_encode_mem(unsigned char **odata, int *olen, const float r_bitrate,
 
    /* Accumulate number of bytes compressed. */
    hsize = hsize1;
-
-   /* Store Block 1's header to WSQ buffer. */
-   if((ret = putc_block_header(0, wsq_data, wsq_alloc, &wsq_len))){
-      free(qdata);
-      free(wsq_data);
-      free(huff_buf);
-      return(ret);
-   }
-
-   /* Store Block 1's compressed data to WSQ buffer. */
-   if((ret = putc_bytes(huff_buf, hsize1, wsq_data, wsq_alloc, &wsq_len))){
-      free(qdata);
-      free(wsq_data);
-      free(huff_buf);
-      return(ret);
-   }
+   wsq_len += hsize1;
 
    if(debug > 0)
       fprintf(stderr, "Block 1 compressed and written\n\n");
@@ -303,18 +665,16 @@ int wsq_encode_mem(unsigned char **odata, int *olen, const float r_bitrate,
    block_sizes[1] = qsize3;
    if((ret = gen_hufftable_wsq(&hufftable, &huffbits, &huffvalues,
                           qdata+qsize1, block_sizes, 2))){
-      free(qdata);
-      free(wsq_data);
-      free(huff_buf);
+      wsq_arena_release(ctx->arena, qdata);
+      wsq_arena_release(ctx->arena, buf);
       return(ret);
    }
 
    /* Store Huffman table for Blocks 2 & 3 to WSQ buffer. */
    if((ret = putc_huffman_table(DHT_WSQ, 1, huffbits, huffvalues,
-                               wsq_data, wsq_alloc, &wsq_len))){
-      free(qdata);
-      free(wsq_data);
-      free(huff_buf);
+                               buf, buf_alloc, &buf_len))){
+      wsq_arena_release(ctx->arena, qdata);
+      wsq_arena_release(ctx->arena, buf);
       free(huffbits);
       free(huffvalues);
       free(hufftable);
@@ -326,49 +686,49 @@ int wsq_encode_mem(unsigned char **odata, int *olen, const float r_bitrate,
    if(debug > 0)
       fprintf(stderr, "Huffman code Table 2 generated and written\n\n");
 
-   /* Compress Block 2 data. */
-   if((ret = compress_block(huff_buf, &hsize2, qdata+qsize1, qsize2,
-                           MAX_HUFFCOEFF, MAX_HUFFZRUN, hufftable))){
-      free(qdata);
-      free(wsq_data);
-      free(huff_buf);
-      free(hufftable);
-      return(ret);
-   }
-
-   /* Accumulate number of bytes compressed. */
-   hsize += hsize2;
-
    /* Store Block 2's header to WSQ buffer. */
-   if((ret = putc_block_header(1, wsq_data, wsq_alloc, &wsq_len))){
-      free(qdata);
-      free(wsq_data);
-      free(huff_buf);
+   if((ret = putc_block_header(1, buf, buf_alloc, &buf_len)) ||
+      (ret = flush_to_sink(sink, buf, &buf_len, &wsq_len))){
+      wsq_arena_release(ctx->arena, qdata);
+      wsq_arena_release(ctx->arena, buf);
       free(hufftable);
       return(ret);
    }
 
-   /* Store Block 2's compressed data to WSQ buffer. */
-   if((ret = putc_bytes(huff_buf, hsize2, wsq_data, wsq_alloc, &wsq_len))){
-      free(qdata);
-      free(wsq_data);
-      free(huff_buf);
+   /* Compress Block 2 data. */
+   if((ret = compress_block_sink(sink, buf, buf_alloc, &hsize2, qdata+qsize1,
+                           qsize2, MAX_HUFFCOEFF, MAX_HUFFZRUN, hufftable))){
+      wsq_arena_release(ctx->arena, qdata);
+      wsq_arena_release(ctx->arena, buf);
       free(hufftable);
       return(ret);
    }
 
+   /* Accumulate number of bytes compressed. */
+   hsize += hsize2;
+   wsq_len += hsize2;
+
    if(debug > 0)
       fprintf(stderr, "Block 2 compressed and written\n\n");
 
    /******************/
    /* ENCODE Block 3 */
    /******************/
+   /* Store Block 3's header to WSQ buffer. */
+   if((ret = putc_block_header(1, buf, buf_alloc, &buf_len)) ||
+      (ret = flush_to_sink(sink, buf, &buf_len, &wsq_len))){
+      wsq_arena_release(ctx->arena, qdata);
+      wsq_arena_release(ctx->arena, buf);
+      free(hufftable);
+      return(ret);
+   }
+
    /* Compress Block 3 data. */
-   if((ret = compress_block(huff_buf, &hsize3, qdata+qsize1+qsize2, qsize3,
+   if((ret = compress_block_sink(sink, buf, buf_alloc, &hsize3,
+                           qdata+qsize1+qsize2, qsize3,
                            MAX_HUFFCOEFF, MAX_HUFFZRUN, hufftable))){
-      free(qdata);
-      free(wsq_data);
-      free(huff_buf);
+      wsq_arena_release(ctx->arena, qdata);
+      wsq_arena_release(ctx->arena, buf);
       free(hufftable);
       return(ret);
    }
@@ -376,37 +736,25 @@ int wsq_encode_mem(unsigned char **odata, int *olen, const float r_bitrate,
    free(hufftable);
 
    /* Done with quantized image buffer. */
-   free(qdata);
+   wsq_arena_release(ctx->arena, qdata);
 
    /* Accumulate number of bytes compressed. */
    hsize += hsize3;
-
-   /* Store Block 3's header to WSQ buffer. */
-   if((ret = putc_block_header(1, wsq_data, wsq_alloc, &wsq_len))){
-      free(wsq_data);
-      free(huff_buf);
-      return(ret);
-   }
-
-   /* Store Block 3's compressed data to WSQ buffer. */
-   if((ret = putc_bytes(huff_buf, hsize3, wsq_data, wsq_alloc, &wsq_len))){
-      free(wsq_data);
-      free(huff_buf);
-      return(ret);
-   }
+   wsq_len += hsize3;
 
    if(debug > 0)
       fprintf(stderr, "Block 3 compressed and written\n\n");
 
-   /* Done with huffman compressing blocks, so done with buffer. */
-   free(huff_buf);
-
    /* Add a End Of Image (EOI) marker to the WSQ buffer. */
-   if((ret = putc_ushort(EOI_WSQ, wsq_data, wsq_alloc, &wsq_len))){
-      free(wsq_data);
+   if((ret = putc_ushort(EOI_WSQ, buf, buf_alloc, &buf_len)) ||
+      (ret = flush_to_sink(sink, buf, &buf_len, &wsq_len))){
+      wsq_arena_release(ctx->arena, buf);
       return(ret);
    }
 
+   /* Done with the output buffer. */
+   wsq_arena_release(ctx->arena, buf);
+
    if(debug >= 1) {
       fprintf(stderr,
               "hsize1 = %d :: hsize2 = %d :: hsize3 = %d\n", hsize1, hsize2, hsize3);
@@ -414,93 +762,995 @@ int wsq_encode_mem(unsigned char **odata, int *olen, const float r_bitrate,
               r_bitrate, hsize, (float)(num_pix)/(float)hsize);
    }
 
-   *odata = wsq_data;
    *olen = wsq_len;
 
    /* Return normally. */
    return(0);
 }
 
-/*************************************************************/
-/* Generate a Huffman code table for a quantized data block. */
-/*************************************************************/
-int gen_hufftable_wsq(HUFFCODE **ohufftable, unsigned char **ohuffbits,
-               unsigned char **ohuffvalues, short *sip, const int *block_sizes,
-               const int num_sizes)
+/************************************************************************/
+/* WSQ encodes/compresses an image pixmap at the bitrate that meets a   */
+/* target, see wsq_encode_flt_target_mem.  With ctx->arena set, the     */
+/* output is the OUT slot of the arena, given back with                 */
+/* wsq_arena_release.                                                   */
+/************************************************************************/
+int wsq_encode_target_mem(WSQ_CONTEXT *ctx, unsigned char **odata, int *olen,
+                   float *or_bitrate, const float max_bitrate,
+                   const int max_bytes, const double min_psnr,
+                   unsigned char *idata, const int w, const int h,
+                   const int d, const int ppi, char *comment_text)
 {
-   int i, j;
    int ret;
-   int adjust;          /* tells if codesize is greater than MAX_HUFFBITS */
-   int *codesize;       /* code sizes to use */
-   int last_size;       /* last huffvalue */
-   unsigned char *huffbits;     /* huffbits values */
-   unsigned char *huffvalues;   /* huffvalues */
-   int *huffcounts;     /* counts for each huffman category */
-   int *huffcounts2;    /* counts for each huffman category */
-   HUFFCODE *hufftable1, *hufftable2;  /* hufftables */
+   float *fdata;                 /* floating point pixel image  */
+   float m_shift, r_scale;       /* shift/scale parameters      */
 
-   if((ret = count_block(&huffcounts, MAX_HUFFCOUNTS_WSQ,
-			 sip, block_sizes[0], MAX_HUFFCOEFF, MAX_HUFFZRUN)))
-      return(ret);
+   if((fdata = (float *) wsq_arena_alloc(ctx->arena, WSQ_ARENA_FDATA,
+                                         w*h*sizeof(float))) == NULL) {
+      fprintf(stderr,"ERROR : wsq_encode_target_mem : malloc : fdata\n");
+      return(-10);
+   }
 
-   for(i = 1; i < num_sizes; i++) {
-      if((ret = count_block(&huffcounts2, MAX_HUFFCOUNTS_WSQ,
-                           sip+block_sizes[i-1], block_sizes[i],
-                           MAX_HUFFCOEFF, MAX_HUFFZRUN)))
-         return(ret);
+   if((ret = conv_img_2_flt_ret(fdata, &m_shift, &r_scale, idata, w*h))) {
+      wsq_arena_release(ctx->arena, fdata);
+      return(ret);
+   }
 
-      for(j = 0; j < MAX_HUFFCOUNTS_WSQ; j++)
-         huffcounts[j] += huffcounts2[j];
+   return(wsq_encode_flt_target_mem(ctx, odata, olen, or_bitrate,
+                                    max_bitrate, max_bytes, min_psnr,
+                                    fdata, m_shift, r_scale, w, h, d, ppi,
+                                    comment_text));
+}
 
-      free(huffcounts2);
+/************************************************************************/
+/* WSQ encodes a floating point pixmap, as produced by conv_img_2_flt,  */
+/* at the bitrate that meets a target.  With max_bytes > 0, it is the   */
+/* highest bitrate up to max_bitrate whose output fits in max_bytes;    */
+/* otherwise the lowest one whose decoded image has a PSNR of at least  */
+/* min_psnr dB.  The image is converted, decomposed and its variances   */
+/* computed once.  The bitrate is then bisected between max_bitrate and */
+/* max_bitrate/TARGET_RANGE, redoing only the quantization and either   */
+/* the huffman statistics of the blocks, which give their coded size,   */
+/* or the reconstruction of the image, which gives its PSNR exactly as  */
+/* the decoder will produce it.  The image is coded once, at the chosen */
+/* bitrate, which is returned in or_bitrate and recorded in the NISTCOM */
+/* comment.  Returns -16 if no bitrate in the range meets the target.  */
+/* The pixmap is released by this routine, also on error.               */
+/************************************************************************/
+int wsq_encode_flt_target_mem(WSQ_CONTEXT *ctx, unsigned char **odata,
+                   int *olen, float *or_bitrate, const float max_bitrate,
+                   const int max_bytes, const double min_psnr, float *fdata,
+                   const float m_shift, const float r_scale, const int w,
+                   const int h, const int d, const int ppi,
+                   char *comment_text)
+{
+   int ret, i;
+   TARGET_SEARCH search;         /* state of the bitrate search */
+   short *qdata;                 /* quantized image pointer     */
+   int qsizes[3];                /* quantized block sizes       */
+   float r_good, r_bad, r_mid;   /* bitrates meeting the target or not */
+   int good;
+   unsigned char *wsq_data;      /* compressed data buffer      */
+   int wsq_alloc;
+   TARGET_SINK target;
+   WSQ_SINK sink;
+
+   if(max_bitrate <= 0.0 || (max_bytes <= 0 && min_psnr <= 0.0)) {
+      fprintf(stderr, "ERROR : wsq_encode_flt_target_mem : no target\n");
+      wsq_arena_release(ctx->arena, fdata);
+      return(-15);
    }
 
-   if((ret = find_huff_sizes(&codesize, huffcounts, MAX_HUFFCOUNTS_WSQ))){
-      free(huffcounts);
+   search.ctx = ctx;
+   search.fdata = fdata;
+   search.m_shift = m_shift;
+   search.r_scale = r_scale;
+   search.w = w;
+   search.h = h;
+   search.d = d;
+   search.ppi = ppi;
+   search.comment_text = comment_text;
+   search.max_bytes = max_bytes;
+   search.buf = (unsigned char *)NULL;
+   search.ref = (unsigned char *)NULL;
+   init_wsq_decoder_resources(&search.dtt_table);
+
+   if((ret = init_target_search(&search, min_psnr))) {
+      free_target_search(&search);
+      wsq_arena_release(ctx->arena, fdata);
       return(ret);
    }
-   free(huffcounts);
 
-   if((ret = find_num_huff_sizes(&huffbits, &adjust, codesize,
-                                MAX_HUFFCOUNTS_WSQ))){
-      free(codesize);
+   /* Build WSQ decomposition trees, decompose the image and compute */
+   /* the subband variances, once for all the bitrates tried.         */
+   build_wsq_trees(ctx->w_tree, W_TREELEN, ctx->q_tree, Q_TREELEN, w, h);
+   if((ret = wsq_decompose_par(fdata, w, h, ctx->w_tree, W_TREELEN,
+                            hifilt, MAX_HIFILT, lofilt, MAX_LOFILT,
+                            ctx->parallelism, ctx->arena))){
+      free_target_search(&search);
+      wsq_arena_release(ctx->arena, fdata);
       return(ret);
    }
-
-   if(adjust){
-      if((ret = sort_huffbits(huffbits))){
-         free(codesize);
-         free(huffbits);
+   ctx->quant_vals.cr = 0;
+   ctx->quant_vals.q = 0.0;
+   variance_par(&ctx->quant_vals, ctx->q_tree, Q_TREELEN, fdata, w, h,
+                ctx->parallelism);
+
+   /* The size target is met at low bitrates, the PSNR target at high */
+   /* ones.  The end of the range giving the best result is tried     */
+   /* first, the other one must meet the target.                      */
+   if(max_bytes > 0) {
+      r_good = max_bitrate;
+      r_bad = max_bitrate / TARGET_RANGE;
+   }
+   else {
+      r_good = max_bitrate / TARGET_RANGE;
+      r_bad = max_bitrate;
+   }
+   if((ret = meets_target(&search, &good, r_good))){
+      free_target_search(&search);
+      wsq_arena_release(ctx->arena, fdata);
+      return(ret);
+   }
+   if(!good) {
+      r_mid = r_good;
+      r_good = r_bad;
+      r_bad = r_mid;
+      if((ret = meets_target(&search, &good, r_good))){
+         free_target_search(&search);
+         wsq_arena_release(ctx->arena, fdata);
          return(ret);
       }
+      if(!good) {
+         fprintf(stderr, "ERROR : wsq_encode_flt_target_mem : ");
+         fprintf(stderr, "target not met at any bitrate\n");
+         free_target_search(&search);
+         wsq_arena_release(ctx->arena, fdata);
+         return(-16);
+      }
+      /* Bisect on a logarithmic scale. */
+      for(i = 0; i < MAX_TARGET_STEPS &&
+                 fabs(log(r_good / r_bad)) > TARGET_PRECISION; i++) {
+         r_mid = sqrt(r_good * r_bad);
+         if((ret = meets_target(&search, &good, r_mid))){
+            free_target_search(&search);
+            wsq_arena_release(ctx->arena, fdata);
+            return(ret);
+         }
+         if(good)
+            r_good = r_mid;
+         else
+            r_bad = r_mid;
+      }
    }
-
-   if((ret = sort_code_sizes(&huffvalues, codesize, MAX_HUFFCOUNTS_WSQ))){
-      free(codesize);
-      free(huffbits);
-      return(ret);
+   free_target_search(&search);
+
+   /* Code the image at the chosen bitrate.  The estimated size leaves */
+   /* out the zero bytes stuffed after 0xFF, so a size target may need */
+   /* a slightly lower bitrate.                                        */
+   wsq_alloc = max_bytes > 0 ? max_bytes : w * h;
+   wsq_data = (unsigned char *)wsq_arena_alloc(ctx->arena, WSQ_ARENA_OUT,
+                                               wsq_alloc);
+   if(wsq_data == (unsigned char *)NULL){
+      fprintf(stderr, "ERROR : wsq_encode_flt_target_mem : malloc : wsq_data\n");
+      wsq_arena_release(ctx->arena, fdata);
+      return(-12);
    }
-   free(codesize);
-
-   if((ret = build_huffsizes(&hufftable1, &last_size,
-                              huffbits, MAX_HUFFCOUNTS_WSQ))){
-      free(huffbits);
-      free(huffvalues);
-      return(ret);
+   sink.write = target_sink_write;
+   sink.opaque = &target;
+   for(i = 0; ; i++) {
+      ctx->quant_vals.r = r_good;
+      if((ret = quantize_blocks(ctx, &qdata, qsizes, fdata, w, h)))
+         break;
+      target.mem.data = wsq_data;
+      target.mem.alloc = wsq_alloc;
+      target.mem.len = 0;
+      target.full = 0;
+      ret = code_blocks_to_sink(ctx, &sink, olen, r_good, qdata, qsizes,
+                                m_shift, r_scale, w, h, d, ppi, comment_text);
+      if(!ret || !target.full || max_bytes <= 0)
+         break;
+      if(i == MAX_TARGET_RETRIES) {
+         fprintf(stderr, "ERROR : wsq_encode_flt_target_mem : ");
+         fprintf(stderr, "coded image larger than estimated\n");
+         ret = -16;
+         break;
+      }
+      r_good *= 1.0 - TARGET_PRECISION;
    }
-
-   build_huffcodes(hufftable1);
-   if((ret = check_huffcodes_wsq(hufftable1, last_size))){
-      fprintf(stderr, "ERROR: This huffcode warning is an error ");
-      fprintf(stderr, "for the encoder.\n");
-      free(huffbits);
-      free(huffvalues);
-      free(hufftable1);
+   wsq_arena_release(ctx->arena, fdata);
+   if(ret) {
+      wsq_arena_release(ctx->arena, wsq_data);
       return(ret);
    }
 
-   if((ret = build_huffcode_table(&hufftable2, hufftable1, last_size,
-                                 huffvalues, MAX_HUFFCOUNTS_WSQ))){
+   *odata = wsq_data;
+   *or_bitrate = r_good;
+   return(0);
+}
+
+/************************************************************************/
+/* WSQ encodes/compresses an image pixmap at several bitrates, see      */
+/* wsq_encode_flt_multi_mem.                                            */
+/************************************************************************/
+int wsq_encode_multi_mem(WSQ_CONTEXT *ctx, unsigned char **odata,
+                   int *olens, const float *r_bitrates, const int num_rates,
+                   unsigned char *idata, const int w, const int h,
+                   const int d, const int ppi, char *comment_text)
+{
+   int ret;
+   float *fdata;                 /* floating point pixel image  */
+   float m_shift, r_scale;       /* shift/scale parameters      */
+
+   if((fdata = (float *) wsq_arena_alloc(ctx->arena, WSQ_ARENA_FDATA,
+                                         w*h*sizeof(float))) == NULL) {
+      fprintf(stderr,"ERROR : wsq_encode_multi_mem : malloc : fdata\n");
+      return(-10);
+   }
+
+   if((ret = conv_img_2_flt_ret(fdata, &m_shift, &r_scale, idata, w*h))) {
+      wsq_arena_release(ctx->arena, fdata);
+      return(ret);
+   }
+
+   return(wsq_encode_flt_multi_mem(ctx, odata, olens, r_bitrates, num_rates,
+                                   fdata, m_shift, r_scale, w, h, d, ppi,
+                                   comment_text));
+}
+
+/************************************************************************/
+/* WSQ encodes a floating point pixmap, as produced by conv_img_2_flt,  */
+/* at num_rates bitrates.  The image is decomposed and its variances    */
+/* computed once; only the quantization and the huffman coding are done */
+/* for each bitrate.  The images are stored one after the other in a    */
+/* single output buffer, the length of each in olens.  Like with        */
+/* wsq_encode_mem, each image must not be larger than the pixmap.  With */
+/* ctx->arena set, the output is the OUT slot of the arena, given back  */
+/* with wsq_arena_release.  The pixmap is released by this routine,     */
+/* also on error.                                                       */
+/************************************************************************/
+int wsq_encode_flt_multi_mem(WSQ_CONTEXT *ctx, unsigned char **odata,
+                   int *olens, const float *r_bitrates, const int num_rates,
+                   float *fdata, const float m_shift, const float r_scale,
+                   const int w, const int h, const int d, const int ppi,
+                   char *comment_text)
+{
+   int ret, i;
+   const int num_pix = w * h;
+   short *qdata;                 /* quantized image pointer     */
+   int qsizes[3];                /* quantized block sizes       */
+   unsigned char *wsq_data;      /* compressed data buffer      */
+   MEM_SINK mem;
+   WSQ_SINK sink;
+
+   if(num_rates <= 0 || num_pix <= 0 || num_rates > INT_MAX / num_pix) {
+      fprintf(stderr, "ERROR : wsq_encode_flt_multi_mem : %d bitrates\n",
+              num_rates);
+      wsq_arena_release(ctx->arena, fdata);
+      return(-15);
+   }
+
+   wsq_data = (unsigned char *)wsq_arena_alloc(ctx->arena, WSQ_ARENA_OUT,
+                                               num_rates * num_pix);
+   if(wsq_data == (unsigned char *)NULL){
+      fprintf(stderr, "ERROR : wsq_encode_flt_multi_mem : malloc : wsq_data\n");
+      wsq_arena_release(ctx->arena, fdata);
+      return(-12);
+   }
+
+   /* Build WSQ decomposition trees, decompose the image and compute */
+   /* the subband variances, once for all the bitrates.              */
+   build_wsq_trees(ctx->w_tree, W_TREELEN, ctx->q_tree, Q_TREELEN, w, h);
+   if((ret = wsq_decompose_par(fdata, w, h, ctx->w_tree, W_TREELEN,
+                            hifilt, MAX_HIFILT, lofilt, MAX_LOFILT,
+                            ctx->parallelism, ctx->arena))){
+      wsq_arena_release(ctx->arena, wsq_data);
+      wsq_arena_release(ctx->arena, fdata);
+      return(ret);
+   }
+   ctx->quant_vals.cr = 0;
+   ctx->quant_vals.q = 0.0;
+   variance_par(&ctx->quant_vals, ctx->q_tree, Q_TREELEN, fdata, w, h,
+                ctx->parallelism);
+
+   mem.data = wsq_data;
+   mem.len = 0;
+   sink.write = mem_sink_write;
+   sink.opaque = &mem;
+   for(i = 0; i < num_rates; i++) {
+      ctx->quant_vals.r = r_bitrates[i];
+      if((ret = quantize_blocks(ctx, &qdata, qsizes, fdata, w, h)))
+         break;
+      mem.alloc = mem.len + num_pix;
+      if((ret = code_blocks_to_sink(ctx, &sink, &olens[i], r_bitrates[i],
+                                    qdata, qsizes, m_shift, r_scale, w, h,
+                                    d, ppi, comment_text)))
+         break;
+   }
+   wsq_arena_release(ctx->arena, fdata);
+   if(ret) {
+      wsq_arena_release(ctx->arena, wsq_data);
+      return(ret);
+   }
+
+   *odata = wsq_data;
+   return(0);
+}
+
+/************************************************************************/
+/* Requantizes a WSQ image at r_bitrate without the wavelet transform.  */
+/* The huffman coded blocks are decoded and unquantized into the        */
+/* subband coefficients, whose variances give the bin widths for the    */
+/* new bitrate.  The coefficients are quantized with them and huffman   */
+/* coded again.  The reconstruction, the pixel conversion and the       */
+/* decomposition of a decode and encode are skipped; the coefficients   */
+/* carry the loss of the first quantization, so the result differs      */
+/* slightly from an encode of the original pixels.  The header segments */
+/* are kept, with the new quantization table and the bitrate of the     */
+/* NISTCOM comment updated.  Like with wsq_encode_mem, the result must  */
+/* not be larger than the pixmap.  With ctx->arena set, the output is   */
+/* the OUT slot of the arena, given back with wsq_arena_release.        */
+/************************************************************************/
+int wsq_transcode_mem(WSQ_CONTEXT *ctx, unsigned char **odata, int *olen,
+                   const float r_bitrate, unsigned char *idata,
+                   const int ilen)
+{
+   int ret, w, h, ppi, hgt_pos, huff_pos, wsq_len;
+   double scale, shift;
+   short *qdata;                 /* quantized image pointer     */
+   int qsizes[3];                /* quantized block sizes       */
+   float *fdata;                 /* subband coefficients        */
+   unsigned char *wsq_data;      /* compressed data buffer      */
+   unsigned char *buf;           /* chunk buffer                */
+   MEM_SINK mem;
+   WSQ_SINK sink;
+
+   if((ret = getc_ppi_wsq(&ppi, idata, ilen)))
+      return(ret);
+
+   /* Also builds the trees of the image. */
+   if((ret = wsq_dehuff_mem(ctx, &qdata, &w, &h, &scale, &shift,
+                            &hgt_pos, &huff_pos, idata, ilen)))
+      return(ret);
+   free_wsq_decoder_resources(&ctx->dtt_table);
+
+   ret = unquantize_arena(&fdata, &ctx->dqt_table, ctx->q_tree, Q_TREELEN,
+                          qdata, w, h, ctx->arena, WSQ_ARENA_FDATA);
+   free(qdata);
+   if(ret)
+      return(ret);
+
+   if(debug > 0)
+      fprintf(stderr, "Subband coefficients unquantized\n\n");
+
+   ctx->quant_vals.cr = 0;
+   ctx->quant_vals.q = 0.0;
+   ctx->quant_vals.r = r_bitrate;
+   variance_par(&ctx->quant_vals, ctx->q_tree, Q_TREELEN, fdata, w, h,
+                ctx->parallelism);
+   ret = quantize_blocks(ctx, &qdata, qsizes, fdata, w, h);
+   wsq_arena_release(ctx->arena, fdata);
+   if(ret)
+      return(ret);
+
+   wsq_data = (unsigned char *)wsq_arena_alloc(ctx->arena, WSQ_ARENA_OUT,
+                                               w * h);
+   if(wsq_data == (unsigned char *)NULL){
+      fprintf(stderr, "ERROR : wsq_transcode_mem : malloc : wsq_data\n");
+      wsq_arena_release(ctx->arena, qdata);
+      return(-12);
+   }
+   buf = (unsigned char *)wsq_arena_alloc(ctx->arena, WSQ_ARENA_BUF,
+                                          SINK_CHUNK_SIZE + SINK_HEADER_SIZE);
+   if(buf == (unsigned char *)NULL) {
+      fprintf(stderr, "ERROR : wsq_transcode_mem : malloc : buf\n");
+      wsq_arena_release(ctx->arena, qdata);
+      wsq_arena_release(ctx->arena, wsq_data);
+      return(-13);
+   }
+
+   mem.data = wsq_data;
+   mem.alloc = w * h;
+   mem.len = 0;
+   sink.write = mem_sink_write;
+   sink.opaque = &mem;
+
+   wsq_len = 0;
+   if((ret = put_transcoded_header(ctx, &sink, &wsq_len, idata, huff_pos,
+                                   r_bitrate, w, h, ppi))){
+      wsq_arena_release(ctx->arena, qdata);
+      wsq_arena_release(ctx->arena, buf);
+      wsq_arena_release(ctx->arena, wsq_data);
+      return(ret);
+   }
+
+   if((ret = code_blocks_after_header(ctx, &sink, olen, buf,
+                                      SINK_CHUNK_SIZE + SINK_HEADER_SIZE, 0,
+                                      wsq_len, r_bitrate, qdata, qsizes,
+                                      w * h))){
+      wsq_arena_release(ctx->arena, wsq_data);
+      return(ret);
+   }
+
+   *odata = wsq_data;
+   return(0);
+}
+
+/************************************************************************/
+/* Passes the header segments of a WSQ image, from its SOI marker up to */
+/* huff_pos, to a sink for the image requantized at r_bitrate: the      */
+/* quantization table is replaced by the one in ctx->quant_vals and the */
+/* first NISTCOM comment gets the new bitrate.  The huffman tables are  */
+/* left out, the other segments are copied.                             */
+/************************************************************************/
+static int put_transcoded_header(WSQ_CONTEXT *ctx, WSQ_SINK *sink,
+                   int *olen, unsigned char *idata, const int huff_pos,
+                   const float r_bitrate, const int w, const int h,
+                   const int ppi)
+{
+   int ret, seg_len, buf_len, nistcom_done;
+   unsigned short marker, len;
+   unsigned char *seg, *cbufptr, *ebufptr;
+   unsigned char dqt[SINK_HEADER_SIZE]; /* new quantization table */
+   unsigned char *buf;
+   char *comment_text;
+
+   cbufptr = idata;
+   ebufptr = idata + huff_pos;
+   if((ret = getc_marker_wsq(&marker, SOI_WSQ, &cbufptr, ebufptr)))
+      return(ret);
+   seg_len = 2;
+   if((ret = flush_to_sink(sink, idata, &seg_len, olen)))
+      return(ret);
+
+   nistcom_done = 0;
+   while(cbufptr < ebufptr) {
+      seg = cbufptr;
+      if((ret = getc_ushort(&marker, &cbufptr, ebufptr)) ||
+         (ret = getc_ushort(&len, &cbufptr, ebufptr)))
+         return(ret);
+      seg_len = len + 2;
+      if(len < 2 || seg + seg_len > ebufptr) {
+         fprintf(stderr, "ERROR : put_transcoded_header : segment %04X "
+                         "of %d bytes past the tables\n", marker, seg_len);
+         return(-17);
+      }
+      cbufptr = seg + seg_len;
+
+      if(marker == DHT_WSQ)
+         continue;
+
+      if(marker == DQT_WSQ) {
+         buf_len = 0;
+         if((ret = putc_quantization_table(&ctx->quant_vals, dqt,
+                                           sizeof(dqt), &buf_len)) ||
+            (ret = flush_to_sink(sink, dqt, &buf_len, olen)))
+            return(ret);
+         continue;
+      }
+
+      if(marker == COM_WSQ && !nistcom_done &&
+         len - 2 >= (int)strlen(NCM_HEADER) &&
+         strncmp((char *)seg + 4, NCM_HEADER, strlen(NCM_HEADER)) == 0) {
+         nistcom_done = 1;
+         comment_text = (char *)malloc(len - 2 + 1);
+         /* The NISTCOM grows by the fields it is missing. */
+         buf = (unsigned char *)malloc(seg_len + SINK_HEADER_SIZE);
+         if(comment_text == (char *)NULL || buf == (unsigned char *)NULL) {
+            fprintf(stderr, "ERROR : put_transcoded_header : malloc\n");
+            free(comment_text);
+            free(buf);
+            return(-18);
+         }
+         memcpy(comment_text, seg + 4, len - 2);
+         comment_text[len - 2] = '\0';
+         buf_len = 0;
+         if(!(ret = putc_nistcom_wsq(comment_text, w, h, 8, ppi,
+                                     1 /* lossy */, r_bitrate, buf,
+                                     seg_len + SINK_HEADER_SIZE, &buf_len)))
+            ret = flush_to_sink(sink, buf, &buf_len, olen);
+         free(comment_text);
+         free(buf);
+         if(ret)
+            return(ret);
+         continue;
+      }
+
+      if((ret = flush_to_sink(sink, seg, &seg_len, olen)))
+         return(ret);
+   }
+
+   if(debug > 0)
+      fprintf(stderr, "SOI, tables, and frame header written\n\n");
+
+   return(0);
+}
+
+/************************************************************************/
+/* Prepares a bitrate search.  For a size target, allocates the buffer  */
+/* the header segments are written to.  For a PSNR target, keeps the    */
+/* image as the decoder would convert it back and reads the transform   */
+/* table and the shift and scale of the frame header back the way the  */
+/* decoder reads them, so the reconstruction matches the decoder's.     */
+/************************************************************************/
+static int init_target_search(TARGET_SEARCH *search, const double min_psnr)
+{
+   int ret, len;
+   unsigned char seg[SINK_HEADER_SIZE];  /* segment written and read back */
+   unsigned char *cbufptr;
+   FRM_HEADER_WSQ frm_header;
+   const int num_pix = search->w * search->h;
+
+   if(search->max_bytes > 0) {
+      search->buf_alloc = SINK_HEADER_SIZE;
+      if(search->comment_text != (char *)NULL)
+         search->buf_alloc += strlen(search->comment_text);
+      search->buf = (unsigned char *)wsq_arena_alloc(search->ctx->arena,
+                                       WSQ_ARENA_BUF, search->buf_alloc);
+      if(search->buf == (unsigned char *)NULL) {
+         fprintf(stderr, "ERROR : init_target_search : malloc : buf\n");
+         return(-13);
+      }
+      return(0);
+   }
+
+   search->ref = (unsigned char *)wsq_arena_alloc(search->ctx->arena,
+                                       WSQ_ARENA_REF, num_pix);
+   if(search->ref == (unsigned char *)NULL) {
+      fprintf(stderr, "ERROR : init_target_search : malloc : ref\n");
+      return(-14);
+   }
+   conv_img_2_uchar(search->ref, search->fdata, search->w, search->h,
+                    search->m_shift, search->r_scale);
+
+   /* Each segment starts with its marker, read by the decoder first. */
+   len = 0;
+   if((ret = putc_transform_table(lofilt, MAX_LOFILT, hifilt, MAX_HIFILT,
+                                  seg, sizeof(seg), &len)))
+      return(ret);
+   cbufptr = seg + 2;
+   if((ret = getc_transform_table(&search->dtt_table, &cbufptr, seg + len)))
+      return(ret);
+
+   len = 0;
+   if((ret = putc_frame_header_wsq(search->w, search->h, search->m_shift,
+                                   search->r_scale, seg, sizeof(seg), &len)))
+      return(ret);
+   cbufptr = seg + 2;
+   if((ret = getc_frame_header_wsq(&frm_header, &cbufptr, seg + len)))
+      return(ret);
+   search->dec_m_shift = frm_header.m_shift;
+   search->dec_r_scale = frm_header.r_scale;
+
+   /* Sum of the squared pixel errors at the PSNR asked for. */
+   search->max_sqerr = (double)num_pix * 255.0 * 255.0 /
+                       pow(10.0, min_psnr / 10.0);
+   return(0);
+}
+
+/************************************************************************/
+/* Deallocates what init_target_search allocated.                       */
+/************************************************************************/
+static void free_target_search(TARGET_SEARCH *search)
+{
+   wsq_arena_release(search->ctx->arena, search->buf);
+   search->buf = (unsigned char *)NULL;
+   wsq_arena_release(search->ctx->arena, search->ref);
+   search->ref = (unsigned char *)NULL;
+   free_wsq_decoder_resources(&search->dtt_table);
+}
+
+/************************************************************************/
+/* Quantizes the decomposed image at bitrate r_bitrate and tells if the */
+/* result meets the target of the search.                               */
+/************************************************************************/
+static int meets_target(TARGET_SEARCH *search, int *ogood,
+                   const float r_bitrate)
+{
+   int ret, size = 0;
+   double sqerr = 0.0;
+   short *qdata;                 /* quantized image pointer     */
+   int qsizes[3];                /* quantized block sizes       */
+   WSQ_CONTEXT *ctx = search->ctx;
+
+   ctx->quant_vals.r = r_bitrate;
+   if((ret = quantize_blocks(ctx, &qdata, qsizes, search->fdata,
+                             search->w, search->h)))
+      return(ret);
+
+   if(search->max_bytes > 0) {
+      ret = estimate_coded_size(search, &size, r_bitrate, qdata, qsizes);
+      if(debug > 0)
+         fprintf(stderr, "r = %f :: estimated size = %d\n", r_bitrate, size);
+      *ogood = size <= search->max_bytes;
+   }
+   else {
+      ret = reconstruction_error(search, &sqerr, qdata);
+      if(debug > 0)
+         fprintf(stderr, "r = %f :: squared error = %f\n", r_bitrate, sqerr);
+      *ogood = sqerr <= search->max_sqerr;
+   }
+   wsq_arena_release(ctx->arena, qdata);
+   return(ret);
+}
+
+/************************************************************************/
+/* Computes the size of the image coded from a quantized image, without */
+/* writing the compressed data: the header segments and huffman tables  */
+/* are written to the search buffer, and the size of each block follows */
+/* from the occurrences of each category and the length of its code.   */
+/* The zero bytes stuffed after each 0xFF byte of the compressed data   */
+/* are left out.                                                        */
+/************************************************************************/
+static int estimate_coded_size(TARGET_SEARCH *search, int *osize,
+                   const float r_bitrate, short *qdata, const int *qsizes)
+{
+   int ret, buf_len, size;
+   unsigned char *huffbits, *huffvalues; /* huffman code parameters     */
+   HUFFCODE *hufftable;          /* huffcode table              */
+   unsigned char *buf = search->buf;
+   const int buf_alloc = search->buf_alloc;
+
+   buf_len = 0;
+   if((ret = put_wsq_header(search->ctx, buf, buf_alloc, &buf_len,
+                            r_bitrate, search->m_shift, search->r_scale,
+                            search->w, search->h, search->d, search->ppi,
+                            search->comment_text)))
+      return(ret);
+   /* The EOI marker. */
+   size = buf_len + 2;
+
+   /* Block 1, with its own table. */
+   if((ret = gen_hufftable_wsq(&hufftable, &huffbits, &huffvalues,
+                              qdata, &qsizes[0], 1)))
+      return(ret);
+   buf_len = 0;
+   if((ret = putc_huffman_table(DHT_WSQ, 0, huffbits, huffvalues,
+                               buf, buf_alloc, &buf_len)) ||
+      (ret = putc_block_header(0, buf, buf_alloc, &buf_len))){
+      free(huffbits);
+      free(huffvalues);
+      free(hufftable);
+      return(ret);
+   }
+   size += buf_len + block_coded_size(qdata, qsizes[0], hufftable);
+   free(huffbits);
+   free(huffvalues);
+   free(hufftable);
+
+   /* Blocks 2 & 3, sharing a table. */
+   if((ret = gen_hufftable_wsq(&hufftable, &huffbits, &huffvalues,
+                              qdata+qsizes[0], &qsizes[1], 2)))
+      return(ret);
+   buf_len = 0;
+   if((ret = putc_huffman_table(DHT_WSQ, 1, huffbits, huffvalues,
+                               buf, buf_alloc, &buf_len)) ||
+      (ret = putc_block_header(1, buf, buf_alloc, &buf_len)) ||
+      (ret = putc_block_header(1, buf, buf_alloc, &buf_len))){
+      free(huffbits);
+      free(huffvalues);
+      free(hufftable);
+      return(ret);
+   }
+   size += buf_len + block_coded_size(qdata+qsizes[0], qsizes[1], hufftable)
+                   + block_coded_size(qdata+qsizes[0]+qsizes[1], qsizes[2],
+                                      hufftable);
+   free(huffbits);
+   free(huffvalues);
+   free(hufftable);
+
+   *osize = size;
+   return(0);
+}
+
+/************************************************************************/
+/* Number of bytes compress_block_sink writes for a quantized block,    */
+/* stuffing left out: the bits of the codes of its categories, plus the */
+/* value bits of the escape codes, padded to a byte.                    */
+/************************************************************************/
+static int block_coded_size(short *sip, const int sip_siz, HUFFCODE *codes)
+{
+   int counts[MAX_HUFFCOUNTS_WSQ+1];  /* count for each huffman category */
+   long long bits;
+   int i;
+
+   memset(counts, 0, sizeof(counts));
+   add_block_counts(counts, sip, sip_siz, MAX_HUFFCOEFF, MAX_HUFFZRUN);
+
+   bits = 0;
+   for(i = 0; i < MAX_HUFFCOUNTS_WSQ; i++)
+      bits += (long long)counts[i] * codes[i].size;
+   /* 8 and 16 bit escapes */
+   bits += 8LL * (counts[101] + counts[102] + counts[105]);
+   bits += 16LL * (counts[103] + counts[104] + counts[106]);
+
+   return((int)((bits + 7) / 8));
+}
+
+/************************************************************************/
+/* Reconstructs the image from a quantized image like the decoder does  */
+/* and returns the sum of the squared differences of its pixels to the  */
+/* original ones.                                                       */
+/************************************************************************/
+static int reconstruction_error(TARGET_SEARCH *search, double *osqerr,
+                   short *qdata)
+{
+   int ret, len, i, diff;
+   WSQ_CONTEXT *ctx = search->ctx;
+   const int num_pix = search->w * search->h;
+   unsigned char seg[SINK_HEADER_SIZE];  /* segment written and read back */
+   unsigned char *cbufptr;
+   DQT_TABLE dqt_table;          /* quantization table as decoded */
+   float *fimg;                  /* reconstructed image         */
+   float img_tmp;
+   int pix;
+   double sqerr;
+
+   /* The decoder reads the bin widths rounded as they are written. */
+   len = 0;
+   if((ret = putc_quantization_table(&ctx->quant_vals, seg, sizeof(seg),
+                                     &len)))
+      return(ret);
+   cbufptr = seg + 2;
+   if((ret = getc_quantization_table(&dqt_table, &cbufptr, seg + len)))
+      return(ret);
+
+   if((ret = unquantize_arena(&fimg, &dqt_table, ctx->q_tree, Q_TREELEN,
+                              qdata, search->w, search->h, ctx->arena,
+                              WSQ_ARENA_RECON)))
+      return(ret);
+   if((ret = wsq_reconstruct_par(fimg, search->w, search->h, ctx->w_tree,
+                                 W_TREELEN, &search->dtt_table,
+                                 ctx->parallelism, ctx->arena))){
+      wsq_arena_release(ctx->arena, fimg);
+      return(ret);
+   }
+
+   /* Rounded and clamped as in conv_img_2_uchar. */
+   sqerr = 0.0;
+   for(i = 0; i < num_pix; i++) {
+      img_tmp = (fimg[i] * search->dec_r_scale) + search->dec_m_shift;
+      img_tmp += 0.5;
+      if(img_tmp < 0.0)
+         pix = 0;
+      else if(img_tmp > 255.0)
+         pix = 255;
+      else
+         pix = (unsigned char)img_tmp;
+      diff = pix - search->ref[i];
+      sqerr += diff * diff;
+   }
+   wsq_arena_release(ctx->arena, fimg);
+
+   *osqerr = sqerr;
+   return(0);
+}
+
+/************************************************************************/
+/* Sink appending to a memory buffer, which records that it is full.    */
+/************************************************************************/
+static int target_sink_write(void *opaque, unsigned char *data, const int len)
+{
+   TARGET_SINK *target = (TARGET_SINK *)opaque;
+   int ret;
+
+   if((ret = mem_sink_write(&target->mem, data, len)))
+      target->full = 1;
+   return(ret);
+}
+
+/************************************************************************/
+/* Sink appending to a memory buffer that grows as needed.              */
+/************************************************************************/
+static int grow_sink_write(void *opaque, unsigned char *data, const int len)
+{
+   MEM_SINK *mem = (MEM_SINK *)opaque;
+   unsigned char *grown;
+   int alloc;
+
+   if(mem->len + len > mem->alloc) {
+      alloc = mem->alloc > 0 ? mem->alloc : SINK_CHUNK_SIZE;
+      while(alloc < mem->len + len)
+         alloc *= 2;
+      if((grown = (unsigned char *)realloc(mem->data, alloc)) == NULL) {
+         fprintf(stderr, "ERROR : grow_sink_write : realloc : data\n");
+         return(-13);
+      }
+      mem->data = grown;
+      mem->alloc = alloc;
+   }
+   memcpy(mem->data + mem->len, data, len);
+   mem->len += len;
+   return(0);
+}
+
+static void block_table_task(void *arg, const int index)
+{
+   BLOCK_TABLE *table = (BLOCK_TABLE *)arg + index;
+
+   table->ret = gen_hufftable_wsq(&table->hufftable, &table->huffbits,
+                                  &table->huffvalues, table->sip,
+                                  table->block_sizes, table->num_sizes);
+}
+
+static void coded_block_task(void *arg, const int index)
+{
+   CODED_BLOCK *block = (CODED_BLOCK *)arg + index;
+   WSQ_SINK sink;
+   unsigned char *chunk;
+
+   if((chunk = (unsigned char *)malloc(SINK_CHUNK_SIZE)) == NULL) {
+      fprintf(stderr, "ERROR : coded_block_task : malloc : chunk\n");
+      block->ret = -13;
+      return;
+   }
+   sink.write = grow_sink_write;
+   sink.opaque = &block->out;
+   block->ret = compress_block_sink(&sink, chunk, SINK_CHUNK_SIZE,
+                                    &block->hsize, block->sip, block->size,
+                                    MAX_HUFFCOEFF, MAX_HUFFZRUN,
+                                    block->hufftable);
+   free(chunk);
+}
+
+/************************************************************************/
+/* Second half of wsq_encode_flt_to_sink on several threads.  The two  */
+/* Huffman tables are built concurrently, then the three blocks are    */
+/* coded concurrently into memory, and everything is passed to the     */
+/* sink in the order of the sequential encoder, from the calling       */
+/* thread.  buf holds the segments not yet passed on.  Releases qdata  */
+/* and buf.                                                             */
+/************************************************************************/
+static int encode_blocks_par(const int num_threads, WSQ_ARENA *arena,
+                   WSQ_SINK *sink, int *olen, unsigned char *buf,
+                   const int buf_alloc, int buf_len, int wsq_len,
+                   short *qdata, const int qsize1,
+                   const int qsize2, const int qsize3)
+{
+   BLOCK_TABLE tables[2];
+   CODED_BLOCK blocks[3];
+   int ret, i;
+
+   memset(tables, 0, sizeof(tables));
+   memset(blocks, 0, sizeof(blocks));
+
+   /* Table 1 codes Block 1, table 2 codes Blocks 2 & 3. */
+   tables[0].sip = qdata;
+   tables[0].block_sizes[0] = qsize1;
+   tables[0].num_sizes = 1;
+   tables[1].sip = qdata + qsize1;
+   tables[1].block_sizes[0] = qsize2;
+   tables[1].block_sizes[1] = qsize3;
+   tables[1].num_sizes = 2;
+   wsq_parallel_for(2, num_threads, block_table_task, tables);
+
+   ret = tables[0].ret ? tables[0].ret : tables[1].ret;
+   if(ret == 0) {
+      blocks[0].sip = qdata;
+      blocks[0].size = qsize1;
+      blocks[0].hufftable = tables[0].hufftable;
+      blocks[1].sip = qdata + qsize1;
+      blocks[1].size = qsize2;
+      blocks[1].hufftable = tables[1].hufftable;
+      blocks[2].sip = qdata + qsize1 + qsize2;
+      blocks[2].size = qsize3;
+      blocks[2].hufftable = tables[1].hufftable;
+      wsq_parallel_for(3, num_threads, coded_block_task, blocks);
+      for(i = 0; i < 3 && ret == 0; i++)
+         ret = blocks[i].ret;
+   }
+   wsq_arena_release(arena, qdata);
+
+   /* Each table, then the header and data of the blocks it codes. */
+   for(i = 0; i < 3 && ret == 0; i++) {
+      if(i < 2)
+         ret = putc_huffman_table(DHT_WSQ, i, tables[i].huffbits,
+                                  tables[i].huffvalues,
+                                  buf, buf_alloc, &buf_len);
+      if(ret == 0)
+         ret = putc_block_header(i ? 1 : 0, buf, buf_alloc, &buf_len);
+      if(ret == 0)
+         ret = flush_to_sink(sink, buf, &buf_len, &wsq_len);
+      if(ret == 0 && blocks[i].out.len > 0)
+         ret = sink->write(sink->opaque, blocks[i].out.data,
+                           blocks[i].out.len);
+      wsq_len += blocks[i].out.len;
+   }
+
+   /* Add a End Of Image (EOI) marker to the WSQ buffer. */
+   if(ret == 0 && (ret = putc_ushort(EOI_WSQ, buf, buf_alloc, &buf_len)) == 0)
+      ret = flush_to_sink(sink, buf, &buf_len, &wsq_len);
+
+   for(i = 0; i < 2; i++) {
+      free(tables[i].hufftable);
+      free(tables[i].huffbits);
+      free(tables[i].huffvalues);
+   }
+   for(i = 0; i < 3; i++)
+      free(blocks[i].out.data);
+   wsq_arena_release(arena, buf);
+
+   if(debug > 0)
+      fprintf(stderr,
+              "hsize1 = %d :: hsize2 = %d :: hsize3 = %d\n",
+              blocks[0].hsize, blocks[1].hsize, blocks[2].hsize);
+
+   if(ret == 0)
+      *olen = wsq_len;
+   return(ret);
+}
+
+/*************************************************************/
+/* Generate a Huffman code table for a quantized data block. */
+/*************************************************************/
+int gen_hufftable_wsq(HUFFCODE **ohufftable, unsigned char **ohuffbits,
+               unsigned char **ohuffvalues, short *sip, const int *block_sizes,
+               const int num_sizes)
+{
+   int i, j;
+   int ret;
+   int adjust;          /* tells if codesize is greater than MAX_HUFFBITS */
+   int *codesize;       /* code sizes to use */
+   int last_size;       /* last huffvalue */
+   unsigned char *huffbits;     /* huffbits values */
+   unsigned char *huffvalues;   /* huffvalues */
+   int *huffcounts;     /* counts for each huffman category */
+   HUFFCODE *hufftable1, *hufftable2;  /* hufftables */
+
+   if((ret = count_block(&huffcounts, MAX_HUFFCOUNTS_WSQ,
+			 sip, block_sizes[0], MAX_HUFFCOEFF, MAX_HUFFZRUN)))
+      return(ret);
+
+   /* The other blocks sharing the table add to the same counts. */
+   for(i = 1, j = block_sizes[0]; i < num_sizes; j += block_sizes[i++])
+      add_block_counts(huffcounts, sip+j, block_sizes[i],
+                       MAX_HUFFCOEFF, MAX_HUFFZRUN);
+
+   if((ret = find_huff_sizes(&codesize, huffcounts, MAX_HUFFCOUNTS_WSQ))){
+      free(huffcounts);
+      return(ret);
+   }
+   free(huffcounts);
+
+   if((ret = find_num_huff_sizes(&huffbits, &adjust, codesize,
+                                MAX_HUFFCOUNTS_WSQ))){
+      free(codesize);
+      return(ret);
+   }
+
+   if(adjust){
+      if((ret = sort_huffbits(huffbits))){
+         free(codesize);
+         free(huffbits);
+         return(ret);
+      }
+   }
+
+   if((ret = sort_code_sizes(&huffvalues, codesize, MAX_HUFFCOUNTS_WSQ))){
+      free(codesize);
+      free(huffbits);
+      return(ret);
+   }
+   free(codesize);
+
+   if((ret = build_huffsizes(&hufftable1, &last_size,
+                              huffbits, MAX_HUFFCOUNTS_WSQ))){
+      free(huffbits);
+      free(huffvalues);
+      return(ret);
+   }
+
+   build_huffcodes(hufftable1);
+   if((ret = check_huffcodes_wsq(hufftable1, last_size))){
+      fprintf(stderr, "ERROR: This huffcode warning is an error ");
+      fprintf(stderr, "for the encoder.\n");
+      free(huffbits);
+      free(huffvalues);
+      free(hufftable1);
+      return(ret);
+   }
+
+   if((ret = build_huffcode_table(&hufftable2, hufftable1, last_size,
+                                 huffvalues, MAX_HUFFCOUNTS_WSQ))){
       free(huffbits);
       free(huffvalues);
       free(hufftable1);
@@ -528,179 +1778,207 @@ int compress_block(
    const int MaxZRun,   /* Maximum zero runs                   */
    HUFFCODE *codes)     /* huffman code table                  */
 {
-   unsigned char *optr;
+   return(compress_block_sink((WSQ_SINK *)NULL, outbuf, 0, obytes, sip,
+                              sip_siz, MaxCoeff, MaxZRun, codes));
+}
+
+/*****************************************************************/
+/* Like compress_block, but when a sink is given, outbuf is only */
+/* a chunk of outalloc bytes: it is passed to the sink whenever  */
+/* it is nearly full, and at the end.  obytes still returns the  */
+/* total number of compressed bytes.                             */
+/*****************************************************************/
+int compress_block_sink(
+   WSQ_SINK *sink,      /* receives the chunks, or NULL        */
+   unsigned char *outbuf,       /* compressed output buffer or chunk   */
+   const int outalloc,  /* chunk size, unused without a sink   */
+   int   *obytes,       /* number of compressed bytes          */
+   short *sip,          /* quantized image                     */
+   const int sip_siz,   /* size of quantized image to compress */
+   const int MaxCoeff,  /* Maximum values for coefficients     */
+   const int MaxZRun,   /* Maximum zero runs                   */
+   HUFFCODE *codes)     /* huffman code table                  */
+{
+   int ret;
+   HUFF_WRITER writer;    /* bit accumulator over the output buffer */
+   unsigned int packed[MAX_HUFFCOUNTS_WSQ+1]; /* code << 8 | size */
    int LoMaxCoeff;        /* lower (negative) MaxCoeff limit */
    short pix;             /* temp pixel pointer */
-   unsigned int rcnt = 0, state;  /* zero run count and if current pixel
-                             is in a zero run or just a coefficient */
+   unsigned int rcnt;     /* zero run count */
    int cnt;               /* pixel counter */
-   int outbit, bytes;     /* parameters used by write_bits to */
-   unsigned char bits;            /* output the "coded" image to the  */
-                          /* output buffer                    */
+   int i;
+
+   /* Pack each code with its size, so one load gets both. */
+   for(i = 0; i <= MAX_HUFFCOUNTS_WSQ; i++)
+      packed[i] = ((codes[i].code & ((1 << codes[i].size) - 1)) << 8) |
+                  codes[i].size;
 
    LoMaxCoeff = 1 - MaxCoeff;
-   optr = outbuf;
-   outbit = 7;
-   bytes = 0;
-   bits = 0;
-   state = COEFF_CODE;
-   for (cnt = 0; cnt < sip_siz; cnt++) {
-      pix = *(sip + cnt);
-
-      switch (state) {
-
-         case COEFF_CODE:
-            if (pix == 0) {
-               state = RUN_CODE;
-               rcnt = 1;
-               break;
-            }
-            if (pix > MaxCoeff) { 
-               if (pix > 255) {
-                  /* 16bit pos esc */
-                  write_bits( &optr, (unsigned short) codes[103].code,
-                              codes[103].size, &outbit, &bits, &bytes );
-                  write_bits( &optr, (unsigned short) pix, 16,
-                              &outbit, &bits, &bytes);
-               }
-               else {
-                  /* 8bit pos esc */
-                  write_bits( &optr, (unsigned short) codes[101].code,
-                              codes[101].size, &outbit, &bits, &bytes );
-                  write_bits( &optr, (unsigned short) pix, 8,
-                              &outbit, &bits, &bytes);
-               }
-            }
-            else if (pix < LoMaxCoeff) {
-               if (pix < -255) {
-                  /* 16bit neg esc */
-                  write_bits( &optr, (unsigned short) codes[104].code,
-                              codes[104].size, &outbit, &bits, &bytes );
-                  write_bits( &optr, (unsigned short) -pix, 16,
-                              &outbit, &bits, &bytes);
-               }
-               else {
-                  /* 8bit neg esc */
-                  write_bits( &optr, (unsigned short) codes[102].code,
-                              codes[102].size, &outbit, &bits, &bytes );
-                  write_bits( &optr, (unsigned short) -pix, 8,
-                              &outbit, &bits, &bytes);
-               }
-            }
-            else {
-               /* within table */
-               write_bits( &optr, (unsigned short) codes[pix+180].code,
-                           codes[pix+180].size, &outbit, &bits, &bytes);
-            }
-            break;
-
-         case RUN_CODE:
-            if (pix == 0  &&  rcnt < 0xFFFF) {
-               ++rcnt;
-               break;
-            }
-            if (rcnt <= MaxZRun) {
-               /* log zero run length */
-               write_bits( &optr, (unsigned short) codes[rcnt].code,
-                           codes[rcnt].size, &outbit, &bits, &bytes );
-            }
-            else if (rcnt <= 0xFF) {
-               /* 8bit zrun esc */
-               write_bits( &optr, (unsigned short) codes[105].code,
-                           codes[105].size, &outbit, &bits, &bytes );
-               write_bits( &optr, (unsigned short) rcnt, 8,
-                           &outbit, &bits, &bytes);
-            }
-            else if (rcnt <= 0xFFFF) {
-               /* 16bit zrun esc */
-               write_bits( &optr, (unsigned short) codes[106].code,
-                           codes[106].size, &outbit, &bits, &bytes );
-               write_bits( &optr, (unsigned short) rcnt, 16,
-                           &outbit, &bits, &bytes);
-            }
-            else {
-               fprintf(stderr,
-                      "ERROR : compress_block : zrun too large.\n");
-               return(-47);
-            }
-
-            if(pix != 0) {
-               if (pix > MaxCoeff) {
-                  /** log current pix **/
-                  if (pix > 255) {
-                     /* 16bit pos esc */
-                     write_bits( &optr, (unsigned short) codes[103].code,
-                                 codes[103].size, &outbit, &bits, &bytes );
-                     write_bits( &optr, (unsigned short) pix, 16,
-                                 &outbit, &bits, &bytes);
-                  }
-                  else {
-                     /* 8bit pos esc */
-                     write_bits( &optr, (unsigned short) codes[101].code,
-                                 codes[101].size, &outbit, &bits, &bytes );
-                     write_bits( &optr, (unsigned short) pix, 8,
-                                 &outbit, &bits, &bytes);
-                  }
-               }
-               else if (pix < LoMaxCoeff) {
-                  if (pix < -255) {
-                     /* 16bit neg esc */
-                     write_bits( &optr, (unsigned short) codes[104].code,
-                                 codes[104].size, &outbit, &bits, &bytes );
-                     write_bits( &optr, (unsigned short) -pix, 16,
-                                 &outbit, &bits, &bytes);
-                  }
-                  else {
-                     /* 8bit neg esc */
-                     write_bits( &optr, (unsigned short) codes[102].code,
-                                 codes[102].size, &outbit, &bits, &bytes );
-                     write_bits( &optr, (unsigned short) -pix, 8,
-                                 &outbit, &bits, &bytes);
-                  }
-               }
-               else {
-                  /* within table */
-                  write_bits( &optr, (unsigned short) codes[pix+180].code,
-                              codes[pix+180].size, &outbit, &bits, &bytes);
-               }
-               state = COEFF_CODE;
-            }
-            else {
-               rcnt = 1;
-               state = RUN_CODE;
-            }
-            break;
+   writer.acc = 0;
+   writer.nacc = 0;
+   writer.optr = outbuf;
+   writer.bytes = 0;
+   cnt = 0;
+   while(cnt < sip_siz) {
+      /* One coefficient or zero run writes at most 32 bits, */
+      /* i.e. 8 bytes with stuffing; keep room for them.     */
+      if (sink != (WSQ_SINK *)NULL &&
+          writer.optr - outbuf > outalloc - MAX_BLOCK_WRITE) {
+         if ((ret = sink->write(sink->opaque, outbuf, writer.optr - outbuf)))
+            return(ret);
+         writer.optr = outbuf;
       }
-   }
-   if (state == RUN_CODE) {
-      if (rcnt <= MaxZRun) {
-         write_bits( &optr, (unsigned short) codes[rcnt].code,
-                     codes[rcnt].size, &outbit, &bits, &bytes );
+      pix = sip[cnt++];
+
+      if (pix == 0) {
+         /* Zero runs are split every 0xFFFF zeros. */
+         rcnt = 1;
+         while (cnt < sip_siz && sip[cnt] == 0 && rcnt < 0xFFFF) {
+            rcnt++;
+            cnt++;
+         }
+         if (rcnt <= MaxZRun) {
+            /* log zero run length */
+            put_huff_code(&writer, packed[rcnt]);
+         }
+         else if (rcnt <= 0xFF) {
+            /* 8bit zrun esc */
+            put_huff_escape(&writer, packed[105], rcnt, 8);
+         }
+         else {
+            /* 16bit zrun esc */
+            put_huff_escape(&writer, packed[106], rcnt, 16);
+         }
       }
-      else if (rcnt <= 0xFF) {
-         write_bits( &optr, (unsigned short) codes[105].code,
-                     codes[105].size, &outbit, &bits, &bytes );
-         write_bits( &optr, (unsigned short) rcnt, 8,
-                     &outbit, &bits, &bytes);
+      else if (pix > MaxCoeff) {
+         if (pix > 255) {
+            /* 16bit pos esc */
+            put_huff_escape(&writer, packed[103], (unsigned short)pix, 16);
+         }
+         else {
+            /* 8bit pos esc */
+            put_huff_escape(&writer, packed[101], pix, 8);
+         }
       }
-      else if (rcnt <= 0xFFFF) {
-         write_bits( &optr, (unsigned short) codes[106].code,
-                     codes[106].size, &outbit, &bits, &bytes );
-         write_bits( &optr, (unsigned short) rcnt, 16,
-                     &outbit, &bits, &bytes);
+      else if (pix < LoMaxCoeff) {
+         if (pix < -255) {
+            /* 16bit neg esc */
+            put_huff_escape(&writer, packed[104], (unsigned short)-pix, 16);
+         }
+         else {
+            /* 8bit neg esc */
+            put_huff_escape(&writer, packed[102], -pix, 8);
+         }
       }
       else {
-         fprintf(stderr, "ERROR : compress_block : zrun2 too large.\n");
-         return(-48);
+         /* within table */
+         put_huff_code(&writer, packed[pix+180]);
       }
    }
 
-   flush_bits( &optr, &outbit, &bits, &bytes);
+   flush_huff_writer(&writer);
+
+   if (sink != (WSQ_SINK *)NULL && writer.optr > outbuf) {
+      if ((ret = sink->write(sink->opaque, outbuf, writer.optr - outbuf)))
+         return(ret);
+   }
 
-   *obytes = bytes;
+   *obytes = writer.bytes;
    return(0);
 }
 
+/*****************************************************************/
+/* Routine to add the 32 bits of word to the output buffer, most */
+/* significant byte first, stuffing a zero after each 0xFF byte. */
+/*****************************************************************/
+static void put_huff_word(HUFF_WRITER *writer, const unsigned int word)
+{
+   unsigned int inv = ~word;   /* has a zero byte where word has 0xFF */
+   unsigned char *optr = writer->optr;
+   int shift;
+
+   if (((inv - 0x01010101u) & ~inv & 0x80808080u) == 0) {
+      /* no 0xFF byte, the usual case */
+      optr[0] = (unsigned char)(word >> 24);
+      optr[1] = (unsigned char)(word >> 16);
+      optr[2] = (unsigned char)(word >> 8);
+      optr[3] = (unsigned char)word;
+      writer->optr = optr + 4;
+      writer->bytes += 4;
+      return;
+   }
+
+   for (shift = 24; shift >= 0; shift -= 8)
+      put_huff_byte(writer, (unsigned char)(word >> shift));
+}
+
+/*****************************************************************/
+/* Routine to add one byte to the output buffer with stuffing.   */
+/*****************************************************************/
+static void put_huff_byte(HUFF_WRITER *writer, const unsigned char byte)
+{
+   *writer->optr++ = byte;
+   writer->bytes++;
+   if (byte == 0xFF) {
+      *writer->optr++ = 0;
+      writer->bytes++;
+   }
+}
+
+/*****************************************************************/
+/* Routine to append up to 32 bits to the bit accumulator,       */
+/* passing on 32 bits whenever they are complete.                */
+/*****************************************************************/
+static void put_huff_bits(HUFF_WRITER *writer, const unsigned int bits,
+                          const int size)
+{
+   writer->acc = (writer->acc << size) | bits;
+   writer->nacc += size;
+   if (writer->nacc >= 32) {
+      writer->nacc -= 32;
+      put_huff_word(writer, (unsigned int)(writer->acc >> writer->nacc));
+   }
+}
+
+/*****************************************************************/
+/* Routine to append a packed code to the bit accumulator.       */
+/*****************************************************************/
+static void put_huff_code(HUFF_WRITER *writer, const unsigned int packed)
+{
+   put_huff_bits(writer, packed >> 8, packed & 0xFF);
+}
+
+/*****************************************************************/
+/* Routine to append an escape code followed by its value bits,  */
+/* at most 16 code bits and 16 value bits added at once.         */
+/*****************************************************************/
+static void put_huff_escape(HUFF_WRITER *writer, const unsigned int packed,
+                            const unsigned int value, const int value_size)
+{
+   put_huff_bits(writer, ((packed >> 8) << value_size) | value,
+                 (packed & 0xFF) + value_size);
+}
+
+/*****************************************************************/
+/* Routine to pass on the bits left in the accumulator, padding  */
+/* the last byte with 1 bits like flush_bits.                    */
+/*****************************************************************/
+static void flush_huff_writer(HUFF_WRITER *writer)
+{
+   int pad;
+
+   while (writer->nacc >= 8) {
+      writer->nacc -= 8;
+      put_huff_byte(writer, (unsigned char)(writer->acc >> writer->nacc));
+   }
+   if (writer->nacc > 0) {
+      pad = 8 - writer->nacc;
+      put_huff_byte(writer,
+                    (unsigned char)((writer->acc << pad) | ((1 << pad) - 1)));
+      writer->nacc = 0;
+   }
+}
+
 /*****************************************************************/
 /* This routine counts the number of occurences of each category */
 /* in the huffman coding tables.                                 */
@@ -714,11 +1992,6 @@ int count_block(
    const int MaxZRun)   /* maximum zero runs */
 {
    int *counts;         /* count for each huffman category */
-   int LoMaxCoeff;        /* lower (negative) MaxCoeff limit */
-   short pix;             /* temp pixel pointer */
-   unsigned int rcnt = 0, state;  /* zero run count and if current pixel
-                             is in a zero run or just a coefficient */
-   int cnt;               /* pixel counter */
 
    /* Ininitalize vector of counts to 0. */
    counts = (int *)calloc(max_huffcounts+1, sizeof(int));
@@ -730,90 +2003,60 @@ int count_block(
    /* Set last count to 1. */
    counts[max_huffcounts] = 1;
 
+   add_block_counts(counts, sip, sip_siz, MaxCoeff, MaxZRun);
+
+   *ocounts = counts;
+   return(0);
+}
+
+/*****************************************************************/
+/* Routine to add the categories of a block to existing counts,  */
+/* so that the blocks sharing a table are counted into one       */
+/* vector.  Splits zero runs like compress_block_sink.           */
+/*****************************************************************/
+static void add_block_counts(
+   int *counts,         /* count for each huffman category */
+   short *sip,          /* quantized data */
+   const int sip_siz,   /* size of block being compressed */
+   const int MaxCoeff,  /* maximum values for coefficients */
+   const int MaxZRun)   /* maximum zero runs */
+{
+   int LoMaxCoeff;        /* lower (negative) MaxCoeff limit */
+   short pix;             /* temp pixel pointer */
+   unsigned int rcnt;     /* zero run count */
+   int cnt;               /* pixel counter */
+
    LoMaxCoeff = 1 - MaxCoeff;
-   state = COEFF_CODE;
-   for(cnt = 0; cnt < sip_siz; cnt++) {
-      pix = *(sip + cnt);
-      switch(state) {
-
-         case COEFF_CODE:   /* for runs of zeros */
-            if(pix == 0) {
-               state = RUN_CODE;
-               rcnt = 1;
-               break;
-            }
-            if(pix > MaxCoeff) { 
-               if(pix > 255)
-                  counts[103]++; /* 16bit pos esc */
-               else
-                  counts[101]++; /* 8bit pos esc */
-            }
-            else if (pix < LoMaxCoeff) {
-               if(pix < -255)
-                  counts[104]++; /* 16bit neg esc */
-               else
-                  counts[102]++; /* 8bit neg esc */
-            }
-            else
-               counts[pix+180]++; /* within table */
-            break;
-
-         case RUN_CODE:  /* get length of zero run */
-            if(pix == 0  &&  rcnt < 0xFFFF) {
-               ++rcnt;
-               break;
-            }
-               /* limit rcnt to avoid EOF problem in bitio.c */
-            if(rcnt <= MaxZRun)
-               counts[rcnt]++;  /** log zero run length **/
-            else if(rcnt <= 0xFF)
-               counts[105]++;
-            else if(rcnt <= 0xFFFF)
-               counts[106]++; /* 16bit zrun esc */
-            else {
-               fprintf(stderr,
-               "ERROR: count_block : Zrun to long in count block.\n");
-               return(-49);
-            }
-
-            if(pix != 0) {
-               if(pix > MaxCoeff) { /** log current pix **/
-                  if(pix > 255)
-                     counts[103]++; /* 16bit pos esc */
-                  else
-                     counts[101]++; /* 8bit pos esc */
-               }
-               else if(pix < LoMaxCoeff) {
-                  if(pix < -255)
-                     counts[104]++; /* 16bit neg esc */
-                  else
-                     counts[102]++; /* 8bit neg esc */
-               }
-               else
-                  counts[pix+180]++; /* within table */
-               state = COEFF_CODE;
-            }
-            else {
-               rcnt = 1;
-               state = RUN_CODE;
-            }
-            break;
+   cnt = 0;
+   while(cnt < sip_siz) {
+      pix = sip[cnt++];
+      if(pix == 0) {
+         /* limit rcnt to avoid EOF problem in bitio.c */
+         rcnt = 1;
+         while(cnt < sip_siz && sip[cnt] == 0 && rcnt < 0xFFFF) {
+            rcnt++;
+            cnt++;
+         }
+         if(rcnt <= MaxZRun)
+            counts[rcnt]++;  /** log zero run length **/
+         else if(rcnt <= 0xFF)
+            counts[105]++;
+         else
+            counts[106]++; /* 16bit zrun esc */
       }
-   }
-   if(state == RUN_CODE){ /** log zero run length **/
-      if(rcnt <= MaxZRun)
-         counts[rcnt]++;
-      else if(rcnt <= 0xFF)
-         counts[105]++;
-      else if(rcnt <= 0xFFFF)
-         counts[106]++; /* 16bit zrun esc */
-      else {
-         fprintf(stderr,
-         "ERROR: count_block : Zrun to long in count block.\n");
-         return(-50);
+      else if(pix > MaxCoeff) {
+         if(pix > 255)
+            counts[103]++; /* 16bit pos esc */
+         else
+            counts[101]++; /* 8bit pos esc */
+      }
+      else if(pix < LoMaxCoeff) {
+         if(pix < -255)
+            counts[104]++; /* 16bit neg esc */
+         else
+            counts[102]++; /* 8bit neg esc */
       }
+      else
+         counts[pix+180]++; /* within table */
    }
-
-   *ocounts = counts;
-   return(0);
 }
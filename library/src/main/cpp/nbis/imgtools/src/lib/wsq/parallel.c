@@ -0,0 +1,427 @@
+/*******************************************************************************
+
+License: 
+This software and/or related materials was developed at the National Institute
+of Standards and Technology (NIST) by employees of the Federal Government
+in the course of their official duties. Pursuant to title 17 Section 105
+of the United States Code, this software is not subject to copyright
+protection and is in the public domain. 
+
+This software and/or related materials have been determined to be not subject
+to the EAR (see Part 734.3 of the EAR for exact details) because it is
+a publicly available technology and software, and is freely distributed
+to any interested party with no licensing requirements.  Therefore, it is 
+permissible to distribute this software as a free download from the internet.
+
+Disclaimer: 
+This software and/or related materials was developed to promote biometric
+standards and biometric technology testing for the Federal Government
+in accordance with the USA PATRIOT Act and the Enhanced Border Security
+and Visa Entry Reform Act. Specific hardware and software products identified
+in this software were used in order to perform the software development.
+In no case does such identification imply recommendation or endorsement
+by the National Institute of Standards and Technology, nor does it imply that
+the products and equipment identified are necessarily the best available
+for the purpose.
+
+This software and/or related materials are provided "AS-IS" without warranty
+of any kind including NO WARRANTY OF PERFORMANCE, MERCHANTABILITY,
+NO WARRANTY OF NON-INFRINGEMENT OF ANY 3RD PARTY INTELLECTUAL PROPERTY
+or FITNESS FOR A PARTICULAR PURPOSE or for any purpose whatsoever, for the
+licensed product, however used. In no event shall NIST be liable for any
+damages and/or costs, including but not limited to incidental or consequential
+damages of any kind, including economic damage or injury to property and lost
+profits, regardless of whether NIST shall be advised, have reason to know,
+or in fact shall know of the possibility.
+
+By using this software, you agree to bear all risk relating to quality,
+use and performance of the software and/or related materials.  You agree
+to hold the Government harmless from any claim arising from your use
+of the software.
+
+*******************************************************************************/
+
+
+/***********************************************************************
+      LIBRARY: WSQ - Grayscale Image Compression
+
+      FILE:    PARALLEL.C
+
+      Contains a process-wide pool of worker threads, sized to the
+      big cores of the device, and the multi-threaded versions of
+      get_lets and join_lets built on it.  The lines of a subband are
+      filtered independently of each other, so they are split in
+      ranges that are filtered concurrently, each with the serial
+      routine.  The pool is only created when a caller first asks for
+      more than one thread.
+
+      ROUTINES:
+#cat: wsq_max_parallelism - Returns the number of threads worth using,
+#cat:                 the number of big cores of the device.
+#cat: wsq_parallel_run - Runs a number of tasks on the worker pool and
+#cat:                 the calling thread, and waits for all of them.
+#cat: wsq_parallel_for - Runs a number of tasks on at most a given number
+#cat:                 of threads, handing them out as threads get free.
+#cat: par_get_lets - get_lets split over several threads.
+#cat:
+#cat: par_join_lets - join_lets split over several threads.
+#cat:
+
+***********************************************************************/
+
+#include <stdio.h>
+#include <string.h>
+#include <unistd.h>
+#include <pthread.h>
+#include <wsq.h>
+
+/* Fewer lines than this per thread are not worth the hand-over. */
+#define MIN_PAR_LINES  16
+/* Line ranges are kept to multiples of the widest SIMD kernel. */
+#define PAR_LINE_ALIGN  8
+
+/* A batch of tasks, shared by the threads that pick them up. */
+typedef struct wsq_job {
+   WSQ_TASK task;
+   void *arg;
+   int num_tasks;
+   int next;                /* next task to hand out */
+   int done;                /* tasks finished */
+   pthread_cond_t finished;
+   struct wsq_job *link;
+} WSQ_JOB;
+
+static pthread_once_t cores_once = PTHREAD_ONCE_INIT;
+static int big_cores = 1;
+
+static pthread_once_t pool_once = PTHREAD_ONCE_INIT;
+static pthread_mutex_t pool_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t pool_work = PTHREAD_COND_INITIALIZER;
+static WSQ_JOB *pool_jobs = NULL;   /* jobs with tasks left to hand out */
+
+/************************************************************************/
+/* Counts the cores with the highest maximum frequency class.  On      */
+/* big.LITTLE devices the little cores report a lower maximum          */
+/* frequency than every other core, so all cores faster than the       */
+/* slowest ones are counted.  All online cores are counted if the      */
+/* frequencies cannot be read or are all the same.                     */
+/************************************************************************/
+static void count_big_cores(void)
+{
+   char path[80];
+   FILE *fp;
+   long freq, min_freq = -1;
+   long freqs[64];
+   int cpu, num_cpus, big;
+
+   num_cpus = (int)sysconf(_SC_NPROCESSORS_CONF);
+   if(num_cpus > 64)
+      num_cpus = 64;
+   for(cpu = 0; cpu < num_cpus; cpu++) {
+      sprintf(path, "/sys/devices/system/cpu/cpu%d/cpufreq/cpuinfo_max_freq",
+              cpu);
+      freq = -1;
+      if((fp = fopen(path, "r")) != NULL) {
+         if(fscanf(fp, "%ld", &freq) != 1)
+            freq = -1;
+         fclose(fp);
+      }
+      if(freq <= 0)
+         break;
+      freqs[cpu] = freq;
+      if(min_freq < 0 || freq < min_freq)
+         min_freq = freq;
+   }
+
+   big = 0;
+   if(num_cpus > 0 && cpu == num_cpus) {
+      for(cpu = 0; cpu < num_cpus; cpu++)
+         if(freqs[cpu] > min_freq)
+            big++;
+   }
+   if(big == 0)
+      big = (int)sysconf(_SC_NPROCESSORS_ONLN);
+   big_cores = big > 1 ? big : 1;
+}
+
+/************************************************************************/
+/* Returns the number of threads a single encode or decode can use.    */
+/************************************************************************/
+int wsq_max_parallelism(void)
+{
+   pthread_once(&cores_once, count_big_cores);
+   return(big_cores);
+}
+
+/************************************************************************/
+/* Hands out the next task of a job, -1 once all are taken.  The job   */
+/* leaves the queue with its last task.  Called with pool_lock held.   */
+/************************************************************************/
+static int take_task(WSQ_JOB *job)
+{
+   WSQ_JOB **jp;
+   int index;
+
+   index = job->next++;
+   if(job->next == job->num_tasks) {
+      for(jp = &pool_jobs; *jp != NULL; jp = &(*jp)->link)
+         if(*jp == job) {
+            *jp = job->link;
+            break;
+         }
+   }
+   return(index);
+}
+
+/************************************************************************/
+/* Runs one task of a job and reports it finished.  Called with        */
+/* pool_lock held, which is released while the task runs.              */
+/************************************************************************/
+static void run_task(WSQ_JOB *job, const int index)
+{
+   pthread_mutex_unlock(&pool_lock);
+   job->task(job->arg, index);
+   pthread_mutex_lock(&pool_lock);
+   if(++job->done == job->num_tasks)
+      pthread_cond_signal(&job->finished);
+}
+
+static void *pool_worker(void *unused)
+{
+   WSQ_JOB *job;
+
+   (void)unused;
+   pthread_mutex_lock(&pool_lock);
+   while(1) {
+      while(pool_jobs == NULL)
+         pthread_cond_wait(&pool_work, &pool_lock);
+      job = pool_jobs;
+      run_task(job, take_task(job));
+   }
+   return(NULL);
+}
+
+/************************************************************************/
+/* Starts one worker less than there are big cores, the thread that    */
+/* submits a job always works on it too.  Workers that cannot be       */
+/* started only make the jobs run on fewer threads.                    */
+/************************************************************************/
+static void start_pool(void)
+{
+   pthread_t thread;
+   pthread_attr_t attr;
+   int i;
+
+   pthread_attr_init(&attr);
+   pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+   for(i = 1; i < wsq_max_parallelism(); i++)
+      if(pthread_create(&thread, &attr, pool_worker, NULL))
+         break;
+   pthread_attr_destroy(&attr);
+}
+
+/************************************************************************/
+/* Runs task(arg, 0) to task(arg, num_tasks-1) on the worker pool and  */
+/* the calling thread, and returns when all of them are finished.      */
+/* Several threads can submit jobs at the same time, each also works   */
+/* through its own tasks so that it never waits on a busy pool.        */
+/************************************************************************/
+void wsq_parallel_run(const int num_tasks, WSQ_TASK task, void *arg)
+{
+   WSQ_JOB job;
+   int index;
+
+   if(num_tasks <= 1 || wsq_max_parallelism() <= 1) {
+      for(index = 0; index < num_tasks; index++)
+         task(arg, index);
+      return;
+   }
+   pthread_once(&pool_once, start_pool);
+
+   job.task = task;
+   job.arg = arg;
+   job.num_tasks = num_tasks;
+   job.next = 0;
+   job.done = 0;
+   pthread_cond_init(&job.finished, NULL);
+
+   pthread_mutex_lock(&pool_lock);
+   job.link = pool_jobs;
+   pool_jobs = &job;
+   pthread_cond_broadcast(&pool_work);
+   while(job.next < num_tasks)
+      run_task(&job, take_task(&job));
+   while(job.done < num_tasks)
+      pthread_cond_wait(&job.finished, &pool_lock);
+   pthread_mutex_unlock(&pool_lock);
+
+   pthread_cond_destroy(&job.finished);
+}
+
+/* Tasks of wsq_parallel_for, taken in order by the running threads. */
+typedef struct par_for {
+   WSQ_TASK task;
+   void *arg;
+   int count;
+   int next;                /* next task to take, updated atomically */
+} PAR_FOR;
+
+static void for_task(void *arg, const int unused)
+{
+   PAR_FOR *par = (PAR_FOR *)arg;
+   int index;
+
+   (void)unused;
+   while((index = __sync_fetch_and_add(&par->next, 1)) < par->count)
+      par->task(par->arg, index);
+}
+
+/************************************************************************/
+/* Runs task(arg, 0) to task(arg, count-1) on at most num_threads      */
+/* threads, the calling thread included, and returns when all of them  */
+/* are finished.  Each thread takes the next task as soon as it is     */
+/* free, so tasks of very different sizes still keep all threads busy. */
+/* With a single thread the tasks run in order on the calling thread.  */
+/************************************************************************/
+void wsq_parallel_for(const int count, const int num_threads, WSQ_TASK task,
+                      void *arg)
+{
+   PAR_FOR par;
+   int threads, index;
+
+   threads = num_threads;
+   if(threads > wsq_max_parallelism())
+      threads = wsq_max_parallelism();
+   if(threads > count)
+      threads = count;
+   if(threads <= 1) {
+      for(index = 0; index < count; index++)
+         task(arg, index);
+      return;
+   }
+
+   par.task = task;
+   par.arg = arg;
+   par.count = count;
+   par.next = 0;
+   wsq_parallel_run(threads, for_task, &par);
+}
+
+/* Arguments of get_lets or join_lets, shared by all line ranges. */
+typedef struct par_lets {
+   int join;
+   float *new, *old;
+   int len1, len2, pitch, stride;
+   float *hi, *lo;
+   int hsz, lsz, inv;
+   int lines;               /* lines per task, the last takes the rest */
+} PAR_LETS;
+
+/************************************************************************/
+/* Filters one range of lines.  The serial routines negate the highpass */
+/* filter in place for even length filters, so every range works on    */
+/* its own copy of it.                                                  */
+/************************************************************************/
+static void lets_task(void *arg, const int index)
+{
+   PAR_LETS *par = (PAR_LETS *)arg;
+   float hi[MAX_HIFILT];
+   int first, count;
+
+   first = index * par->lines;
+   count = par->len1 - first;
+   if(count > par->lines)
+      count = par->lines;
+   memcpy(hi, par->hi, par->hsz * sizeof(float));
+
+   if(par->join)
+      join_lets(par->new + first * par->pitch, par->old + first * par->pitch,
+                count, par->len2, par->pitch, par->stride,
+                hi, par->hsz, par->lo, par->lsz, par->inv);
+   else
+      get_lets(par->new + first * par->pitch, par->old + first * par->pitch,
+               count, par->len2, par->pitch, par->stride,
+               hi, par->hsz, par->lo, par->lsz, par->inv);
+}
+
+/************************************************************************/
+/* Splits the lines of a subband in ranges for at most num_threads     */
+/* threads.  Returns the number of ranges, 1 if it is not worth it.    */
+/************************************************************************/
+static int split_lets(PAR_LETS *par, const int num_threads)
+{
+   int tasks, lines;
+
+   tasks = num_threads;
+   if(tasks > wsq_max_parallelism())
+      tasks = wsq_max_parallelism();
+   if(tasks > par->len1 / MIN_PAR_LINES)
+      tasks = par->len1 / MIN_PAR_LINES;
+   if(tasks <= 1 || par->hsz > MAX_HIFILT)
+      return(1);
+
+   lines = (par->len1 + tasks - 1) / tasks;
+   lines = (lines + PAR_LINE_ALIGN - 1) / PAR_LINE_ALIGN * PAR_LINE_ALIGN;
+   par->lines = lines;
+   return((par->len1 + lines - 1) / lines);
+}
+
+/************************************************************************/
+/* get_lets using up to num_threads threads.                           */
+/************************************************************************/
+void par_get_lets(float *new, float *old, const int len1, const int len2,
+                  const int pitch, const int stride,
+                  float *hi, const int hsz, float *lo, const int lsz,
+                  const int inv, const int num_threads)
+{
+   PAR_LETS par;
+   int tasks;
+
+   par.join = 0;
+   par.new = new;
+   par.old = old;
+   par.len1 = len1;
+   par.len2 = len2;
+   par.pitch = pitch;
+   par.stride = stride;
+   par.hi = hi;
+   par.hsz = hsz;
+   par.lo = lo;
+   par.lsz = lsz;
+   par.inv = inv;
+
+   if((tasks = split_lets(&par, num_threads)) <= 1)
+      get_lets(new, old, len1, len2, pitch, stride, hi, hsz, lo, lsz, inv);
+   else
+      wsq_parallel_run(tasks, lets_task, &par);
+}
+
+/************************************************************************/
+/* join_lets using up to num_threads threads.                          */
+/************************************************************************/
+void par_join_lets(float *new, float *old, const int len1, const int len2,
+                   const int pitch, const int stride,
+                   float *hi, const int hsz, float *lo, const int lsz,
+                   const int inv, const int num_threads)
+{
+   PAR_LETS par;
+   int tasks;
+
+   par.join = 1;
+   par.new = new;
+   par.old = old;
+   par.len1 = len1;
+   par.len2 = len2;
+   par.pitch = pitch;
+   par.stride = stride;
+   par.hi = hi;
+   par.hsz = hsz;
+   par.lo = lo;
+   par.lsz = lsz;
+   par.inv = inv;
+
+   if((tasks = split_lets(&par, num_threads)) <= 1)
+      join_lets(new, old, len1, len2, pitch, stride, hi, hsz, lo, lsz, inv);
+   else
+      wsq_parallel_run(tasks, lets_task, &par);
+}
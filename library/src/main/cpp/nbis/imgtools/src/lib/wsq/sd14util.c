@@ -135,33 +135,33 @@ int wsq14_decode_file(unsigned char **odata, int *owidth, int *oheight,
    short *qdata;
 
    /* Added by MDG on 02-24-05 */
-   init_wsq_decoder_resources();
+   init_wsq_decoder_resources(&dtt_table);
 
    /* Read the SOI_WSQ marker. */
    if((ret = read_marker_wsq(&marker, SOI_WSQ, infp))){
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&dtt_table);
       return(ret);
    }
 
    /* Read in supporting tables up to the SOF_WSQ marker. */
    if((ret = read_marker_wsq(&marker, TBLS_N_SOF, infp))){
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&dtt_table);
       return(ret);
    }
    while(marker != SOF_WSQ) {
       if((ret = read_table_wsq14(marker, &dtt_table, &dqt_table, dht_table, infp))){
-         free_wsq_decoder_resources();
+         free_wsq_decoder_resources(&dtt_table);
          return(ret);
       }
       if((ret = read_marker_wsq(&marker, TBLS_N_SOF, infp))){
-         free_wsq_decoder_resources();
+         free_wsq_decoder_resources(&dtt_table);
          return(ret);
       }
    }
 
    /* Read in the Frame Header. */
    if((ret = read_frame_header_wsq(&frm_header_wsq, infp))){
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&dtt_table);
       return(ret);
    }
    width = frm_header_wsq.width;
@@ -181,7 +181,7 @@ int wsq14_decode_file(unsigned char **odata, int *owidth, int *oheight,
    qdata = (short *) malloc(num_pix * sizeof(short));
    if(qdata == (short *)NULL) {
       fprintf(stderr,"ERROR: wsq_decode_1 : malloc : qdata1\n");
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&dtt_table);
       return(-20);
    }
 
@@ -189,7 +189,7 @@ int wsq14_decode_file(unsigned char **odata, int *owidth, int *oheight,
    if((ret = huffman_decode_data_file_wsq14(qdata, &dtt_table, &dqt_table,
                                            dht_table, infp))){
       free(qdata);
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&dtt_table);
       return(ret);
    }
 
@@ -201,7 +201,7 @@ int wsq14_decode_file(unsigned char **odata, int *owidth, int *oheight,
    if((ret = unquantize(&fdata, &dqt_table, q_tree, Q_TREELEN,
                          qdata, width, height))){
       free(qdata);
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&dtt_table);
       return(ret);
    }
 
@@ -214,7 +214,7 @@ int wsq14_decode_file(unsigned char **odata, int *owidth, int *oheight,
    if((ret = wsq_reconstruct(fdata, width, height, w_tree, W_TREELEN,
                               &dtt_table))){
       free(fdata);
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&dtt_table);
       return(ret);
    }
 
@@ -224,7 +224,7 @@ int wsq14_decode_file(unsigned char **odata, int *owidth, int *oheight,
    cdata = (unsigned char *)malloc(num_pix * sizeof(unsigned char));
    if(cdata == (unsigned char *)NULL) {
       free(fdata);
-      free_wsq_decoder_resources();
+      free_wsq_decoder_resources(&dtt_table);
       fprintf(stderr,"ERROR: wsq_decode_1 : malloc : cdata\n");
       return(-21);
    }
@@ -237,7 +237,7 @@ int wsq14_decode_file(unsigned char **odata, int *owidth, int *oheight,
    free(fdata);
 
    /* Added by MDG on 02-24-05 */
-   free_wsq_decoder_resources();
+   free_wsq_decoder_resources(&dtt_table);
 
   if(debug > 0)
       fprintf(stderr, "Doubleing point pixels converted to unsigned char\n\n");
@@ -0,0 +1,1007 @@
+/*******************************************************************************
+
+License: 
+This software and/or related materials was developed at the National Institute
+of Standards and Technology (NIST) by employees of the Federal Government
+in the course of their official duties. Pursuant to title 17 Section 105
+of the United States Code, this software is not subject to copyright
+protection and is in the public domain. 
+
+This software and/or related materials have been determined to be not subject
+to the EAR (see Part 734.3 of the EAR for exact details) because it is
+a publicly available technology and software, and is freely distributed
+to any interested party with no licensing requirements.  Therefore, it is 
+permissible to distribute this software as a free download from the internet.
+
+Disclaimer: 
+This software and/or related materials was developed to promote biometric
+standards and biometric technology testing for the Federal Government
+in accordance with the USA PATRIOT Act and the Enhanced Border Security
+and Visa Entry Reform Act. Specific hardware and software products identified
+in this software were used in order to perform the software development.
+In no case does such identification imply recommendation or endorsement
+by the National Institute of Standards and Technology, nor does it imply that
+the products and equipment identified are necessarily the best available
+for the purpose.
+
+This software and/or related materials are provided "AS-IS" without warranty
+of any kind including NO WARRANTY OF PERFORMANCE, MERCHANTABILITY,
+NO WARRANTY OF NON-INFRINGEMENT OF ANY 3RD PARTY INTELLECTUAL PROPERTY
+or FITNESS FOR A PARTICULAR PURPOSE or for any purpose whatsoever, for the
+licensed product, however used. In no event shall NIST be liable for any
+damages and/or costs, including but not limited to incidental or consequential
+damages of any kind, including economic damage or injury to property and lost
+profits, regardless of whether NIST shall be advised, have reason to know,
+or in fact shall know of the possibility.
+
+By using this software, you agree to bear all risk relating to quality,
+use and performance of the software and/or related materials.  You agree
+to hold the Government harmless from any claim arising from your use
+of the software.
+
+*******************************************************************************/
+
+
+/***********************************************************************
+      LIBRARY: WSQ - Grayscale Image Compression
+
+      FILE:    SIMDLETS.C
+
+      Contains vectorized versions of get_lets and join_lets.  The
+      pointer walks of the scalar routines, which carry the symmetric
+      extension at the subband edges, are run once per call to list the
+      taps of every output sample in the order the scalar code adds
+      them.  The taps are then applied to several rows or columns at
+      once with NEON, SSE or AVX, in the same order, so the results
+      match the scalar routines on targets that do not fuse the
+      multiply and add.
+
+      ROUTINES:
+#cat: simd_get_lets - Vectorized get_lets, returns non-zero if the
+#cat:                 scalar routine has to be used instead.
+#cat: simd_join_lets - Vectorized join_lets, returns non-zero if the
+#cat:                 scalar routine has to be used instead.
+#cat: build_get_prog - Lists the taps of get_lets for one line.
+#cat:
+#cat: build_join_prog - Lists the taps of join_lets for one line.
+#cat:
+#cat: run_lets - Applies the listed taps to all lines of a subband.
+#cat:
+
+***********************************************************************/
+
+#include <stdlib.h>
+#include <string.h>
+#include <pthread.h>
+#include <wsq.h>
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#define LETS_NEON
+#elif defined(__SSE__) || defined(__x86_64__)
+#include <immintrin.h>
+#define LETS_SSE
+#endif
+
+/* Filters longer than this are left to the scalar routines. */
+#define MAX_LETS_TAPS  32
+
+#define LETS_SET   0
+#define LETS_ADD   1
+#define LETS_ZERO  2
+
+/* One multiply of a filter tap with an input sample. */
+typedef struct lets_term {
+   float coef;
+   int src;          /* sample index in the input line */
+} LETS_TERM;
+
+/* A write of the scalar routine to an output sample. */
+typedef struct lets_event {
+   int out;
+   int kind;         /* LETS_SET, LETS_ADD or LETS_ZERO */
+   float coef;
+   int src;
+} LETS_EVENT;
+
+/* The taps of every output sample of a line.  Sample o is the sum */
+/* of terms[first[o]] to terms[first[o+1]-1], added in that order, */
+/* starting from 0.0 instead of the first product if zero[o] is set. */
+typedef struct lets_prog {
+   int len;
+   int *first;
+   char *zero;
+   LETS_TERM *terms;
+   LETS_EVENT *events;
+   int num_events, max_events;
+} LETS_PROG;
+
+typedef void (*LETS_KERNEL)(const LETS_PROG *, const float *, float *);
+
+static int build_get_prog(LETS_PROG *, const int, float *, const int,
+                 float *, const int, const int);
+static int build_join_prog(LETS_PROG *, const int, float *, const int,
+                 float *, const int, const int);
+static int run_lets(const int, float *, float *, const int, const int,
+                 const int, const int, float *, const int, float *,
+                 const int, const int);
+
+/************************************************************************/
+/* Records a write of the scalar routine to output sample out.          */
+/************************************************************************/
+static void lets_event(LETS_PROG *prog, const int out, const int kind,
+                       const float coef, const int src)
+{
+   LETS_EVENT *event;
+
+   /* Overflows are detected by finish_prog. */
+   if(prog->num_events < prog->max_events) {
+      event = prog->events + prog->num_events;
+      event->out = out;
+      event->kind = kind;
+      event->coef = coef;
+      event->src = src;
+   }
+   prog->num_events++;
+}
+
+/************************************************************************/
+/* Sorts the recorded writes by output sample and keeps, for each one,  */
+/* the writes after its last assignment.  Returns non-zero if a sample  */
+/* is never assigned or a write falls outside of the line.              */
+/************************************************************************/
+static int finish_prog(LETS_PROG *prog)
+{
+   int o, e, t, n;
+   int *start;
+   LETS_EVENT *event;
+
+   if(prog->num_events > prog->max_events)
+      return(-1);
+
+   n = prog->len;
+   /* Counting sort of the events by output sample, keeping their order. */
+   start = (int *)calloc(n + 1, sizeof(int));
+   prog->first = (int *)malloc((n + 1) * sizeof(int));
+   prog->zero = (char *)malloc(n);
+   prog->terms = (LETS_TERM *)malloc(prog->num_events * sizeof(LETS_TERM));
+   if(start == NULL || prog->first == NULL || prog->zero == NULL ||
+      prog->terms == NULL) {
+      free(start);
+      return(-1);
+   }
+   for(e = 0; e < prog->num_events; e++) {
+      event = prog->events + e;
+      if(event->out < 0 || event->out >= n ||
+         (event->kind != LETS_ZERO && (event->src < 0 || event->src >= n))) {
+         free(start);
+         return(-1);
+      }
+      start[event->out + 1]++;
+   }
+   for(o = 0; o < n; o++)
+      start[o + 1] += start[o];
+
+   /* Use the terms array as scratch for the sorted events. */
+   {
+      LETS_EVENT *sorted;
+      int *next = prog->first;
+
+      sorted = (LETS_EVENT *)malloc(prog->num_events * sizeof(LETS_EVENT));
+      if(sorted == NULL) {
+         free(start);
+         return(-1);
+      }
+      memcpy(next, start, n * sizeof(int));
+      for(e = 0; e < prog->num_events; e++)
+         sorted[next[prog->events[e].out]++] = prog->events[e];
+
+      t = 0;
+      for(o = 0; o < n; o++) {
+         int set = -1;
+         for(e = start[o]; e < start[o + 1]; e++)
+            if(sorted[e].kind != LETS_ADD)
+               set = e;
+         if(set < 0) {
+            free(sorted);
+            free(start);
+            return(-1);
+         }
+         prog->first[o] = t;
+         prog->zero[o] = sorted[set].kind == LETS_ZERO;
+         for(e = set + prog->zero[o]; e < start[o + 1]; e++) {
+            prog->terms[t].coef = sorted[e].coef;
+            prog->terms[t].src = sorted[e].src;
+            t++;
+         }
+      }
+      prog->first[n] = t;
+      free(sorted);
+   }
+   free(start);
+   return(0);
+}
+
+/************************************************************************/
+/* Releases a tap list.                                                 */
+/************************************************************************/
+static void free_prog(LETS_PROG *prog)
+{
+   free(prog->events);
+   free(prog->first);
+   free(prog->zero);
+   free(prog->terms);
+}
+
+/************************************************************************/
+/* Allocates the writes of a line of len2 samples.                      */
+/************************************************************************/
+static int init_prog(LETS_PROG *prog, const int len2, const int hsz,
+                     const int lsz)
+{
+   memset(prog, 0, sizeof(LETS_PROG));
+   if(len2 < 2 || hsz > MAX_LETS_TAPS || lsz > MAX_LETS_TAPS)
+      return(-1);
+   prog->len = len2;
+   prog->max_events = len2 * (hsz + lsz + 2) + 4;
+   prog->events = (LETS_EVENT *)malloc(prog->max_events * sizeof(LETS_EVENT));
+   if(prog->events == NULL)
+      return(-1);
+   return(0);
+}
+
+/************************************************************************/
+/* Follows get_lets in util.c for a single line with a stride of 1,     */
+/* recording its writes instead of filtering.                           */
+/************************************************************************/
+static int build_get_prog(
+   LETS_PROG *prog,
+   const int len2,
+   float *hi,
+   const int hsz,
+   float *lo,
+   const int lsz,
+   const int inv)
+{
+   int lopass, hipass;
+   int p0, p1;
+   int pix;
+   int i, da_ev;
+   int fi_ev;
+   int loc, hoc, nstr, pstr;
+   int llen, hlen;
+   int lpxstr, lspxstr;
+   int lpx, lspx;
+   int hpxstr, hspxstr;
+   int hpx, hspx;
+   int olle, ohle;
+   int olre, ohre;
+   int lle, lle2;
+   int lre, lre2;
+   int hle, hle2;
+   int hre, hre2;
+   float hic[MAX_LETS_TAPS];
+
+   if(init_prog(prog, len2, hsz, lsz))
+      return(-1);
+
+   da_ev = len2 % 2;
+   fi_ev = lsz % 2;
+
+   for(i = 0; i < hsz; i++)
+      hic[i] = hi[i];
+
+   if(fi_ev) {
+      loc = (lsz-1)/2;
+      hoc = (hsz-1)/2 - 1;
+      olle = 0;
+      ohle = 0;
+      olre = 0;
+      ohre = 0;
+   }
+   else {
+      loc = lsz/2 - 2;
+      hoc = hsz/2 - 2;
+      olle = 1;
+      ohle = 1;
+      olre = 1;
+      ohre = 1;
+
+      if(loc == -1) {
+         loc = 0;
+         olle = 0;
+      }
+      if(hoc == -1) {
+         hoc = 0;
+         ohle = 0;
+      }
+
+      for(i = 0; i < hsz; i++)
+         hic[i] *= -1.0;
+   }
+
+   pstr = 1;
+   nstr = -pstr;
+
+   if(da_ev) {
+      llen = (len2+1)/2;
+      hlen = llen - 1;
+   }
+   else {
+      llen = len2/2;
+      hlen = llen;
+   }
+
+   if(inv) {
+      hipass = 0;
+      lopass = hipass + hlen;
+   }
+   else {
+      lopass = 0;
+      hipass = lopass + llen;
+   }
+
+   p0 = 0;
+   p1 = p0 + (len2-1);
+
+   lspx = p0 + loc;
+   lspxstr = nstr;
+   lle2 = olle;
+   lre2 = olre;
+   hspx = p0 + hoc;
+   hspxstr = nstr;
+   hle2 = ohle;
+   hre2 = ohre;
+   for(pix = 0; pix < hlen; pix++) {
+      lpxstr = lspxstr;
+      lpx = lspx;
+      lle = lle2;
+      lre = lre2;
+      lets_event(prog, lopass, LETS_SET, lo[0], lpx);
+      for(i = 1; i < lsz; i++) {
+         if(lpx == p0){
+            if(lle) {
+               lpxstr = 0;
+               lle = 0;
+            }
+            else
+               lpxstr = pstr;
+         }
+         if(lpx == p1){
+            if(lre) {
+               lpxstr = 0;
+               lre = 0;
+            }
+            else
+               lpxstr = nstr;
+         }
+         lpx += lpxstr;
+         lets_event(prog, lopass, LETS_ADD, lo[i], lpx);
+      }
+      lopass++;
+
+      hpxstr = hspxstr;
+      hpx = hspx;
+      hle = hle2;
+      hre = hre2;
+      lets_event(prog, hipass, LETS_SET, hic[0], hpx);
+      for(i = 1; i < hsz; i++) {
+         if(hpx == p0){
+            if(hle) {
+               hpxstr = 0;
+               hle = 0;
+            }
+            else
+               hpxstr = pstr;
+         }
+         if(hpx == p1){
+            if(hre) {
+               hpxstr = 0;
+               hre = 0;
+            }
+            else
+               hpxstr = nstr;
+         }
+         hpx += hpxstr;
+         lets_event(prog, hipass, LETS_ADD, hic[i], hpx);
+      }
+      hipass++;
+
+      for(i = 0; i < 2; i++) {
+         if(lspx == p0){
+            if(lle2) {
+               lspxstr = 0;
+               lle2 = 0;
+            }
+            else
+               lspxstr = pstr;
+         }
+         lspx += lspxstr;
+         if(hspx == p0){
+            if(hle2) {
+               hspxstr = 0;
+               hle2 = 0;
+            }
+            else
+               hspxstr = pstr;
+         }
+         hspx += hspxstr;
+      }
+   }
+   if(da_ev) {
+      lpxstr = lspxstr;
+      lpx = lspx;
+      lle = lle2;
+      lre = lre2;
+      lets_event(prog, lopass, LETS_SET, lo[0], lpx);
+      for(i = 1; i < lsz; i++) {
+         if(lpx == p0){
+            if(lle) {
+               lpxstr = 0;
+               lle = 0;
+            }
+            else
+               lpxstr = pstr;
+         }
+         if(lpx == p1){
+            if(lre) {
+               lpxstr = 0;
+               lre = 0;
+            }
+            else
+               lpxstr = nstr;
+         }
+         lpx += lpxstr;
+         lets_event(prog, lopass, LETS_ADD, lo[i], lpx);
+      }
+   }
+
+   return(finish_prog(prog));
+}
+
+/************************************************************************/
+/* Follows join_lets in util.c for a single line with a stride of 1,    */
+/* recording its writes instead of filtering.                           */
+/************************************************************************/
+static int build_join_prog(
+   LETS_PROG *prog,
+   const int len2,
+   float *hi,
+   const int hsz,
+   float *lo,
+   const int lsz,
+   const int inv)
+{
+   int lp0, lp1;
+   int hp0, hp1;
+   int lopass, hipass;
+   int limg, himg;
+   int pix;
+   int i, da_ev;
+   int loc, hoc;
+   int hlen, llen;
+   int nstr, pstr;
+   int tap;
+   int fi_ev;
+   int olle, ohle, olre, ohre;
+   int lle, lle2, lre, lre2;
+   int hle, hle2, hre, hre2;
+   int lpx, lspx;
+   int lpxstr, lspxstr;
+   int lstap, lotap;
+   int hpx, hspx;
+   int hpxstr, hspxstr;
+   int hstap, hotap;
+   int asym, fhre = 0, ofhre;
+   float ssfac, osfac, sfac;
+   float hic[MAX_LETS_TAPS];
+
+   if(init_prog(prog, len2, hsz, lsz))
+      return(-1);
+
+   for(i = 0; i < hsz; i++)
+      hic[i] = hi[i];
+
+   da_ev = len2 % 2;
+   fi_ev = lsz % 2;
+   pstr = 1;
+   nstr = -pstr;
+   if(da_ev) {
+      llen = (len2+1)/2;
+      hlen = llen - 1;
+   }
+   else {
+      llen = len2/2;
+      hlen = llen;
+   }
+
+   if(fi_ev) {
+      asym = 0;
+      ssfac = 1.0;
+      ofhre = 0;
+      loc = (lsz-1)/4;
+      hoc = (hsz+1)/4 - 1;
+      lotap = ((lsz-1)/2) % 2;
+      hotap = ((hsz+1)/2) % 2;
+      if(da_ev) {
+         olle = 0;
+         olre = 0;
+         ohle = 1;
+         ohre = 1;
+      }
+      else {
+         olle = 0;
+         olre = 1;
+         ohle = 1;
+         ohre = 0;
+      }
+   }
+   else {
+      asym = 1;
+      ssfac = -1.0;
+      ofhre = 2;
+      loc = lsz/4 - 1;
+      hoc = hsz/4 - 1;
+      lotap = (lsz/2) % 2;
+      hotap = (hsz/2) % 2;
+      if(da_ev) {
+         olle = 1;
+         olre = 0;
+         ohle = 1;
+         ohre = 1;
+      }
+      else {
+         olle = 1;
+         olre = 1;
+         ohle = 1;
+         ohre = 1;
+      }
+
+      if(loc == -1) {
+         loc = 0;
+         olle = 0;
+      }
+      if(hoc == -1) {
+         hoc = 0;
+         ohle = 0;
+      }
+
+      for(i = 0; i < hsz; i++)
+         hic[i] *= -1.0;
+   }
+
+   limg = 0;
+   himg = limg;
+   lets_event(prog, himg, LETS_ZERO, 0.0, 0);
+   lets_event(prog, himg + 1, LETS_ZERO, 0.0, 0);
+   if(inv) {
+      hipass = 0;
+      lopass = hipass + hlen;
+   }
+   else {
+      lopass = 0;
+      hipass = lopass + llen;
+   }
+
+   lp0 = lopass;
+   lp1 = lp0 + (llen-1);
+   lspx = lp0 + loc;
+   lspxstr = nstr;
+   lstap = lotap;
+   lle2 = olle;
+   lre2 = olre;
+
+   hp0 = hipass;
+   hp1 = hp0 + (hlen-1);
+   hspx = hp0 + hoc;
+   hspxstr = nstr;
+   hstap = hotap;
+   hle2 = ohle;
+   hre2 = ohre;
+   osfac = ssfac;
+
+   for(pix = 0; pix < hlen; pix++) {
+      for(tap = lstap; tap >=0; tap--) {
+         lle = lle2;
+         lre = lre2;
+         lpx = lspx;
+         lpxstr = lspxstr;
+
+         lets_event(prog, limg, LETS_SET, lo[tap], lpx);
+         for(i = tap+2; i < lsz; i += 2) {
+            if(lpx == lp0){
+               if(lle) {
+                  lpxstr = 0;
+                  lle = 0;
+               }
+               else
+                  lpxstr = pstr;
+            }
+            if(lpx == lp1) {
+               if(lre) {
+                  lpxstr = 0;
+                  lre = 0;
+               }
+               else
+                  lpxstr = nstr;
+            }
+            lpx += lpxstr;
+            lets_event(prog, limg, LETS_ADD, lo[i], lpx);
+         }
+         limg++;
+      }
+      if(lspx == lp0){
+         if(lle2) {
+            lspxstr = 0;
+            lle2 = 0;
+         }
+         else
+            lspxstr = pstr;
+      }
+      lspx += lspxstr;
+      lstap = 1;
+
+      for(tap = hstap; tap >=0; tap--) {
+         hle = hle2;
+         hre = hre2;
+         hpx = hspx;
+         hpxstr = hspxstr;
+         fhre = ofhre;
+         sfac = osfac;
+
+         for(i = tap; i < hsz; i += 2) {
+            if(hpx == hp0) {
+               if(hle) {
+                  hpxstr = 0;
+                  hle = 0;
+               }
+               else {
+                  hpxstr = pstr;
+                  sfac = 1.0;
+               }
+            }
+            if(hpx == hp1) {
+               if(hre) {
+                  hpxstr = 0;
+                  hre = 0;
+                  if(asym && da_ev) {
+                     hre = 1;
+                     fhre--;
+                     sfac = (float)fhre;
+                     if(sfac == 0.0)
+                        hre = 0;
+                  }
+               }
+               else {
+                  hpxstr = nstr;
+                  if(asym)
+                     sfac = -1.0;
+               }
+            }
+            lets_event(prog, himg, LETS_ADD, hic[i] * sfac, hpx);
+            hpx += hpxstr;
+         }
+         himg++;
+      }
+      if(hspx == hp0) {
+         if(hle2) {
+            hspxstr = 0;
+            hle2 = 0;
+         }
+         else {
+            hspxstr = pstr;
+            osfac = 1.0;
+         }
+      }
+      hspx += hspxstr;
+      hstap = 1;
+   }
+
+
+   if(da_ev)
+      if(lotap)
+         lstap = 1;
+      else
+         lstap = 0;
+   else
+      if(lotap)
+         lstap = 2;
+      else
+         lstap = 1;
+
+   for(tap = 1; tap >= lstap; tap--) {
+      lle = lle2;
+      lre = lre2;
+      lpx = lspx;
+      lpxstr = lspxstr;
+
+      lets_event(prog, limg, LETS_SET, lo[tap], lpx);
+      for(i = tap+2; i < lsz; i += 2) {
+         if(lpx == lp0){
+            if(lle) {
+               lpxstr = 0;
+               lle = 0;
+            }
+            else
+               lpxstr = pstr;
+         }
+         if(lpx == lp1) {
+            if(lre) {
+               lpxstr = 0;
+               lre = 0;
+            }
+            else
+               lpxstr = nstr;
+         }
+         lpx += lpxstr;
+         lets_event(prog, limg, LETS_ADD, lo[i], lpx);
+      }
+      limg++;
+   }
+
+
+   if(da_ev) {
+      if(hotap)
+         hstap = 1;
+      else
+         hstap = 0;
+
+      if(hsz == 2) {
+         hspx -= hspxstr;
+         fhre = 1;
+      }
+   }
+   else
+      if(hotap)
+         hstap = 2;
+      else
+         hstap = 1;
+
+
+   for(tap = 1; tap >= hstap; tap--) {
+      hle = hle2;
+      hre = hre2;
+      hpx = hspx;
+      hpxstr = hspxstr;
+      sfac = osfac;
+      if(hsz != 2)
+         fhre = ofhre;
+
+      for(i = tap; i < hsz; i += 2) {
+         if(hpx == hp0) {
+            if(hle) {
+               hpxstr = 0;
+               hle = 0;
+            }
+            else {
+               hpxstr = pstr;
+               sfac = 1.0;
+            }
+         }
+         if(hpx == hp1) {
+            if(hre) {
+               hpxstr = 0;
+               hre = 0;
+               if(asym && da_ev) {
+                  hre = 1;
+                  fhre--;
+                  sfac = (float)fhre;
+                  if(sfac == 0.0)
+                     hre = 0;
+               }
+            }
+            else {
+               hpxstr = nstr;
+               if(asym)
+                  sfac = -1.0;
+            }
+         }
+         lets_event(prog, himg, LETS_ADD, hic[i] * sfac, hpx);
+         hpx += hpxstr;
+      }
+      himg++;
+   }
+
+   return(finish_prog(prog));
+}
+
+/************************************************************************/
+/* Kernels applying a tap list to a group of interleaved lines: sample  */
+/* s of line l is in[s * lanes + l], output sample o of line l goes to  */
+/* out[o * lanes + l].  Each product is rounded before it is added, as  */
+/* in the scalar routines.                                              */
+/************************************************************************/
+#if defined(LETS_NEON)
+static void lets_kernel_4(const LETS_PROG *prog, const float *in, float *out)
+{
+   int o, t;
+   const LETS_TERM *term;
+   float32x4_t acc;
+
+   for(o = 0; o < prog->len; o++) {
+      t = prog->first[o];
+      term = prog->terms + t;
+      if(prog->zero[o])
+         acc = vdupq_n_f32(0.0f);
+      else {
+         acc = vmulq_n_f32(vld1q_f32(in + term->src * 4), term->coef);
+         t++;
+         term++;
+      }
+      for(; t < prog->first[o + 1]; t++, term++)
+         acc = vaddq_f32(acc,
+                         vmulq_n_f32(vld1q_f32(in + term->src * 4), term->coef));
+      vst1q_f32(out + o * 4, acc);
+   }
+}
+#elif defined(LETS_SSE)
+static void lets_kernel_4(const LETS_PROG *prog, const float *in, float *out)
+{
+   int o, t;
+   const LETS_TERM *term;
+   __m128 acc;
+
+   for(o = 0; o < prog->len; o++) {
+      t = prog->first[o];
+      term = prog->terms + t;
+      if(prog->zero[o])
+         acc = _mm_setzero_ps();
+      else {
+         acc = _mm_mul_ps(_mm_loadu_ps(in + term->src * 4),
+                          _mm_set1_ps(term->coef));
+         t++;
+         term++;
+      }
+      for(; t < prog->first[o + 1]; t++, term++)
+         acc = _mm_add_ps(acc, _mm_mul_ps(_mm_loadu_ps(in + term->src * 4),
+                                          _mm_set1_ps(term->coef)));
+      _mm_storeu_ps(out + o * 4, acc);
+   }
+}
+
+__attribute__((target("avx")))
+static void lets_kernel_8(const LETS_PROG *prog, const float *in, float *out)
+{
+   int o, t;
+   const LETS_TERM *term;
+   __m256 acc;
+
+   for(o = 0; o < prog->len; o++) {
+      t = prog->first[o];
+      term = prog->terms + t;
+      if(prog->zero[o])
+         acc = _mm256_setzero_ps();
+      else {
+         acc = _mm256_mul_ps(_mm256_loadu_ps(in + term->src * 8),
+                             _mm256_set1_ps(term->coef));
+         t++;
+         term++;
+      }
+      for(; t < prog->first[o + 1]; t++, term++)
+         acc = _mm256_add_ps(acc,
+                             _mm256_mul_ps(_mm256_loadu_ps(in + term->src * 8),
+                                           _mm256_set1_ps(term->coef)));
+      _mm256_storeu_ps(out + o * 8, acc);
+   }
+}
+#endif
+
+static LETS_KERNEL lets_kernel = NULL;
+static int lets_lanes = 0;
+static pthread_once_t lets_once = PTHREAD_ONCE_INIT;
+
+/************************************************************************/
+/* Picks the widest kernel the CPU runs.                                */
+/************************************************************************/
+static void select_lets_kernel(void)
+{
+#if defined(LETS_NEON)
+   lets_kernel = lets_kernel_4;
+   lets_lanes = 4;
+#elif defined(LETS_SSE)
+   if(__builtin_cpu_supports("avx")) {
+      lets_kernel = lets_kernel_8;
+      lets_lanes = 8;
+   }
+   else {
+      lets_kernel = lets_kernel_4;
+      lets_lanes = 4;
+   }
+#endif
+}
+
+/************************************************************************/
+/* Filters the len1 lines of a subband lanes at a time.  Returns        */
+/* non-zero without touching the output if the taps cannot be listed    */
+/* or memory runs out.                                                  */
+/************************************************************************/
+static int run_lets(
+   const int join,
+   float *new,
+   float *old,
+   const int len1,
+   const int len2,
+   const int pitch,
+   const int stride,
+   float *hi,
+   const int hsz,
+   float *lo,
+   const int lsz,
+   const int inv)
+{
+   LETS_PROG prog;
+   float *in, *out;
+   int line, lanes, n, s, l;
+   const float *src;
+   float *dst;
+
+   pthread_once(&lets_once, select_lets_kernel);
+   if(lets_kernel == NULL)
+      return(-1);
+   lanes = lets_lanes;
+
+   if(join ? build_join_prog(&prog, len2, hi, hsz, lo, lsz, inv)
+           : build_get_prog(&prog, len2, hi, hsz, lo, lsz, inv)) {
+      free_prog(&prog);
+      return(-1);
+   }
+
+   in = (float *)malloc(2 * len2 * lanes * sizeof(float));
+   if(in == NULL) {
+      free_prog(&prog);
+      return(-1);
+   }
+   out = in + len2 * lanes;
+
+   for(line = 0; line < len1; line += lanes) {
+      n = len1 - line < lanes ? len1 - line : lanes;
+      if(n < lanes)
+         memset(in, 0, len2 * lanes * sizeof(float));
+      /* Interleave the lines, columns are already side by side. */
+      for(s = 0; s < len2; s++) {
+         src = old + line * pitch + s * stride;
+         if(pitch == 1)
+            memcpy(in + s * lanes, src, n * sizeof(float));
+         else
+            for(l = 0; l < n; l++)
+               in[s * lanes + l] = src[l * pitch];
+      }
+
+      lets_kernel(&prog, in, out);
+
+      for(s = 0; s < len2; s++) {
+         dst = new + line * pitch + s * stride;
+         if(pitch == 1)
+            memcpy(dst, out + s * lanes, n * sizeof(float));
+         else
+            for(l = 0; l < n; l++)
+               dst[l * pitch] = out[s * lanes + l];
+      }
+   }
+
+   free(in);
+   free_prog(&prog);
+   return(0);
+}
+
+/************************************************************************/
+/* Vectorized get_lets, same arguments.                                 */
+/************************************************************************/
+int simd_get_lets(float *new, float *old, const int len1, const int len2,
+                  const int pitch, const int stride, float *hi, const int hsz,
+                  float *lo, const int lsz, const int inv)
+{
+   return(run_lets(0, new, old, len1, len2, pitch, stride,
+                   hi, hsz, lo, lsz, inv));
+}
+
+/************************************************************************/
+/* Vectorized join_lets, same arguments.                                */
+/************************************************************************/
+int simd_join_lets(float *new, float *old, const int len1, const int len2,
+                   const int pitch, const int stride, float *hi, const int hsz,
+                   float *lo, const int lsz, const int inv)
+{
+   return(run_lets(1, new, old, len1, len2, pitch, stride,
+                   hi, hsz, lo, lsz, inv));
+}
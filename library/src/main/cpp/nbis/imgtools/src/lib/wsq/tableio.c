@@ -117,6 +117,7 @@ of the software.
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <limits.h>
 #include <wsq.h>
 #include <computil.h>
 #include <dataio.h>
@@ -1498,6 +1499,13 @@ int getc_frame_header_wsq(
       return(ret);
    if((ret = getc_ushort(&(frm_header->width), cbufptr, ebufptr)))
       return(ret);
+   /* The decoder counts the pixels in an int, up to 65535 x 65535 overflows it. */
+   if((long long)frm_header->width * frm_header->height > INT_MAX) {
+      fprintf(stderr, "ERROR : getc_frame_header_wsq : ");
+      fprintf(stderr, "image %d x %d is too large\n",
+              frm_header->width, frm_header->height);
+      return(WSQ_TOO_LARGE);
+   }
    if((ret = getc_byte(&scale, cbufptr, ebufptr)))
       return(ret);
    if((ret = getc_ushort(&shrt_dat, cbufptr, ebufptr)))
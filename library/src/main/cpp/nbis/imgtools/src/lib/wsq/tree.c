@@ -54,8 +54,8 @@ of the software.
       used in WSQ image compression.
 
       ROUTINES:
-#cat: build_wsq_trees - Builds WSQ decomposition trees.
-#cat:
+#cat: build_wsq_trees - Builds WSQ decomposition trees, or copies them
+#cat:                 from the cache of recent image sizes.
 #cat: build_w_tree - Build subband x-y locations for creating wavelets.
 #cat:
 #cat: w_tree4 - Derives location and size of subband splits.
@@ -79,16 +79,20 @@ of the software.
 /*              and when quantizing the subbands (q_tree) in            */
 /*              the WSQ compression/decompression algorithms.           */
 /************************************************************************/
-/* Build WSQ decomposition trees.                                       */
+/* Build WSQ decomposition trees.  The trees only depend on the image   */
+/* size, so those of recently coded sizes are copied from a cache.      */
 /************************************************************************/
 void build_wsq_trees(W_TREE w_tree[], const int w_treelen,
                      Q_TREE q_tree[], const int q_treelen,
                      const int width, const int height)
 {
+   if(get_cached_wsq_trees(w_tree, q_tree, width, height))
+      return;
    /* Build a W-TREE structure for the image. */
    build_w_tree(w_tree, width, height);
    /* Build a Q-TREE structure for the image. */
    build_q_tree(w_tree, q_tree);
+   put_cached_wsq_trees(w_tree, q_tree, width, height);
 }
 
 /********************************************************************/
@@ -60,28 +60,45 @@ of the software.
 #cat:                    Returns on error.
 #cat: conv_img_2_flt - Converts an image's unsigned character pixels
 #cat:                  to floating point values in the range +/- 128.0.
+#cat: conv_img_2_flt_pixfmt - Converts an image's gray, RGBA or RGB565
+#cat:                  pixels to gray floating point values in the range
+#cat:                  +/- 128.0.  Returns on error.
 #cat: conv_img_2_uchar - Converts an image's floating point pixels
 #cat:                  unsigned character pixels.
+#cat: conv_img_2_pixfmt - Converts an image's floating point pixels
+#cat:                  to gray, RGBA or RGB565 pixels in a strided buffer.
 #cat: variance - Calculates the variances within image subbands.
 #cat:
+#cat: variance_par - variance spread over several threads.
+#cat:
 #cat: quantize - Quantizes the image's wavelet subbands.
 #cat:
+#cat: quantize_par - quantize spread over several threads.
+#cat:
 #cat: quant_block_sizes - Quantizes an image's subband block.
 #cat:
 #cat: unquantize - Unquantizes an image's wavelet subbands.
 #cat:
+#cat: unquantize_arena - unquantize into the buffer of an arena.
+#cat:
 #cat: wsq_decompose - Computes the wavelet decomposition of an input image.
 #cat:
+#cat: wsq_decompose_par - wsq_decompose split over several threads.
+#cat:
 #cat: get_lets - Compute the wavelet subband decomposition for the image.
 #cat:
 #cat: wsq_reconstruct - Reconstructs a lossy floating point pixmap from
 #cat:                  a WSQ compressed datastream.
+#cat: wsq_reconstruct_par - wsq_reconstruct split over several threads.
+#cat:
 #cat: join_lets - Reconstruct the image from the wavelet subbands.
 #cat:
 #cat: int_sign - Get the sign of the sythesis filter coefficients.
 #cat:
 #cat: image_size - Computes the size in bytes of a WSQ compressed image
 #cat:                  file, including headers, tables, and parameters.
+#cat: init_wsq_context - Clears a per-call WSQ codec context.
+#cat:
 #cat: init_wsq_decoder_resources - Initializes memory resources used by the
 #cat:                      WSQ decoder
 #cat: free_wsq_decoder_resources - Deallocates memory resources used by the
@@ -97,6 +114,21 @@ of the software.
 #include <defs.h>
 #include <dataio.h>
 
+/* Arguments of the per-subband tasks of variance_par and quantize_par. */
+typedef struct subband_task {
+   QUANT_VALS *quant_vals;
+   Q_TREE *q_tree;
+   float *fip;
+   int width;
+   int first, count;       /* subbands of the task list */
+   int cropped;            /* variance of the central part only */
+   short *sip;             /* quantized output */
+   int *offset;            /* output offset of each subband */
+} SUBBAND_TASK;
+
+static void variance_task(void *, const int);
+static void quantize_task(void *, const int);
+
 /******************************************************************/
 /*        The routines in this file do numerous things            */
 /*        related to the WSQ algorithm such as:                   */
@@ -215,6 +247,102 @@ void conv_img_2_flt(
    }
 }
 
+/*****************************************************************/
+/* Returns the gray value of pixel 'c' in a row of the given      */
+/* pixel layout.  Color pixels are averaged over R, G and B, with */
+/* 5 and 6 bit channels expanded to 8 bits by repeating their     */
+/* top bits.                                                      */
+/*****************************************************************/
+static int pixfmt_2_gray(const unsigned char *row, const int c,
+                         const int pixfmt)
+{
+   const unsigned char *p;
+   unsigned short s;
+   int r, g, b;
+
+   switch (pixfmt) {
+   case PIXFMT_RGBA8888:
+      p = row + (c << 2);
+      return (p[0] + p[1] + p[2]) / 3;
+   case PIXFMT_RGB565:
+      s = ((const unsigned short *)row)[c];
+      r = s >> 11;
+      g = (s >> 5) & 0x3F;
+      b = s & 0x1F;
+      return (((r << 3) | (r >> 2)) + ((g << 2) | (g >> 4))
+              + ((b << 3) | (b >> 2))) / 3;
+   default:
+      return row[c];
+   }
+}
+
+/******************************************************************/
+/* This routine converts pixels of the given layout to gray float */
+/* values without an intermediate unsigned char image.  The shift */
+/* and scale are computed exactly as in conv_img_2_flt_ret.       */
+/******************************************************************/
+int conv_img_2_flt_pixfmt(
+   float *fip,         /* output float image data  */
+   float *m_shift,     /* shifting parameter       */
+   float *r_scale,     /* scaling parameter        */
+   unsigned char *data,        /* input pixels     */
+   const int stride,   /* bytes per input row      */
+   const int pixfmt,   /* input pixel layout       */
+   const int width,    /* image width              */
+   const int height)   /* image height             */
+
+{
+   int r, c, pix;               /* row/column counters, pixel */
+   unsigned int sum, overflow;  /* sum of pixel values */
+   float mean;                  /* mean pixel value */
+   int low, high;               /* low/high pixel values */
+   float low_diff, high_diff;   /* new low/high pixels values shifting */
+   unsigned char *row;
+
+   sum = 0;
+   overflow = 0;
+   low = 255;
+   high = 0;
+   for(r = 0; r < height; r++) {
+      row = data + (r * stride);
+      for(c = 0; c < width; c++) {
+         pix = pixfmt_2_gray(row, c, pixfmt);
+         if(pix > high)
+            high = pix;
+         if(pix < low)
+            low = pix;
+         sum += pix;
+         if(sum < overflow) {
+            fprintf(stderr, "ERROR: conv_img_2_flt_pixfmt: overflow at %d\n",
+                    r * width + c);
+            return(-91);
+         }
+         overflow = sum;
+      }
+   }
+
+   mean = (float) sum / (float)(width * height);
+   *m_shift = mean;
+
+   low_diff = *m_shift - low;
+   high_diff = high - *m_shift;
+
+   if(low_diff >= high_diff)
+      *r_scale = low_diff;
+   else
+      *r_scale = high_diff;
+
+   *r_scale /= (float)128.0;
+
+   for(r = 0; r < height; r++) {
+      row = data + (r * stride);
+      for(c = 0; c < width; c++) {
+         *fip++ = ((float)pixfmt_2_gray(row, c, pixfmt) - *m_shift) / *r_scale;
+      }
+   }
+   return(0);
+}
+
 /*********************************************************/
 /* Routine to convert image from float to unsigned char. */
 /*********************************************************/
@@ -246,6 +374,62 @@ void conv_img_2_uchar(
    }
 }
 
+/************************************************************/
+/* Routine to convert image from float to gray pixels in    */
+/* the given pixel layout.  Each row starts 'stride' bytes  */
+/* after the previous one.  The gray values are rounded and */
+/* clamped exactly as in conv_img_2_uchar.                  */
+/************************************************************/
+void conv_img_2_pixfmt(
+   unsigned char *data,           /* output pixels          */
+   const int stride,              /* bytes per output row   */
+   const int pixfmt,              /* output pixel layout    */
+   float *img,                    /* image pointer          */
+   const int width,               /* image width            */
+   const int height,              /* image height           */
+   const float m_shift,           /* shifting parameter     */
+   const float r_scale)           /* scaling parameter      */
+{
+   int r, c;       /* row/column counters */
+   float img_tmp;  /* temp image data store */
+   unsigned char pix;
+   unsigned char *rptr;
+   unsigned short *sptr;
+
+   for (r = 0; r < height; r++) {
+      rptr = data + (r * stride);
+      sptr = (unsigned short *)rptr;
+      for (c = 0; c < width; c++) {
+         img_tmp = (*img * r_scale) + m_shift;
+         img_tmp += 0.5;
+         if (img_tmp < 0.0)
+            pix = 0; /* neg pix poss after quantization */
+         else if (img_tmp > 255.0)
+            pix = 255;
+         else
+            pix = (unsigned char)img_tmp;
+
+         switch (pixfmt) {
+         case PIXFMT_RGBA8888:
+            *rptr++ = pix;
+            *rptr++ = pix;
+            *rptr++ = pix;
+            *rptr++ = 0xFF;
+            break;
+         case PIXFMT_RGB565:
+            *sptr++ = (unsigned short)(((pix >> 3) << 11) | ((pix >> 2) << 5)
+                                       | (pix >> 3));
+            break;
+         default:
+            *rptr++ = pix;
+            break;
+         }
+
+         ++img;
+      }
+   }
+}
+
 /**********************************************************/
 /* This routine calculates the variances of the subbands. */
 /**********************************************************/
@@ -257,87 +441,100 @@ void variance(
    const int width,        /* image width             */
    const int height)       /* image height            */
 {
-   float *fp;              /* temp image pointer */
+   variance_par(quant_vals, q_tree, q_treelen, fip, width, height, 1);
+}
+
+/************************************************************************/
+/* variance with the subbands spread over up to num_threads threads.   */
+/* Each subband is summed in the same order as by a single thread, so  */
+/* the variances do not depend on num_threads.                         */
+/************************************************************************/
+void variance_par(
+   QUANT_VALS *quant_vals, /* quantization parameters */
+   Q_TREE q_tree[],        /* quantization "tree"     */
+   const int q_treelen,    /* length of q_tree        */
+   float *fip,             /* image pointer           */
+   const int width,        /* image width             */
+   const int height,       /* image height            */
+   const int num_threads)  /* maximum number of threads */
+{
+   SUBBAND_TASK sub;       /* subbands to compute */
    int cvr;                /* subband counter */
-   int lenx = 0, leny = 0; /* dimensions of area to calculate variance */
+   float vsum;            /* variance sum for subbands 0-3 */
+
+   sub.quant_vals = quant_vals;
+   sub.q_tree = q_tree;
+   sub.fip = fip;
+   sub.width = width;
+
+   sub.first = 0;
+   sub.count = 4;
+   sub.cropped = 1;
+   wsq_parallel_for(sub.count, num_threads, variance_task, &sub);
+
+   vsum = 0.0;
+   for(cvr = 0; cvr < 4; cvr++)
+      vsum += quant_vals->var[cvr];
+
+   if(vsum < 20000.0) {
+      sub.first = 0;
+      sub.count = NUM_SUBBANDS;
+      sub.cropped = 0;
+   }
+   else {
+      sub.first = 4;
+      sub.count = NUM_SUBBANDS - 4;
+      sub.cropped = 1;
+   }
+   wsq_parallel_for(sub.count, num_threads, variance_task, &sub);
+}
+
+/************************************************************************/
+/* Computes the variance of one subband, over its central part if      */
+/* cropped is set.  The largest subbands are last in q_tree, so they   */
+/* are handed out first.                                               */
+/************************************************************************/
+static void variance_task(void *arg, const int index)
+{
+   SUBBAND_TASK *sub = (SUBBAND_TASK *)arg;
+   const int cvr = sub->first + sub->count - 1 - index;
+   const int width = sub->width;
+   float *fp;              /* temp image pointer */
+   int lenx, leny;         /* dimensions of area to calculate variance */
    int skipx, skipy;       /* pixels to skip to get to area for
                               variance calculation */
    int row, col;           /* dimension counters */
    float ssq;             /* sum of squares */
    float sum2;            /* variance calculation parameter */
    float sum_pix;         /* sum of pixels */
-   float vsum;            /* variance sum for subbands 0-3 */
-   
 
-   vsum = 0.0;
-   for(cvr = 0; cvr < 4; cvr++) {
-      fp = fip + (q_tree[cvr].y * width) + q_tree[cvr].x;
-      ssq = 0.0;
-      sum_pix = 0.0;
+   fp = sub->fip + (sub->q_tree[cvr].y * width) + sub->q_tree[cvr].x;
+   ssq = 0.0;
+   sum_pix = 0.0;
 
-      skipx = q_tree[cvr].lenx / 8;
-      skipy = (9 * q_tree[cvr].leny)/32;
-   
-      lenx = (3 * q_tree[cvr].lenx)/4;
-      leny = (7 * q_tree[cvr].leny)/16;
+   if(sub->cropped) {
+      skipx = sub->q_tree[cvr].lenx / 8;
+      skipy = (9 * sub->q_tree[cvr].leny)/32;
 
-      fp += (skipy * width) + skipx;
-      for(row = 0; row < leny; row++, fp += (width - lenx)) {
-         for(col = 0; col < lenx; col++) {
-            sum_pix += *fp;
-            ssq += *fp * *fp;
-            fp++;
-         }
-      }
-      sum2 = (sum_pix * sum_pix)/(lenx * leny);
-      quant_vals->var[cvr] = (float)((ssq - sum2)/((lenx * leny)-1.0));
-      vsum += quant_vals->var[cvr];
-   }
+      lenx = (3 * sub->q_tree[cvr].lenx)/4;
+      leny = (7 * sub->q_tree[cvr].leny)/16;
 
-   if(vsum < 20000.0) {
-      for(cvr = 0; cvr < NUM_SUBBANDS; cvr++) {
-         fp = fip + (q_tree[cvr].y * width) + q_tree[cvr].x;
-         ssq = 0.0;
-         sum_pix = 0.0;
-
-         lenx = q_tree[cvr].lenx;
-         leny = q_tree[cvr].leny;
-
-         for(row = 0; row < leny; row++, fp += (width - lenx)) {
-            for(col = 0; col < lenx; col++) {
-               sum_pix += *fp;
-               ssq += *fp * *fp;
-               fp++;
-            }
-         }
-         sum2 = (sum_pix * sum_pix)/(lenx * leny);
-         quant_vals->var[cvr] = (float)((ssq - sum2)/((lenx * leny)-1.0));
-      }
+      fp += (skipy * width) + skipx;
    }
    else {
-      for(cvr = 4; cvr < NUM_SUBBANDS; cvr++) {
-         fp = fip + (q_tree[cvr].y * width) + q_tree[cvr].x;
-         ssq = 0.0;
-         sum_pix = 0.0;
+      lenx = sub->q_tree[cvr].lenx;
+      leny = sub->q_tree[cvr].leny;
+   }
 
-         skipx = q_tree[cvr].lenx / 8;
-         skipy = (9 * q_tree[cvr].leny)/32;
-   
-         lenx = (3 * q_tree[cvr].lenx)/4;
-         leny = (7 * q_tree[cvr].leny)/16;
-
-         fp += (skipy * width) + skipx;
-         for(row = 0; row < leny; row++, fp += (width - lenx)) {
-            for(col = 0; col < lenx; col++) {
-               sum_pix += *fp;
-               ssq += *fp * *fp;
-               fp++;
-            }
-         }
-         sum2 = (sum_pix * sum_pix)/(lenx * leny);
-         quant_vals->var[cvr] = (float)((ssq - sum2)/((lenx * leny)-1.0));
+   for(row = 0; row < leny; row++, fp += (width - lenx)) {
+      for(col = 0; col < lenx; col++) {
+         sum_pix += *fp;
+         ssq += *fp * *fp;
+         fp++;
       }
    }
+   sum2 = (sum_pix * sum_pix)/(lenx * leny);
+   sub->quant_vals->var[cvr] = (float)((ssq - sum2)/((lenx * leny)-1.0));
 }
 
 /************************************************/
@@ -352,14 +549,37 @@ int quantize(
    float *fip,             /* floating point image pointer */
    const int width,        /* image width                  */
    const int height)       /* image height                 */
+{
+   return(quantize_par(osip, ocmp_siz, quant_vals, q_tree, q_treelen,
+                       fip, width, height, 1, (WSQ_ARENA *)NULL));
+}
+
+/************************************************************************/
+/* quantize with the subbands spread over up to num_threads threads.   */
+/* The bin widths are solved first; each subband is then written at    */
+/* the offset it gets in the sequential output, so the result does not  */
+/* depend on num_threads.  The output is taken from the QDATA slot of   */
+/* arena, if not NULL.                                                  */
+/************************************************************************/
+int quantize_par(
+   short **osip,           /* quantized output             */
+   int *ocmp_siz,          /* size of quantized output     */
+   QUANT_VALS *quant_vals, /* quantization parameters      */
+   Q_TREE q_tree[],        /* quantization "tree"          */
+   const int q_treelen,    /* size of q_tree               */
+   float *fip,             /* floating point image pointer */
+   const int width,        /* image width                  */
+   const int height,       /* image height                 */
+   const int num_threads,  /* maximum number of threads    */
+   WSQ_ARENA *arena)       /* scratch buffers, or NULL     */
 {
    int i;                 /* temp counter */
    int j;                 /* interation index */
-   float *fptr;           /* temp image pointer */
-   short *sip, *sptr;     /* pointers to quantized image */
-   int row, col;          /* temp image characteristic parameters */
+   short *sip;            /* pointer to quantized image */
+   int size;              /* size of quantized image */
+   int offset[NUM_SUBBANDS]; /* output offset of each subband */
+   SUBBAND_TASK sub;      /* subbands to quantize */
    int cnt;               /* subband counter */
-   float zbin;            /* zero bin size */
    float A[NUM_SUBBANDS]; /* subband "weights" for quantization */
    float m[NUM_SUBBANDS]; /* subband size to image size ratios */
                           /* (reciprocal of FBI spec for 'm')  */
@@ -409,11 +629,11 @@ int quantize(
 
 
    /* Set up output buffer. */
-   if((sip = (short *) calloc(width*height, sizeof(short))) == NULL) {
+   if((sip = (short *) wsq_arena_calloc(arena, WSQ_ARENA_QDATA,
+                                 width*height*sizeof(short))) == NULL) {
       fprintf(stderr,"ERROR : quantize : calloc : sip\n");
       return(-90);
    }
-   sptr = sip;
 
    /* Set up 'm' table (these values are the reciprocal of 'm' in */
    /* the FBI spec).                                              */
@@ -507,37 +727,70 @@ int quantize(
    }
 
    /* Now ready to compute and store bin widths for subbands. */
+   /* Subbands with a zero bin width are left out.              */
+   size = 0;
    for(cnt = 0; cnt < NUM_SUBBANDS; cnt++) {
-      fptr = fip + (q_tree[cnt].y * width) + q_tree[cnt].x;
-
-      if(quant_vals->qbss[cnt] != 0.0) {
-
-         zbin = quant_vals->qzbs[cnt] / 2.0;
-
-         for(row = 0;
-            row < q_tree[cnt].leny;
-            row++, fptr += width - q_tree[cnt].lenx){
-            for(col = 0; col < q_tree[cnt].lenx; col++) {
-               if(-zbin <= *fptr && *fptr <= zbin)
-                  *sptr = 0;
-               else if(*fptr > 0.0)
-                  *sptr = (short)(((*fptr-zbin)/quant_vals->qbss[cnt]) + 1.0);
-               else
-                  *sptr = (short)(((*fptr+zbin)/quant_vals->qbss[cnt]) - 1.0);
-               sptr++;
-               fptr++;
-            }
-         }
-      }
+      offset[cnt] = size;
+      if(quant_vals->qbss[cnt] != 0.0)
+         size += q_tree[cnt].lenx * q_tree[cnt].leny;
       else if(debug > 0)
          fprintf(stderr, "%d -> %3.6f\n", cnt, quant_vals->qbss[cnt]);
    }
 
+   sub.quant_vals = quant_vals;
+   sub.q_tree = q_tree;
+   sub.fip = fip;
+   sub.width = width;
+   sub.first = 0;
+   sub.count = NUM_SUBBANDS;
+   sub.sip = sip;
+   sub.offset = offset;
+   wsq_parallel_for(sub.count, num_threads, quantize_task, &sub);
+
    *osip = sip;
-   *ocmp_siz = sptr - sip;
+   *ocmp_siz = size;
    return(0);
 }
 
+/************************************************************************/
+/* Quantizes one subband into its place in the output.  The largest    */
+/* subbands are handed out first.                                      */
+/************************************************************************/
+static void quantize_task(void *arg, const int index)
+{
+   SUBBAND_TASK *sub = (SUBBAND_TASK *)arg;
+   const int cnt = sub->first + sub->count - 1 - index;
+   const int width = sub->width;
+   QUANT_VALS *quant_vals = sub->quant_vals;
+   float *fptr;           /* temp image pointer */
+   short *sptr;           /* pointer to quantized image */
+   int row, col;          /* temp image characteristic parameters */
+   float zbin;            /* zero bin size */
+
+   if(quant_vals->qbss[cnt] == 0.0)
+      return;
+
+   fptr = sub->fip + (sub->q_tree[cnt].y * width) + sub->q_tree[cnt].x;
+   sptr = sub->sip + sub->offset[cnt];
+
+   zbin = quant_vals->qzbs[cnt] / 2.0;
+
+   for(row = 0;
+      row < sub->q_tree[cnt].leny;
+      row++, fptr += width - sub->q_tree[cnt].lenx){
+      for(col = 0; col < sub->q_tree[cnt].lenx; col++) {
+         if(-zbin <= *fptr && *fptr <= zbin)
+            *sptr = 0;
+         else if(*fptr > 0.0)
+            *sptr = (short)(((*fptr-zbin)/quant_vals->qbss[cnt]) + 1.0);
+         else
+            *sptr = (short)(((*fptr+zbin)/quant_vals->qbss[cnt]) - 1.0);
+         sptr++;
+         fptr++;
+      }
+   }
+}
+
 /************************************************************************/
 /* Compute quantized WSQ subband block sizes.                           */
 /************************************************************************/
@@ -576,6 +829,9 @@ void quant_block_sizes(int *oqsize1, int *oqsize2, int *oqsize3,
 
 /*************************************/
 /* Routine to unquantize image data. */
+/* For a reduced width and height,   */
+/* only the subbands inside of them  */
+/* are unquantized.                  */
 /*************************************/
 int unquantize(
    float **ofip,         /* floating point image pointer         */
@@ -585,6 +841,25 @@ int unquantize(
    short *sip,           /* quantized image pointer              */
    const int width,      /* image width                          */
    const int height)     /* image height                         */
+{
+   return(unquantize_arena(ofip, dqt_table, q_tree, q_treelen, sip,
+                           width, height, (WSQ_ARENA *)NULL, WSQ_ARENA_FDATA));
+}
+
+/************************************************************************/
+/* unquantize with the image taken from the given slot of arena, if not */
+/* NULL.                                                                */
+/************************************************************************/
+int unquantize_arena(
+   float **ofip,         /* floating point image pointer         */
+   const DQT_TABLE *dqt_table, /* quantization table structure   */
+   Q_TREE q_tree[],      /* quantization table structure         */
+   const int q_treelen,  /* size of q_tree                       */
+   short *sip,           /* quantized image pointer              */
+   const int width,      /* image width                          */
+   const int height,     /* image height                         */
+   WSQ_ARENA *arena,     /* scratch buffers, or NULL             */
+   const int slot)       /* arena slot of the image              */
 {
    float *fip;    /* floating point image */
    int row, col;  /* cover counter and row/column counters */
@@ -593,11 +868,13 @@ int unquantize(
    short *sptr;
    int cnt;       /* subband counter */
 
-   if((fip = (float *) calloc(width*height, sizeof(float))) == NULL) {
+   if((fip = (float *) wsq_arena_calloc(arena, slot,
+                                 width*height*sizeof(float))) == NULL) {
       fprintf(stderr,"ERROR : unquantize : calloc : fip\n");
       return(-91);
    }
    if(dqt_table->dqt_def != 1) {
+      wsq_arena_release(arena, fip);
       fprintf(stderr,
       "ERROR: unquantize : quantization table parameters not defined!\n");
       return(-92);
@@ -608,6 +885,12 @@ int unquantize(
    for(cnt = 0; cnt < NUM_SUBBANDS; cnt++) {
       if(dqt_table->q_bin[cnt] == 0.0)
          continue;
+      /* Subbands outside of a reduced size image are skipped. */
+      if(q_tree[cnt].x + q_tree[cnt].lenx > width ||
+         q_tree[cnt].y + q_tree[cnt].leny > height) {
+         sptr += q_tree[cnt].lenx * q_tree[cnt].leny;
+         continue;
+      }
       fptr = fip + (q_tree[cnt].y * width) + q_tree[cnt].x;
 
       for(row = 0;
@@ -623,6 +906,7 @@ int unquantize(
                *fptr = (dqt_table->q_bin[cnt] * ((float)*sptr + C))
                     - (dqt_table->z_bin[cnt] / 2.0);
             else {
+               wsq_arena_release(arena, fip);
                fprintf(stderr,
                "ERROR : unquantize : invalid quantization pixel value\n");
                return(-93);
@@ -645,13 +929,31 @@ int wsq_decompose(float *fdata, const int width, const int height,
                   W_TREE w_tree[], const int w_treelen,
                   float *hifilt, const int hisz,
                   float *lofilt, const int losz)
+{
+   return(wsq_decompose_par(fdata, width, height, w_tree, w_treelen,
+                            hifilt, hisz, lofilt, losz, 1,
+                            (WSQ_ARENA *)NULL));
+}
+
+/************************************************************************/
+/* wsq_decompose with the lines of each pass split over up to          */
+/* num_threads threads.  The result does not depend on num_threads.    */
+/* The temporary pixmap is taken from the FDATA1 slot of arena, if not */
+/* NULL.                                                                */
+/************************************************************************/
+int wsq_decompose_par(float *fdata, const int width, const int height,
+                  W_TREE w_tree[], const int w_treelen,
+                  float *hifilt, const int hisz,
+                  float *lofilt, const int losz, const int num_threads,
+                  WSQ_ARENA *arena)
 {
    int num_pix, node;
    float *fdata1, *fdata_bse;
 
    num_pix = width * height;
    /* Allocate temporary floating point pixmap. */
-   if((fdata1 = (float *) malloc(num_pix*sizeof(float))) == NULL) {
+   if((fdata1 = (float *) wsq_arena_alloc(arena, WSQ_ARENA_FDATA1,
+                                 num_pix*sizeof(float))) == NULL) {
       fprintf(stderr,"ERROR : wsq_decompose : malloc : fdata1\n");
       return(-94);
    }
@@ -659,12 +961,14 @@ int wsq_decompose(float *fdata, const int width, const int height,
    /* Compute the Wavelet image decomposition. */
    for(node = 0; node < w_treelen; node++) {
       fdata_bse = fdata + (w_tree[node].y * width) + w_tree[node].x;
-      get_lets(fdata1, fdata_bse, w_tree[node].leny, w_tree[node].lenx,
-               width, 1, hifilt, hisz, lofilt, losz, w_tree[node].inv_rw);
-      get_lets(fdata_bse, fdata1, w_tree[node].lenx, w_tree[node].leny,
-               1, width, hifilt, hisz, lofilt, losz, w_tree[node].inv_cl);
+      par_get_lets(fdata1, fdata_bse, w_tree[node].leny, w_tree[node].lenx,
+               width, 1, hifilt, hisz, lofilt, losz, w_tree[node].inv_rw,
+               num_threads);
+      par_get_lets(fdata_bse, fdata1, w_tree[node].lenx, w_tree[node].leny,
+               1, width, hifilt, hisz, lofilt, losz, w_tree[node].inv_cl,
+               num_threads);
    }
-   free(fdata1);
+   wsq_arena_release(arena, fdata1);
 
    return(0);
 }
@@ -704,6 +1008,11 @@ void get_lets(
    int hre, hre2;
 
 
+   /* Filter several lines at once where the CPU allows. */
+   if(!simd_get_lets(new, old, len1, len2, pitch, stride,
+                     hi, hsz, lo, lsz, inv))
+      return;
+
    da_ev = len2 % 2;
    fi_ev = lsz % 2;
 
@@ -885,10 +1194,28 @@ void get_lets(
 /************************************************************************/
 /* WSQ reconstructs the image.  NOTE: this routine modifies and returns */
 /* the results in "fdata".                                              */
+/* If width and height are the size of a lowpass node of the w_tree,    */
+/* only that node and the nodes inside it are reconstructed, leaving a  */
+/* reduced resolution image in fdata.                                   */
 /************************************************************************/
 int wsq_reconstruct(float *fdata, const int width, const int height,
                   W_TREE w_tree[], const int w_treelen,
                   const DTT_TABLE *dtt_table)
+{
+   return(wsq_reconstruct_par(fdata, width, height, w_tree, w_treelen,
+                              dtt_table, 1, (WSQ_ARENA *)NULL));
+}
+
+/************************************************************************/
+/* wsq_reconstruct with the lines of each pass split over up to        */
+/* num_threads threads.  The result does not depend on num_threads.    */
+/* The temporary pixmap is taken from the FDATA1 slot of arena, if not */
+/* NULL.                                                                */
+/************************************************************************/
+int wsq_reconstruct_par(float *fdata, const int width, const int height,
+                  W_TREE w_tree[], const int w_treelen,
+                  const DTT_TABLE *dtt_table, const int num_threads,
+                  WSQ_ARENA *arena)
 {
    int num_pix, node;
    float *fdata1, *fdata_bse;
@@ -906,26 +1233,31 @@ int wsq_reconstruct(float *fdata, const int width, const int height,
 
    num_pix = width * height;
    /* Allocate temporary floating point pixmap. */
-   if((fdata1 = (float *) malloc(num_pix*sizeof(float))) == NULL) {
+   if((fdata1 = (float *) wsq_arena_alloc(arena, WSQ_ARENA_FDATA1,
+                                 num_pix*sizeof(float))) == NULL) {
       fprintf(stderr,"ERROR : wsq_reconstruct : malloc : fdata1\n");
       return(-97);
    }
 
    /* Reconstruct floating point pixmap from wavelet subband data. */
    for (node = w_treelen - 1; node >= 0; node--) {
+      /* Nodes outside of a reduced size image are skipped. */
+      if(w_tree[node].x + w_tree[node].lenx > width ||
+         w_tree[node].y + w_tree[node].leny > height)
+         continue;
       fdata_bse = fdata + (w_tree[node].y * width) + w_tree[node].x;
-      join_lets(fdata1, fdata_bse, w_tree[node].lenx, w_tree[node].leny,
+      par_join_lets(fdata1, fdata_bse, w_tree[node].lenx, w_tree[node].leny,
                   1, width,
                   dtt_table->hifilt, dtt_table->hisz,
                   dtt_table->lofilt, dtt_table->losz,
-                  w_tree[node].inv_cl);
-      join_lets(fdata_bse, fdata1, w_tree[node].leny, w_tree[node].lenx,
+                  w_tree[node].inv_cl, num_threads);
+      par_join_lets(fdata_bse, fdata1, w_tree[node].leny, w_tree[node].lenx,
                   width, 1,
                   dtt_table->hifilt, dtt_table->hisz,
                   dtt_table->lofilt, dtt_table->losz,
-                  w_tree[node].inv_rw);
+                  w_tree[node].inv_rw, num_threads);
    }
-   free(fdata1);
+   wsq_arena_release(arena, fdata1);
 
    return(0);
 }
@@ -967,6 +1299,11 @@ void  join_lets(
    int asym, fhre = 0, ofhre;
    float ssfac, osfac, sfac;
 
+   /* Filter several lines at once where the CPU allows. */
+   if(!simd_join_lets(new, old, len1, len2, pitch, stride,
+                      hi, hsz, lo, lsz, inv))
+      return;
+
    da_ev = len2 % 2;
    fi_ev = lsz % 2;
    pstr = stride;
@@ -1328,11 +1665,30 @@ int image_size(
    return tot_size;
 }
 
+/*************************************************************/
+/* Clears a per-call WSQ codec context so that no state is   */
+/* carried over from a previous encode or decode.  The       */
+/* parallelism set by the caller is kept, at least 1, and so */
+/* is the arena.                                             */
+/*************************************************************/
+void init_wsq_context(WSQ_CONTEXT *ctx)
+{
+   int parallelism = ctx->parallelism;
+   WSQ_ARENA *arena = ctx->arena;
+   const volatile int *cancel = ctx->cancel;
+
+   memset(ctx, 0, sizeof(WSQ_CONTEXT));
+   init_wsq_decoder_resources(&ctx->dtt_table);
+   ctx->parallelism = parallelism > 1 ? parallelism : 1;
+   ctx->arena = arena;
+   ctx->cancel = cancel;
+}
+
 /*************************************************************/
 /* Added by MDG on 02-24-05                                  */
 /* Initializes memory used by the WSQ decoder.               */
 /*************************************************************/
-void init_wsq_decoder_resources()
+void init_wsq_decoder_resources(DTT_TABLE *dtt_table)
 {
    /* Added 02-24-05 by MDG                      */
    /* Init dymanically allocated members to NULL */
@@ -1340,24 +1696,24 @@ void init_wsq_decoder_resources()
    /*    read_transform_table()                  */
    /*    getc_transform_table()                  */
    /*    free_wsq_resources()                    */
-   dtt_table.lofilt = (float *)NULL;
-   dtt_table.hifilt = (float *)NULL;
+   dtt_table->lofilt = (float *)NULL;
+   dtt_table->hifilt = (float *)NULL;
 }
 
 /*************************************************************/
 /* Added by MDG on 02-24-05                                  */
 /* Deallocates memory used by the WSQ decoder.               */
 /*************************************************************/
-void free_wsq_decoder_resources()
+void free_wsq_decoder_resources(DTT_TABLE *dtt_table)
 {
-   if(dtt_table.lofilt != (float *)NULL){
-      free(dtt_table.lofilt);
-      dtt_table.lofilt = (float *)NULL;
+   if(dtt_table->lofilt != (float *)NULL){
+      free(dtt_table->lofilt);
+      dtt_table->lofilt = (float *)NULL;
    }
 
-   if(dtt_table.hifilt != (float *)NULL){
-      free(dtt_table.hifilt);
-      dtt_table.hifilt = (float *)NULL;
+   if(dtt_table->hifilt != (float *)NULL){
+      free(dtt_table->hifilt);
+      dtt_table->hifilt = (float *)NULL;
    }
 }
 
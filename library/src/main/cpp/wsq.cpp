@@ -6,11 +6,19 @@ extern "C" {
 #include <jni.h>
 #include <stdio.h>
 #include <string.h>
+#include <stdint.h>
+#include <limits.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
 
 #include <img_io.h>
 #include <wsq.h>
+#include <computil.h>
 
 #include <android/log.h>
+#include <android/bitmap.h>
 #define LOGV(...) __android_log_print(ANDROID_LOG_VERBOSE, "libwsq",__VA_ARGS__)
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG  , "libwsq",__VA_ARGS__)
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO   , "libwsq",__VA_ARGS__)
@@ -31,6 +39,14 @@ typedef struct image_data {
 #define EXIT_SUCCESS 0
 #define EXIT_FAILURE 1
 
+//pixels of a decoded image, computed in 64 bits: WSQ frames are up to 65535 x 65535, whose product overflows an int
+static inline int64_t pixelCount(int width, int height) {
+    return (int64_t)width * height;
+}
+
+//largest image returned as ARGB ints, the java array also holds width, height and ppi
+static const int64_t MAX_ARGB_PIXELS = (INT_MAX - 3) / (int64_t)sizeof(int);
+
 jint JNI_OnLoad(JavaVM* vm, void* reserved)
 {
     JNIEnv* env;
@@ -44,83 +60,469 @@ jint JNI_OnLoad(JavaVM* vm, void* reserved)
     return JNI_VERSION_1_6;
 }
 
-jint decodeWSQ(unsigned char *idata, int ilen, image_data_t *outImage) {
-    unsigned char *odata;
-    int width, height;             /* image parameters */
-    int depth, ppi;
-    int lossyflag;                 /* data loss flag */
+//threads the wavelet reconstruction of every decode may use, see WSQDecoder.setParallelism
+static int decodeParallelism = 1;
+
+int getDecodeParallelism() {
+    return __atomic_load_n(&decodeParallelism, __ATOMIC_RELAXED);
+}
+
+JNIEXPORT void JNICALL Java_com_gemalto_wsq_Native_setDecodeParallelism(JNIEnv *env, jclass thiz, jint parallelism) {
+    __atomic_store_n(&decodeParallelism, (int)parallelism, __ATOMIC_RELAXED);
+}
+
+//scratch buffers of a WSQEncoder.Session or WSQDecoder.Session, sized for width x height up front.
+//The buffers grow if a larger image comes along; 0 is returned if they cannot be allocated.
+JNIEXPORT jlong JNICALL Java_com_gemalto_wsq_Native_newArena(JNIEnv *env, jclass thiz, jint width, jint height) {
+    WSQ_ARENA *arena = (WSQ_ARENA *)calloc(1, sizeof(WSQ_ARENA));
+    size_t num_pix = (size_t)width * height;
+
+    if (arena == NULL) return 0;
+    if (wsq_arena_alloc(arena, WSQ_ARENA_FDATA, num_pix * sizeof(float)) == NULL ||
+        wsq_arena_alloc(arena, WSQ_ARENA_FDATA1, num_pix * sizeof(float)) == NULL ||
+        wsq_arena_alloc(arena, WSQ_ARENA_QDATA, num_pix * sizeof(short)) == NULL) {
+        LOGE("Could not allocate the session buffers for %dx%d images", width, height);
+        free_wsq_arena(arena);
+        free(arena);
+        return 0;
+    }
+    return (jlong)(intptr_t)arena;
+}
+
+JNIEXPORT void JNICALL Java_com_gemalto_wsq_Native_freeArena(JNIEnv *env, jclass thiz, jlong arena) {
+    if (arena == 0) return;
+    free_wsq_arena((WSQ_ARENA *)(intptr_t)arena);
+    free((WSQ_ARENA *)(intptr_t)arena);
+}
+
+JNIEXPORT jlong JNICALL Java_com_gemalto_wsq_Native_newCancelFlag(JNIEnv *env, jclass thiz) {
+    return (jlong)(intptr_t)calloc(1, sizeof(int));
+}
+
+JNIEXPORT void JNICALL Java_com_gemalto_wsq_Native_cancel(JNIEnv *env, jclass thiz, jlong flag) {
+    if (flag == 0) return;
+    //the decoder polls the flag from another thread between its stages
+    __atomic_store_n((int *)(intptr_t)flag, 1, __ATOMIC_RELEASE);
+}
+
+JNIEXPORT void JNICALL Java_com_gemalto_wsq_Native_freeCancelFlag(JNIEnv *env, jclass thiz, jlong flag) {
+    free((int *)(intptr_t)flag);
+}
+
+jint decodeWSQ(unsigned char *idata, int ilen, int levels, WSQ_ARENA *arena, const volatile int *cancel, image_data_t *outImage) {
+    float *fdata;                  /* reconstructed floating point image */
+    int width, height, ppi;        /* image parameters */
+    WSQ_CONTEXT ctx;               /* per-call decoder state, allows concurrent decoding */
+    int ret;
     
-    if((wsq_decode_mem(&odata, &width, &height, &depth, &ppi, &lossyflag, idata, ilen))){
-        LOGE("Error decoding file");
+    ctx.parallelism = getDecodeParallelism();
+    ctx.arena = arena;
+    ctx.cancel = cancel;
+    //levels > 0 decodes at 1/2^levels of the full size
+    if((ret = wsq_decode_scaled_flt_mem(&ctx, &fdata, &width, &height, &ppi, idata, ilen, levels))){
+        if (ret != WSQ_CANCELLED) LOGE("Error decoding file");
         return EXIT_FAILURE;
     }
 
+    if (pixelCount(width, height) > MAX_ARGB_PIXELS) {
+        LOGE("Image %dx%d is too large", width, height);
+        wsq_arena_release(arena, fdata);
+        return EXIT_FAILURE;
+    }
     outImage->height = height;
     outImage->width = width;
     outImage->ppi = ppi;
     int length = height * width;
 
-    outImage->pixels = (int *) malloc(sizeof(int) * length);
+    outImage->pixels = (int *) wsq_arena_alloc(arena, WSQ_ARENA_PIXELS, sizeof(int) * length);
     
     if (!outImage->pixels) {
-        LOGE("Could not allocate %d bytes of memory.", length * sizeof(int));
-        free(odata);
+        LOGE("Could not allocate %d bytes of memory.", (int)(length * sizeof(int)));
+        wsq_arena_release(arena, fdata);
         return EXIT_FAILURE;
     }
     
-    for (int i = 0; i < length; i++) {
-        int color = odata[i];
-        outImage->pixels[i] = (int)0xFF000000 | (color << 16) | (color << 8) | color;
-    }
+    //R,G,B,A bytes of a little-endian int are the 0xAARRGGBB color java expects
+    conv_img_2_pixfmt((unsigned char *)outImage->pixels, width * sizeof(int), PIXFMT_RGBA8888, fdata, width, height,
+                      ctx.frm_header_wsq.m_shift, ctx.frm_header_wsq.r_scale);
     
-    free(odata);
+    wsq_arena_release(arena, fdata);
 	return EXIT_SUCCESS;
 }
 
-jintArray prepareReturnData(JNIEnv *env, image_data_t *outImage) {
+jintArray prepareReturnData(JNIEnv *env, image_data_t *outImage, WSQ_ARENA *arena) {
     //prepare return data: first three integers in the array are width, height, isAlpha, then image pixels
     jintArray ret = env->NewIntArray(outImage->width * outImage->height + 3);
     env->SetIntArrayRegion(ret, 0, 3, (jint*)outImage);
     env->SetIntArrayRegion(ret, 3, outImage->width * outImage->height, outImage->pixels);
-    free(outImage->pixels);
+    wsq_arena_release(arena, outImage->pixels);
     outImage->pixels = NULL;
     return ret;
 }
 
-JNIEXPORT jintArray JNICALL Java_com_gemalto_wsq_Native_decodeWSQFile(JNIEnv *env, jclass thiz, jstring fileName) {
-    int ilen;
-    unsigned char *idata;
-    char *ifile;
+//WSQ data of a file, mapped read-only or read into memory if the file cannot be mapped
+typedef struct file_data {
+    unsigned char *data;
+    int length;
+    int mapped;
+} file_data_t;
+
+//map a regular file, read anything else (pipes, sockets) up to its end; the descriptor is not closed.
+//The mapping is served from the page cache, the file must not be truncated while it is mapped.
+int mapFile(int fd, file_data_t *file) {
+    struct stat st;
+    int alloc = 0;
+
+    file->data = NULL;
+    file->length = 0;
+    file->mapped = 0;
+    if (fstat(fd, &st)) return EXIT_FAILURE;
+    if (S_ISREG(st.st_mode)) {
+        if (st.st_size <= 0 || st.st_size > INT_MAX) return EXIT_FAILURE;
+        void *data = mmap(NULL, st.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+        if (data != MAP_FAILED) {
+            //NBIS reads the blocks front to back
+            madvise(data, st.st_size, MADV_SEQUENTIAL);
+            file->data = (unsigned char *)data;
+            file->length = (int)st.st_size;
+            file->mapped = 1;
+            return EXIT_SUCCESS;
+        }
+    }
+
+    while (1) {
+        if (file->length == alloc) {
+            if (alloc > INT_MAX / 2) break;
+            alloc = alloc ? alloc * 2 : 64 * 1024;
+            unsigned char *data = (unsigned char *)realloc(file->data, alloc);
+            if (data == NULL) break;
+            file->data = data;
+        }
+        ssize_t count = read(fd, file->data + file->length, alloc - file->length);
+        if (count < 0) break;
+        if (count == 0) return file->length > 0 ? EXIT_SUCCESS : EXIT_FAILURE;
+        file->length += count;
+    }
+    free(file->data);
+    file->data = NULL;
+    return EXIT_FAILURE;
+}
+
+//same as mapFile, opening the file by name
+int mapFileName(JNIEnv *env, jstring fileName, file_data_t *file) {
+    const char *c_file = env->GetStringUTFChars(fileName, NULL);
+    int fd = open(c_file, O_RDONLY);
+    int result = fd < 0 ? EXIT_FAILURE : mapFile(fd, file);
+
+    if (fd >= 0) close(fd);
+    if (result != EXIT_SUCCESS) LOGE("Error reading file %s", c_file);
+    env->ReleaseStringUTFChars(fileName, c_file);
+    return result;
+}
+
+void unmapFile(file_data_t *file) {
+    if (file->mapped) {
+        munmap(file->data, file->length);
+    } else {
+        free(file->data);
+    }
+    file->data = NULL;
+}
+
+jintArray decodeWSQFileData(JNIEnv *env, file_data_t *file, int levels, const volatile int *cancel) {
     image_data_t outImage;
     jintArray ret = NULL;
 
+    //NBIS only reads the input, so decode straight from the mapping
+    if (decodeWSQ(file->data, file->length, levels, NULL, cancel, &outImage) == EXIT_SUCCESS) {
+        ret = prepareReturnData(env, &outImage, NULL);
+    }
+    unmapFile(file);
+    return ret;
+}
+
+JNIEXPORT jintArray JNICALL Java_com_gemalto_wsq_Native_decodeWSQFile(JNIEnv *env, jclass thiz, jstring fileName, jint levels, jlong cancel) {
+    file_data_t file;
+
     //sanity check
     if (fileName == NULL) return NULL;
 
-    const char *c_file = env->GetStringUTFChars(fileName, NULL);
-    ifile = (char *) malloc((strlen(c_file) + 1) * sizeof(char));
-    strcpy(ifile, c_file);
-    env->ReleaseStringUTFChars(fileName, c_file);
-    
-    if((read_raw_from_filesize(ifile, &idata, &ilen))) {
-        LOGE("Error reading file %s", ifile);
-        free(ifile);
+    if (mapFileName(env, fileName, &file)) return NULL;
+    return decodeWSQFileData(env, &file, levels, (const volatile int *)(intptr_t)cancel);
+}
+
+JNIEXPORT jintArray JNICALL Java_com_gemalto_wsq_Native_decodeWSQFileDescriptor(JNIEnv *env, jclass thiz, jint fd, jint levels) {
+    file_data_t file;
+
+    if (mapFile(fd, &file)) {
+        LOGE("Error reading file descriptor %d", fd);
         return NULL;
     }
+    return decodeWSQFileData(env, &file, levels, NULL);
+}
+
+JNIEXPORT jintArray JNICALL Java_com_gemalto_wsq_Native_decodeWSQByteArray(JNIEnv *env, jclass thiz, jbyteArray data, jint levels, jlong arena, jlong cancel) {
+    int ilen;
+    jbyte *bufferPtr;
+    image_data_t outImage;
+    jintArray ret = NULL;
+
+    //sanity check
+    if (data == NULL) return NULL;
+
+    //NBIS only reads the input, so decode straight from the java array
+    ilen = env->GetArrayLength(data);
+    bufferPtr = env->GetByteArrayElements(data, NULL);
     
-    if (decodeWSQ(idata, ilen, &outImage) == EXIT_SUCCESS) {
-        ret = prepareReturnData(env, &outImage);
+    if (decodeWSQ((unsigned char *)bufferPtr, ilen, levels, (WSQ_ARENA *)(intptr_t)arena, (const volatile int *)(intptr_t)cancel,
+                  &outImage) == EXIT_SUCCESS) {
+        ret = prepareReturnData(env, &outImage, (WSQ_ARENA *)(intptr_t)arena);
     }
     
-    free(ifile);
-    free(idata);
+    env->ReleaseByteArrayElements(data, bufferPtr, JNI_ABORT);
 
     return ret;
 }
 
-JNIEXPORT jintArray JNICALL Java_com_gemalto_wsq_Native_decodeWSQByteArray(JNIEnv *env, jclass thiz, jbyteArray data) {
-    int ilen;
+JNIEXPORT jintArray JNICALL Java_com_gemalto_wsq_Native_decodeWSQByteBuffer(JNIEnv *env, jclass thiz, jobject in, jint inOffset, jint inLength, jobject out, jint outOffset, jint outLength, jlong arena) {
+    unsigned char *idata;    /* caller-owned WSQ data */
+    unsigned char *odata;    /* caller-owned 8-bit output pixels */
+    float *fdata;            /* reconstructed floating point image */
+    int width, height, ppi;
+    WSQ_CONTEXT ctx;
+    jintArray ret;
+
+    //sanity check
+    if (in == NULL || out == NULL) return NULL;
+    idata = (unsigned char *)env->GetDirectBufferAddress(in);
+    odata = (unsigned char *)env->GetDirectBufferAddress(out);
+    if (idata == NULL || odata == NULL) return NULL;
+
+    ctx.parallelism = getDecodeParallelism();
+    ctx.arena = (WSQ_ARENA *)(intptr_t)arena;
+    ctx.cancel = NULL;
+    if (wsq_decode_flt_mem(&ctx, &fdata, &width, &height, &ppi, idata + inOffset, inLength)) {
+        LOGE("Error decoding buffer");
+        return NULL;
+    }
+
+    if (pixelCount(width, height) > outLength) {
+        LOGE("Output buffer too small: %lld bytes needed, %d available", (long long)pixelCount(width, height), outLength);
+        wsq_arena_release(ctx.arena, fdata);
+        return NULL;
+    }
+
+    //write the pixels straight into the caller's buffer
+    conv_img_2_uchar(odata + outOffset, fdata, width, height,
+                     ctx.frm_header_wsq.m_shift, ctx.frm_header_wsq.r_scale);
+    wsq_arena_release(ctx.arena, fdata);
+
+    //return width, height, ppi
+    jint info[3] = {width, height, ppi};
+    ret = env->NewIntArray(3);
+    env->SetIntArrayRegion(ret, 0, 3, info);
+    return ret;
+}
+
+//decode into a new 8-bit java array; width, height and ppi are stored into info
+jbyteArray decodeWSQGray(JNIEnv *env, unsigned char *idata, int ilen, WSQ_ARENA *arena, jintArray info) {
+    float *fdata;            /* reconstructed floating point image */
+    int width, height, ppi;
+    WSQ_CONTEXT ctx;
+    jbyteArray ret;
+    void *pixels;
+
+    ctx.parallelism = getDecodeParallelism();
+    ctx.arena = arena;
+    ctx.cancel = NULL;
+    if (wsq_decode_flt_mem(&ctx, &fdata, &width, &height, &ppi, idata, ilen)) {
+        LOGE("Error decoding data");
+        return NULL;
+    }
+
+    if (pixelCount(width, height) > INT_MAX) {
+        LOGE("Image %dx%d is too large", width, height);
+        wsq_arena_release(arena, fdata);
+        return NULL;
+    }
+    ret = env->NewByteArray(width * height);
+    if (ret == NULL) {
+        LOGE("Could not allocate %d bytes of memory.", width * height);
+        wsq_arena_release(arena, fdata);
+        return NULL;
+    }
+
+    //convert the floating point image straight into the java array, no JNI calls in between
+    pixels = env->GetPrimitiveArrayCritical(ret, NULL);
+    conv_img_2_uchar((unsigned char *)pixels, fdata, width, height,
+                     ctx.frm_header_wsq.m_shift, ctx.frm_header_wsq.r_scale);
+    env->ReleasePrimitiveArrayCritical(ret, pixels, 0);
+    wsq_arena_release(arena, fdata);
+
+    jint tmp[3] = {width, height, ppi};
+    env->SetIntArrayRegion(info, 0, 3, tmp);
+    return ret;
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_gemalto_wsq_Native_decodeWSQGrayFile(JNIEnv *env, jclass thiz, jstring fileName, jintArray info) {
+    file_data_t file;
+    jbyteArray ret;
+
+    //sanity check
+    if (fileName == NULL) return NULL;
+
+    if (mapFileName(env, fileName, &file)) return NULL;
+    ret = decodeWSQGray(env, file.data, file.length, NULL, info);
+    unmapFile(&file);
+    return ret;
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_gemalto_wsq_Native_decodeWSQGrayByteArray(JNIEnv *env, jclass thiz, jbyteArray data, jlong arena, jintArray info) {
+    jbyte *bufferPtr;
+    jbyteArray ret;
+
+    //sanity check
+    if (data == NULL) return NULL;
+
+    bufferPtr = env->GetByteArrayElements(data, NULL);
+    ret = decodeWSQGray(env, (unsigned char *)bufferPtr, env->GetArrayLength(data), (WSQ_ARENA *)(intptr_t)arena, info);
+    env->ReleaseByteArrayElements(data, bufferPtr, JNI_ABORT);
+    return ret;
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_gemalto_wsq_Native_decodeWSQGrayByteBuffer(JNIEnv *env, jclass thiz, jobject in, jint inOffset, jint inLength, jintArray info) {
+    unsigned char *idata;
+
+    //sanity check
+    if (in == NULL) return NULL;
+    idata = (unsigned char *)env->GetDirectBufferAddress(in);
+    if (idata == NULL) return NULL;
+
+    return decodeWSQGray(env, idata + inOffset, inLength, NULL, info);
+}
+
+//map an android bitmap format to the NBIS pixel layout; returns -1 for unsupported formats
+int bitmapPixfmt(int32_t format) {
+    switch (format) {
+        case ANDROID_BITMAP_FORMAT_RGBA_8888: return PIXFMT_RGBA8888;
+        case ANDROID_BITMAP_FORMAT_RGB_565:   return PIXFMT_RGB565;
+        case ANDROID_BITMAP_FORMAT_A_8:       return PIXFMT_GRAY8;
+        default:                              return -1;
+    }
+}
+
+//decode into the pixels of an existing bitmap of the same size; returns {width, height, ppi}, or NULL on error
+jintArray decodeWSQIntoBitmap(JNIEnv *env, unsigned char *idata, int ilen, WSQ_ARENA *arena, jobject bitmap) {
+    float *fdata;            /* reconstructed floating point image */
+    int width, height, ppi;
+    int pixfmt;
+    AndroidBitmapInfo info;
+    void *pixels;
+    WSQ_CONTEXT ctx;
+    jintArray ret;
+
+    if (AndroidBitmap_getInfo(env, bitmap, &info) != ANDROID_BITMAP_RESULT_SUCCESS) {
+        LOGE("Could not get bitmap info");
+        return NULL;
+    }
+    pixfmt = bitmapPixfmt(info.format);
+    if (pixfmt < 0) {
+        LOGE("Unsupported bitmap format %d", info.format);
+        return NULL;
+    }
+
+    ctx.parallelism = getDecodeParallelism();
+    ctx.arena = arena;
+    ctx.cancel = NULL;
+    if (wsq_decode_flt_mem(&ctx, &fdata, &width, &height, &ppi, idata, ilen)) {
+        LOGE("Error decoding data");
+        return NULL;
+    }
+    if (width != (int)info.width || height != (int)info.height) {
+        LOGE("Image size %dx%d does not match the bitmap size %dx%d", width, height, info.width, info.height);
+        wsq_arena_release(arena, fdata);
+        return NULL;
+    }
+
+    //the bitmap is only locked for the final conversion, not for the whole decode
+    if (AndroidBitmap_lockPixels(env, bitmap, &pixels) != ANDROID_BITMAP_RESULT_SUCCESS) {
+        LOGE("Could not lock bitmap pixels");
+        wsq_arena_release(arena, fdata);
+        return NULL;
+    }
+    conv_img_2_pixfmt((unsigned char *)pixels, info.stride, pixfmt, fdata, width, height,
+                      ctx.frm_header_wsq.m_shift, ctx.frm_header_wsq.r_scale);
+    AndroidBitmap_unlockPixels(env, bitmap);
+    wsq_arena_release(arena, fdata);
+
+    ret = env->NewIntArray(3);
+    jint tmp[3] = {width, height, ppi};
+    env->SetIntArrayRegion(ret, 0, 3, tmp);
+    return ret;
+}
+
+JNIEXPORT jintArray JNICALL Java_com_gemalto_wsq_Native_decodeWSQByteArrayIntoBitmap(JNIEnv *env, jclass thiz, jbyteArray data, jlong arena, jobject bitmap) {
+    jbyte *bufferPtr;
+    jintArray ret;
+
+    //sanity check
+    if (data == NULL || bitmap == NULL) return NULL;
+
+    bufferPtr = env->GetByteArrayElements(data, NULL);
+    ret = decodeWSQIntoBitmap(env, (unsigned char *)bufferPtr, env->GetArrayLength(data), (WSQ_ARENA *)(intptr_t)arena, bitmap);
+    env->ReleaseByteArrayElements(data, bufferPtr, JNI_ABORT);
+    return ret;
+}
+
+JNIEXPORT jintArray JNICALL Java_com_gemalto_wsq_Native_decodeWSQByteBufferIntoBitmap(JNIEnv *env, jclass thiz, jobject in, jint inOffset, jint inLength, jobject bitmap) {
     unsigned char *idata;
+
+    //sanity check
+    if (in == NULL || bitmap == NULL) return NULL;
+    idata = (unsigned char *)env->GetDirectBufferAddress(in);
+    if (idata == NULL) return NULL;
+
+    return decodeWSQIntoBitmap(env, idata + inOffset, inLength, NULL, bitmap);
+}
+
+//decode the pixels inside the box left,top - right,bottom (exclusive), clipped to the image
+jint decodeWSQRegion(unsigned char *idata, int ilen, int left, int top, int right, int bottom, image_data_t *outImage) {
+    float *fdata;                  /* reconstructed region */
+    int x, y, width, height, ppi;  /* region parameters */
+    WSQ_CONTEXT ctx;
+
+    ctx.parallelism = getDecodeParallelism();
+    ctx.arena = NULL;
+    ctx.cancel = NULL;
+    if (wsq_decode_region_flt_mem(&ctx, &fdata, &x, &y, &width, &height, &ppi, idata, ilen, left, top, right, bottom)) {
+        LOGE("Error decoding region");
+        return EXIT_FAILURE;
+    }
+
+    if (pixelCount(width, height) > MAX_ARGB_PIXELS) {
+        LOGE("Region %dx%d is too large", width, height);
+        free(fdata);
+        return EXIT_FAILURE;
+    }
+    outImage->height = height;
+    outImage->width = width;
+    outImage->ppi = ppi;
+    int length = height * width;
+
+    outImage->pixels = (int *) malloc(sizeof(int) * length);
+    if (!outImage->pixels) {
+        LOGE("Could not allocate %d bytes of memory.", (int)(length * sizeof(int)));
+        free(fdata);
+        return EXIT_FAILURE;
+    }
+
+    conv_img_2_pixfmt((unsigned char *)outImage->pixels, width * sizeof(int), PIXFMT_RGBA8888, fdata, width, height,
+                      ctx.frm_header_wsq.m_shift, ctx.frm_header_wsq.r_scale);
+    free(fdata);
+    return EXIT_SUCCESS;
+}
+
+JNIEXPORT jintArray JNICALL Java_com_gemalto_wsq_Native_decodeWSQRegionByteArray(JNIEnv *env, jclass thiz, jbyteArray data, jint left, jint top, jint right, jint bottom) {
     jbyte *bufferPtr;
     image_data_t outImage;
     jintArray ret = NULL;
@@ -128,50 +530,214 @@ JNIEXPORT jintArray JNICALL Java_com_gemalto_wsq_Native_decodeWSQByteArray(JNIEn
     //sanity check
     if (data == NULL) return NULL;
 
-    //copy bytes from java
-    ilen = env->GetArrayLength(data);
     bufferPtr = env->GetByteArrayElements(data, NULL);
-    idata = (unsigned char *)malloc(ilen * sizeof(char));
-    memcpy(idata, bufferPtr, ilen);
+    if (decodeWSQRegion((unsigned char *)bufferPtr, env->GetArrayLength(data), left, top, right, bottom, &outImage) == EXIT_SUCCESS) {
+        ret = prepareReturnData(env, &outImage, NULL);
+    }
     env->ReleaseByteArrayElements(data, bufferPtr, JNI_ABORT);
-    
-    if (decodeWSQ(idata, ilen, &outImage) == EXIT_SUCCESS) {
-        ret = prepareReturnData(env, &outImage);
+
+    return ret;
+}
+
+//header information collected by the probe functions
+typedef struct probe_data {
+    FRM_HEADER_WSQ frm_header;
+    int has_frame;
+    int num_comments;
+    int alloc_comments;
+    unsigned char **comments;
+} probe_data_t;
+
+//keep a comment read by NBIS, takes ownership of it
+int addProbeComment(probe_data_t *probe, unsigned char *comment) {
+    if (probe->num_comments == probe->alloc_comments) {
+        int alloc = probe->alloc_comments ? probe->alloc_comments * 2 : 4;
+        unsigned char **comments = (unsigned char **)realloc(probe->comments, alloc * sizeof(unsigned char *));
+        if (comments == NULL) {
+            free(comment);
+            return EXIT_FAILURE;
+        }
+        probe->comments = comments;
+        probe->alloc_comments = alloc;
     }
-    
-    free(idata);
+    probe->comments[probe->num_comments++] = comment;
+    return EXIT_SUCCESS;
+}
+
+void freeProbeData(probe_data_t *probe) {
+    for (int i = 0; i < probe->num_comments; i++) {
+        free(probe->comments[i]);
+    }
+    free(probe->comments);
+}
+
+//walk the markers up to the first block, reading the frame header and the comments; other tables are skipped
+int probeWSQMem(unsigned char *idata, int ilen, probe_data_t *probe) {
+    unsigned short marker;
+    unsigned char *cbufptr = idata;
+    unsigned char *ebufptr = idata + ilen;
+    unsigned char *comment;
+
+    if (getc_marker_wsq(&marker, SOI_WSQ, &cbufptr, ebufptr)) return EXIT_FAILURE;
+    if (getc_marker_wsq(&marker, ANY_WSQ, &cbufptr, ebufptr)) return EXIT_FAILURE;
+    while (marker != SOB_WSQ) {
+        switch (marker) {
+            case SOF_WSQ:
+                if (getc_frame_header_wsq(&probe->frm_header, &cbufptr, ebufptr)) return EXIT_FAILURE;
+                probe->has_frame = 1;
+                break;
+            case COM_WSQ:
+                if (getc_comment(&comment, &cbufptr, ebufptr)) return EXIT_FAILURE;
+                if (addProbeComment(probe, comment)) return EXIT_FAILURE;
+                break;
+            case SOI_WSQ:
+            case EOI_WSQ:
+                return EXIT_FAILURE;
+            default:
+                if (getc_skip_marker_segment(marker, &cbufptr, ebufptr)) return EXIT_FAILURE;
+                break;
+        }
+        if (getc_marker_wsq(&marker, ANY_WSQ, &cbufptr, ebufptr)) return EXIT_FAILURE;
+    }
+    return probe->has_frame ? EXIT_SUCCESS : EXIT_FAILURE;
+}
+
+//same as probeWSQMem, but only the header part of the file is read
+int probeWSQFile(FILE *infp, probe_data_t *probe) {
+    unsigned short marker;
+    unsigned char *comment;
+
+    if (read_marker_wsq(&marker, SOI_WSQ, infp)) return EXIT_FAILURE;
+    if (read_marker_wsq(&marker, ANY_WSQ, infp)) return EXIT_FAILURE;
+    while (marker != SOB_WSQ) {
+        switch (marker) {
+            case SOF_WSQ:
+                if (read_frame_header_wsq(&probe->frm_header, infp)) return EXIT_FAILURE;
+                probe->has_frame = 1;
+                break;
+            case COM_WSQ:
+                if (read_comment(&comment, infp)) return EXIT_FAILURE;
+                if (addProbeComment(probe, comment)) return EXIT_FAILURE;
+                break;
+            case SOI_WSQ:
+            case EOI_WSQ:
+                return EXIT_FAILURE;
+            default:
+                if (read_skip_marker_segment(marker, infp)) return EXIT_FAILURE;
+                break;
+        }
+        if (read_marker_wsq(&marker, ANY_WSQ, infp)) return EXIT_FAILURE;
+    }
+    return probe->has_frame ? EXIT_SUCCESS : EXIT_FAILURE;
+}
+
+//return the comments as an array of byte arrays, the frame size is stored into info; frees the probe data
+jobjectArray prepareProbeData(JNIEnv *env, probe_data_t *probe, int result, jintArray info) {
+    jobjectArray ret = NULL;
 
+    if (result == EXIT_SUCCESS) {
+        ret = env->NewObjectArray(probe->num_comments, env->FindClass("[B"), NULL);
+        for (int i = 0; ret != NULL && i < probe->num_comments; i++) {
+            jsize len = strlen((char *)probe->comments[i]);
+            jbyteArray comment = env->NewByteArray(len);
+            if (comment == NULL) {
+                ret = NULL;
+                break;
+            }
+            env->SetByteArrayRegion(comment, 0, len, (jbyte *)probe->comments[i]);
+            env->SetObjectArrayElement(ret, i, comment);
+            env->DeleteLocalRef(comment);
+        }
+        if (ret != NULL) {
+            jint tmp[2] = {probe->frm_header.width, probe->frm_header.height};
+            env->SetIntArrayRegion(info, 0, 2, tmp);
+        }
+    }
+    freeProbeData(probe);
     return ret;
 }
 
+JNIEXPORT jobjectArray JNICALL Java_com_gemalto_wsq_Native_probeWSQFile(JNIEnv *env, jclass thiz, jstring fileName, jintArray info) {
+    probe_data_t probe = {};
+    FILE *infp;
+    int result;
+
+    //sanity check
+    if (fileName == NULL) return NULL;
+
+    const char *c_file = env->GetStringUTFChars(fileName, NULL);
+    infp = fopen(c_file, "rb");
+    if (infp == NULL) {
+        LOGE("Error opening file %s", c_file);
+        env->ReleaseStringUTFChars(fileName, c_file);
+        return NULL;
+    }
+    env->ReleaseStringUTFChars(fileName, c_file);
+
+    result = probeWSQFile(infp, &probe);
+    fclose(infp);
+    return prepareProbeData(env, &probe, result, info);
+}
+
+JNIEXPORT jobjectArray JNICALL Java_com_gemalto_wsq_Native_probeWSQByteArray(JNIEnv *env, jclass thiz, jbyteArray data, jintArray info) {
+    probe_data_t probe = {};
+    jbyte *bufferPtr;
+    int result;
+
+    //sanity check
+    if (data == NULL) return NULL;
+
+    bufferPtr = env->GetByteArrayElements(data, NULL);
+    result = probeWSQMem((unsigned char *)bufferPtr, env->GetArrayLength(data), &probe);
+    env->ReleaseByteArrayElements(data, bufferPtr, JNI_ABORT);
+    return prepareProbeData(env, &probe, result, info);
+}
+
+JNIEXPORT jobjectArray JNICALL Java_com_gemalto_wsq_Native_probeWSQByteBuffer(JNIEnv *env, jclass thiz, jobject in, jint inOffset, jint inLength, jintArray info) {
+    probe_data_t probe = {};
+    unsigned char *idata;
+
+    //sanity check
+    if (in == NULL) return NULL;
+    idata = (unsigned char *)env->GetDirectBufferAddress(in);
+    if (idata == NULL) return NULL;
+
+    return prepareProbeData(env, &probe, probeWSQMem(idata + inOffset, inLength, &probe), info);
+}
+
 static const int MAX_COMMENT_LEN = (2 << 16) - 3;
 
-JNIEXPORT jbyteArray JNICALL Java_com_gemalto_wsq_Native_encodeWSQByteArray(JNIEnv *env, jclass thiz, jintArray pixels, jint width, jint height, jfloat r_bitrate, jint ppi, jstring comment) {
-    int i;
-    unsigned char *idata;    /* Input RGB data */
-    unsigned char *odata;    /* Encoded WSQ data */
-    int olen;                /* Number of bytes in the WSQ data. */
-    jint *bufferPtr;
-    char *comment_text = NULL;      /* Comment text */
-    jbyteArray ret;          /* Output data */
+//copy a java comment into a malloc'd C string; returns NULL if there is no comment
+char *copyComment(JNIEnv *env, jstring comment) {
+    char *comment_text;
     size_t commentLen;
-    
-    //copy comment
-    if (comment != NULL) {
-        const char *tmp = env->GetStringUTFChars(comment, NULL);
-        commentLen = strlen(tmp);
 
-        //make sure we don't copy a comment longer, than the NBIS format supports
-        if (commentLen > MAX_COMMENT_LEN) commentLen = MAX_COMMENT_LEN;
-        comment_text = (char *) malloc((commentLen + 1) * sizeof(char));
-        strncpy(comment_text, tmp, commentLen);
-        comment_text[commentLen] = 0;
+    if (comment == NULL) return NULL;
+
+    const char *tmp = env->GetStringUTFChars(comment, NULL);
+    commentLen = strlen(tmp);
+
+    //make sure we don't copy a comment longer, than the NBIS format supports
+    if (commentLen > MAX_COMMENT_LEN) commentLen = MAX_COMMENT_LEN;
+    comment_text = (char *) malloc((commentLen + 1) * sizeof(char));
+    strncpy(comment_text, tmp, commentLen);
+    comment_text[commentLen] = 0;
+
+    env->ReleaseStringUTFChars(comment, tmp);
+    return comment_text;
+}
+
+//convert java ARGB pixels to a gray image taken from the arena, malloc'd without one
+unsigned char *pixelsToGray(JNIEnv *env, jintArray pixels, jint width, jint height, WSQ_ARENA *arena) {
+    int i;
+    unsigned char *idata;
+    jint *bufferPtr;
 
-        env->ReleaseStringUTFChars(comment, tmp);
+    idata = (unsigned char *)wsq_arena_alloc(arena, WSQ_ARENA_PIXELS, width * height * sizeof(unsigned char));
+    if (idata == NULL) {
+        LOGE("Could not allocate %d bytes of memory.", width * height);
+        return NULL;
     }
-    
-    //copy pixels from java and convert to grey
-    idata = (unsigned char *)malloc(width * height * sizeof(unsigned char));
     bufferPtr = env->GetIntArrayElements(pixels, NULL);
     for (i = 0; i < width * height; i++) {
         idata[i] = (
@@ -181,28 +747,899 @@ JNIEXPORT jbyteArray JNICALL Java_com_gemalto_wsq_Native_encodeWSQByteArray(JNIE
         ) / 3;
     }
     env->ReleaseIntArrayElements(pixels, bufferPtr, JNI_ABORT);
+    return idata;
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_gemalto_wsq_Native_encodeWSQByteArray(JNIEnv *env, jclass thiz, jintArray pixels, jint width, jint height, jfloat r_bitrate, jint ppi, jstring comment, jint parallelism, jlong arena) {
+    unsigned char *idata;    /* Input RGB data */
+    unsigned char *odata;    /* Encoded WSQ data */
+    int olen;                /* Number of bytes in the WSQ data. */
+    char *comment_text = NULL;      /* Comment text */
+    jbyteArray ret;          /* Output data */
+    WSQ_CONTEXT ctx;         /* per-call encoder state, allows concurrent encoding */
+    
+    //copy pixels from java and convert to grey
+    idata = pixelsToGray(env, pixels, width, height, (WSQ_ARENA *)(intptr_t)arena);
+    if (idata == NULL) return NULL;
+
+    //copy comment
+    comment_text = copyComment(env, comment);
     
+    ctx.parallelism = parallelism;
+    ctx.arena = (WSQ_ARENA *)(intptr_t)arena;
+    ctx.cancel = NULL;
     /* Encode/compress the image pixmap. */
-    if(wsq_encode_mem(&odata, &olen, r_bitrate,
+    if(wsq_encode_mem(&ctx, &odata, &olen, r_bitrate,
                              idata, width, height, 8 /* bit depth */, ppi, comment_text)){
-        free(idata);
+        wsq_arena_release(ctx.arena, idata);
         if(comment_text != NULL) {
             free(comment_text);
         }
         return NULL;
     }
 
-    free(idata);
+    wsq_arena_release(ctx.arena, idata);
     if(comment_text != NULL) {
         free(comment_text);
     }
     
     ret = env->NewByteArray(olen);
     env->SetByteArrayRegion(ret, 0, olen, (jbyte *)odata);
+    wsq_arena_release(ctx.arena, odata);
+    return ret;
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_gemalto_wsq_Native_encodeWSQByteBuffer(JNIEnv *env, jclass thiz, jobject gray, jint offset, jint width, jint height, jfloat r_bitrate, jint ppi, jstring comment, jint parallelism, jlong arena) {
+    unsigned char *idata;    /* caller-owned 8-bit gray pixels */
+    unsigned char *odata;    /* Encoded WSQ data */
+    int olen;                /* Number of bytes in the WSQ data. */
+    char *comment_text;      /* Comment text */
+    jbyteArray ret;          /* Output data */
+    WSQ_CONTEXT ctx;
+
+    idata = (unsigned char *)env->GetDirectBufferAddress(gray);
+    if (idata == NULL) return NULL;
+
+    comment_text = copyComment(env, comment);
+    
+    ctx.parallelism = parallelism;
+    ctx.arena = (WSQ_ARENA *)(intptr_t)arena;
+    ctx.cancel = NULL;
+    /* Encode/compress the caller's pixmap in place. */
+    if(wsq_encode_mem(&ctx, &odata, &olen, r_bitrate,
+                             idata + offset, width, height, 8 /* bit depth */, ppi, comment_text)){
+        if(comment_text != NULL) {
+            free(comment_text);
+        }
+        return NULL;
+    }
+
+    if(comment_text != NULL) {
+        free(comment_text);
+    }
+
+    ret = env->NewByteArray(olen);
+    env->SetByteArrayRegion(ret, 0, olen, (jbyte *)odata);
+    wsq_arena_release(ctx.arena, odata);
+    return ret;
+}
+
+JNIEXPORT jint JNICALL Java_com_gemalto_wsq_Native_encodeWSQByteBufferInto(JNIEnv *env, jclass thiz, jobject gray, jint offset, jint width, jint height, jfloat r_bitrate, jint ppi, jstring comment, jint parallelism, jlong arena, jobject out, jint outOffset, jint outLength) {
+    unsigned char *idata;    /* caller-owned 8-bit gray pixels */
+    unsigned char *odata;    /* caller-owned output buffer */
+    int olen;                /* Number of bytes in the WSQ data. */
+    char *comment_text;      /* Comment text */
+    WSQ_CONTEXT ctx;
+
+    idata = (unsigned char *)env->GetDirectBufferAddress(gray);
+    odata = (unsigned char *)env->GetDirectBufferAddress(out);
+    if (idata == NULL || odata == NULL) return 0;
+
+    comment_text = copyComment(env, comment);
+
+    ctx.parallelism = parallelism;
+    ctx.arena = (WSQ_ARENA *)(intptr_t)arena;
+    ctx.cancel = NULL;
+    /* Encode/compress the caller's pixmap straight into the caller's buffer. */
+    if(wsq_encode_into_mem(&ctx, odata + outOffset, outLength, &olen, r_bitrate,
+                             idata + offset, width, height, 8 /* bit depth */, ppi, comment_text)){
+        olen = 0;
+    }
+
+    if(comment_text != NULL) {
+        free(comment_text);
+    }
+    return olen;
+}
+
+//convert the pixels of a bitmap to the floating point image NBIS encodes, taken from the arena if there is one;
+//returns NULL on error
+float *bitmapToFlt(JNIEnv *env, jobject bitmap, WSQ_ARENA *arena, float *m_shift, float *r_scale, int *width, int *height) {
+    AndroidBitmapInfo info;
+    int pixfmt;
+    void *pixels;
+    float *fdata;            /* floating point pixel image */
+    int ret;
+
+    if (AndroidBitmap_getInfo(env, bitmap, &info) != ANDROID_BITMAP_RESULT_SUCCESS) {
+        LOGE("Could not get bitmap info");
+        return NULL;
+    }
+    pixfmt = bitmapPixfmt(info.format);
+    if (pixfmt < 0) {
+        LOGE("Unsupported bitmap format %d", info.format);
+        return NULL;
+    }
+
+    fdata = (float *)wsq_arena_alloc(arena, WSQ_ARENA_FDATA, info.width * info.height * sizeof(float));
+    if (fdata == NULL) {
+        LOGE("Could not allocate %d bytes of memory.", (int)(info.width * info.height * sizeof(float)));
+        return NULL;
+    }
+
+    //convert to gray floating point straight from the bitmap memory, no gray copy of the image is made
+    if (AndroidBitmap_lockPixels(env, bitmap, &pixels) != ANDROID_BITMAP_RESULT_SUCCESS) {
+        LOGE("Could not lock bitmap pixels");
+        wsq_arena_release(arena, fdata);
+        return NULL;
+    }
+    ret = conv_img_2_flt_pixfmt(fdata, m_shift, r_scale, (unsigned char *)pixels, info.stride, pixfmt,
+                                info.width, info.height);
+    AndroidBitmap_unlockPixels(env, bitmap);
+    if (ret) {
+        wsq_arena_release(arena, fdata);
+        return NULL;
+    }
+
+    *width = info.width;
+    *height = info.height;
+    return fdata;
+}
+
+//encode the pixels of a bitmap into wsq_data; returns 0 on success
+int encodeWSQBitmap(JNIEnv *env, jobject bitmap, jfloat r_bitrate, jint ppi, jstring comment, jint parallelism,
+                    WSQ_ARENA *arena, unsigned char *wsq_data, int wsq_alloc, int *olen) {
+    float *fdata;            /* floating point pixel image */
+    float m_shift, r_scale;  /* shift/scale parameters */
+    int width, height;
+    char *comment_text;      /* Comment text */
+    int ret;
+    WSQ_CONTEXT ctx;
+
+    fdata = bitmapToFlt(env, bitmap, arena, &m_shift, &r_scale, &width, &height);
+    if (fdata == NULL) return EXIT_FAILURE;
+
+    comment_text = copyComment(env, comment);
+
+    ctx.parallelism = parallelism;
+    ctx.arena = arena;
+    ctx.cancel = NULL;
+    /* Encode/compress the floating point pixmap, fdata is released by NBIS. */
+    ret = wsq_encode_flt_into_mem(&ctx, wsq_data, wsq_alloc, olen, r_bitrate, fdata, m_shift, r_scale,
+                                  width, height, 8 /* bit depth */, ppi, comment_text);
+
+    if(comment_text != NULL) {
+        free(comment_text);
+    }
+    return ret ? EXIT_FAILURE : EXIT_SUCCESS;
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_gemalto_wsq_Native_encodeWSQBitmap(JNIEnv *env, jclass thiz, jobject bitmap, jfloat r_bitrate, jint ppi, jstring comment, jint parallelism, jlong arena) {
+    AndroidBitmapInfo info;
+    unsigned char *odata;    /* Encoded WSQ data */
+    int olen;                /* Number of bytes in the WSQ data. */
+    jbyteArray ret;          /* Output data */
+
+    if (bitmap == NULL) return NULL;
+    if (AndroidBitmap_getInfo(env, bitmap, &info) != ANDROID_BITMAP_RESULT_SUCCESS) return NULL;
+
+    /* Like wsq_encode_mem, the output must not be larger than the gray image. */
+    odata = (unsigned char *)wsq_arena_alloc((WSQ_ARENA *)(intptr_t)arena, WSQ_ARENA_OUT, info.width * info.height);
+    if (odata == NULL) {
+        LOGE("Could not allocate %d bytes of memory.", info.width * info.height);
+        return NULL;
+    }
+    if (encodeWSQBitmap(env, bitmap, r_bitrate, ppi, comment, parallelism, (WSQ_ARENA *)(intptr_t)arena,
+                        odata, info.width * info.height, &olen) != EXIT_SUCCESS) {
+        wsq_arena_release((WSQ_ARENA *)(intptr_t)arena, odata);
+        return NULL;
+    }
+
+    ret = env->NewByteArray(olen);
+    env->SetByteArrayRegion(ret, 0, olen, (jbyte *)odata);
+    wsq_arena_release((WSQ_ARENA *)(intptr_t)arena, odata);
+    return ret;
+}
+
+JNIEXPORT jint JNICALL Java_com_gemalto_wsq_Native_encodeWSQBitmapInto(JNIEnv *env, jclass thiz, jobject bitmap, jfloat r_bitrate, jint ppi, jstring comment, jint parallelism, jlong arena, jobject out, jint outOffset, jint outLength) {
+    unsigned char *odata;    /* caller-owned output buffer */
+    int olen;                /* Number of bytes in the WSQ data. */
+
+    if (bitmap == NULL) return 0;
+    odata = (unsigned char *)env->GetDirectBufferAddress(out);
+    if (odata == NULL) return 0;
+
+    if (encodeWSQBitmap(env, bitmap, r_bitrate, ppi, comment, parallelism, (WSQ_ARENA *)(intptr_t)arena,
+                        odata + outOffset, outLength, &olen) != EXIT_SUCCESS) {
+        return 0;
+    }
+    return olen;
+}
+
+//copy the output of a target encoding to java and give it back to the arena
+jbyteArray targetResult(JNIEnv *env, WSQ_ARENA *arena, unsigned char *odata, int olen, float r_bitrate) {
+    jbyteArray ret;          /* Output data */
+
+    LOGD("Encoded at bitrate %f into %d bytes", r_bitrate, olen);
+    ret = env->NewByteArray(olen);
+    env->SetByteArrayRegion(ret, 0, olen, (jbyte *)odata);
+    wsq_arena_release(arena, odata);
+    return ret;
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_gemalto_wsq_Native_encodeWSQByteArrayToTarget(JNIEnv *env, jclass thiz, jintArray pixels, jint width, jint height, jfloat max_bitrate, jint max_bytes, jdouble min_psnr, jint ppi, jstring comment, jint parallelism, jlong arena) {
+    unsigned char *idata;    /* Input RGB data */
+    unsigned char *odata;    /* Encoded WSQ data */
+    int olen;                /* Number of bytes in the WSQ data. */
+    float r_bitrate;         /* bitrate meeting the target */
+    char *comment_text;      /* Comment text */
+    int ret;
+    WSQ_CONTEXT ctx;
+
+    idata = pixelsToGray(env, pixels, width, height, (WSQ_ARENA *)(intptr_t)arena);
+    if (idata == NULL) return NULL;
+
+    comment_text = copyComment(env, comment);
+
+    ctx.parallelism = parallelism;
+    ctx.arena = (WSQ_ARENA *)(intptr_t)arena;
+    ctx.cancel = NULL;
+    /* Search the bitrate meeting the target and encode the image at it. */
+    ret = wsq_encode_target_mem(&ctx, &odata, &olen, &r_bitrate, max_bitrate, max_bytes, min_psnr,
+                                idata, width, height, 8 /* bit depth */, ppi, comment_text);
+
+    wsq_arena_release(ctx.arena, idata);
+    if(comment_text != NULL) {
+        free(comment_text);
+    }
+    if (ret) return NULL;
+    return targetResult(env, ctx.arena, odata, olen, r_bitrate);
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_gemalto_wsq_Native_encodeWSQByteBufferToTarget(JNIEnv *env, jclass thiz, jobject gray, jint offset, jint width, jint height, jfloat max_bitrate, jint max_bytes, jdouble min_psnr, jint ppi, jstring comment, jint parallelism, jlong arena) {
+    unsigned char *idata;    /* caller-owned 8-bit gray pixels */
+    unsigned char *odata;    /* Encoded WSQ data */
+    int olen;                /* Number of bytes in the WSQ data. */
+    float r_bitrate;         /* bitrate meeting the target */
+    char *comment_text;      /* Comment text */
+    int ret;
+    WSQ_CONTEXT ctx;
+
+    idata = (unsigned char *)env->GetDirectBufferAddress(gray);
+    if (idata == NULL) return NULL;
+
+    comment_text = copyComment(env, comment);
+
+    ctx.parallelism = parallelism;
+    ctx.arena = (WSQ_ARENA *)(intptr_t)arena;
+    ctx.cancel = NULL;
+    /* Search the bitrate meeting the target and encode the caller's pixmap at it. */
+    ret = wsq_encode_target_mem(&ctx, &odata, &olen, &r_bitrate, max_bitrate, max_bytes, min_psnr,
+                                idata + offset, width, height, 8 /* bit depth */, ppi, comment_text);
+
+    if(comment_text != NULL) {
+        free(comment_text);
+    }
+    if (ret) return NULL;
+    return targetResult(env, ctx.arena, odata, olen, r_bitrate);
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_gemalto_wsq_Native_encodeWSQBitmapToTarget(JNIEnv *env, jclass thiz, jobject bitmap, jfloat max_bitrate, jint max_bytes, jdouble min_psnr, jint ppi, jstring comment, jint parallelism, jlong arena) {
+    float *fdata;            /* floating point pixel image */
+    float m_shift, r_scale;  /* shift/scale parameters */
+    int width, height;
+    unsigned char *odata;    /* Encoded WSQ data */
+    int olen;                /* Number of bytes in the WSQ data. */
+    float r_bitrate;         /* bitrate meeting the target */
+    char *comment_text;      /* Comment text */
+    int ret;
+    WSQ_CONTEXT ctx;
+
+    if (bitmap == NULL) return NULL;
+    fdata = bitmapToFlt(env, bitmap, (WSQ_ARENA *)(intptr_t)arena, &m_shift, &r_scale, &width, &height);
+    if (fdata == NULL) return NULL;
+
+    comment_text = copyComment(env, comment);
+
+    ctx.parallelism = parallelism;
+    ctx.arena = (WSQ_ARENA *)(intptr_t)arena;
+    ctx.cancel = NULL;
+    /* fdata is released by NBIS. */
+    ret = wsq_encode_flt_target_mem(&ctx, &odata, &olen, &r_bitrate, max_bitrate, max_bytes, min_psnr,
+                                    fdata, m_shift, r_scale, width, height, 8 /* bit depth */, ppi, comment_text);
+
+    if(comment_text != NULL) {
+        free(comment_text);
+    }
+    if (ret) return NULL;
+    return targetResult(env, ctx.arena, odata, olen, r_bitrate);
+}
+
+//encode the gray pixels idata, or the floating point image fdata if idata is NULL, at every bitrate;
+//returns one byte array per bitrate, NULL on error. fdata is released by NBIS.
+jobjectArray encodeWSQMulti(JNIEnv *env, jfloatArray bitrates, unsigned char *idata, float *fdata, float m_shift,
+                            float r_scale, int width, int height, jint ppi, jstring comment, jint parallelism,
+                            WSQ_ARENA *arena) {
+    unsigned char *odata;    /* Encoded WSQ data, one image after the other */
+    int *olens;              /* Number of bytes in each image */
+    char *comment_text;      /* Comment text */
+    jint num_rates = env->GetArrayLength(bitrates);
+    jfloat *rates;
+    jobjectArray ret = NULL; /* Output data */
+    int result;
+    WSQ_CONTEXT ctx;
+
+    olens = (int *)malloc(num_rates * sizeof(int));
+    if (olens == NULL) {
+        if (idata == NULL) wsq_arena_release(arena, fdata);
+        return NULL;
+    }
+    comment_text = copyComment(env, comment);
+    rates = env->GetFloatArrayElements(bitrates, NULL);
+
+    ctx.parallelism = parallelism;
+    ctx.arena = arena;
+    ctx.cancel = NULL;
+    /* Decompose the image once, quantize and code it at each bitrate. */
+    if (idata != NULL) {
+        result = wsq_encode_multi_mem(&ctx, &odata, olens, rates, num_rates,
+                                      idata, width, height, 8 /* bit depth */, ppi, comment_text);
+    } else {
+        result = wsq_encode_flt_multi_mem(&ctx, &odata, olens, rates, num_rates,
+                                          fdata, m_shift, r_scale, width, height, 8 /* bit depth */, ppi, comment_text);
+    }
+
+    env->ReleaseFloatArrayElements(bitrates, rates, JNI_ABORT);
+    if(comment_text != NULL) {
+        free(comment_text);
+    }
+
+    if (!result) {
+        ret = env->NewObjectArray(num_rates, env->FindClass("[B"), NULL);
+        for (int i = 0, offset = 0; ret != NULL && i < num_rates; offset += olens[i++]) {
+            jbyteArray image = env->NewByteArray(olens[i]);
+            if (image == NULL) {
+                ret = NULL;
+                break;
+            }
+            env->SetByteArrayRegion(image, 0, olens[i], (jbyte *)odata + offset);
+            env->SetObjectArrayElement(ret, i, image);
+            env->DeleteLocalRef(image);
+        }
+        wsq_arena_release(arena, odata);
+    }
+    free(olens);
+    return ret;
+}
+
+JNIEXPORT jobjectArray JNICALL Java_com_gemalto_wsq_Native_encodeWSQByteArrayMulti(JNIEnv *env, jclass thiz, jintArray pixels, jint width, jint height, jfloatArray bitrates, jint ppi, jstring comment, jint parallelism, jlong arena) {
+    unsigned char *idata;    /* Input RGB data */
+    jobjectArray ret;        /* Output data */
+
+    idata = pixelsToGray(env, pixels, width, height, (WSQ_ARENA *)(intptr_t)arena);
+    if (idata == NULL) return NULL;
+
+    ret = encodeWSQMulti(env, bitrates, idata, NULL, 0, 0, width, height, ppi, comment, parallelism,
+                         (WSQ_ARENA *)(intptr_t)arena);
+    wsq_arena_release((WSQ_ARENA *)(intptr_t)arena, idata);
+    return ret;
+}
+
+JNIEXPORT jobjectArray JNICALL Java_com_gemalto_wsq_Native_encodeWSQByteBufferMulti(JNIEnv *env, jclass thiz, jobject gray, jint offset, jint width, jint height, jfloatArray bitrates, jint ppi, jstring comment, jint parallelism, jlong arena) {
+    unsigned char *idata;    /* caller-owned 8-bit gray pixels */
+
+    idata = (unsigned char *)env->GetDirectBufferAddress(gray);
+    if (idata == NULL) return NULL;
+
+    return encodeWSQMulti(env, bitrates, idata + offset, NULL, 0, 0, width, height, ppi, comment, parallelism,
+                          (WSQ_ARENA *)(intptr_t)arena);
+}
+
+JNIEXPORT jobjectArray JNICALL Java_com_gemalto_wsq_Native_encodeWSQBitmapMulti(JNIEnv *env, jclass thiz, jobject bitmap, jfloatArray bitrates, jint ppi, jstring comment, jint parallelism, jlong arena) {
+    float *fdata;            /* floating point pixel image */
+    float m_shift, r_scale;  /* shift/scale parameters */
+    int width, height;
+
+    if (bitmap == NULL) return NULL;
+    fdata = bitmapToFlt(env, bitmap, (WSQ_ARENA *)(intptr_t)arena, &m_shift, &r_scale, &width, &height);
+    if (fdata == NULL) return NULL;
+
+    return encodeWSQMulti(env, bitrates, NULL, fdata, m_shift, r_scale, width, height, ppi, comment, parallelism,
+                          (WSQ_ARENA *)(intptr_t)arena);
+}
+
+//passes the encoder output to a java OutputStream through a reused byte array
+typedef struct stream_sink {
+    JNIEnv *env;
+    jobject stream;
+    jmethodID write;
+    jbyteArray chunk;
+} stream_sink_t;
+
+static const int STREAM_CHUNK_SIZE = 16 * 1024;
+
+int streamSinkWrite(void *opaque, unsigned char *data, const int len) {
+    stream_sink_t *sink = (stream_sink_t *)opaque;
+    int n;
+
+    for (int offset = 0; offset < len; offset += n) {
+        n = len - offset < STREAM_CHUNK_SIZE ? len - offset : STREAM_CHUNK_SIZE;
+        sink->env->SetByteArrayRegion(sink->chunk, 0, n, (jbyte *)data + offset);
+        sink->env->CallVoidMethod(sink->stream, sink->write, sink->chunk, 0, n);
+        //stop the encoder, the IOException is thrown to the java caller
+        if (sink->env->ExceptionCheck()) return -1;
+    }
+    return 0;
+}
+
+//set up a sink writing into out; returns 0 on success
+int initStreamSink(JNIEnv *env, jobject out, stream_sink_t *stream, WSQ_SINK *sink) {
+    jclass cls = env->GetObjectClass(out);
+    stream->write = env->GetMethodID(cls, "write", "([BII)V");
+    env->DeleteLocalRef(cls);
+    if (stream->write == NULL) return EXIT_FAILURE;
+    stream->chunk = env->NewByteArray(STREAM_CHUNK_SIZE);
+    if (stream->chunk == NULL) return EXIT_FAILURE;
+    stream->env = env;
+    stream->stream = out;
+    sink->write = streamSinkWrite;
+    sink->opaque = stream;
+    return EXIT_SUCCESS;
+}
+
+JNIEXPORT jint JNICALL Java_com_gemalto_wsq_Native_encodeWSQByteArrayToStream(JNIEnv *env, jclass thiz, jintArray pixels, jint width, jint height, jfloat r_bitrate, jint ppi, jstring comment, jint parallelism, jlong arena, jobject out) {
+    unsigned char *idata;    /* gray image */
+    int olen;                /* Number of bytes in the WSQ data. */
+    char *comment_text;      /* Comment text */
+    stream_sink_t stream;
+    WSQ_SINK sink;
+    WSQ_CONTEXT ctx;
+
+    if (pixels == NULL || out == NULL) return 0;
+    if (initStreamSink(env, out, &stream, &sink) != EXIT_SUCCESS) return 0;
+
+    idata = pixelsToGray(env, pixels, width, height, (WSQ_ARENA *)(intptr_t)arena);
+    if (idata == NULL) return 0;
+    comment_text = copyComment(env, comment);
+
+    ctx.parallelism = parallelism;
+    ctx.arena = (WSQ_ARENA *)(intptr_t)arena;
+    ctx.cancel = NULL;
+    if (wsq_encode_to_sink(&ctx, &sink, &olen, r_bitrate, idata, width, height, 8 /* bit depth */, ppi, comment_text)) {
+        olen = 0;
+    }
+
+    wsq_arena_release(ctx.arena, idata);
+    if (comment_text != NULL) {
+        free(comment_text);
+    }
+    return olen;
+}
+
+JNIEXPORT jint JNICALL Java_com_gemalto_wsq_Native_encodeWSQByteBufferToStream(JNIEnv *env, jclass thiz, jobject gray, jint offset, jint width, jint height, jfloat r_bitrate, jint ppi, jstring comment, jint parallelism, jlong arena, jobject out) {
+    unsigned char *idata;    /* caller-owned 8-bit gray pixels */
+    int olen;                /* Number of bytes in the WSQ data. */
+    char *comment_text;      /* Comment text */
+    stream_sink_t stream;
+    WSQ_SINK sink;
+    WSQ_CONTEXT ctx;
+
+    if (out == NULL) return 0;
+    idata = (unsigned char *)env->GetDirectBufferAddress(gray);
+    if (idata == NULL) return 0;
+    if (initStreamSink(env, out, &stream, &sink) != EXIT_SUCCESS) return 0;
+
+    comment_text = copyComment(env, comment);
+
+    ctx.parallelism = parallelism;
+    ctx.arena = (WSQ_ARENA *)(intptr_t)arena;
+    ctx.cancel = NULL;
+    if (wsq_encode_to_sink(&ctx, &sink, &olen, r_bitrate, idata + offset, width, height, 8 /* bit depth */, ppi, comment_text)) {
+        olen = 0;
+    }
+
+    if (comment_text != NULL) {
+        free(comment_text);
+    }
+    return olen;
+}
+
+JNIEXPORT jint JNICALL Java_com_gemalto_wsq_Native_encodeWSQBitmapToStream(JNIEnv *env, jclass thiz, jobject bitmap, jfloat r_bitrate, jint ppi, jstring comment, jint parallelism, jlong arena, jobject out) {
+    float *fdata;            /* floating point pixel image */
+    float m_shift, r_scale;  /* shift/scale parameters */
+    int width, height;
+    int olen;                /* Number of bytes in the WSQ data. */
+    char *comment_text;      /* Comment text */
+    stream_sink_t stream;
+    WSQ_SINK sink;
+    WSQ_CONTEXT ctx;
+
+    if (bitmap == NULL || out == NULL) return 0;
+    if (initStreamSink(env, out, &stream, &sink) != EXIT_SUCCESS) return 0;
+
+    fdata = bitmapToFlt(env, bitmap, (WSQ_ARENA *)(intptr_t)arena, &m_shift, &r_scale, &width, &height);
+    if (fdata == NULL) return 0;
+    comment_text = copyComment(env, comment);
+
+    ctx.parallelism = parallelism;
+    ctx.arena = (WSQ_ARENA *)(intptr_t)arena;
+    ctx.cancel = NULL;
+    /* fdata is released by NBIS. */
+    if (wsq_encode_flt_to_sink(&ctx, &sink, &olen, r_bitrate, fdata, m_shift, r_scale,
+                               width, height, 8 /* bit depth */, ppi, comment_text)) {
+        olen = 0;
+    }
+
+    if (comment_text != NULL) {
+        free(comment_text);
+    }
+    return olen;
+}
+
+//The wavelet reconstruction reads outside of the smallest subbands of images up to 32 pixels wide or high
+static const int MIN_CROP_SIZE = 33;
+
+JNIEXPORT jbyteArray JNICALL Java_com_gemalto_wsq_Native_cropWSQByteArray(JNIEnv *env, jclass thiz, jbyteArray data, jint left, jint top, jint right, jint bottom) {
+    jbyte *bufferPtr;
+    unsigned char *odata = NULL;   /* Cropped WSQ data */
+    short *qdata = NULL;           /* quantized coefficients of the whole image */
+    int olen, owidth, oheight;
+    int iwidth, iheight, hgt_pos, huff_pos;
+    WSQ_CONTEXT ctx;
+    jbyteArray ret = NULL;
+
+    //sanity check
+    if (data == NULL) return NULL;
+
+    //the coefficients are cropped and Huffman coded again, no wavelet transform and no requantization
+    bufferPtr = env->GetByteArrayElements(data, NULL);
+    ctx.parallelism = 1;
+    ctx.arena = NULL;
+    ctx.cancel = NULL;
+    if (wsq_cropcoeff_mem(&ctx, &odata, &olen, &owidth, &oheight, left, top, right, bottom, &iwidth, &iheight,
+                          (unsigned char *)bufferPtr, env->GetArrayLength(data), &qdata, &hgt_pos, &huff_pos)) {
+        LOGE("Error cropping data");
+    } else if (owidth > 0 && oheight > 0 && (owidth < MIN_CROP_SIZE || oheight < MIN_CROP_SIZE)) {
+        LOGE("Cropped image %dx%d is too small to be decoded", owidth, oheight);
+    } else if (owidth > 0 && oheight > 0) {
+        ret = env->NewByteArray(olen);
+        env->SetByteArrayRegion(ret, 0, olen, (jbyte *)odata);
+    }
+    env->ReleaseByteArrayElements(data, bufferPtr, JNI_ABORT);
+
     free(odata);
+    free(qdata);
+    return ret;
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_gemalto_wsq_Native_transcodeWSQByteArray(JNIEnv *env, jclass thiz, jbyteArray data, jfloat r_bitrate) {
+    jbyte *bufferPtr;
+    unsigned char *odata;    /* Requantized WSQ data */
+    int olen;
+    WSQ_CONTEXT ctx;
+    jbyteArray ret = NULL;
+
+    //sanity check
+    if (data == NULL) return NULL;
+
+    //the coefficients are unquantized and quantized again, no wavelet transform
+    bufferPtr = env->GetByteArrayElements(data, NULL);
+    ctx.parallelism = 1;
+    ctx.arena = NULL;
+    ctx.cancel = NULL;
+    if (wsq_transcode_mem(&ctx, &odata, &olen, r_bitrate, (unsigned char *)bufferPtr, env->GetArrayLength(data))) {
+        LOGE("Error transcoding data");
+    } else {
+        ret = env->NewByteArray(olen);
+        env->SetByteArrayRegion(ret, 0, olen, (jbyte *)odata);
+        free(odata);
+    }
+    env->ReleaseByteArrayElements(data, bufferPtr, JNI_ABORT);
     return ret;
 }
 
+//Batches are processed a window of images at a time. The images of a window are spread over the worker pool, one
+//thread per image, then their results are handed to java in input order and freed before the next window starts.
+//A window holds at most BATCH_WINDOW_PIXELS pixels (and at least one image), which bounds the native memory of a
+//batch of any length; BATCH_WINDOW_IMAGES bounds the local references pinning its inputs.
+static const int64_t BATCH_WINDOW_PIXELS = 16 * 1024 * 1024;
+static const int BATCH_WINDOW_IMAGES = 128;
+
+enum batch_input {
+    BATCH_NONE,
+    BATCH_DIRECT,            /* direct buffer, nothing to release */
+    BATCH_BYTES,             /* pinned byte array */
+    BATCH_INTS,              /* pinned int array of ARGB pixels */
+    BATCH_BITMAP             /* locked bitmap */
+};
+
+//one image of a batch
+typedef struct batch_item {
+    batch_input kind;
+    jobject ref;             /* pinned array or locked bitmap */
+    void *base;              /* pinned array elements */
+    unsigned char *idata;    /* WSQ data or pixels, NULL if the input is unusable */
+    int ilen;                /* WSQ length, or bytes per row of pixels */
+    int pixfmt;
+    float r_bitrate;
+    int ppi;
+    char *comment;
+    unsigned char *odata;    /* result, NULL if the image failed */
+    int olen;
+    int width;
+    int height;
+} batch_item_t;
+
+//decode one image of a window into malloc'd gray pixels, runs on a pool thread
+static void decodeBatchTask(void *arg, const int index) {
+    batch_item_t *item = (batch_item_t *)arg + index;
+    float *fdata;
+    WSQ_CONTEXT ctx;
+
+    if (item->idata == NULL) return;
+    //the images are spread over the pool, so each one is decoded on a single thread
+    ctx.parallelism = 1;
+    ctx.arena = NULL;
+    ctx.cancel = NULL;
+    if (wsq_decode_flt_mem(&ctx, &fdata, &item->width, &item->height, &item->ppi, item->idata, item->ilen)) return;
+    if (pixelCount(item->width, item->height) > INT_MAX) {
+        free(fdata);
+        return;
+    }
+    item->odata = (unsigned char *)malloc(item->width * item->height);
+    if (item->odata != NULL) {
+        conv_img_2_uchar(item->odata, fdata, item->width, item->height,
+                         ctx.frm_header_wsq.m_shift, ctx.frm_header_wsq.r_scale);
+        item->olen = item->width * item->height;
+    }
+    free(fdata);
+}
+
+//encode the pixels of one image of a window into malloc'd WSQ data, runs on a pool thread
+static void encodeBatchTask(void *arg, const int index) {
+    batch_item_t *item = (batch_item_t *)arg + index;
+    int num_pix = item->width * item->height;
+    float *fdata;
+    float m_shift, r_scale;
+    WSQ_CONTEXT ctx;
+
+    if (item->idata == NULL) return;
+    fdata = (float *)malloc(num_pix * sizeof(float));
+    if (fdata == NULL) return;
+    if (conv_img_2_flt_pixfmt(fdata, &m_shift, &r_scale, item->idata, item->ilen, item->pixfmt,
+                              item->width, item->height)) {
+        free(fdata);
+        return;
+    }
+    /* Like wsq_encode_mem, the output must not be larger than the gray image. */
+    item->odata = (unsigned char *)malloc(num_pix);
+    if (item->odata == NULL) {
+        free(fdata);
+        return;
+    }
+    ctx.parallelism = 1;
+    ctx.arena = NULL;
+    ctx.cancel = NULL;
+    /* fdata is released by NBIS. */
+    if (wsq_encode_flt_into_mem(&ctx, item->odata, num_pix, &item->olen, item->r_bitrate, fdata, m_shift, r_scale,
+                                item->width, item->height, 8 /* bit depth */, item->ppi, item->comment)) {
+        free(item->odata);
+        item->odata = NULL;
+    }
+}
+
+void releaseBatchInput(JNIEnv *env, batch_item_t *item) {
+    switch (item->kind) {
+        case BATCH_BYTES:
+            if (item->base != NULL) env->ReleaseByteArrayElements((jbyteArray)item->ref, (jbyte *)item->base, JNI_ABORT);
+            break;
+        case BATCH_INTS:
+            if (item->base != NULL) env->ReleaseIntArrayElements((jintArray)item->ref, (jint *)item->base, JNI_ABORT);
+            break;
+        case BATCH_BITMAP:
+            AndroidBitmap_unlockPixels(env, item->ref);
+            break;
+        default:
+            break;
+    }
+    if (item->ref != NULL) env->DeleteLocalRef(item->ref);
+    if (item->comment != NULL) free(item->comment);
+}
+
+//run a window on the pool, then hand the results to java in input order; returns EXIT_FAILURE if the callback
+//threw an exception, which stops the batch
+int runBatchWindow(JNIEnv *env, batch_item_t *items, int num, int first, WSQ_TASK task, int with_size,
+                   jobject results, jmethodID onResult) {
+    int i, stopped = 0;
+    jbyteArray out;
+
+    wsq_parallel_for(num, wsq_max_parallelism(), task, items);
+    for (i = 0; i < num; i++) {
+        releaseBatchInput(env, &items[i]);
+    }
+    for (i = 0; i < num; i++) {
+        out = NULL;
+        if (items[i].odata != NULL && !stopped) {
+            out = env->NewByteArray(items[i].olen);
+            if (out != NULL) env->SetByteArrayRegion(out, 0, items[i].olen, (jbyte *)items[i].odata);
+            //an OutOfMemoryError is thrown to the java caller like one from the callback
+            if (env->ExceptionCheck()) stopped = 1;
+        }
+        free(items[i].odata);
+        if (stopped) continue;
+        if (with_size) {
+            env->CallVoidMethod(results, onResult, first + i, out, items[i].width, items[i].height, items[i].ppi);
+        } else {
+            env->CallVoidMethod(results, onResult, first + i, out, 0, 0, 0);
+        }
+        if (out != NULL) env->DeleteLocalRef(out);
+        if (env->ExceptionCheck()) stopped = 1;
+    }
+    return stopped ? EXIT_FAILURE : EXIT_SUCCESS;
+}
+
+jmethodID batchResultsMethod(JNIEnv *env, jobject results) {
+    jclass cls = env->GetObjectClass(results);
+    jmethodID onResult = env->GetMethodID(cls, "onResult", "(I[BIII)V");
+    env->DeleteLocalRef(cls);
+    return onResult;
+}
+
+JNIEXPORT void JNICALL Java_com_gemalto_wsq_Native_decodeWSQBatch(JNIEnv *env, jclass thiz, jobjectArray data, jintArray offsets, jintArray lengths, jobject results) {
+    int count, first, num;
+    int64_t pixels;
+    int width, height;
+    double r_scale, m_shift;
+    jobject in;
+    batch_item_t *items, *item;
+
+    //sanity check
+    if (data == NULL || results == NULL) return;
+    jmethodID onResult = batchResultsMethod(env, results);
+    if (onResult == NULL) return;
+
+    count = env->GetArrayLength(data);
+    items = (batch_item_t *)malloc(BATCH_WINDOW_IMAGES * sizeof(batch_item_t));
+    if (items == NULL) {
+        LOGE("Could not allocate the batch of %d images", count);
+        return;
+    }
+    jclass byteArrayClass = env->FindClass("[B");
+    jint *offs = env->GetIntArrayElements(offsets, NULL);
+    jint *lens = env->GetIntArrayElements(lengths, NULL);
+
+    for (first = 0; first < count; first += num) {
+        pixels = 0;
+        for (num = 0; first + num < count && num < BATCH_WINDOW_IMAGES && pixels < BATCH_WINDOW_PIXELS; num++) {
+            item = &items[num];
+            memset(item, 0, sizeof(batch_item_t));
+            in = env->GetObjectArrayElement(data, first + num);
+            if (in == NULL) continue;
+            if (env->IsInstanceOf(in, byteArrayClass)) {
+                item->kind = BATCH_BYTES;
+                item->ref = in;
+                item->base = env->GetByteArrayElements((jbyteArray)in, NULL);
+                item->idata = (unsigned char *)item->base;
+            } else {
+                item->kind = BATCH_DIRECT;
+                item->idata = (unsigned char *)env->GetDirectBufferAddress(in);
+                env->DeleteLocalRef(in);
+            }
+            if (item->idata == NULL) continue;
+            item->idata += offs[first + num];
+            item->ilen = lens[first + num];
+            //the window is sized by the frame headers, images without one fail without using memory
+            if (!read_wsq_frame_header(item->idata, item->ilen, &width, &height, &r_scale, &m_shift)) {
+                pixels += pixelCount(width, height);
+            }
+        }
+        if (runBatchWindow(env, items, num, first, decodeBatchTask, 1, results, onResult) != EXIT_SUCCESS) break;
+    }
+
+    env->ReleaseIntArrayElements(offsets, offs, JNI_ABORT);
+    env->ReleaseIntArrayElements(lengths, lens, JNI_ABORT);
+    env->DeleteLocalRef(byteArrayClass);
+    free(items);
+}
+
+JNIEXPORT void JNICALL Java_com_gemalto_wsq_Native_encodeWSQBatch(JNIEnv *env, jclass thiz, jobjectArray images, jintArray offsets, jintArray widths, jintArray heights, jfloatArray bitrates, jintArray ppis, jobjectArray comments, jobject results) {
+    int count, first, num, i;
+    int64_t pixels;
+    AndroidBitmapInfo info;
+    jobject in;
+    jstring comment;
+    batch_item_t *items, *item;
+
+    //sanity check
+    if (images == NULL || results == NULL) return;
+    jmethodID onResult = batchResultsMethod(env, results);
+    if (onResult == NULL) return;
+
+    count = env->GetArrayLength(images);
+    items = (batch_item_t *)malloc(BATCH_WINDOW_IMAGES * sizeof(batch_item_t));
+    if (items == NULL) {
+        LOGE("Could not allocate the batch of %d images", count);
+        return;
+    }
+    jclass intArrayClass = env->FindClass("[I");
+    jclass bitmapClass = env->FindClass("android/graphics/Bitmap");
+    jint *offs = env->GetIntArrayElements(offsets, NULL);
+    jint *ws = env->GetIntArrayElements(widths, NULL);
+    jint *hs = env->GetIntArrayElements(heights, NULL);
+    jfloat *rates = env->GetFloatArrayElements(bitrates, NULL);
+    jint *dens = env->GetIntArrayElements(ppis, NULL);
+
+    for (first = 0; first < count; first += num) {
+        pixels = 0;
+        for (num = 0; first + num < count && num < BATCH_WINDOW_IMAGES && pixels < BATCH_WINDOW_PIXELS; num++) {
+            i = first + num;
+            item = &items[num];
+            memset(item, 0, sizeof(batch_item_t));
+            item->width = ws[i];
+            item->height = hs[i];
+            item->r_bitrate = rates[i];
+            item->ppi = dens[i];
+            comment = (jstring)env->GetObjectArrayElement(comments, i);
+            item->comment = copyComment(env, comment);
+            if (comment != NULL) env->DeleteLocalRef(comment);
+            in = env->GetObjectArrayElement(images, i);
+            if (in == NULL) continue;
+            if (env->IsInstanceOf(in, bitmapClass)) {
+                if (AndroidBitmap_getInfo(env, in, &info) != ANDROID_BITMAP_RESULT_SUCCESS ||
+                    bitmapPixfmt(info.format) < 0 ||
+                    AndroidBitmap_lockPixels(env, in, &item->base) != ANDROID_BITMAP_RESULT_SUCCESS) {
+                    LOGE("Could not lock bitmap pixels");
+                    env->DeleteLocalRef(in);
+                    continue;
+                }
+                item->kind = BATCH_BITMAP;
+                item->ref = in;
+                item->idata = (unsigned char *)item->base;
+                item->ilen = info.stride;
+                item->pixfmt = bitmapPixfmt(info.format);
+                item->width = info.width;
+                item->height = info.height;
+            } else if (env->IsInstanceOf(in, intArrayClass)) {
+                //the bytes of a little-endian ARGB int are B, G, R, A: their average is the same as for R, G, B, A
+                item->kind = BATCH_INTS;
+                item->ref = in;
+                item->base = env->GetIntArrayElements((jintArray)in, NULL);
+                item->idata = (unsigned char *)item->base;
+                item->ilen = item->width * 4;
+                item->pixfmt = PIXFMT_RGBA8888;
+            } else {
+                item->kind = BATCH_DIRECT;
+                item->idata = (unsigned char *)env->GetDirectBufferAddress(in);
+                if (item->idata != NULL) item->idata += offs[i];
+                item->ilen = item->width;
+                item->pixfmt = PIXFMT_GRAY8;
+                env->DeleteLocalRef(in);
+            }
+            pixels += pixelCount(item->width, item->height);
+        }
+        if (runBatchWindow(env, items, num, first, encodeBatchTask, 0, results, onResult) != EXIT_SUCCESS) break;
+    }
+
+    env->ReleaseIntArrayElements(offsets, offs, JNI_ABORT);
+    env->ReleaseIntArrayElements(widths, ws, JNI_ABORT);
+    env->ReleaseIntArrayElements(heights, hs, JNI_ABORT);
+    env->ReleaseFloatArrayElements(bitrates, rates, JNI_ABORT);
+    env->ReleaseIntArrayElements(ppis, dens, JNI_ABORT);
+    env->DeleteLocalRef(intArrayClass);
+    env->DeleteLocalRef(bitmapClass);
+    free(items);
+}
+
 #ifdef __cplusplus
 }
 #endif
\ No newline at end of file
@@ -1,14 +1,116 @@
 package com.gemalto.wsq;
 
+import android.graphics.Bitmap;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
 class Native {
 
     static {
         System.loadLibrary("wsq");
     }
 
-    //NBIS code uses global variables and crashes if it's accessed from multiple threads.
-    //That's why the methods are synchronized.
-    static synchronized native int[] decodeWSQFile(String filename);
-    static synchronized native int[] decodeWSQByteArray(byte[] data);
-    static synchronized native byte[] encodeWSQByteArray(int[] pixels, int width, int height, float r_bitrate, int ppi, String comment);
+    //Every native call keeps the NBIS tables in its own WSQ_CONTEXT instead of global variables,
+    //so the methods can be called from multiple threads at once.
+    //scaleLevels > 0 decodes at 1/2^scaleLevels of the full size
+    //parallelism is the number of threads the wavelet transform of one image may use, capped to the big cores.
+    //arena is the handle of a session's native scratch buffers (see newArena), 0 to allocate them per call.
+    //cancel is a flag from newCancelFlag stopping the decode between its stages once set, 0 if it can't be cancelled.
+    static native int[] decodeWSQFile(String filename, int scaleLevels, long cancel);
+    //fd is read from its start if it's a regular file, which is mapped like the files decoded by name
+    static native int[] decodeWSQFileDescriptor(int fd, int scaleLevels);
+    static native int[] decodeWSQByteArray(byte[] data, int scaleLevels, long arena, long cancel);
+    static native byte[] encodeWSQByteArray(int[] pixels, int width, int height, float r_bitrate, int ppi, String comment, int parallelism, long arena);
+
+    //Direct buffer variants - NBIS reads and writes the caller's memory, no java arrays are involved.
+    //decodeWSQByteBuffer returns {width, height, ppi}, the 8-bit pixels are written into out.
+    static native int[] decodeWSQByteBuffer(ByteBuffer in, int inOffset, int inLength, ByteBuffer out, int outOffset, int outLength,
+                                             long arena);
+    static native byte[] encodeWSQByteBuffer(ByteBuffer gray, int offset, int width, int height, float r_bitrate, int ppi, String comment, int parallelism, long arena);
+    static native int encodeWSQByteBufferInto(ByteBuffer gray, int offset, int width, int height, float r_bitrate, int ppi, String comment, int parallelism, long arena,
+                                              ByteBuffer out, int outOffset, int outLength);
+
+    //8-bit grayscale decode - returns the pixels, width, height and ppi are stored into info[0..2]
+    static native byte[] decodeWSQGrayFile(String filename, int[] info);
+    static native byte[] decodeWSQGrayByteArray(byte[] data, long arena, int[] info);
+    static native byte[] decodeWSQGrayByteBuffer(ByteBuffer in, int inOffset, int inLength, int[] info);
+
+    //Decode into the pixels of an existing ARGB_8888, RGB_565 or ALPHA_8 bitmap of the same size.
+    //Returns {width, height, ppi}, or null if the data could not be decoded or the bitmap does not match.
+    static native int[] decodeWSQByteArrayIntoBitmap(byte[] data, long arena, Bitmap bitmap);
+    static native int[] decodeWSQByteBufferIntoBitmap(ByteBuffer in, int inOffset, int inLength, Bitmap bitmap);
+
+    //Encode passing the data to out.write(byte[], int, int) as it is produced, no size limit.
+    //Returns the number of bytes written, 0 on error; exceptions thrown by out are passed on.
+    static native int encodeWSQByteArrayToStream(int[] pixels, int width, int height, float r_bitrate, int ppi, String comment, int parallelism, long arena,
+                                                 OutputStream out);
+    static native int encodeWSQByteBufferToStream(ByteBuffer gray, int offset, int width, int height, float r_bitrate, int ppi, String comment, int parallelism, long arena,
+                                                  OutputStream out);
+    static native int encodeWSQBitmapToStream(Bitmap bitmap, float r_bitrate, int ppi, String comment, int parallelism, long arena, OutputStream out);
+
+    //Encode at the bitrate up to max_bitrate meeting a target: the highest one whose output fits in max_bytes if
+    //max_bytes > 0, otherwise the lowest one whose decoded image has a PSNR of at least min_psnr dB.
+    //Returns null if the target cannot be met.
+    static native byte[] encodeWSQByteArrayToTarget(int[] pixels, int width, int height, float max_bitrate, int max_bytes, double min_psnr,
+                                                   int ppi, String comment, int parallelism, long arena);
+    static native byte[] encodeWSQByteBufferToTarget(ByteBuffer gray, int offset, int width, int height, float max_bitrate, int max_bytes,
+                                                    double min_psnr, int ppi, String comment, int parallelism, long arena);
+    static native byte[] encodeWSQBitmapToTarget(Bitmap bitmap, float max_bitrate, int max_bytes, double min_psnr, int ppi, String comment,
+                                                int parallelism, long arena);
+
+    //Encode at each of the bitrates from one wavelet decomposition. Returns one result per bitrate, null on error.
+    static native byte[][] encodeWSQByteArrayMulti(int[] pixels, int width, int height, float[] bitrates, int ppi, String comment,
+                                                  int parallelism, long arena);
+    static native byte[][] encodeWSQByteBufferMulti(ByteBuffer gray, int offset, int width, int height, float[] bitrates, int ppi,
+                                                   String comment, int parallelism, long arena);
+    static native byte[][] encodeWSQBitmapMulti(Bitmap bitmap, float[] bitrates, int ppi, String comment, int parallelism, long arena);
+
+    //Decode the region left,top - right,bottom (exclusive) from the cropped wavelet coefficients, clipped to the image.
+    static native int[] decodeWSQRegionByteArray(byte[] data, int left, int top, int right, int bottom);
+
+    //Read the headers up to the first block without decoding. Returns the comments, {width, height} are stored into info.
+    static native byte[][] probeWSQFile(String filename, int[] info);
+    static native byte[][] probeWSQByteArray(byte[] data, int[] info);
+    static native byte[][] probeWSQByteBuffer(ByteBuffer in, int inOffset, int inLength, int[] info);
+
+    //Encode straight from the locked pixels of an ARGB_8888, RGB_565 or ALPHA_8 bitmap.
+    static native byte[] encodeWSQBitmap(Bitmap bitmap, float r_bitrate, int ppi, String comment, int parallelism, long arena);
+    static native int encodeWSQBitmapInto(Bitmap bitmap, float r_bitrate, int ppi, String comment, int parallelism, long arena,
+                                          ByteBuffer out, int outOffset, int outLength);
+
+    //Scratch buffers for a session of width x height images; 0 if they cannot be allocated.
+    //An arena must only be used by one call at a time and is released with freeArena.
+    static native long newArena(int width, int height);
+    static native void freeArena(long arena);
+
+    //Cancellation flag of one decode; 0 if it cannot be allocated. cancel may be called from any thread while the
+    //decode runs, the flag must only be freed once both are done.
+    static native long newCancelFlag();
+    static native void cancel(long flag);
+    static native void freeCancelFlag(long flag);
+
+    //Threads the wavelet reconstruction of every following decode may use.
+    static native void setDecodeParallelism(int parallelism);
+
+    //Crop in the coefficient domain; left and top are moved out to multiples of 32.
+    static native byte[] cropWSQByteArray(byte[] data, int left, int top, int right, int bottom);
+
+    //Requantize at another bitrate in the subband domain, without the wavelet transform.
+    static native byte[] transcodeWSQByteArray(byte[] data, float r_bitrate);
+
+    //Receives the results of a batch on the calling thread, in input order. data is null for the images that failed;
+    //width, height and ppi are only set for decoded images. Exceptions thrown here stop the batch and are passed on.
+    interface BatchResults {
+        void onResult(int index, byte[] data, int width, int height, int ppi);
+    }
+
+    //Decode or encode many images in one call, spread over the worker pool a bounded window of images at a time.
+    //data[i] is a direct ByteBuffer or a byte array holding lengths[i] bytes of WSQ data from offsets[i];
+    //the decoded images are 8-bit gray pixels.
+    static native void decodeWSQBatch(Object[] data, int[] offsets, int[] lengths, BatchResults results);
+    //images[i] is a direct ByteBuffer of 8-bit gray pixels from offsets[i], an int array of ARGB pixels or an
+    //ARGB_8888, RGB_565 or ALPHA_8 bitmap; widths and heights are not used for bitmaps.
+    static native void encodeWSQBatch(Object[] images, int[] offsets, int[] widths, int[] heights, float[] bitrates, int[] ppis,
+                                      String[] comments, BatchResults results);
 }
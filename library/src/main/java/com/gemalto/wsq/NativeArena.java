@@ -0,0 +1,31 @@
+package com.gemalto.wsq;
+
+/**
+ * Owns the native scratch buffers of a {@link WSQEncoder.Session} or {@link WSQDecoder.Session}. The handle must
+ * only be used by one native call at a time; the sessions make sure of that by synchronizing their calls.
+ */
+class NativeArena {
+    private long handle;
+
+    NativeArena(int width, int height) {
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException("Width and height must be positive numbers");
+        handle = Native.newArena(width, height);
+        if (handle == 0) {
+            throw new OutOfMemoryError("Could not allocate the native buffers for " + width + "x" + height + " images");
+        }
+    }
+
+    /*
+        The handle to pass to the native calls.
+     */
+    synchronized long handle() {
+        if (handle == 0) throw new IllegalStateException("Session is closed");
+        return handle;
+    }
+
+    synchronized void close() {
+        if (handle == 0) return;
+        Native.freeArena(handle);
+        handle = 0;
+    }
+}
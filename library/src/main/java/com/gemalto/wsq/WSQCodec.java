@@ -0,0 +1,420 @@
+package com.gemalto.wsq;
+
+import android.os.Process;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class runs WSQ decodes and encodes asynchronously on a pool of threads managed by the library, so that
+ * interactive and background work share the native codec without each caller running its own executor.<br><br>
+ * Every task has a {@link Priority}. Queued thumbnails run before queued full decodes, which run before queued
+ * background work, and background tasks never occupy the last free thread, so an interactive task does not wait
+ * behind a long batch. The number of queued tasks of each priority is limited, see
+ * {@link #setMaxQueued(Priority, int)}.<br><br>
+ * Tasks can be cancelled through their {@link Task#cancel(boolean)} method, e.g. when an image scrolls out of view.
+ * A queued task is dropped without running; a running decode stops at its next stage (after the Huffman decoding
+ * of the coefficients and after the wavelet reconstruction) and its remaining work is skipped.
+ */
+public class WSQCodec {
+    /**
+     * The priority classes of the tasks.
+     */
+    public enum Priority {
+        /**
+         * Small images the user is waiting for, e.g. the thumbnails of a gallery. When the queue is full, the oldest
+         * queued thumbnail is dropped.
+         */
+        THUMBNAIL,
+        /**
+         * Full decodes or encodes the user is waiting for. When the queue is full, the oldest queued one is dropped.
+         */
+        FOREGROUND,
+        /**
+         * Batch work nobody is waiting for, e.g. a synchronization. It runs at background thread priority, and when
+         * the queue is full the submitting thread waits for room.
+         */
+        BACKGROUND
+    }
+
+    /**
+     * Receives the result of a task.
+     * @param <T> the type of the result
+     */
+    public interface Callback<T> {
+        /**
+         * Called on a codec thread when the task has finished. It is not called for cancelled tasks.
+         * @param result the decoded image or encoded data, or {@code null} if the image could not be decoded or
+         *               encoded
+         */
+        void onResult(T result);
+    }
+
+    /**
+     * A queued or running task. Its result is available through the {@link Future} methods as well as through
+     * its {@link Callback}.
+     * @param <T> the type of the result
+     */
+    public static final class Task<T> implements Future<T> {
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        private static final int DONE = 2;
+        private static final int CANCELLED = 3;
+
+        private final Priority priority;
+        private final Work<T> work;
+        private final Callback<T> callback;
+        private int state = QUEUED;
+        private long cancelFlag;
+        private T result;
+        private Throwable failure;
+
+        private Task(Priority priority, Work<T> work, Callback<T> callback) {
+            this.priority = priority;
+            this.work = work;
+            this.callback = callback;
+        }
+
+        /**
+         * @return the priority the task was submitted with
+         */
+        public Priority getPriority() {
+            return priority;
+        }
+
+        /**
+         * Cancels the task. A queued task is removed from the queue. A running decode stops at its next stage if
+         * {@code mayInterruptIfRunning} is true; encodes run to their end, but their result is dropped. The
+         * callback of a cancelled task is not called.
+         * @param mayInterruptIfRunning whether a running task may be cancelled
+         * @return false if the task had already finished or was running and could not be cancelled
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (state == DONE || state == CANCELLED) return false;
+                if (state == RUNNING) {
+                    if (!mayInterruptIfRunning) return false;
+                    //the flag is only freed under this lock, once the decode has returned
+                    Native.cancel(cancelFlag);
+                }
+                state = CANCELLED;
+                notifyAll();
+            }
+            dequeue(this);
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return state == DONE || state == CANCELLED;
+        }
+
+        /*
+            Whether a codec thread has started the task and not finished it yet, e.g. to cancel a running decode.
+         */
+        synchronized boolean isRunning() {
+            return state == RUNNING;
+        }
+
+        /**
+         * Waits for the result of the task.
+         * @return the decoded image or encoded data, or {@code null} if the image could not be decoded or encoded
+         * @throws CancellationException if the task was cancelled or dropped from a full queue
+         * @throws ExecutionException if the task failed with an exception, e.g. an {@link OutOfMemoryError}
+         * @throws InterruptedException if the waiting thread was interrupted
+         */
+        @Override
+        public synchronized T get() throws InterruptedException, ExecutionException {
+            while (state == QUEUED || state == RUNNING) wait();
+            return report();
+        }
+
+        @Override
+        public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (state == QUEUED || state == RUNNING) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) throw new TimeoutException();
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return report();
+        }
+
+        private T report() throws ExecutionException {
+            if (state == CANCELLED) throw new CancellationException();
+            if (failure != null) throw new ExecutionException(failure);
+            return result;
+        }
+
+        /*
+            Run the task on a codec thread, unless it was cancelled while queued.
+         */
+        void run() {
+            synchronized (this) {
+                if (state != QUEUED) return;
+                state = RUNNING;
+                //without a flag the decode cannot be stopped, but it still runs
+                cancelFlag = work.cancellable ? Native.newCancelFlag() : 0;
+            }
+            T value = null;
+            Throwable error = null;
+            try {
+                value = work.run(cancelFlag);
+            } catch (RuntimeException | Error e) {
+                error = e;
+            }
+            synchronized (this) {
+                Native.freeCancelFlag(cancelFlag);
+                cancelFlag = 0;
+                if (state == CANCELLED) return;
+                result = value;
+                failure = error;
+                state = DONE;
+                notifyAll();
+            }
+            if (callback != null) callback.onResult(value);
+        }
+    }
+
+    /*
+        The work of a task, cancel is the native flag to pass to cancellable decodes.
+     */
+    private abstract static class Work<T> {
+        final boolean cancellable;
+
+        Work(boolean cancellable) {
+            this.cancellable = cancellable;
+        }
+
+        abstract T run(long cancel);
+    }
+
+    private static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    //the last free thread is kept for thumbnails and foreground tasks
+    private static final int BACKGROUND_THREADS = THREADS - 1;
+
+    private static final Object lock = new Object();
+    private static final ArrayDeque<Task<?>>[] queues = newQueues();
+    private static final int[] maxQueued = new int[] {32, 8, 2 * THREADS};
+    private static int runningBackground;
+    private static boolean started;
+
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<Task<?>>[] newQueues() {
+        ArrayDeque<Task<?>>[] queues = new ArrayDeque[Priority.values().length];
+        for (int i = 0; i < queues.length; i++) queues[i] = new ArrayDeque<>();
+        return queues;
+    }
+
+    /**
+     * Sets the number of tasks of a priority that can be queued, not counting the running ones. A thumbnail or
+     * foreground task submitted to a full queue drops the oldest queued task of its priority, which is cancelled;
+     * a background task makes the submitting thread wait until a queued task starts. The new limit applies to the
+     * following submissions.<br><br>
+     *
+     * Default values: 32 thumbnails, 8 foreground tasks and twice the number of codec threads for background tasks.
+     * @param priority the priority to limit
+     * @param max the maximum number of queued tasks
+     * @throws IllegalArgumentException if {@code priority} is null or {@code max &lt; 1}
+     */
+    public static void setMaxQueued(Priority priority, int max) {
+        if (priority == null) throw new IllegalArgumentException("Priority must not be null");
+        if (max < 1) throw new IllegalArgumentException("Queue size must be at least 1");
+        synchronized (lock) {
+            maxQueued[priority.ordinal()] = max;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Decode a WSQ image from a byte array asynchronously, see {@link WSQDecoder#decode(byte[])}.
+     * @param data WSQ-encoded data
+     * @param priority the priority of the task
+     * @param callback receives the decoded image, may be null
+     * @return the task, its result is null if the image data could not be decoded
+     * @throws IllegalArgumentException if {@code priority} is null
+     */
+    public static Task<WSQDecoder.WSQDecodedImage> decodeAsync(byte[] data, Priority priority,
+                                                               Callback<WSQDecoder.WSQDecodedImage> callback) {
+        return decodeAsync(data, 1, priority, callback);
+    }
+
+    /**
+     * Decode a WSQ image from a byte array asynchronously at a reduced resolution, see
+     * {@link WSQDecoder#decode(byte[], int)}.
+     * @param data WSQ-encoded data
+     * @param scale the image is decoded at {@code 1/scale} of its width and height; one of 1, 2, 4, 8 or 16
+     * @param priority the priority of the task
+     * @param callback receives the decoded image, may be null
+     * @return the task, its result is null if the image data could not be decoded
+     * @throws IllegalArgumentException if {@code scale} is not one of the supported values or {@code priority} is null
+     */
+    public static Task<WSQDecoder.WSQDecodedImage> decodeAsync(final byte[] data, final int scale, Priority priority,
+                                                               Callback<WSQDecoder.WSQDecodedImage> callback) {
+        checkScale(scale);
+        return submit(priority, new Work<WSQDecoder.WSQDecodedImage>(true) {
+            @Override
+            WSQDecoder.WSQDecodedImage run(long cancel) {
+                return WSQDecoder.decode(data, scale, cancel);
+            }
+        }, callback);
+    }
+
+    /**
+     * Decode a WSQ-encoded file asynchronously at a reduced resolution, see {@link WSQDecoder#decode(String, int)}.
+     * @param file the file to be decoded
+     * @param scale the image is decoded at {@code 1/scale} of its width and height; one of 1, 2, 4, 8 or 16
+     * @param priority the priority of the task
+     * @param callback receives the decoded image, may be null
+     * @return the task, its result is null if the file could not be read or decoded
+     * @throws IllegalArgumentException if {@code scale} is not one of the supported values or {@code priority} is null
+     */
+    public static Task<WSQDecoder.WSQDecodedImage> decodeAsync(File file, final int scale, Priority priority,
+                                                               Callback<WSQDecoder.WSQDecodedImage> callback) {
+        checkScale(scale);
+        final String filename = file == null ? null : file.getPath();
+        return submit(priority, new Work<WSQDecoder.WSQDecodedImage>(true) {
+            @Override
+            WSQDecoder.WSQDecodedImage run(long cancel) {
+                return WSQDecoder.decode(filename, scale, cancel);
+            }
+        }, callback);
+    }
+
+    /**
+     * Encode an image asynchronously with the parameters of an encoder, see {@link WSQEncoder#encode()}. The encoder
+     * and its image must not be changed until the task has finished. A running encode cannot be stopped, a
+     * cancelled one only drops its result.
+     * @param encoder the encoder to run
+     * @param priority the priority of the task
+     * @param callback receives the WSQ-compressed image, may be null
+     * @return the task, its result is null in case of compression error
+     * @throws IllegalArgumentException if {@code encoder} or {@code priority} is null
+     */
+    public static Task<byte[]> encodeAsync(final WSQEncoder encoder, Priority priority, Callback<byte[]> callback) {
+        if (encoder == null) throw new IllegalArgumentException("Encoder must not be null");
+        return submit(priority, new Work<byte[]>(false) {
+            @Override
+            byte[] run(long cancel) {
+                return encoder.encode();
+            }
+        }, callback);
+    }
+
+    private static void checkScale(int scale) {
+        if (scale != 1 && scale != 2 && scale != 4 && scale != 8 && scale != 16) {
+            throw new IllegalArgumentException("Scale must be 1, 2, 4, 8 or 16");
+        }
+    }
+
+    private static <T> Task<T> submit(Priority priority, Work<T> work, Callback<T> callback) {
+        if (priority == null) throw new IllegalArgumentException("Priority must not be null");
+        Task<T> task = new Task<>(priority, work, callback);
+        ArrayDeque<Task<?>> queue = queues[priority.ordinal()];
+        Task<?> dropped = null;
+        synchronized (lock) {
+            startThreads();
+            if (priority == Priority.BACKGROUND) {
+                //a codec thread waiting for itself would never wake up, so callbacks may exceed the limit
+                boolean interrupted = false;
+                while (queue.size() >= maxQueued[priority.ordinal()] && !(Thread.currentThread() instanceof Worker)) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        break;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                    task.cancel(false);
+                    return task;
+                }
+            } else if (queue.size() >= maxQueued[priority.ordinal()]) {
+                dropped = queue.pollFirst();
+            }
+            queue.addLast(task);
+            lock.notifyAll();
+        }
+        if (dropped != null) dropped.cancel(false);
+        return task;
+    }
+
+    private static void dequeue(Task<?> task) {
+        synchronized (lock) {
+            if (queues[task.priority.ordinal()].remove(task)) lock.notifyAll();
+        }
+    }
+
+    /*
+        The next task to run, or null if there is none a free thread may take. Called with the lock held.
+     */
+    private static Task<?> next() {
+        Task<?> task = queues[Priority.THUMBNAIL.ordinal()].pollFirst();
+        if (task == null) task = queues[Priority.FOREGROUND.ordinal()].pollFirst();
+        if (task == null && runningBackground < BACKGROUND_THREADS) {
+            task = queues[Priority.BACKGROUND.ordinal()].pollFirst();
+            if (task != null) runningBackground++;
+        }
+        //a waiting background submitter may go on
+        if (task != null) lock.notifyAll();
+        return task;
+    }
+
+    private static void startThreads() {
+        if (started) return;
+        for (int i = 0; i < THREADS; i++) {
+            Worker worker = new Worker("WSQCodec-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        started = true;
+    }
+
+    private static class Worker extends Thread {
+        Worker(String name) {
+            super(name);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Task<?> task;
+                synchronized (lock) {
+                    while ((task = next()) == null) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                }
+                boolean background = task.priority == Priority.BACKGROUND;
+                Process.setThreadPriority(background ? Process.THREAD_PRIORITY_BACKGROUND : Process.THREAD_PRIORITY_DEFAULT);
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    //thrown by a callback, report it like an uncaught exception but keep the thread
+                    getUncaughtExceptionHandler().uncaughtException(this, e);
+                } finally {
+                    if (background) {
+                        synchronized (lock) {
+                            runningBackground--;
+                            lock.notifyAll();
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
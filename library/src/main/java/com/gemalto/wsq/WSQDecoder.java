@@ -2,10 +2,16 @@ package com.gemalto.wsq;
 
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
+import android.graphics.Rect;
+import android.os.ParcelFileDescriptor;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
  * This class decodes WSQ files into a bitmap.
@@ -40,14 +46,243 @@ public class WSQDecoder {
         }
     }
 
+    /**
+     * The output of decoding into 8-bit grayscale. Contains the raw pixels (one byte per pixel, rows stored
+     * top to bottom without padding), the image dimensions and the pixels-per-inch density information.
+     */
+    public static class WSQGrayImage {
+        private ByteBuffer pixels;
+        private int width;
+        private int height;
+        private int ppi;
+
+        private WSQGrayImage(ByteBuffer pixels, int width, int height, int ppi) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.ppi = ppi;
+        }
+
+        /**
+         * @return the decoded pixels, {@code width * height} bytes between the buffer's position and limit
+         */
+        public ByteBuffer getPixels() {
+            return pixels;
+        }
+
+        /**
+         * @return image width
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * @return image height
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * @return image density (pixels per inch)
+         */
+        public int getPpi() {
+            return ppi;
+        }
+
+        /**
+         * Creates an {@link Config#ALPHA_8} bitmap from the pixels. The gray values are stored in the alpha channel,
+         * which keeps the bitmap at one byte per pixel.
+         * @return a new bitmap containing the pixels
+         */
+        public Bitmap toBitmap() {
+            Bitmap bmp = Bitmap.createBitmap(width, height, Config.ALPHA_8);
+            bmp.copyPixelsFromBuffer(pixels.duplicate());
+            return bmp;
+        }
+    }
+
+    /**
+     * Decodes a series of images of the same size, e.g. the frames of a capture device, reusing the native working
+     * memory of the decoder. The coefficient buffer, the floating point image and the transform buffer are allocated
+     * once for {@code width * height} pixels when the session is created and kept until {@link #close()}, instead of
+     * being allocated and freed for every image, which keeps the memory use flat under sustained load. Images of
+     * other sizes are decoded too, the buffers grow to the largest one.<br><br>
+     *
+     * The methods decode like the static methods of {@link WSQDecoder} of the same name. A session can be shared by
+     * several threads, but its calls are run one at a time; use one session per thread to decode concurrently.
+     */
+    public static class Session implements Closeable {
+        private final NativeArena arena;
+
+        /**
+         * Allocates the native working memory for images of the given size.
+         * @param width image width
+         * @param height image height
+         * @throws IllegalArgumentException if {@code width} or {@code height} is not positive
+         */
+        public Session(int width, int height) {
+            arena = new NativeArena(width, height);
+        }
+
+        /**
+         * Decode a WSQ image from a byte array, see {@link WSQDecoder#decode(byte[])}.
+         * @param data WSQ-encoded data
+         * @return The decoded image, or null if the image data could not be decoded.
+         * @throws IllegalStateException if the session is closed
+         */
+        public synchronized WSQDecodedImage decode(byte[] data) {
+            return nativeToImageData(Native.decodeWSQByteArray(data, 0, arena.handle(), 0));
+        }
+
+        /**
+         * Decode a WSQ image from a byte array into 8-bit grayscale pixels, see {@link WSQDecoder#decodeGray(byte[])}.
+         * @param data WSQ-encoded data
+         * @return The decoded image, or null if the image data could not be decoded.
+         * @throws IllegalStateException if the session is closed
+         */
+        public synchronized WSQGrayImage decodeGray(byte[] data) {
+            int[] info = new int[3];
+            return nativeToGrayImage(Native.decodeWSQGrayByteArray(data, arena.handle(), info), info);
+        }
+
+        /**
+         * Decode a WSQ image from a direct buffer into 8-bit grayscale pixels in another direct buffer, see
+         * {@link WSQDecoder#decode(ByteBuffer, ByteBuffer)}. Apart from the result object, nothing is allocated.
+         * @param in a direct buffer containing WSQ-encoded data
+         * @param out a direct buffer with at least {@code width * height} bytes remaining
+         * @return The decoded image, whose pixels are a view of {@code out}, or {@code null} if the image data could
+         * not be decoded or {@code out} is too small.
+         * @throws IllegalArgumentException if either buffer is not direct
+         * @throws IllegalStateException if the session is closed
+         */
+        public synchronized WSQGrayImage decode(ByteBuffer in, ByteBuffer out) {
+            return decodeBuffers(in, out, arena.handle());
+        }
+
+        /**
+         * Decode a WSQ image into an existing bitmap, see {@link WSQDecoder#decodeInto(byte[], Bitmap)}.
+         * @param data WSQ-encoded data
+         * @param reusable a mutable bitmap with the same dimensions as the encoded image
+         * @return The decoded image, containing {@code reusable}, or {@code null} if the image data could not be
+         * decoded or its dimensions differ from the bitmap's.
+         * @throws IllegalArgumentException if the bitmap is null, recycled, immutable or of an unsupported config
+         * @throws IllegalStateException if the session is closed
+         */
+        public synchronized WSQDecodedImage decodeInto(byte[] data, Bitmap reusable) {
+            checkReusable(reusable);
+            if (data == null) return null;
+            return nativeToImageData(Native.decodeWSQByteArrayIntoBitmap(data, arena.handle(), reusable), reusable);
+        }
+
+        /**
+         * Frees the native working memory. The session cannot be used afterwards; closing it again has no effect.
+         */
+        @Override
+        public synchronized void close() {
+            arena.close();
+        }
+    }
+
+    /**
+     * Receives the images of {@link #decodeBatch(List, BatchCallback)}.
+     */
+    public interface BatchCallback {
+        /**
+         * Called on the thread running the batch for every input, in input order.
+         * @param index the index of the input in the batch
+         * @param image the decoded image, or {@code null} if the input could not be decoded. Its pixels are backed
+         *              by a byte array.
+         */
+        void onDecoded(int index, WSQGrayImage image);
+    }
+
+    /**
+     * Sets the number of threads the decoding of one image may use, for all following decodes. The three Huffman
+     * coded blocks of the image are located by a scan for their markers and decoded at the same time, and the rows
+     * and columns of each subband of the wavelet reconstruction are split the same way. The work is shared between
+     * a native pool of worker threads, sized to the big cores of the device, and the calling thread. Larger values
+     * are reduced to the number of big cores, and small images or subbands are not split at all. Files whose blocks
+     * cannot be located that way are decoded one block after the other. The decoded pixels are the same for any
+     * value.<br><br>
+     *
+     * Default value: 1, every decoding runs on the calling thread only.
+     * @param parallelism the maximum number of threads to use
+     * @throws IllegalArgumentException if {@code parallelism &lt; 1}
+     */
+    public static void setParallelism(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be at least 1");
+        Native.setDecodeParallelism(parallelism);
+    }
+
     /**
      * Decode a WSQ-encoded file. If the specified file name is null,
-     * or cannot be decoded, the function returns null.
+     * or cannot be decoded, the function returns null.<br><br>
+     * The file is memory-mapped read-only and decoded straight from the mapping, there is no read into a separate
+     * buffer and repeated decodes of the same file are served from the page cache. The file must not be truncated
+     * while it is decoded.
      * @param filename complete path name for the file to be decoded.
      * @return The decoded image, or null if the image data could not be decoded.
      */
     public static WSQDecodedImage decode(String filename) {
-        int[] res = Native.decodeWSQFile(filename);
+        int[] res = Native.decodeWSQFile(filename, 0, 0);
+        return nativeToImageData(res);
+    }
+
+    /**
+     * Decode a WSQ-encoded file, see {@link #decode(String)}.
+     * @param file the file to be decoded.
+     * @return The decoded image, or null if the image data could not be decoded.
+     */
+    public static WSQDecodedImage decode(File file) {
+        if (file == null) return null;
+        return decode(file.getPath());
+    }
+
+    /**
+     * Decode a WSQ-encoded file from a file descriptor, e.g. one opened by a content provider. A regular file is
+     * memory-mapped and decoded from its start like in {@link #decode(String)}, the descriptor's position is not
+     * used. Other descriptors, such as pipes, are read from their current position to their end. The descriptor is
+     * not closed.
+     * @param fd an open file descriptor
+     * @return The decoded image, or null if the image data could not be read or decoded.
+     */
+    public static WSQDecodedImage decode(FileDescriptor fd) {
+        if (fd == null) return null;
+        //a duplicate gives the native code an int descriptor through public APIs only
+        try {
+            ParcelFileDescriptor dup = ParcelFileDescriptor.dup(fd);
+            try {
+                return nativeToImageData(Native.decodeWSQFileDescriptor(dup.getFd(), 0));
+            } finally {
+                dup.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Decode a WSQ-encoded file at a reduced resolution, e.g. for thumbnails. The wavelet reconstruction stops
+     * early and only the parts of the data needed for the smaller image are decoded, which is much faster and
+     * needs much less memory than decoding the full image and scaling it down.
+     * @param filename complete path name for the file to be decoded.
+     * @param scale the image is decoded at {@code 1/scale} of its width and height (rounded up);
+     *              one of 1, 2, 4, 8 or 16
+     * @return The decoded image, or null if the image data could not be decoded.
+     * @throws IllegalArgumentException if {@code scale} is not one of the supported values
+     */
+    public static WSQDecodedImage decode(String filename, int scale) {
+        return decode(filename, scale, 0);
+    }
+
+    /*
+        Decode a file for WSQCodec, stopping between the decoder stages once the cancel flag is set.
+     */
+    static WSQDecodedImage decode(String filename, int scale, long cancel) {
+        int[] res = Native.decodeWSQFile(filename, scaleToLevels(scale), cancel);
         return nativeToImageData(res);
     }
     
@@ -58,27 +293,324 @@ public class WSQDecoder {
      * @return The decoded image, or null if the image data could not be decoded.
      */
     public static WSQDecodedImage decode(byte[] data) {
-        int[] res = Native.decodeWSQByteArray(data);
+        int[] res = Native.decodeWSQByteArray(data, 0, 0, 0);
         return nativeToImageData(res);
     }
 
     /**
-     * Reads all data from an {@link InputStream} and tries to decode it as WSQ.
-     * @param in an input stream containing WSQ-encoded data. <strong>Warning: all available data from the stream will be read! The end of the WSQ data will not be detected!</strong>
-     * @return The decoded image, or {@code null} if the image data could not be decoded.
+     * Decode a WSQ image from a byte array at a reduced resolution, e.g. for thumbnails. The wavelet
+     * reconstruction stops early and only the parts of the data needed for the smaller image are decoded, which is
+     * much faster and needs much less memory than decoding the full image and scaling it down.
+     * @param data WSQ-encoded data
+     * @param scale the image is decoded at {@code 1/scale} of its width and height (rounded up);
+     *              one of 1, 2, 4, 8 or 16
+     * @return The decoded image, or null if the image data could not be decoded.
+     * @throws IllegalArgumentException if {@code scale} is not one of the supported values
      */
-    public static WSQDecodedImage decode(InputStream in) {
+    public static WSQDecodedImage decode(byte[] data, int scale) {
+        return decode(data, scale, 0);
+    }
+
+    /*
+        Decode a byte array for WSQCodec, stopping between the decoder stages once the cancel flag is set.
+     */
+    static WSQDecodedImage decode(byte[] data, int scale, long cancel) {
+        int[] res = Native.decodeWSQByteArray(data, scaleToLevels(scale), 0, cancel);
+        return nativeToImageData(res);
+    }
+
+    /*
+        Number of wavelet levels to skip for a 1/scale decode.
+     */
+    private static int scaleToLevels(int scale) {
+        switch (scale) {
+            case 1: return 0;
+            case 2: return 1;
+            case 4: return 2;
+            case 8: return 3;
+            case 16: return 4;
+            default: throw new IllegalArgumentException("Scale must be 1, 2, 4, 8 or 16");
+        }
+    }
+
+    /**
+     * Decode a rectangular region of a WSQ image, e.g. the core of a rolled print or one finger of a slap. The
+     * quantized wavelet coefficients are cropped to the region before the reconstruction, so the rest of the image
+     * is never reconstructed. The pixels are the same as those of the region in the fully decoded image.
+     * @param data WSQ-encoded data
+     * @param region the region to decode; it is clipped to the image bounds, so the decoded bitmap may be smaller
+     * @return The decoded region, or null if the image data could not be decoded or the region lies outside the image.
+     * @throws IllegalArgumentException if the region is null or empty
+     */
+    public static WSQDecodedImage decodeRegion(byte[] data, Rect region) {
+        checkRegion(region);
+        if (data == null) return null;
+        int[] res = Native.decodeWSQRegionByteArray(data, region.left, region.top, region.right, region.bottom);
+        return nativeToImageData(res);
+    }
+
+    /*
+        Regions are given as a non-empty Rect, right and bottom exclusive.
+     */
+    static void checkRegion(Rect region) {
+        if (region == null) throw new IllegalArgumentException("Region must not be null");
+        if (region.isEmpty()) throw new IllegalArgumentException("Region must not be empty");
+    }
+
+    /**
+     * Decode a WSQ-encoded file into 8-bit grayscale pixels. This needs a quarter of the memory of
+     * {@link #decode(String)}, which produces an {@code ARGB_8888} bitmap. The file is memory-mapped the same way.
+     * @param filename complete path name for the file to be decoded.
+     * @return The decoded image, or null if the image data could not be decoded. Its pixels are backed by a byte
+     * array, available through {@code getPixels().array()}.
+     */
+    public static WSQGrayImage decodeGray(String filename) {
+        int[] info = new int[3];
+        return nativeToGrayImage(Native.decodeWSQGrayFile(filename, info), info);
+    }
+
+    /**
+     * Decode a WSQ image from a byte array into 8-bit grayscale pixels. This needs a quarter of the memory of
+     * {@link #decode(byte[])}, which produces an {@code ARGB_8888} bitmap.
+     * @param data WSQ-encoded data
+     * @return The decoded image, or null if the image data could not be decoded. Its pixels are backed by a byte
+     * array, available through {@code getPixels().array()}.
+     */
+    public static WSQGrayImage decodeGray(byte[] data) {
+        int[] info = new int[3];
+        return nativeToGrayImage(Native.decodeWSQGrayByteArray(data, 0, info), info);
+    }
+
+    /**
+     * Decode a WSQ image into 8-bit grayscale pixels. The data between the buffer's position and limit is decoded,
+     * the position is left unchanged. Direct buffers are read by the native decoder without copying.
+     * @param data WSQ-encoded data
+     * @return The decoded image, or null if the image data could not be decoded. Its pixels are backed by a byte
+     * array, available through {@code getPixels().array()}.
+     */
+    public static WSQGrayImage decodeGray(ByteBuffer data) {
+        if (data == null) return null;
+        int[] info = new int[3];
+        if (data.isDirect()) {
+            return nativeToGrayImage(Native.decodeWSQGrayByteBuffer(data, data.position(), data.remaining(), info), info);
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return decodeGray(bytes);
+    }
+
+    /**
+     * Reads one WSQ record from an {@link InputStream} and decodes it into 8-bit grayscale pixels. The stream is
+     * read up to the record's EOI marker and left positioned right after it. A stream that does not support
+     * {@link InputStream#mark(int)} is read one byte at a time through the compressed blocks, wrap it in a
+     * {@link java.io.BufferedInputStream} to read it in chunks, see {@link WSQStreamDecoder}.
+     * @param in an input stream containing WSQ-encoded data
+     * @return The decoded image, or {@code null} if the image data could not be read or decoded.
+     */
+    public static WSQGrayImage decodeGray(InputStream in) {
         if (in == null) return null;
-        ByteArrayOutputStream out = null;
         try {
-            out = new ByteArrayOutputStream(in.available());
-            byte[] buffer = new byte[16 * 1024];
-            int bytesRead = in.read(buffer);
-            while (bytesRead >= 0) {
-                out.write(buffer, 0, bytesRead);
-                bytesRead = in.read(buffer);
+            return new WSQStreamDecoder(in).nextGray();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Decode a WSQ image from a direct buffer into 8-bit grayscale pixels in another direct buffer. The native
+     * decoder reads and writes the buffers' memory directly, no intermediate arrays are allocated.<br><br>
+     * The WSQ data is read between the position and the limit of {@code in}; the pixels are written to {@code out}
+     * starting at its position. The positions and limits of both buffers are left unchanged.
+     * @param in a direct buffer containing WSQ-encoded data
+     * @param out a direct buffer with at least {@code width * height} bytes remaining
+     * @return The decoded image, whose pixels are a view of {@code out}, or {@code null} if the image data could not
+     * be decoded or {@code out} is too small.
+     * @throws IllegalArgumentException if either buffer is not direct
+     */
+    public static WSQGrayImage decode(ByteBuffer in, ByteBuffer out) {
+        return decodeBuffers(in, out, 0);
+    }
+
+    /*
+        decode(ByteBuffer, ByteBuffer) with the scratch buffers of a session, or 0 to allocate them.
+     */
+    private static WSQGrayImage decodeBuffers(ByteBuffer in, ByteBuffer out, long arena) {
+        if (in == null || out == null) return null;
+        if (!in.isDirect() || !out.isDirect()) throw new IllegalArgumentException("Buffers must be direct");
+        int[] res = Native.decodeWSQByteBuffer(in, in.position(), in.remaining(), out, out.position(), out.remaining(), arena);
+        if (res == null) return null;
+        ByteBuffer pixels = out.duplicate();
+        pixels.limit(out.position() + res[0] * res[1]);
+        return new WSQGrayImage(pixels.slice(), res[0], res[1], res[2]);
+    }
+
+    /**
+     * Decode a WSQ image into an existing bitmap, e.g. one taken from a pool, instead of allocating a new one.
+     * The decoded pixels are written straight into the bitmap's memory.
+     * @param data WSQ-encoded data
+     * @param reusable a mutable {@link Config#ARGB_8888}, {@link Config#RGB_565} or {@link Config#ALPHA_8} bitmap
+     * with the same dimensions as the encoded image. For {@code ALPHA_8} the gray values are stored in the alpha channel.
+     * @return The decoded image, containing {@code reusable}, or {@code null} if the image data could not be decoded
+     * or its dimensions differ from the bitmap's.
+     * @throws IllegalArgumentException if the bitmap is null, recycled, immutable or of an unsupported config
+     */
+    public static WSQDecodedImage decodeInto(byte[] data, Bitmap reusable) {
+        checkReusable(reusable);
+        if (data == null) return null;
+        return nativeToImageData(Native.decodeWSQByteArrayIntoBitmap(data, 0, reusable), reusable);
+    }
+
+    /**
+     * Decode a WSQ image into an existing bitmap, e.g. one taken from a pool, instead of allocating a new one.
+     * The data between the buffer's position and limit is decoded, the position is left unchanged. Direct buffers
+     * are read by the native decoder without copying.
+     * @param data WSQ-encoded data
+     * @param reusable a mutable {@link Config#ARGB_8888}, {@link Config#RGB_565} or {@link Config#ALPHA_8} bitmap
+     * with the same dimensions as the encoded image. For {@code ALPHA_8} the gray values are stored in the alpha channel.
+     * @return The decoded image, containing {@code reusable}, or {@code null} if the image data could not be decoded
+     * or its dimensions differ from the bitmap's.
+     * @throws IllegalArgumentException if the bitmap is null, recycled, immutable or of an unsupported config
+     */
+    public static WSQDecodedImage decodeInto(ByteBuffer data, Bitmap reusable) {
+        checkReusable(reusable);
+        if (data == null) return null;
+        if (data.isDirect()) {
+            return nativeToImageData(Native.decodeWSQByteBufferIntoBitmap(data, data.position(), data.remaining(), reusable), reusable);
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return decodeInto(bytes, reusable);
+    }
+
+    /*
+        Make sure the native code can write into the bitmap.
+     */
+    private static void checkReusable(Bitmap bmp) {
+        if (bmp == null) throw new IllegalArgumentException("Bitmap must not be null");
+        if (bmp.isRecycled()) throw new IllegalArgumentException("Bitmap is recycled");
+        if (!bmp.isMutable()) throw new IllegalArgumentException("Bitmap must be mutable");
+        Config config = bmp.getConfig();
+        if (config != Config.ARGB_8888 && config != Config.RGB_565 && config != Config.ALPHA_8) {
+            throw new IllegalArgumentException("Unsupported bitmap config " + config);
+        }
+    }
+
+    /**
+     * Decode many WSQ images into 8-bit grayscale pixels, e.g. the ten prints of a card or a shard of an archive.
+     * All inputs are handed to the native code in one call and decoded on the native pool of worker threads sized
+     * to the big cores of the device, one image per thread, so there is no per-image call overhead and images of
+     * different sizes keep all cores busy. The images are decoded a window at a time: a window holds up to about
+     * 16 million pixels, and its images are passed to the callback and dropped by the native code before the next
+     * window is decoded. The native memory stays bounded however many inputs there are.<br><br>
+     * The callback is called on the calling thread, in input order. An exception thrown by the callback stops the
+     * batch and is passed on to the caller. The setting of {@link #setParallelism(int)} is not used.
+     * @param inputs WSQ-encoded data between each buffer's position and limit; the positions are left unchanged.
+     *               Direct buffers and buffers backed by an accessible array are read without a copy.
+     * @param callback receives the decoded images
+     * @throws IllegalArgumentException if {@code inputs} or {@code callback} is null
+     */
+    public static void decodeBatch(List<ByteBuffer> inputs, final BatchCallback callback) {
+        if (inputs == null) throw new IllegalArgumentException("Inputs must not be null");
+        if (callback == null) throw new IllegalArgumentException("Callback must not be null");
+        Object[] data = new Object[inputs.size()];
+        int[] offsets = new int[data.length];
+        int[] lengths = new int[data.length];
+        for (int i = 0; i < data.length; i++) {
+            ByteBuffer input = inputs.get(i);
+            if (input == null) continue;
+            lengths[i] = input.remaining();
+            if (input.isDirect()) {
+                data[i] = input;
+                offsets[i] = input.position();
+            } else if (input.hasArray()) {
+                data[i] = input.array();
+                offsets[i] = input.arrayOffset() + input.position();
+            } else {
+                byte[] bytes = new byte[input.remaining()];
+                input.duplicate().get(bytes);
+                data[i] = bytes;
+            }
+        }
+        Native.decodeWSQBatch(data, offsets, lengths, new Native.BatchResults() {
+            @Override
+            public void onResult(int index, byte[] pixels, int width, int height, int ppi) {
+                callback.onDecoded(index, pixels == null ? null : new WSQGrayImage(ByteBuffer.wrap(pixels), width, height, ppi));
             }
-            return decode(out.toByteArray());
+        });
+    }
+
+    /**
+     * Decode many WSQ images into 8-bit grayscale pixels, see {@link #decodeBatch(List, BatchCallback)}. All decoded
+     * images are kept until the batch is finished; use the callback to process large batches in bounded memory.
+     * @param inputs WSQ-encoded data between each buffer's position and limit; the positions are left unchanged.
+     * @return the decoded images in input order, {@code null} for the inputs that could not be decoded
+     * @throws IllegalArgumentException if {@code inputs} is null
+     */
+    public static WSQGrayImage[] decodeBatch(List<ByteBuffer> inputs) {
+        if (inputs == null) throw new IllegalArgumentException("Inputs must not be null");
+        final WSQGrayImage[] images = new WSQGrayImage[inputs.size()];
+        decodeBatch(inputs, new BatchCallback() {
+            @Override
+            public void onDecoded(int index, WSQGrayImage image) {
+                images[index] = image;
+            }
+        });
+        return images;
+    }
+
+    /**
+     * Reads the dimensions, density, bitrate and comments of a WSQ image without decoding it. Only the markers and
+     * tables in front of the first compressed block are parsed, which is much faster than a full decode.
+     * @param data WSQ-encoded data
+     * @return the image information, or {@code null} if the data is not a valid WSQ header
+     */
+    public static WSQInfo probe(byte[] data) {
+        int[] info = new int[2];
+        return nativeToInfo(Native.probeWSQByteArray(data, info), info);
+    }
+
+    /**
+     * Reads the dimensions, density, bitrate and comments of a WSQ image without decoding it. The data between the
+     * buffer's position and limit is parsed, the position is left unchanged.
+     * @param data WSQ-encoded data
+     * @return the image information, or {@code null} if the data is not a valid WSQ header
+     */
+    public static WSQInfo probe(ByteBuffer data) {
+        if (data == null) return null;
+        if (data.isDirect()) {
+            int[] info = new int[2];
+            return nativeToInfo(Native.probeWSQByteBuffer(data, data.position(), data.remaining(), info), info);
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return probe(bytes);
+    }
+
+    /**
+     * Reads the dimensions, density, bitrate and comments of a WSQ file without decoding it. Only the beginning
+     * of the file, up to the first compressed block, is read.
+     * @param file a WSQ file
+     * @return the image information, or {@code null} if the file cannot be read or is not a valid WSQ file
+     */
+    public static WSQInfo probe(File file) {
+        if (file == null) return null;
+        int[] info = new int[2];
+        return nativeToInfo(Native.probeWSQFile(file.getPath(), info), info);
+    }
+
+    /**
+     * Reads one WSQ record from an {@link InputStream} and decodes it. The stream is read up to the record's EOI
+     * marker and left positioned right after it. A stream that does not support {@link InputStream#mark(int)} is
+     * read one byte at a time through the compressed blocks, wrap it in a {@link java.io.BufferedInputStream} to
+     * read it in chunks, see {@link WSQStreamDecoder}.
+     * @param in an input stream containing WSQ-encoded data
+     * @return The decoded image, or {@code null} if the image data could not be read or decoded.
+     */
+    public static WSQDecodedImage decode(InputStream in) {
+        if (in == null) return null;
+        try {
+            return new WSQStreamDecoder(in).next();
         } catch (IOException e) {
             e.printStackTrace();
             return null;
@@ -98,4 +630,29 @@ public class WSQDecoder {
         return new WSQDecodedImage(bmp, ppi);
     }
 
+    /*
+        Wrap a bitmap filled by the native code, info is {width, height, ppi}.
+     */
+    private static WSQDecodedImage nativeToImageData(int[] info, Bitmap bmp) {
+        if (info == null) return null;
+        if (bmp.getConfig() == Config.ARGB_8888) bmp.setHasAlpha(false);
+        return new WSQDecodedImage(bmp, info[2]);
+    }
+
+    /*
+        Create the probe result from the native comments and {width, height} info.
+     */
+    private static WSQInfo nativeToInfo(byte[][] comments, int[] info) {
+        if (comments == null) return null;
+        return new WSQInfo(info[0], info[1], comments);
+    }
+
+    /*
+        Wrap the gray pixels from the native code together with the width, height, ppi info.
+     */
+    private static WSQGrayImage nativeToGrayImage(byte[] pixels, int[] info) {
+        if (pixels == null) return null;
+        return new WSQGrayImage(ByteBuffer.wrap(pixels), info[0], info[1], info[2]);
+    }
+
 }
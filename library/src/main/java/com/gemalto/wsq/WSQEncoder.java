@@ -3,15 +3,22 @@ package com.gemalto.wsq;
 import android.graphics.Bitmap;
 import android.util.Log;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
 
 /**
- * This class encodes bitmaps into WSQ file format. It uses the NBIS code produced by NIST. This code has some
+ * This class encodes bitmaps (or raw 8-bit grayscale pixels) into WSQ file format. It uses the NBIS code produced by NIST. This code has some
  * peculiarities. For example it strictly refuses to create WSQ if the resulting file should be bigger than
  * the raw input image data (i.e. bigger than {@code image_width * image_height} bytes). Keep that in mind when
- * using the {@link #setBitrate(float)} or {@link #setComment(String)} methods.
+ * using the {@link #setBitrate(float)} or {@link #setComment(String)} methods. The methods writing into a stream,
+ * channel or file don't have this limit, they pass the data on as it is produced.
  * @author mdvorak
  *
  */
@@ -19,6 +26,8 @@ public class WSQEncoder {
     private static final String TAG = "WSQEncoder";
 
     private static final int MAX_COMMENT_LENGTH = (1 << 16) - 3;
+    //pixels of the bitmaps converted in java for one native call of encodeBatch
+    private static final long BATCH_CONVERTED_PIXELS = 16 * 1024 * 1024;
 
     /**
      * Unknown PPI value
@@ -34,13 +43,92 @@ public class WSQEncoder {
     public static final float BITRATE_15_TO_1 = (float)0.75;
     
     private Bitmap bmp;
+    private ByteBuffer gray;
+    private int width;
+    private int height;
     private float bitrate = BITRATE_5_TO_1;
     private int ppi = UNKNOWN_PPI;
     private String comment = null;
+    private int parallelism = 1;
+    private Session session = null;
 
+    /**
+     * Native working memory for encoding a series of images of the same size, e.g. the frames of a capture device.
+     * The floating point image, the transform buffer and the quantized coefficients are allocated once for
+     * {@code width * height} pixels when the session is created, and kept until {@link #close()}, instead of being
+     * allocated and freed for every image, which keeps the memory use flat under sustained load. The other buffers of
+     * the encoder are allocated by the first image and reused by the following ones. Images of other sizes are
+     * encoded too, the buffers grow to the largest one.<br><br>
+     *
+     * A session is used through {@link WSQEncoder#setSession(Session)}. It can be shared by several encoders and
+     * threads, but the encodings using it are run one at a time; use one session per thread to encode concurrently.
+     */
+    public static class Session implements Closeable {
+        private final NativeArena arena;
+
+        /**
+         * Allocates the native working memory for images of the given size.
+         * @param width image width
+         * @param height image height
+         * @throws IllegalArgumentException if {@code width} or {@code height} is not positive
+         */
+        public Session(int width, int height) {
+            arena = new NativeArena(width, height);
+        }
+
+        /**
+         * Frees the native working memory. Encoders using the session fail with an {@link IllegalStateException}
+         * afterwards; closing it again has no effect.
+         */
+        @Override
+        public synchronized void close() {
+            arena.close();
+        }
+    }
+
+    /**
+     * Receives the results of {@link WSQEncoder#encodeBatch(List, BatchCallback)}.
+     */
+    public interface BatchCallback {
+        /**
+         * Called on the thread running the batch for every encoder, in input order.
+         * @param index the index of the encoder in the batch
+         * @param data the WSQ-compressed image, or {@code null} in case of compression error
+         */
+        void onEncoded(int index, byte[] data);
+    }
+
+    /**
+     * Creates an encoder for a bitmap. Opaque {@link Bitmap.Config#ARGB_8888}, {@link Bitmap.Config#RGB_565} and
+     * {@link Bitmap.Config#ALPHA_8} bitmaps are read directly from their memory by the native encoder. Color pixels
+     * are converted to gray by averaging R, G and B, the alpha channel is ignored; {@code ALPHA_8} bitmaps use the
+     * alpha values as gray levels. Bitmaps of other configs, and {@code ARGB_8888} bitmaps with alpha, whose memory
+     * holds premultiplied values, are converted through {@link Bitmap#getPixels}.
+     * @param bmp the bitmap to encode
+     */
     public WSQEncoder(Bitmap bmp) {
         if (bmp == null) throw new IllegalArgumentException("Bitmap must not be null!");
         this.bmp = bmp;
+        this.width = bmp.getWidth();
+        this.height = bmp.getHeight();
+    }
+
+    /**
+     * Creates an encoder for raw 8-bit grayscale pixels (one byte per pixel, rows stored top to bottom without padding).
+     * The pixels are read directly from the buffer's memory by the native encoder, starting at the buffer's position,
+     * so don't modify the buffer until the encoding is finished.
+     * @param gray8 a direct buffer with at least {@code width * height} bytes remaining
+     * @param width image width
+     * @param height image height
+     */
+    public WSQEncoder(ByteBuffer gray8, int width, int height) {
+        if (gray8 == null) throw new IllegalArgumentException("Buffer must not be null!");
+        if (!gray8.isDirect()) throw new IllegalArgumentException("Buffer must be direct");
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException("Width and height must be positive numbers");
+        if (gray8.remaining() < (long)width * height) throw new IllegalArgumentException("Buffer is smaller than width * height");
+        this.gray = gray8;
+        this.width = width;
+        this.height = height;
     }
 
     /**
@@ -86,53 +174,349 @@ public class WSQEncoder {
         return this;
     }
 
+    /**
+     * Sets the number of threads the encoding of one image may use. The rows and columns of each subband of the
+     * wavelet decomposition, the subband variances and quantization, and the Huffman coding of the three blocks
+     * are split between a native pool of worker threads, sized to the big cores of the device, and the calling
+     * thread. Larger values are reduced to the number of big cores, and small images are not split at all. The
+     * result is the same for any value.<br><br>
+     *
+     * Default value: 1, the whole encoding runs on the calling thread.
+     * @param parallelism the maximum number of threads to use
+     * @return this {@code WSQEncoder} instance
+     * @throws IllegalArgumentException if {@code parallelism &lt; 1}
+     */
+    public WSQEncoder setParallelism(final int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be at least 1");
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Uses the native working memory of a session for the following encodings, see {@link Session}. The result is
+     * the same as without a session.<br><br>
+     *
+     * Default value: {@code null}, the working memory is allocated for each encoding.
+     * @param session the session to use, or {@code null}
+     * @return this {@code WSQEncoder} instance
+     */
+    public WSQEncoder setSession(final Session session) {
+        this.session = session;
+        return this;
+    }
+
     /**
      * Encode to WSQ, return the result as a byte array.
      * @return the WSQ-compressed bitmap, or null in case of compression error
+     * @throws IllegalStateException if the encoder uses a closed {@link Session}
      */
     public byte[] encode() {
-        return encodeInternal();
+        if (session == null) return encodeInternal(0);
+        synchronized (session) {
+            return encodeInternal(session.arena.handle());
+        }
+    }
+
+    /**
+     * Encode to WSQ at several bitrates, e.g. {@link #BITRATE_5_TO_1} for archiving and {@link #BITRATE_15_TO_1}
+     * for transmission. The pixels are read, converted and decomposed into wavelet subbands once; only the
+     * quantization and the Huffman coding are done for each bitrate. Each result is the same as {@link #encode()}
+     * with that bitrate set. The bitrate set by {@link #setBitrate(float)} is not used.
+     * @param bitrates the bit rates to use, see {@link #setBitrate(float)}
+     * @return the WSQ-compressed bitmaps, one per bitrate in the same order, or null in case of compression error
+     * at any of them
+     * @throws IllegalArgumentException if no bitrate is given or a bitrate is not a positive number
+     * @throws IllegalStateException if the encoder uses a closed {@link Session}
+     */
+    public byte[][] encode(float... bitrates) {
+        if (bitrates == null || bitrates.length == 0) throw new IllegalArgumentException("At least one bitrate must be given");
+        for (float rate : bitrates) {
+            if (rate <= 0) throw new IllegalArgumentException("Bitrate must be a positive number");
+        }
+        if (session == null) return encodeMulti(bitrates, 0);
+        synchronized (session) {
+            return encodeMulti(bitrates, session.arena.handle());
+        }
+    }
+
+    private byte[][] encodeMulti(float[] bitrates, long arena) {
+        if (gray != null) {
+            return Native.encodeWSQByteBufferMulti(gray, gray.position(), width, height, bitrates, ppi, comment,
+                    parallelism, arena);
+        }
+        if (bmp == null) return null;
+        if (isDirectBitmap()) return Native.encodeWSQBitmapMulti(bmp, bitrates, ppi, comment, parallelism, arena);
+        int[] pixels = new int[bmp.getWidth() * bmp.getHeight()];
+        bmp.getPixels(pixels, 0, bmp.getWidth(), 0, 0, bmp.getWidth(), bmp.getHeight());
+        return Native.encodeWSQByteArrayMulti(pixels, bmp.getWidth(), bmp.getHeight(), bitrates, ppi, comment,
+                parallelism, arena);
     }
 
     /**
-     * Encode to WSQ, write the result into an {@link OutputStream}.
+     * Encode to WSQ, write the result into an {@link OutputStream}. The header, tables and compressed blocks are
+     * written as they are produced, in chunks of at most 16 kB, without building the whole result in memory first.
      * @param out the stream into which the result will be written
-     * @return the number of bytes written; 0 in case of a conversion error
+     * @return the number of bytes written; 0 in case of a conversion error, in which case part of the result may
+     * already have been written
      * @throws IOException if there's an error writing the result into the output stream
+     * @throws IllegalStateException if the encoder uses a closed {@link Session}
      */
     public int encode(OutputStream out) throws IOException {
-        byte[] data = encodeInternal();
-        if (data == null) return 0;
-        out.write(data);
+        if (out == null) throw new IllegalArgumentException("Stream must not be null");
+        if (session == null) return encodeToStream(out, 0);
+        synchronized (session) {
+            return encodeToStream(out, session.arena.handle());
+        }
+    }
+
+    private int encodeToStream(OutputStream out, long arena) throws IOException {
+        if (gray != null) {
+            return Native.encodeWSQByteBufferToStream(gray, gray.position(), width, height, bitrate, ppi, comment,
+                    parallelism, arena, out);
+        }
+        if (bmp == null) return 0;
+        if (isDirectBitmap()) return Native.encodeWSQBitmapToStream(bmp, bitrate, ppi, comment, parallelism, arena, out);
+        int[] pixels = new int[bmp.getWidth() * bmp.getHeight()];
+        bmp.getPixels(pixels, 0, bmp.getWidth(), 0, 0, bmp.getWidth(), bmp.getHeight());
+        return Native.encodeWSQByteArrayToStream(pixels, bmp.getWidth(), bmp.getHeight(), bitrate, ppi, comment,
+                parallelism, arena, out);
+    }
+
+    /**
+     * Encode to WSQ, write the result into a channel, e.g. a {@link java.nio.channels.FileChannel} or a socket
+     * channel in blocking mode. The data is written as it is produced, see {@link #encode(OutputStream)}.
+     * @param out the channel into which the result will be written
+     * @return the number of bytes written; 0 in case of a conversion error, in which case part of the result may
+     * already have been written
+     * @throws IOException if there's an error writing the result into the channel
+     */
+    public int encode(WritableByteChannel out) throws IOException {
+        if (out == null) throw new IllegalArgumentException("Channel must not be null");
+        return encode(Channels.newOutputStream(out));
+    }
+
+    /**
+     * Encode to WSQ, write the result into a direct buffer starting at its position. The native encoder writes
+     * straight into the buffer's memory. The buffer's position and limit are left unchanged.
+     * @param out a direct buffer that receives the WSQ data
+     * @return the number of bytes written; 0 in case of a conversion error or if the result doesn't fit into
+     * the remaining space of {@code out}
+     * @throws IllegalArgumentException if {@code out} is not a direct buffer
+     * @throws IllegalStateException if the encoder uses a closed {@link Session}
+     */
+    public int encode(ByteBuffer out) {
+        if (out == null || !out.isDirect()) throw new IllegalArgumentException("Output buffer must be direct");
+        if (session == null) return encodeInto(out, 0);
+        synchronized (session) {
+            return encodeInto(out, session.arena.handle());
+        }
+    }
+
+    private int encodeInto(ByteBuffer out, long arena) {
+        if (gray != null) {
+            return Native.encodeWSQByteBufferInto(gray, gray.position(), width, height, bitrate, ppi, comment, parallelism,
+                    arena, out, out.position(), out.remaining());
+        }
+        if (isDirectBitmap()) {
+            return Native.encodeWSQBitmapInto(bmp, bitrate, ppi, comment, parallelism, arena,
+                    out, out.position(), out.remaining());
+        }
+        byte[] data = encodeInternal(arena);
+        if (data == null || data.length > out.remaining()) return 0;
+        out.duplicate().put(data);
         return data.length;
     }
 
     /**
-     * Encode to WSQ, store the result into a file.
+     * Encode to WSQ, store the result into a file. The data is written as it is produced, see
+     * {@link #encode(OutputStream)}, into a temporary file in the same directory, which replaces the output file
+     * once the encoding has succeeded.
      * @param fileName the name of the output file
-     * @return {@code true} if the image was successfully converted and stored; {@code false} otherwise
+     * @return {@code true} if the image was successfully converted and stored; {@code false} otherwise, in which
+     * case an existing file of that name is left unchanged
      */
     public boolean encode(String fileName) {
-        byte[] data = encodeInternal();
-        if (data == null || data.length == 0) return false;
+        File file = new File(fileName);
+        File tmp = null;
         FileOutputStream out = null;
+        boolean stored = false;
         try {
-            out = new FileOutputStream(fileName);
-            out.write(data);
-            return true;
+            tmp = File.createTempFile("wsq", ".tmp", file.getAbsoluteFile().getParentFile());
+            out = new FileOutputStream(tmp);
+            int written = encode(out);
+            out.close();
+            out = null;
+            stored = written > 0 && tmp.renameTo(file);
         } catch (IOException e) {
             Log.e(TAG, "Error writing WSQ into " + fileName, e);
-            return false;
         } finally {
             try {if (out != null) out.close();} catch (IOException ignored){}
+            if (!stored && tmp != null) tmp.delete();
+        }
+        return stored;
+    }
+
+    /**
+     * Encode to WSQ at the highest bitrate whose result fits into {@code maxBytes}, e.g. the size limit of a
+     * transport record or a card. The bitrate set by {@link #setBitrate(float)} is the upper end of the search, the
+     * lower end is 64 times smaller. The image is decomposed once; each bitrate tried only redoes the quantization
+     * and the Huffman statistics, which give the coded size without writing the data. The result is the same as
+     * {@link #encode()} at the chosen bitrate, which is recorded in the NISTCOM comment and can be read back with
+     * {@link WSQDecoder#probe(byte[])} and {@link WSQInfo#getBitrate()}.
+     * @param maxBytes the maximum size of the result, including the header and comments
+     * @return the WSQ-compressed bitmap, or null if it does not fit at any bitrate or in case of compression error
+     * @throws IllegalArgumentException if {@code maxBytes} is not positive
+     * @throws IllegalStateException if the encoder uses a closed {@link Session}
+     */
+    public byte[] encodeToSize(int maxBytes) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("Maximum size must be a positive number");
+        if (session == null) return encodeToTarget(maxBytes, 0, 0);
+        synchronized (session) {
+            return encodeToTarget(maxBytes, 0, session.arena.handle());
         }
+    }
 
+    /**
+     * Encode to WSQ at the lowest bitrate whose decoded image has a PSNR of at least {@code minPsnr} dB compared to
+     * the encoded pixels. The bitrate set by {@link #setBitrate(float)} is the upper end of the search, the lower end
+     * is 64 times smaller. The image is decomposed once; each bitrate tried redoes the quantization and the wavelet
+     * reconstruction, so the PSNR is exactly the one {@link WSQDecoder} will produce. The chosen bitrate is recorded
+     * in the NISTCOM comment, see {@link #encodeToSize(int)}.
+     * @param minPsnr the minimum peak signal-to-noise ratio in dB, e.g. 30 to 40 for fingerprints
+     * @return the WSQ-compressed bitmap, or null if the PSNR is not reached at any bitrate or in case of compression error
+     * @throws IllegalArgumentException if {@code minPsnr} is not positive
+     * @throws IllegalStateException if the encoder uses a closed {@link Session}
+     */
+    public byte[] encodeToPsnr(double minPsnr) {
+        if (!(minPsnr > 0)) throw new IllegalArgumentException("PSNR must be a positive number");
+        if (session == null) return encodeToTarget(0, minPsnr, 0);
+        synchronized (session) {
+            return encodeToTarget(0, minPsnr, session.arena.handle());
+        }
     }
 
-    private byte[] encodeInternal() {
+    private byte[] encodeToTarget(int maxBytes, double minPsnr, long arena) {
+        if (gray != null) {
+            return Native.encodeWSQByteBufferToTarget(gray, gray.position(), width, height, bitrate, maxBytes, minPsnr,
+                    ppi, comment, parallelism, arena);
+        }
+        if (bmp == null) return null;
+        if (isDirectBitmap()) {
+            return Native.encodeWSQBitmapToTarget(bmp, bitrate, maxBytes, minPsnr, ppi, comment, parallelism, arena);
+        }
+        int[] pixels = new int[bmp.getWidth() * bmp.getHeight()];
+        bmp.getPixels(pixels, 0, bmp.getWidth(), 0, 0, bmp.getWidth(), bmp.getHeight());
+        return Native.encodeWSQByteArrayToTarget(pixels, bmp.getWidth(), bmp.getHeight(), bitrate, maxBytes, minPsnr,
+                ppi, comment, parallelism, arena);
+    }
+
+    /**
+     * Encode the images of many encoders, e.g. the ten prints of a card, each with its own bitrate, density and
+     * comment. The results are the same as those of {@link #encode()}. All images are handed to the native code in
+     * one call and encoded on the native pool of worker threads sized to the big cores of the device, one image per
+     * thread, so there is no per-image call overhead and images of different sizes keep all cores busy. The images
+     * are encoded a window at a time: a window holds up to about 16 million pixels, and its results are passed to
+     * the callback and dropped by the native code before the next window is encoded. Bitmaps whose pixels the native
+     * code cannot read directly are converted through {@link Bitmap#getPixels} a bounded number at a time as well,
+     * so the memory stays bounded however many encoders there are.<br><br>
+     * The callback is called on the calling thread, in input order. An exception thrown by the callback stops the
+     * batch and is passed on to the caller. The parallelism and session of the encoders are not used.
+     * @param encoders the encoders of the images
+     * @param callback receives the WSQ-compressed images
+     * @throws IllegalArgumentException if {@code encoders}, one of them, or {@code callback} is null
+     */
+    public static void encodeBatch(List<WSQEncoder> encoders, BatchCallback callback) {
+        if (encoders == null) throw new IllegalArgumentException("Encoders must not be null");
+        if (callback == null) throw new IllegalArgumentException("Callback must not be null");
+        for (WSQEncoder encoder : encoders) {
+            if (encoder == null) throw new IllegalArgumentException("Encoders must not be null");
+        }
+        int start = 0;
+        while (start < encoders.size()) {
+            //pixels converted in java are held until the native call returns, so they bound the encoders per call
+            int end = start;
+            long converted = 0;
+            do {
+                WSQEncoder encoder = encoders.get(end++);
+                if (encoder.gray == null && !encoder.isDirectBitmap()) converted += (long) encoder.width * encoder.height;
+            } while (end < encoders.size() && converted < BATCH_CONVERTED_PIXELS);
+            encodeBatchRange(encoders, start, end, callback);
+            start = end;
+        }
+    }
+
+    /**
+     * Encode the images of many encoders, see {@link #encodeBatch(List, BatchCallback)}.
+     * @param encoders the encoders of the images
+     * @return the WSQ-compressed images in input order, {@code null} for those that could not be compressed
+     * @throws IllegalArgumentException if {@code encoders} or one of them is null
+     */
+    public static byte[][] encodeBatch(List<WSQEncoder> encoders) {
+        if (encoders == null) throw new IllegalArgumentException("Encoders must not be null");
+        final byte[][] results = new byte[encoders.size()][];
+        encodeBatch(encoders, new BatchCallback() {
+            @Override
+            public void onEncoded(int index, byte[] data) {
+                results[index] = data;
+            }
+        });
+        return results;
+    }
+
+    private static void encodeBatchRange(List<WSQEncoder> encoders, final int start, int end, final BatchCallback callback) {
+        int count = end - start;
+        Object[] images = new Object[count];
+        int[] offsets = new int[count];
+        int[] widths = new int[count];
+        int[] heights = new int[count];
+        float[] bitrates = new float[count];
+        int[] ppis = new int[count];
+        String[] comments = new String[count];
+        for (int i = 0; i < count; i++) {
+            WSQEncoder encoder = encoders.get(start + i);
+            widths[i] = encoder.width;
+            heights[i] = encoder.height;
+            bitrates[i] = encoder.bitrate;
+            ppis[i] = encoder.ppi;
+            comments[i] = encoder.comment;
+            if (encoder.gray != null) {
+                images[i] = encoder.gray;
+                offsets[i] = encoder.gray.position();
+            } else if (encoder.isDirectBitmap()) {
+                images[i] = encoder.bmp;
+            } else {
+                int[] pixels = new int[encoder.width * encoder.height];
+                encoder.bmp.getPixels(pixels, 0, encoder.width, 0, 0, encoder.width, encoder.height);
+                images[i] = pixels;
+            }
+        }
+        Native.encodeWSQBatch(images, offsets, widths, heights, bitrates, ppis, comments, new Native.BatchResults() {
+            @Override
+            public void onResult(int index, byte[] data, int width, int height, int ppi) {
+                callback.onEncoded(start + index, data);
+            }
+        });
+    }
+
+    private byte[] encodeInternal(long arena) {
+        if (gray != null) {
+            return Native.encodeWSQByteBuffer(gray, gray.position(), width, height, bitrate, ppi, comment, parallelism, arena);
+        }
         if (bmp == null) return null;
+        if (isDirectBitmap()) return Native.encodeWSQBitmap(bmp, bitrate, ppi, comment, parallelism, arena);
         int[] pixels = new int[bmp.getWidth() * bmp.getHeight()];
         bmp.getPixels(pixels, 0, bmp.getWidth(), 0, 0, bmp.getWidth(), bmp.getHeight());
-        return Native.encodeWSQByteArray(pixels, bmp.getWidth(), bmp.getHeight(), bitrate, ppi, comment);
+        return Native.encodeWSQByteArray(pixels, bmp.getWidth(), bmp.getHeight(), bitrate, ppi, comment, parallelism, arena);
+    }
+
+    /*
+        Bitmaps the native code can read without going through getPixels. Transparent ARGB_8888 pixels are stored
+        premultiplied, getPixels gives back the unpremultiplied colors the encoder has always averaged.
+     */
+    private boolean isDirectBitmap() {
+        if (bmp == null || bmp.isRecycled()) return false;
+        Bitmap.Config config = bmp.getConfig();
+        if (config == Bitmap.Config.ARGB_8888) return !bmp.hasAlpha();
+        return config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ALPHA_8;
     }
 }
@@ -0,0 +1,105 @@
+package com.gemalto.wsq;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Information about a WSQ image read from its headers by {@link WSQDecoder#probe(byte[])}, without decoding the image.
+ */
+public class WSQInfo {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String NISTCOM_HEADER = "NIST_COM";
+    private static final String NISTCOM_PPI = "PPI";
+    private static final String NISTCOM_BITRATE = "WSQ_BITRATE";
+
+    private int width;
+    private int height;
+    private int ppi = WSQEncoder.UNKNOWN_PPI;
+    private float bitrate = -1;
+    private Map<String, String> nistcom = Collections.emptyMap();
+    private List<String> comments = new ArrayList<>();
+
+    WSQInfo(int width, int height, byte[][] rawComments) {
+        this.width = width;
+        this.height = height;
+        for (byte[] raw : rawComments) {
+            String comment = new String(raw, UTF_8);
+            //like NBIS, only the first NISTCOM is used, any other comment is a general one
+            if (nistcom.isEmpty() && comment.startsWith(NISTCOM_HEADER)) {
+                nistcom = Collections.unmodifiableMap(parseNistcom(comment));
+            } else {
+                comments.add(comment);
+            }
+        }
+        comments = Collections.unmodifiableList(comments);
+        try {
+            if (nistcom.containsKey(NISTCOM_PPI)) ppi = Integer.parseInt(nistcom.get(NISTCOM_PPI));
+        } catch (NumberFormatException ignored) {}
+        try {
+            if (nistcom.containsKey(NISTCOM_BITRATE)) bitrate = Float.parseFloat(nistcom.get(NISTCOM_BITRATE));
+        } catch (NumberFormatException ignored) {}
+    }
+
+    /*
+        Split a NISTCOM into "name value" lines, the same way as string2fet in NBIS.
+     */
+    private static Map<String, String> parseNistcom(String text) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            int sep = 0;
+            while (sep < line.length() && line.charAt(sep) != ' ' && line.charAt(sep) != '\t') sep++;
+            fields.put(line.substring(0, sep), line.substring(sep).trim());
+        }
+        return fields;
+    }
+
+    /**
+     * @return image width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return image height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return image density (pixels per inch), or {@link WSQEncoder#UNKNOWN_PPI} if it's not stored in the image
+     */
+    public int getPpi() {
+        return ppi;
+    }
+
+    /**
+     * @return the bitrate the image was encoded with, or -1 if it's not stored in the image
+     */
+    public float getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * @return the fields of the NISTCOM comment (e.g. {@code PIX_WIDTH}, {@code PPI}, {@code WSQ_BITRATE}) in the
+     * order they are stored, or an empty map if the image has no NISTCOM
+     */
+    public Map<String, String> getNistcom() {
+        return nistcom;
+    }
+
+    /**
+     * @return the general (non-NISTCOM) comments stored in the image, e.g. the one set by
+     * {@link WSQEncoder#setComment(String)}
+     */
+    public List<String> getComments() {
+        return comments;
+    }
+}
@@ -0,0 +1,390 @@
+package com.gemalto.wsq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Edits the comments (COM segments) of a WSQ image without decoding it, e.g. to tag archived images with a case ID.
+ * Only the markers in front of the first compressed block are parsed. Comments are added, replaced or removed by
+ * splicing their segments into that header, the tables and compressed blocks are copied unchanged. This costs a byte
+ * copy instead of a decode and an encode, and there is no further quantization loss.<br><br>
+ * The comments are listed in the order they are stored, including the NISTCOM comment written by {@link WSQEncoder}
+ * (see {@link WSQInfo#getNistcom()}), which can be replaced or removed like any other. New comments are added after
+ * the last existing one. The edited image is created with {@link #toByteArray()}, or written back to the file or
+ * buffer it was read from with {@link #save()}. An instance must not be used by several threads at once.
+ */
+public class WSQMetadataEditor {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int SOI = 0xFFA0;
+    private static final int EOI = 0xFFA1;
+    private static final int SOF = 0xFFA2;
+    private static final int SOB = 0xFFA3;
+    private static final int COM = 0xFFA8;
+    //the segment length is an unsigned short which includes its own 2 bytes
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF - 2;
+    private static final int COPY_CHUNK = 64 * 1024;
+
+    private final byte[] array;
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final File file;
+    private long length;
+    //the data from SOI up to the first SOB marker, the rest of the image follows it unchanged
+    private byte[] header;
+    private List<Segment> segments;
+
+    /*
+        A marker segment after SOI, either a table or frame header copied from the original header, or a comment.
+     */
+    private static class Segment {
+        final int offset;
+        final int length;
+        final byte[] comment;
+
+        Segment(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+            this.comment = null;
+        }
+
+        Segment(byte[] comment) {
+            this.offset = -1;
+            this.length = comment.length + 4;
+            this.comment = comment;
+        }
+    }
+
+    private WSQMetadataEditor(byte[] array, ByteBuffer buffer, File file) {
+        this.array = array;
+        this.buffer = buffer;
+        this.offset = buffer != null ? buffer.position() : 0;
+        this.file = file;
+    }
+
+    /**
+     * Reads the comments of a WSQ image held in a byte array. The array is not modified, the edited image is
+     * created with {@link #toByteArray()}.
+     * @param data WSQ-encoded data
+     * @return the editor, or {@code null} if the data is not a valid WSQ header
+     */
+    public static WSQMetadataEditor open(byte[] data) {
+        if (data == null) return null;
+        WSQMetadataEditor editor = new WSQMetadataEditor(data, null, null);
+        editor.length = data.length;
+        return editor.load(ByteBuffer.wrap(data)) > 0 ? editor : null;
+    }
+
+    /**
+     * Reads the comments of a WSQ image held between the buffer's position and limit, the position is left
+     * unchanged. {@link #save()} writes the edited image back into the buffer.
+     * @param data WSQ-encoded data, typically a direct buffer
+     * @return the editor, or {@code null} if the data is not a valid WSQ header
+     */
+    public static WSQMetadataEditor open(ByteBuffer data) {
+        if (data == null) return null;
+        WSQMetadataEditor editor = new WSQMetadataEditor(null, data, null);
+        editor.length = data.remaining();
+        return editor.load(data.slice()) > 0 ? editor : null;
+    }
+
+    /**
+     * Reads the comments of a WSQ file. Only the beginning of the file, up to the first compressed block, is read.
+     * {@link #save()} edits the file in place.
+     * @param file a WSQ file
+     * @return the editor, or {@code null} if the file is not a valid WSQ file
+     * @throws IOException if the file cannot be read
+     */
+    public static WSQMetadataEditor open(File file) throws IOException {
+        if (file == null) return null;
+        WSQMetadataEditor editor = new WSQMetadataEditor(null, null, file);
+        return editor.loadFile() ? editor : null;
+    }
+
+    /**
+     * @return the comments in the order they are stored, including the NISTCOM comment
+     */
+    public List<String> getComments() {
+        List<String> comments = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment.comment == null) continue;
+            //like NBIS, a comment ends at its first NUL byte
+            int end = 0;
+            while (end < segment.comment.length && segment.comment[end] != 0) end++;
+            comments.add(new String(segment.comment, 0, end, UTF_8));
+        }
+        return Collections.unmodifiableList(comments);
+    }
+
+    /**
+     * Add a comment after the last existing one, or right after the SOI marker if the image has no comments.
+     * @param comment the comment text, stored as UTF-8
+     * @return this editor
+     * @throws IllegalArgumentException if the comment is null, empty, contains a NUL character or is longer than
+     * 65533 bytes in UTF-8
+     */
+    public WSQMetadataEditor addComment(String comment) {
+        Segment segment = new Segment(commentBytes(comment));
+        int index = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i).comment != null) index = i + 1;
+        }
+        segments.add(index, segment);
+        return this;
+    }
+
+    /**
+     * Replace a comment, keeping its place in the header.
+     * @param index the index of the comment in {@link #getComments()}
+     * @param comment the new comment text, stored as UTF-8
+     * @return this editor
+     * @throws IllegalArgumentException if the comment is null, empty, contains a NUL character or is longer than
+     * 65533 bytes in UTF-8
+     * @throws IndexOutOfBoundsException if there is no comment at {@code index}
+     */
+    public WSQMetadataEditor replaceComment(int index, String comment) {
+        Segment segment = new Segment(commentBytes(comment));
+        segments.set(commentSegment(index), segment);
+        return this;
+    }
+
+    /**
+     * Remove a comment.
+     * @param index the index of the comment in {@link #getComments()}
+     * @return this editor
+     * @throws IndexOutOfBoundsException if there is no comment at {@code index}
+     */
+    public WSQMetadataEditor removeComment(int index) {
+        segments.remove(commentSegment(index));
+        return this;
+    }
+
+    /**
+     * Remove all comments, including the NISTCOM comment.
+     * @return this editor
+     */
+    public WSQMetadataEditor removeComments() {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            if (segments.get(i).comment != null) segments.remove(i);
+        }
+        return this;
+    }
+
+    /**
+     * Create the edited image. The source is not modified.
+     * @return the WSQ image with the edited comments, or {@code null} if it was opened from a file that cannot be
+     * read any more
+     */
+    public byte[] toByteArray() {
+        byte[] edited = buildHeader();
+        int bodyLength = (int) (length - header.length);
+        byte[] data = new byte[edited.length + bodyLength];
+        System.arraycopy(edited, 0, data, 0, edited.length);
+        if (array != null) {
+            System.arraycopy(array, header.length, data, edited.length, bodyLength);
+        } else if (buffer != null) {
+            ByteBuffer source = buffer.duplicate();
+            source.limit(offset + (int) length).position(offset + header.length);
+            source.get(data, edited.length, bodyLength);
+        } else {
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    raf.seek(header.length);
+                    raf.readFully(data, edited.length, bodyLength);
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Write the edited image back to where it was read from. Only the header is written if its length did not
+     * change, otherwise the compressed blocks are moved after it. The editor can be used for further edits.<br><br>
+     * A file is edited in place and truncated if it got shorter. If the file is changed while it is saved (e.g. on a
+     * write error) and the header length changed, the image is left corrupt.<br>
+     * In a buffer, the image stays at the position it was opened at and the buffer's limit is moved to its new end.
+     * @throws IOException if the file cannot be written
+     * @throws BufferOverflowException if the edited image does not fit in the buffer's capacity, the buffer is
+     * left unchanged
+     * @throws IllegalStateException if the editor was opened on a byte array, which cannot change its length; use
+     * {@link #toByteArray()} instead
+     */
+    public void save() throws IOException {
+        if (array != null) throw new IllegalStateException("A byte array cannot be edited in place");
+        byte[] edited = buildHeader();
+        long bodyLength = length - header.length;
+        if (buffer != null) {
+            if (offset + edited.length + bodyLength > buffer.capacity()) throw new BufferOverflowException();
+            ByteBuffer data = buffer.duplicate();
+            data.limit(data.capacity());
+            move(data, offset + header.length, offset + edited.length, (int) bodyLength);
+            data.position(offset);
+            data.put(edited);
+            buffer.limit(offset + edited.length + (int) bodyLength);
+            length = buffer.limit() - offset;
+            data.limit(buffer.limit()).position(offset);
+            load(data.slice());
+        } else {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                move(raf, header.length, edited.length, bodyLength);
+                raf.seek(0);
+                raf.write(edited);
+                if (edited.length < header.length) raf.setLength(edited.length + bodyLength);
+            } finally {
+                raf.close();
+            }
+            loadFile();
+        }
+    }
+
+    /*
+        Parse the header, returns the offset of the first SOB marker if it's found, 0 if the data ends before it
+        or -1 if the data is not a valid WSQ header.
+     */
+    private int load(ByteBuffer data) {
+        List<Segment> parsed = new ArrayList<>();
+        int end = parseHeader(data, parsed);
+        if (end > 0) {
+            header = new byte[end];
+            data.duplicate().get(header);
+            segments = parsed;
+        }
+        return end;
+    }
+
+    /*
+        Read the beginning of the file until it contains the whole header.
+     */
+    private boolean loadFile() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            length = raf.length();
+            int size = (int) Math.min(length, 16 * 1024);
+            while (true) {
+                byte[] data = new byte[size];
+                raf.seek(0);
+                raf.readFully(data);
+                int end = load(ByteBuffer.wrap(data));
+                if (end != 0 || size == length) return end > 0;
+                size = (int) Math.min(length, size * 2L);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /*
+        Walk the marker segments from SOI up to the first SOB, like the probe functions of the native code.
+     */
+    private static int parseHeader(ByteBuffer data, List<Segment> segments) {
+        int limit = data.limit();
+        if (limit < 2) return 0;
+        if ((data.getShort(0) & 0xFFFF) != SOI) return -1;
+        boolean hasFrame = false;
+        int pos = 2;
+        while (pos + 4 <= limit) {
+            int marker = data.getShort(pos) & 0xFFFF;
+            if (marker == SOB) return hasFrame ? pos : -1;
+            if ((marker & 0xFF00) != 0xFF00 || marker == SOI || marker == EOI) return -1;
+            int segmentLength = data.getShort(pos + 2) & 0xFFFF;
+            if (segmentLength < 2) return -1;
+            if (pos + 2 + segmentLength > limit) return 0;
+            if (marker == COM) {
+                byte[] comment = new byte[segmentLength - 2];
+                ByteBuffer text = data.duplicate();
+                text.position(pos + 4);
+                text.get(comment);
+                segments.add(new Segment(comment));
+            } else {
+                if (marker == SOF) hasFrame = true;
+                segments.add(new Segment(pos, segmentLength + 2));
+            }
+            pos += segmentLength + 2;
+        }
+        return 0;
+    }
+
+    private byte[] buildHeader() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(header.length + 256);
+        out.write(header, 0, 2);
+        for (Segment segment : segments) {
+            if (segment.comment == null) {
+                out.write(header, segment.offset, segment.length);
+            } else {
+                out.write(COM >> 8);
+                out.write(COM & 0xFF);
+                out.write((segment.comment.length + 2) >> 8);
+                out.write((segment.comment.length + 2) & 0xFF);
+                out.write(segment.comment, 0, segment.comment.length);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private int commentSegment(int index) {
+        int count = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i).comment != null && count++ == index) return i;
+        }
+        throw new IndexOutOfBoundsException("No comment at index " + index + ", the image has " + count);
+    }
+
+    private static byte[] commentBytes(String comment) {
+        if (comment == null || comment.isEmpty()) throw new IllegalArgumentException("Comment must not be empty");
+        if (comment.indexOf('\0') >= 0) throw new IllegalArgumentException("Comment must not contain NUL characters");
+        byte[] bytes = comment.getBytes(UTF_8);
+        if (bytes.length > MAX_COMMENT_LENGTH) {
+            throw new IllegalArgumentException("Comment must not be longer than " + MAX_COMMENT_LENGTH + " bytes");
+        }
+        return bytes;
+    }
+
+    /*
+        Move length bytes within the buffer, the ranges may overlap. When moving towards the end, the chunks are
+        copied from the end so that no byte is overwritten before it's read.
+     */
+    private static void move(ByteBuffer data, int from, int to, int length) {
+        if (from == to) return;
+        byte[] chunk = new byte[Math.min(length, COPY_CHUNK)];
+        for (int done = 0; done < length; ) {
+            int count = Math.min(chunk.length, length - done);
+            int start = to > from ? length - done - count : done;
+            data.position(from + start);
+            data.get(chunk, 0, count);
+            data.position(to + start);
+            data.put(chunk, 0, count);
+            done += count;
+        }
+    }
+
+    /*
+        Same as move(ByteBuffer, ...) within a file.
+     */
+    private static void move(RandomAccessFile raf, long from, long to, long length) throws IOException {
+        if (from == to) return;
+        byte[] chunk = new byte[(int) Math.min(length, COPY_CHUNK)];
+        for (long done = 0; done < length; ) {
+            int count = (int) Math.min(chunk.length, length - done);
+            long start = to > from ? length - done - count : done;
+            raf.seek(from + start);
+            raf.readFully(chunk, 0, count);
+            raf.seek(to + start);
+            raf.write(chunk, 0, count);
+            done += count;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.gemalto.wsq;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Decodes WSQ images from a stream, one record at a time. The markers of each record are parsed as they are read
+ * (SOI, tables and frame header, compressed blocks, EOI), so exactly one record is consumed per call and the
+ * stream is left positioned right after its EOI marker. A stream holding several records yields them one after
+ * the other, and WSQ records embedded in a larger transport stream can be read without knowing their length.<br><br>
+ * If the stream supports {@link InputStream#mark(int)}, like a {@link java.io.BufferedInputStream} or an asset
+ * stream, it is read in chunks of up to 16 KiB and the bytes read past the record are given back with
+ * {@link InputStream#reset()}. Other streams, e.g. sockets, pipes or a {@link java.io.FileInputStream}, are never
+ * read past the record: the segments are read by their length and the compressed blocks one byte at a time, so
+ * such a stream should be wrapped in a {@link java.io.BufferedInputStream} that is then used for all reads. The
+ * buffers are reused between calls, so an instance must not be used by several threads at once.
+ */
+public class WSQStreamDecoder {
+    private static final int SOI = 0xFFA0;
+    private static final int EOI = 0xFFA1;
+    private static final int SOF = 0xFFA2;
+    private static final int SOB = 0xFFA3;
+    private static final int COM = 0xFFA8;
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final InputStream in;
+    private final boolean markable;
+    private byte[] buffer = new byte[64 * 1024];
+    private int length;
+    //bytes read from the stream, ahead[aheadPos..aheadLength) are not part of a record yet;
+    //without mark support at most one byte is read ahead, and only inside a record
+    private final byte[] ahead = new byte[CHUNK_SIZE];
+    private int aheadPos;
+    private int aheadLength;
+
+    /**
+     * @param in the stream to read the WSQ records from
+     */
+    public WSQStreamDecoder(InputStream in) {
+        if (in == null) throw new IllegalArgumentException("Stream must not be null");
+        this.in = in;
+        this.markable = in.markSupported();
+    }
+
+    /**
+     * Reads the next WSQ record from the stream without decoding it.
+     * @return the record, from its SOI to its EOI marker, or {@code null} if the stream ended before another record
+     * @throws IOException if the stream cannot be read, ends inside a record or does not contain valid WSQ markers
+     */
+    public byte[] readRecord() throws IOException {
+        if (!nextRecord()) return null;
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Reads and decodes the next WSQ record from the stream.
+     * @return the decoded image, or {@code null} if the stream ended before another record
+     * @throws IOException if the stream cannot be read, ends inside a record or the record cannot be decoded.
+     * If only the decoding failed, the stream is still positioned after the record and the next one can be read.
+     */
+    public WSQDecoder.WSQDecodedImage next() throws IOException {
+        //only the record is decoded, not the bytes of longer records left in the reused buffer
+        byte[] record = readRecord();
+        if (record == null) return null;
+        WSQDecoder.WSQDecodedImage image = WSQDecoder.decode(record);
+        if (image == null) throw new IOException("WSQ record could not be decoded");
+        return image;
+    }
+
+    /**
+     * Reads and decodes the next WSQ record from the stream into 8-bit grayscale pixels.
+     * @return the decoded image, or {@code null} if the stream ended before another record
+     * @throws IOException if the stream cannot be read, ends inside a record or the record cannot be decoded.
+     * If only the decoding failed, the stream is still positioned after the record and the next one can be read.
+     */
+    public WSQDecoder.WSQGrayImage nextGray() throws IOException {
+        byte[] record = readRecord();
+        if (record == null) return null;
+        WSQDecoder.WSQGrayImage image = WSQDecoder.decodeGray(record);
+        if (image == null) throw new IOException("WSQ record could not be decoded");
+        return image;
+    }
+
+    /*
+        Read one record into the buffer, false if the stream ends before its first byte.
+     */
+    private boolean nextRecord() throws IOException {
+        length = 0;
+        try {
+            if (aheadPos == aheadLength && !fill()) return false;
+            int marker = (readByte() << 8) | readByte();
+            if (marker != SOI) throw new IOException(String.format("Not a WSQ record, found %04X instead of SOI", marker));
+
+            marker = readMarker();
+            while (marker != EOI) {
+                if (marker < SOF || marker > COM) {
+                    throw new IOException(String.format("Unexpected marker %04X", marker));
+                }
+                //tables, frame and block headers and comments all start with their length
+                int segmentLength = (readByte() << 8) | readByte();
+                if (segmentLength < 2) throw new IOException("Invalid segment length " + segmentLength);
+                readFully(segmentLength - 2);
+                marker = marker == SOB ? readBlockData() : readMarker();
+            }
+            return true;
+        } finally {
+            giveBack();
+        }
+    }
+
+    /*
+        Copy the Huffman coded data of a block, returns the marker that ends it.
+        0xFF bytes in the data are stuffed with a zero byte, any other byte after 0xFF starts a marker.
+     */
+    private int readBlockData() throws IOException {
+        while (true) {
+            //scan the read-ahead bytes in place, the stream is only called once per chunk
+            int start = aheadPos;
+            int end = aheadLength;
+            int i = start;
+            while (i < end && ahead[i] != (byte) 0xFF) i++;
+            if (i < end) i++;
+            append(ahead, start, i - start);
+            aheadPos = i;
+            if (i > start && ahead[i - 1] == (byte) 0xFF) {
+                int next = readByte();
+                if (next != 0x00) return 0xFF00 | next;
+            } else if (aheadPos == aheadLength && !fill()) {
+                throw new EOFException("Stream ended inside a WSQ record");
+            }
+        }
+    }
+
+    /*
+        Read the next chunk ahead, false at the end of the stream. All the previous chunk has been used.
+        A stream that cannot be reset only gets the next byte, it must not be read past the record.
+     */
+    private boolean fill() throws IOException {
+        if (markable) in.mark(ahead.length);
+        aheadPos = 0;
+        aheadLength = 0;
+        int read = in.read(ahead, 0, markable ? ahead.length : 1);
+        if (read <= 0) return false;
+        aheadLength = read;
+        return true;
+    }
+
+    /*
+        Return the bytes read past the record to a stream supporting mark, so it is left right after the record.
+     */
+    private void giveBack() throws IOException {
+        if (!markable || aheadPos == aheadLength) return;
+        in.reset();
+        long skip = aheadPos;
+        while (skip > 0) {
+            long skipped = in.skip(skip);
+            if (skipped <= 0) {
+                if (in.read() < 0) throw new EOFException("Stream ended while returning to the end of the record");
+                skipped = 1;
+            }
+            skip -= skipped;
+        }
+        aheadPos = 0;
+        aheadLength = 0;
+    }
+
+    private int readMarker() throws IOException {
+        int first = readByte();
+        if (first != 0xFF) throw new IOException(String.format("Expected a marker, found %02X", first));
+        return 0xFF00 | readByte();
+    }
+
+    private int readByte() throws IOException {
+        if (aheadPos == aheadLength && !fill()) throw new EOFException("Stream ended inside a WSQ record");
+        int b = ahead[aheadPos++] & 0xFF;
+        append(b);
+        return b;
+    }
+
+    private void readFully(int count) throws IOException {
+        while (count > 0) {
+            if (aheadPos == aheadLength && !markable) {
+                //the segment length is known, read it straight into the record
+                ensureCapacity(length + count);
+                while (count > 0) {
+                    int read = in.read(buffer, length, count);
+                    if (read < 0) throw new EOFException("Stream ended inside a WSQ record");
+                    length += read;
+                    count -= read;
+                }
+                return;
+            }
+            if (aheadPos == aheadLength && !fill()) throw new EOFException("Stream ended inside a WSQ record");
+            int n = Math.min(count, aheadLength - aheadPos);
+            append(ahead, aheadPos, n);
+            aheadPos += n;
+            count -= n;
+        }
+    }
+
+    private void append(int b) {
+        if (length == buffer.length) ensureCapacity(length + 1);
+        buffer[length++] = (byte) b;
+    }
+
+    private void append(byte[] data, int offset, int count) {
+        ensureCapacity(length + count);
+        System.arraycopy(data, offset, buffer, length, count);
+        length += count;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+    }
+}
@@ -0,0 +1,55 @@
+package com.gemalto.wsq;
+
+import android.graphics.Rect;
+
+/**
+ * This class changes WSQ-encoded data without decoding it to pixels and encoding it again.
+ */
+public class WSQTranscoder {
+    /**
+     * Crop a WSQ image, e.g. to store the fingers segmented from a slap. The quantized wavelet coefficients covering
+     * the region are copied and only Huffman coded again, there is no wavelet transform and no further quantization
+     * loss. The header, tables and comments of the original image are kept.<br><br>
+     * The wavelet subbands can only be cut at multiples of 32 pixels, so the left and top edges of the region are
+     * moved out to the nearest multiple of 32: the cropped image starts at
+     * {@code (region.left / 32 * 32, region.top / 32 * 32)} and may contain up to 31 extra columns and rows.
+     * The right and bottom edges are kept, the region is clipped to the image bounds. Regions whose clipped
+     * result is smaller than 33 pixels in width or height are refused, NBIS cannot decode such small images
+     * safely.<br><br>
+     * The wavelet filters of the cropped image reach over its edges, where the coefficients of the original image
+     * are missing, so the decoded pixels are not those of the original image. The error is large at the edges, up to
+     * about 200 gray levels, and extends deep into the crop: most pixels of small crops differ, and pixels 48
+     * pixels inside a 384x384 crop can still be off by about 10 gray levels. Use the cropped image where the
+     * overall content matters, not as an exact copy of the region.
+     * @param data WSQ-encoded data
+     * @param region the region to keep
+     * @return the cropped WSQ image, or null if the image data could not be decoded, the region lies outside
+     * the image or the cropped image would be smaller than 33x33 pixels.
+     * @throws IllegalArgumentException if the region is null or empty
+     */
+    public static byte[] crop(byte[] data, Rect region) {
+        WSQDecoder.checkRegion(region);
+        if (data == null) return null;
+        return Native.cropWSQByteArray(data, region.left, region.top, region.right, region.bottom);
+    }
+
+    /**
+     * Change the bitrate of a WSQ image, e.g. to send 15:1 files made from a 5:1 archive. The quantized wavelet
+     * coefficients are unquantized, the bin widths computed again for the new bitrate from their variances and the
+     * coefficients quantized with them and Huffman coded. There is no wavelet reconstruction, pixel conversion and
+     * decomposition as in a decode followed by an encode, which makes it several times faster. The result is close
+     * to, but not the same as, an encode of the decoded image at the new bitrate. The header and comments of the
+     * original image are kept, the bitrate in its NISTCOM comment is updated.<br><br>
+     * Like with {@link WSQEncoder}, the result must not be larger than the raw image data. A bitrate above the one of
+     * the original image makes the file bigger, but does not restore any of the lost quality.
+     * @param data WSQ-encoded data
+     * @param bitrate the new bit rate, see {@link WSQEncoder#setBitrate(float)}
+     * @return the WSQ image at the new bitrate, or null if the image data could not be decoded or encoded
+     * @throws IllegalArgumentException if {@code bitrate} is not a positive number
+     */
+    public static byte[] transcode(byte[] data, float bitrate) {
+        if (bitrate <= 0) throw new IllegalArgumentException("Bitrate must be a positive number");
+        if (data == null) return null;
+        return Native.transcodeWSQByteArray(data, bitrate);
+    }
+}